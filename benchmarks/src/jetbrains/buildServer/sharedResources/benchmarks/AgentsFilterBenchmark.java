@@ -0,0 +1,110 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterResult;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures {@code SharedResourcesAgentsFilter.filterAgents}
+ * for single queued build and for the whole distribution cycle
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AgentsFilterBenchmark {
+
+  /**
+   * Number of resources defined in the project
+   */
+  @Param({"10", "100"})
+  public int resources;
+
+  /**
+   * Number of running builds, that hold locks
+   */
+  @Param({"10", "200"})
+  public int running;
+
+  /**
+   * Number of queued builds
+   */
+  @Param({"50", "500"})
+  public int queued;
+
+  /**
+   * Depth of composite build chain above each queued build
+   */
+  @Param({"0", "3"})
+  public int chainDepth;
+
+  private DistributionFixture myFixture;
+
+  private List<QueuedBuildInfo> myQueuedBuilds;
+
+  /**
+   * Distribution data, shared between calls in the same cycle
+   */
+  private Map<String, Object> myCustomData;
+
+  private Map<QueuedBuildInfo, SBuildAgent> myDistributedBuilds;
+
+  private int myNext;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    myFixture = new DistributionFixture(resources, running, queued, chainDepth);
+    myQueuedBuilds = myFixture.getQueuedBuilds();
+  }
+
+  @Setup(Level.Iteration)
+  public void startCycle() {
+    myCustomData = new HashMap<>();
+    myDistributedBuilds = new LinkedHashMap<>();
+    myNext = 0;
+  }
+
+  /**
+   * Single call of the filter inside of the distribution cycle,
+   * that has already collected locks of running builds
+   */
+  @Benchmark
+  public AgentsFilterResult filterAgents() {
+    final QueuedBuildInfo queuedBuild = myQueuedBuilds.get(myNext++ % myQueuedBuilds.size());
+    return myFixture.getFilter().filterAgents(myFixture.createContext(myCustomData, queuedBuild, myDistributedBuilds));
+  }
+
+  /**
+   * All queued builds are passed through the filter in a new distribution cycle
+   */
+  @Benchmark
+  public int distributionCycle() {
+    return myFixture.distributionCycle();
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs shared resources benchmarks with allocation profiling.
+ *
+ * Accepts usual JMH command line options, i.e. {@code AgentsFilterBenchmark -p running=1000}
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class BenchmarksRunner {
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    final CommandLineOptions commandLine = new CommandLineOptions(args);
+    final OptionsBuilder options = new OptionsBuilder();
+    if (commandLine.getIncludes().isEmpty()) {
+      options.include(BenchmarksRunner.class.getPackage().getName() + ".*Benchmark");
+    }
+    options.parent(commandLine).addProfiler(GCProfiler.class);
+    new Runner(options.build()).run();
+  }
+}
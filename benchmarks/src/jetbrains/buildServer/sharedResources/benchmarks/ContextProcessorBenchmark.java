@@ -0,0 +1,66 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.BuildStartContext;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures {@code SharedResourcesContextProcessor.updateParameters},
+ * that assigns values of custom resources to the starting build
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ContextProcessorBenchmark {
+
+  @Param({"10", "100"})
+  public int resources;
+
+  @Param({"10", "200", "1000"})
+  public int running;
+
+  @Param({"0", "3"})
+  public int chainDepth;
+
+  private DistributionFixture myFixture;
+
+  private List<QueuedBuildInfo> myQueuedBuilds;
+
+  private int myNext;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    myFixture = new DistributionFixture(resources, running, 50, chainDepth);
+    myQueuedBuilds = myFixture.getQueuedBuilds();
+  }
+
+  @Benchmark
+  public BuildStartContext updateParameters() {
+    final BuildStartContext context = myFixture.createStartContext(myQueuedBuilds.get(myNext++ % myQueuedBuilds.size()));
+    myFixture.getContextProcessor().updateParameters(context);
+    return context;
+  }
+}
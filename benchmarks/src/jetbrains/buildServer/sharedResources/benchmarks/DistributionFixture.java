@@ -0,0 +1,398 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.buildDistribution.*;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.ConfigurationInspector;
+import jetbrains.buildServer.sharedResources.server.SharedResourcesAgentsFilter;
+import jetbrains.buildServer.sharedResources.server.SharedResourcesBuildFeature;
+import jetbrains.buildServer.sharedResources.server.SharedResourcesContextProcessor;
+import jetbrains.buildServer.sharedResources.server.feature.*;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
+import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeaturesImpl;
+import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
+import jetbrains.buildServer.sharedResources.server.report.UsedResourcesSerializer;
+import jetbrains.buildServer.sharedResources.server.runtime.ArtifactsWriteBehind;
+import jetbrains.buildServer.sharedResources.server.runtime.LockLeases;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocksImpl;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocksLedger;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.getReservedResourceAttributeKey;
+
+/**
+ * Synthetic server state for build distribution benchmarks.
+ *
+ * Wires actual plugin services the same way, as the plugin context does,
+ * against a project with {@code N} resources, {@code M} running builds,
+ * {@code Q} queued builds and composite build chains of depth {@code D}.
+ *
+ * Even resources are quoted, odd ones are custom. Every build locks up to
+ * {@link #LOCKS_PER_BUILD} resources, every tenth build takes a write lock
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+final class DistributionFixture {
+
+  static final String PROJECT_ID = "Root";
+
+  private static final int LOCKS_PER_BUILD = 3;
+
+  private static final int WRITE_LOCK_EVERY = 10;
+
+  @NotNull
+  private final Locks myLocks = new LocksImpl();
+
+  @NotNull
+  private final InMemoryLocksStorage myLocksStorage = new InMemoryLocksStorage();
+
+  @NotNull
+  private final List<Resource> myResources;
+
+  @NotNull
+  private final List<SRunningBuild> myRunningBuilds = new ArrayList<>();
+
+  /**
+   * Live build types. Build type internal id -> build type
+   */
+  @NotNull
+  private final Map<String, SBuildType> myBuildTypes = new HashMap<>();
+
+  @NotNull
+  private final List<QueuedBuildInfo> myQueuedBuilds = new ArrayList<>();
+
+  @NotNull
+  private final SBuildAgent myAgent = Stubs.stub("agent", new Stubs.Answers(), SBuildAgent.class);
+
+  @NotNull
+  private final BuildDistributorInput myDistributorInput = Stubs.stub("input", new Stubs.Answers()
+    .answers("getQueuedBuilds", args -> myQueuedBuilds), BuildDistributorInput.class);
+
+  @NotNull
+  private final SProject myProject;
+
+  @NotNull
+  private final TakenLocksImpl myTakenLocks;
+
+  @NotNull
+  private final SharedResourcesAgentsFilter myFilter;
+
+  @NotNull
+  private final SharedResourcesContextProcessor myContextProcessor;
+
+  private long myNextPromotionId = 0;
+
+  DistributionFixture(final int resources, final int running, final int queued, final int chainDepth) {
+    final int valuesCount = running + queued + 1;
+    myResources = IntStream.range(0, resources)
+                           .mapToObj(i -> i % 2 == 0
+                                          ? ResourceFactory.newQuotedResource("resource_id_" + i, PROJECT_ID, "resource_" + i, valuesCount, true)
+                                          : ResourceFactory.newCustomResource("resource_id_" + i, PROJECT_ID, "resource_" + i, values(valuesCount), true))
+                           .collect(Collectors.toList());
+    final List<SProjectFeatureDescriptor> resourceDescriptors = myResources.stream()
+                                                                           .map(DistributionFixture::createResourceDescriptor)
+                                                                           .collect(Collectors.toList());
+    final SProject[] project = new SProject[1];
+    project[0] = Stubs.stub(PROJECT_ID, new Stubs.Answers()
+      .returns("getProjectId", PROJECT_ID)
+      .returns("getExternalId", PROJECT_ID)
+      .returns("getName", PROJECT_ID)
+      .returns("getOwnFeaturesOfType", resourceDescriptors)
+      .answers("getProjectPath", args -> Collections.singletonList(project[0])), SProject.class);
+    myProject = project[0];
+
+    final ProjectManager projectManager = Stubs.stub("projectManager", new Stubs.Answers()
+      .answers("findProjectById", args -> PROJECT_ID.equals(args[0]) ? myProject : null)
+      .answers("findBuildTypeById", args -> myBuildTypes.get(args[0])), ProjectManager.class);
+    final RunningBuildsManager runningBuildsManager = Stubs.stub("runningBuildsManager", new Stubs.Answers()
+      .answers("getRunningBuilds", args -> Collections.unmodifiableList(myRunningBuilds)), RunningBuildsManager.class);
+
+    // services, as they are defined in build-server-plugin-shared-resources.xml
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final SharedResourcesMetrics metrics = new SharedResourcesMetrics();
+    final SharedResourcesFeatures features = new SharedResourcesFeaturesImpl(new SharedResourcesFeatureFactoryImpl(myLocks, metrics), dispatcher, projectManager);
+    final ResourceProjectFeaturesImpl projectFeatures = new ResourceProjectFeaturesImpl();
+    final Resources resourcesService = new ResourcesImpl(dispatcher, projectManager, projectFeatures);
+    final TakenLocksLedger ledger = new TakenLocksLedger(dispatcher, runningBuildsManager, myLocksStorage, features, myLocks,
+                                                         new LockLeases(dispatcher, resourcesService));
+    myTakenLocks = new TakenLocksImpl(myLocks, resourcesService, features, ledger, metrics);
+    myFilter = new SharedResourcesAgentsFilter(features, myLocks, myTakenLocks, new ConfigurationInspector(dispatcher, projectFeatures, features, resourcesService, projectManager),
+                                               myLocksStorage, resourcesService, metrics);
+    myContextProcessor = new SharedResourcesContextProcessor(features, myLocks, resourcesService, myLocksStorage, ledger,
+                                                             new BuildUsedResourcesReport(new UsedResourcesSerializer(), new ArtifactsWriteBehind(dispatcher)) {
+                                                               @Override
+                                                               public void save(@NotNull final BuildPromotionEx promo,
+                                                                                @NotNull final Map<String, Resource> resources,
+                                                                                @NotNull final Map<Lock, String> takenLocks) {
+                                                                 // report is written to build artifacts. Not a part of the hot path
+                                                               }
+                                                             }, metrics);
+
+    // running builds. Values of custom resources are already assigned and stored
+    for (int i = 0; i < running; i++) {
+      final Map<String, Lock> locks = createLocks(i);
+      final BuildPromotionEx promotion = createPromotion("running-" + i, createBuildType("running-" + i, locks),
+                                                         Collections.emptyList(), false, Collections.emptyMap());
+      final Map<String, Collection<Lock>> stored = new LinkedHashMap<>();
+      final int value = i;
+      locks.forEach((name, lock) -> stored.put(name, Collections.singletonList(isCustom(name) && lock.getType() == LockType.READ && lock.getValue().isEmpty()
+                                                                               ? Lock.createFrom(lock, "value_" + value)
+                                                                               : lock)));
+      myLocksStorage.put(promotion.getId(), stored);
+      myRunningBuilds.add(createRunningBuild(promotion));
+    }
+
+    // queued builds. Reserved values of custom resources are the ones, that are not used by running builds
+    for (int i = 0; i < queued; i++) {
+      final Map<String, Lock> locks = createLocks(running + i);
+      final Map<String, Object> attributes = new HashMap<>();
+      final int value = running + i;
+      locks.forEach((name, lock) -> {
+        final Resource resource = getResource(name);
+        if (resource instanceof CustomResource) {
+          attributes.put(getReservedResourceAttributeKey(resource.getId()), "value_" + value);
+        }
+      });
+      final BuildPromotionEx promotion = createPromotion("queued-" + i, createBuildType("queued-" + i, locks),
+                                                         createChain("queued-" + i, running + i, chainDepth), false, attributes);
+      myQueuedBuilds.add(Stubs.stub("queued-" + i, new Stubs.Answers()
+        .returns("getBuildPromotionInfo", promotion), QueuedBuildInfo.class));
+    }
+  }
+
+  @NotNull
+  SharedResourcesAgentsFilter getFilter() {
+    return myFilter;
+  }
+
+  @NotNull
+  SharedResourcesContextProcessor getContextProcessor() {
+    return myContextProcessor;
+  }
+
+  @NotNull
+  TakenLocksImpl getTakenLocks() {
+    return myTakenLocks;
+  }
+
+  @NotNull
+  List<QueuedBuildInfo> getQueuedBuilds() {
+    return myQueuedBuilds;
+  }
+
+  /**
+   * Runs single distribution cycle over all queued builds,
+   * the way build distributor calls agents filters
+   *
+   * @return number of builds, that were not allowed to start
+   */
+  int distributionCycle() {
+    final Map<String, Object> customData = new HashMap<>();
+    final Map<QueuedBuildInfo, SBuildAgent> distributed = new LinkedHashMap<>();
+    int waiting = 0;
+    for (QueuedBuildInfo queuedBuild: myQueuedBuilds) {
+      final AgentsFilterResult result = myFilter.filterAgents(createContext(customData, queuedBuild, distributed));
+      if (result.getWaitReason() == null) {
+        distributed.put(queuedBuild, myAgent);
+      } else {
+        waiting++;
+      }
+    }
+    return waiting;
+  }
+
+  @NotNull
+  AgentsFilterContext createContext(@NotNull final Map<String, Object> customData,
+                                    @NotNull final QueuedBuildInfo startingBuild,
+                                    @NotNull final Map<QueuedBuildInfo, SBuildAgent> distributedBuilds) {
+    return new DefaultAgentsFilterContext(customData) {
+
+      @NotNull
+      @Override
+      public QueuedBuildInfo getStartingBuild() {
+        return startingBuild;
+      }
+
+      @NotNull
+      @Override
+      public Collection<SBuildAgent> getAgentsForStartingBuild() {
+        return Collections.singletonList(myAgent);
+      }
+
+      @NotNull
+      @Override
+      public Map<QueuedBuildInfo, SBuildAgent> getDistributedBuilds() {
+        return distributedBuilds;
+      }
+
+      @NotNull
+      @Override
+      public BuildDistributorInput getDistributorInput() {
+        return myDistributorInput;
+      }
+
+      @Override
+      public boolean isEmulationMode() {
+        return false;
+      }
+    };
+  }
+
+  @NotNull
+  BuildStartContext createStartContext(@NotNull final QueuedBuildInfo queuedBuild) {
+    final SRunningBuild startingBuild = createRunningBuild((BuildPromotionEx)queuedBuild.getBuildPromotionInfo());
+    final Map<String, String> sharedParameters = new HashMap<>();
+    return Stubs.stub("context-" + queuedBuild, new Stubs.Answers()
+      .returns("getBuild", startingBuild)
+      .returns("getSharedParameters", sharedParameters)
+      .answers("addSharedParameter", args -> sharedParameters.put((String)args[0], (String)args[1])), BuildStartContext.class);
+  }
+
+  /**
+   * Composite build chain on top of the queued build.
+   * The topmost composite build is running and has its locks stored
+   */
+  @NotNull
+  private List<BuildPromotionEx> createChain(@NotNull final String name, final int buildNumber, final int depth) {
+    final List<BuildPromotionEx> result = new ArrayList<>();
+    if (myResources.isEmpty()) {
+      return result;
+    }
+    for (int d = 0; d < depth; d++) {
+      final String compositeName = name + "-composite-" + d;
+      final Lock lock = new Lock(myResources.get((buildNumber + d) % myResources.size()).getName(), LockType.READ);
+      final Map<String, Lock> locks = isCustom(lock.getName()) ? Collections.emptyMap() : Collections.singletonMap(lock.getName(), lock);
+      final BuildPromotionEx composite = createPromotion(compositeName, createBuildType(compositeName, locks),
+                                                         Collections.emptyList(), true, Collections.emptyMap());
+      if (d == 0) {
+        myLocksStorage.put(composite.getId(), isCustom(lock.getName()) ? Collections.emptyMap()
+                                                                       : Collections.singletonMap(lock.getName(), Collections.singletonList(lock)));
+      }
+      result.add(composite);
+    }
+    return result;
+  }
+
+  @NotNull
+  private Map<String, Lock> createLocks(final int buildNumber) {
+    final Map<String, Lock> result = new LinkedHashMap<>();
+    if (myResources.isEmpty()) {
+      return result;
+    }
+    for (int j = 0; j < LOCKS_PER_BUILD; j++) {
+      final String name = myResources.get((buildNumber + j * 7) % myResources.size()).getName();
+      final LockType type = j == 0 && buildNumber % WRITE_LOCK_EVERY == WRITE_LOCK_EVERY - 1 ? LockType.WRITE : LockType.READ;
+      result.putIfAbsent(name, new Lock(name, type));
+    }
+    return result;
+  }
+
+  @NotNull
+  private BuildTypeEx createBuildType(@NotNull final String name, @NotNull final Map<String, Lock> locks) {
+    final List<SBuildFeatureDescriptor> descriptors = new ArrayList<>();
+    if (!locks.isEmpty()) {
+      final Map<String, String> parameters = Collections.singletonMap(FeatureParams.LOCKS_FEATURE_PARAM_KEY, myLocks.asFeatureParameter(locks.values()));
+      descriptors.add(Stubs.stub(name + "-feature", new Stubs.Answers()
+        .returns("getId", "BUILD_EXT_" + name)
+        .returns("getType", SharedResourcesBuildFeature.FEATURE_TYPE)
+        .returns("getParameters", parameters), SBuildFeatureDescriptor.class));
+    }
+    final BuildTypeEx result = Stubs.stub(name + "-buildType", new Stubs.Answers()
+      .returns("getProjectId", PROJECT_ID)
+      .returns("getProject", myProject)
+      .returns("getInternalId", "bt_" + name)
+      .returns("getExternalId", name)
+      .returns("getName", name)
+      .returns("getExtendedName", name)
+      .returns("getExtendedFullName", PROJECT_ID + " :: " + name)
+      .returns("getBuildFeatures", descriptors)
+      .returns("isEnabled", true), BuildTypeEx.class);
+    myBuildTypes.put(result.getInternalId(), result);
+    return result;
+  }
+
+  @NotNull
+  private BuildPromotionEx createPromotion(@NotNull final String name,
+                                           @NotNull final BuildTypeEx buildType,
+                                           @NotNull final List<BuildPromotionEx> chain,
+                                           final boolean composite,
+                                           @NotNull final Map<String, Object> attributes) {
+    final long id = myNextPromotionId++;
+    final Map<String, Object> promotionAttributes = new ConcurrentHashMap<>(attributes);
+    final BuildPromotionEx[] promotion = new BuildPromotionEx[1];
+    final SQueuedBuild queuedBuild = Stubs.stub(name + "-queued", new Stubs.Answers()
+      .returns("getBuildType", buildType)
+      .answers("getBuildPromotion", args -> promotion[0]), SQueuedBuild.class);
+    promotion[0] = Stubs.stub(name, new Stubs.Answers()
+      .returns("getId", id)
+      .returns("getBuildType", buildType)
+      .returns("getProjectId", PROJECT_ID)
+      .returns("isCompositeBuild", composite)
+      .returns("isPartOfBuildChain", composite || !chain.isEmpty())
+      .returns("getDependentCompositePromotions", chain)
+      .answers("getQueuedBuild", args -> myLocksStorage.locksStored(promotion[0]) ? null : queuedBuild)
+      .answers("getAttribute", args -> promotionAttributes.get((String)args[0]))
+      .answers("setAttribute", args -> promotionAttributes.put((String)args[0], args[1])), BuildPromotionEx.class);
+    return promotion[0];
+  }
+
+  @NotNull
+  private SRunningBuild createRunningBuild(@NotNull final BuildPromotionEx promotion) {
+    return Stubs.stub(promotion + "-build", new Stubs.Answers()
+      .returns("getBuildId", promotion.getId())
+      .returns("getBuildType", promotion.getBuildType())
+      .returns("getBuildPromotion", promotion)
+      .returns("getBuildPromotionInfo", promotion)
+      .returns("isFinished", false), SRunningBuild.class, RunningBuildEx.class);
+  }
+
+  @Nullable
+  private Resource getResource(@NotNull final String name) {
+    return myResources.stream().filter(r -> r.getName().equals(name)).findFirst().orElse(null);
+  }
+
+  private boolean isCustom(@NotNull final String name) {
+    return getResource(name) instanceof CustomResource;
+  }
+
+  @NotNull
+  private static List<String> values(final int count) {
+    return IntStream.range(0, count).mapToObj(i -> "value_" + i).collect(Collectors.toList());
+  }
+
+  @NotNull
+  private static SProjectFeatureDescriptor createResourceDescriptor(@NotNull final Resource resource) {
+    return Stubs.stub(resource.getId(), new Stubs.Answers()
+      .returns("getId", resource.getId())
+      .returns("getProjectId", PROJECT_ID)
+      .returns("getType", SharedResourcesPluginConstants.FEATURE_TYPE)
+      .returns("getParameters", resource.getParameters()), SProjectFeatureDescriptor.class);
+  }
+}
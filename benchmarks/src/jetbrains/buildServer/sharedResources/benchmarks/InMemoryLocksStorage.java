@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps taken locks in memory instead of build artifacts,
+ * so that benchmarks do not measure disk access
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+final class InMemoryLocksStorage implements LocksStorage {
+
+  @NotNull
+  private final ConcurrentMap<Long, Map<String, Collection<Lock>>> myLocks = new ConcurrentHashMap<>();
+
+  @Override
+  public void store(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<Lock, String> takenLocks) {
+    final Map<String, Collection<Lock>> locks = new LinkedHashMap<>();
+    takenLocks.forEach((lock, value) -> locks.computeIfAbsent(lock.getName(), name -> new ArrayList<>(1)).add(Lock.createFrom(lock, value)));
+    put(buildPromotion.getId(), locks);
+  }
+
+  @NotNull
+  @Override
+  public Map<String, Collection<Lock>> load(@NotNull final BuildPromotion buildPromotion) {
+    final Map<String, Collection<Lock>> result = myLocks.get(buildPromotion.getId());
+    return result != null ? result : Collections.emptyMap();
+  }
+
+  @Override
+  public boolean locksStored(@NotNull final BuildPromotion buildPromotion) {
+    return myLocks.containsKey(buildPromotion.getId());
+  }
+
+  void put(final long promotionId, @NotNull final Map<String, Collection<Lock>> locks) {
+    myLocks.put(promotionId, Collections.unmodifiableMap(locks));
+  }
+}
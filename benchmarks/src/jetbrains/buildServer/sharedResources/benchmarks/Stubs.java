@@ -0,0 +1,106 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Lightweight stubs for TeamCity interfaces.
+ *
+ * Mocks from the tests are not used here, as expectation matching
+ * would dominate the measured time
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+final class Stubs {
+
+  private Stubs() {}
+
+  /**
+   * Creates stub, that answers method calls by method name.
+   * Methods without answer return default value of their return type
+   *
+   * @param name name of the stub, returned from {@code toString}
+   * @param answers method name -> answer
+   * @param interfaces interfaces to implement. First one defines the result type
+   * @return new stub
+   */
+  @NotNull
+  @SuppressWarnings("unchecked")
+  static <T> T stub(@NotNull final String name,
+                    @NotNull final Answers answers,
+                    @NotNull final Class<T> type,
+                    @NotNull final Class<?>... interfaces) {
+    final Class<?>[] all = new Class<?>[interfaces.length + 1];
+    all[0] = type;
+    System.arraycopy(interfaces, 0, all, 1, interfaces.length);
+    return (T)Proxy.newProxyInstance(Stubs.class.getClassLoader(), all, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "toString":
+          return name;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+      }
+      final Function<Object[], Object> answer = answers.get(method.getName());
+      if (answer != null) {
+        return answer.apply(args);
+      }
+      return defaultValue(method);
+    });
+  }
+
+  @Nullable
+  private static Object defaultValue(@NotNull final Method method) {
+    final Class<?> type = method.getReturnType();
+    if (type == boolean.class) return false;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0L;
+    if (!type.isPrimitive()) return null;
+    throw new UnsupportedOperationException(method.toString());
+  }
+
+  static final class Answers {
+
+    @NotNull
+    private final Map<String, Function<Object[], Object>> myAnswers = new HashMap<>();
+
+    @NotNull
+    Answers returns(@NotNull final String methodName, @Nullable final Object value) {
+      myAnswers.put(methodName, args -> value);
+      return this;
+    }
+
+    @NotNull
+    Answers answers(@NotNull final String methodName, @NotNull final Function<Object[], Object> answer) {
+      myAnswers.put(methodName, answer);
+      return this;
+    }
+
+    @Nullable
+    private Function<Object[], Object> get(@NotNull final String methodName) {
+      return myAnswers.get(methodName);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures collection of taken locks from running and distributed builds
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TakenLocksBenchmark {
+
+  @Param({"10", "100"})
+  public int resources;
+
+  @Param({"10", "200", "1000"})
+  public int running;
+
+  @Param({"50", "500"})
+  public int queued;
+
+  private DistributionFixture myFixture;
+
+  private List<QueuedBuildInfo> myQueuedBuilds;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    myFixture = new DistributionFixture(resources, running, queued, 0);
+    myQueuedBuilds = myFixture.getQueuedBuilds();
+  }
+
+  @Benchmark
+  public Map<Resource, TakenLock> collectRunningLocks() {
+    return myFixture.getTakenLocks().collectRunningLocks();
+  }
+
+  /**
+   * Locks of running builds together with locks of all queued builds,
+   * as if all of them were distributed in the current cycle
+   */
+  @Benchmark
+  public Map<Resource, TakenLock> collectRunningAndDistributedLocks() {
+    final Map<Resource, TakenLock> result = myFixture.getTakenLocks().collectRunningLocks();
+    myFixture.getTakenLocks().addDistributedLocks(result, myQueuedBuilds);
+    return result;
+  }
+}
@@ -22,7 +22,7 @@
 
 <jsp:useBean id="keys" class="jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants"/>
 <jsp:useBean id="propertiesBean" scope="request" type="jetbrains.buildServer.controllers.BasePropertiesBean"/>
-<jsp:useBean id="locks" scope="request" type="java.util.Map<java.lang.String, jetbrains.buildServer.sharedResources.model.Lock>"/>
+<jsp:useBean id="locks" scope="request" type="java.util.Map<java.lang.String, java.util.Collection<jetbrains.buildServer.sharedResources.model.Lock>>"/>
 <jsp:useBean id="bean" scope="request" type="jetbrains.buildServer.sharedResources.pages.beans.EditFeatureBean"/>
 <jsp:useBean id="inherited" scope="request" type="java.lang.Boolean"/>
 
@@ -68,26 +68,48 @@ BS.LocksUtil = {
   },
 
   lockToString: function (lock) {
-    return lock.name + " " + lock.type + " " + (lock.value ? lock.value : "") + "\n";
+    return lock.name + " " + lock.type + (lock.weight > 1 ? ":" + lock.weight : "") + " " + (lock.value ? lock.value : "") + "\n";
   },
 
-  lockToTableRow: function (lock) {
-    var resource = BS.SharedResourcesFeatureDialog.resources[lock.name];
+  locksToString: function (locks) {
+    var result = "";
+    for (var i = 0; i < locks.length; i++) {
+      result += this.lockToString(locks[i]);
+    }
+    return result;
+  },
+
+  /**
+   * Describes all locks on the resource in a single row
+   */
+  lockToTableRow: function (locks) {
+    var resource = BS.SharedResourcesFeatureDialog.resources[locks[0].name];
     var result = {};
-    result.name = lock.name;
-    if (resource.type === 'CUSTOM') {
-      if (lock.type === 'writeLock') {
-        result.description = "All Values";
-      } else {
-        if (lock.value) {
-          result.description = "Specific Value: " + lock.value;
+    result.name = locks[0].name;
+    var descriptions = [];
+    var values = [];
+    for (var i = 0; i < locks.length; i++) {
+      var lock = locks[i];
+      if (resource.type === 'CUSTOM') {
+        if (lock.type === 'writeLock') {
+          descriptions.push("All Values");
+        } else if (lock.value) {
+          values.push(lock.value);
         } else {
-          result.description = "Any Value";
+          descriptions.push("Any Value");
         }
+      } else {
+        var description = this.locksDisplay[lock.type];
+        if (lock.weight > 1) {
+          description += " (" + lock.weight + " units)";
+        }
+        descriptions.push(description);
       }
-    } else {
-      result.description = this.locksDisplay[lock.type];
     }
+    if (values.length > 0) {
+      descriptions.push((values.length > 1 ? "Specific Values: " : "Specific Value: ") + values.join(", "));
+    }
+    result.description = descriptions.join("; ");
     return result;
   }
 };
@@ -102,7 +124,7 @@ BS.LocksUtil = {
 
 BS.SharedResourcesFeatureDialog = {
   resources: {}, // map of resources: <resource_name, Resource>
-  locks: {}, // map of locks: <lock_name, Lock>
+  locks: {}, // map of locks: <lock_name, [Lock]>
   invalid: {}, // map of invalid locks <lock_name, Lock>
   canEdit: true,
 
@@ -117,7 +139,7 @@ BS.SharedResourcesFeatureDialog = {
     var needRendering = false;
     for (var key in locks) {
       if (locks.hasOwnProperty(key)) {
-        textAreaContent += BS.LocksUtil.lockToString(locks[key]);
+        textAreaContent += BS.LocksUtil.locksToString(locks[key]);
         // if we have invalid lock - do not render it in the table
         if (!this.invalid[key]) {
           this.renderSingleValidRow(tableBody, key);
@@ -266,6 +288,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
     this.editMode = false;
     this.canEdit = true;
     $j('#locksDialogTitle').html('Add Lock');
+    $j('#newLockWeight').val(1);
     // filter available resources
     this.fillAvailableResources();
     this.fillAvailableResourcesDropdown();
@@ -284,8 +307,9 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
     $j('#locksDialogTitle').html('Edit Lock');
     // select resource
     var currentResource = BS.SharedResourcesFeatureDialog.resources[this.currentLockName];
-    // select lock
-    var currentLock = BS.SharedResourcesFeatureDialog.locks[this.currentLockName];
+    // select locks
+    var currentLocks = BS.SharedResourcesFeatureDialog.locks[this.currentLockName];
+    var currentLock = currentLocks[0];
     // filter available resources
     this.fillAvailableResources();
     // add current resource to available
@@ -318,9 +342,10 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
       this.chooseCustomLockType();
       if (customLockType === 'SPECIFIC') {
         // restore selection
+        var lockedValues = _.map(currentLocks, function (lock) { return lock.value; });
         $j('#newCustomLockType_Values option').each(function () {
           var self = $j(this);
-          self.prop("selected", self.val() === currentLock.value);
+          self.prop("selected", _.contains(lockedValues, self.val()));
         });
       }
     } else { // quoted resource. simply select lock type
@@ -328,6 +353,8 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
         var self = $j(this);
         self.prop("selected", self.val() === currentLock.type);
       }); // restore lock type
+      $j('#newLockWeight').val(currentLock.weight > 1 ? currentLock.weight : 1);
+      this.chooseLockType();
     }
     this.showCentered();
     this.bindCtrlEnterHandler(this.submit.bind(this));
@@ -374,6 +401,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
 
       BS.Util.hide('row_CustomResource_Type');
       BS.Util.hide('row_QuotedResource_Type');
+      BS.Util.hide('row_QuotedResource_Weight');
       BS.Util.hide('row_CustomResource_Value');
       BS.Util.hide('locksDialogSubmit');
     }
@@ -389,13 +417,25 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
       BS.Util.show('row_QuotedResource_Type');
       BS.Util.hide('row_CustomResource_Type');
       BS.Util.hide('row_CustomResource_Value');
+      this.chooseLockType();
     } else {
       BS.Util.show('row_CustomResource_Type');
       BS.Util.hide('row_QuotedResource_Type');
+      BS.Util.hide('row_QuotedResource_Weight');
       this.chooseCustomLockType();
     }
   },
 
+  chooseLockType: function () {
+    // only read locks on resources with quota can take several units of quota
+    var resource = BS.SharedResourcesFeatureDialog.resources[$j('#lockFromResources option:selected').val()];
+    if ('readLock' === $j('#newLockType option:selected').val() && resource.quota > 0) {
+      BS.Util.show('row_QuotedResource_Weight');
+    } else {
+      BS.Util.hide('row_QuotedResource_Weight');
+    }
+  },
+
   chooseCustomLockType: function () {
     var customType = $j('#newCustomLockType option:selected').val();
     if ('SPECIFIC' === customType) {
@@ -419,11 +459,13 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
         valuesDropdown.append($j("<option>").attr('value', resource.values[key]).text(resource.values[key]));
       }
     }
+    valuesDropdown.children().first().prop("selected", true);
   },
 
   submit: function () {
     // construct lock
     var lock = {};
+    var locks = [];
     /// get selected resource name
     /// get selected resource
     // get value of chooser
@@ -434,13 +476,27 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
     ///
     if (resource.type === 'QUOTED') {
       lock.type = $j('#newLockType option:selected').val();
+      if (lock.type === 'readLock' && resource.quota > 0) {
+        var weight = parseInt($j('#newLockWeight').val(), 10);
+        if (weight > 1) {
+          lock.weight = weight;
+        }
+      }
     } else { // CUSTOM
       var typeName = $j('#newCustomLockType option:selected').val();
       if (typeName === 'ANY') {
         lock.type = "readLock";
       } else if (typeName === 'SPECIFIC') {
+        // each of the selected values is locked with its own lock
+        var selected = $j('#newCustomLockType_Values option:selected');
+        if (selected.length === 0) {
+          return false;
+        }
         lock.type = "readLock";
-        lock.value = $j('#newCustomLockType_Values option:selected').val();
+        lock.value = selected.first().val();
+        locks = _.map(selected.slice(1), function (option) {
+          return {name: resourceName, type: "readLock", value: $j(option).val()};
+        });
       } else {
         lock.type = "writeLock";
       }
@@ -449,7 +505,8 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
       delete BS.SharedResourcesFeatureDialog.locks[this.currentLockName];
     }
     // add to locks
-    BS.SharedResourcesFeatureDialog.locks[lock.name] = lock;
+    locks.unshift(lock);
+    BS.SharedResourcesFeatureDialog.locks[lock.name] = locks;
     // refresh ui
     BS.SharedResourcesFeatureDialog.refreshUI();
     this.close();
@@ -488,11 +545,15 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
   var locks = self.locks;
   var lc;
   <c:forEach var="item" items="${locks}">
+  locks['<bs:escapeForJs text="${item.key}"/>'] = [];
+  <c:forEach var="lock" items="${item.value}">
   lc = {};
-  lc.name = '<bs:escapeForJs text="${item.value.name}"/>';
-  lc.type = '${item.value.type.name}';
-  lc.value = '<bs:escapeForJs text="${item.value.value}"/>';
-  locks['<bs:escapeForJs text="${item.value.name}"/>'] = lc;
+  lc.name = '<bs:escapeForJs text="${lock.name}"/>';
+  lc.type = '${lock.type.name}';
+  lc.value = '<bs:escapeForJs text="${lock.value}"/>';
+  lc.weight = ${lock.weight};
+  locks['<bs:escapeForJs text="${item.key}"/>'].push(lc);
+  </c:forEach>
   </c:forEach>
   self.inherited = ${inherited};
 
@@ -503,6 +564,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
   lc.name = '<bs:escapeForJs text="${item.value.name}"/>';
   lc.type = '${item.value.type.name}';
   lc.value = '<bs:escapeForJs text="${item.value.value}"/>';
+  lc.weight = ${item.value.weight};
   invalid['<bs:escapeForJs text="${item.value.name}"/>'] = lc;
   </c:forEach>
 
@@ -534,7 +596,8 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
           <tr id="row_QuotedResource_Type">
             <th><label for="newLockType">Lock type:</label></th>
             <td>
-              <forms:select name="newLockType" id="newLockType" style="width: 90%">
+              <forms:select name="newLockType" id="newLockType" style="width: 90%"
+                            onchange="BS.LocksDialog.chooseLockType();">
                 <forms:option value="readLock">Read Lock</forms:option>
                 <forms:option value="writeLock">Write Lock</forms:option>
               </forms:select>
@@ -542,6 +605,14 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
             </td>
           </tr>
 
+          <tr id="row_QuotedResource_Weight">
+            <th><label for="newLockWeight">Weight:</label></th>
+            <td>
+              <forms:textField name="newLockWeight" style="width: 15%" id="newLockWeight" className="longField" value="1" maxlength="3"/>
+              <span class="smallNote">Number of quota units the read lock takes</span>
+            </td>
+          </tr>
+
           <tr id="row_CustomResource_Type">
             <th>Lock type:</th>
             <td>
@@ -558,8 +629,8 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
           <tr id="row_CustomResource_Value">
             <th>Value to lock:</th>
             <td>
-              <forms:select name="newCustomLockType_Values" id="newCustomLockType_Values" style="width: 90%"/>
-              <span class="smallNote">Select value of custom resource to lock</span>
+              <select name="newCustomLockType_Values" id="newCustomLockType_Values" style="width: 90%" multiple="multiple" size="5"></select>
+              <span class="smallNote">Select values of custom resource to lock. Several values can be locked at once</span>
             </td>
           </tr>
         </table>
@@ -32,6 +32,7 @@ BS.ResourceDialog = OO.extend(BS.AbstractModalDialog, {
     $j('#resource_type').trigger('change');
     $j('#resource_quota').val(1);
     $j('#customValues').val('');
+    $j('#resource_lease').val('');
     $j('#resource_name').val('');
     $j('#resource_id').val('');
     this.showCommon();
@@ -61,6 +62,7 @@ BS.ResourceDialog = OO.extend(BS.AbstractModalDialog, {
     $j('#resource_type').trigger('change');
 
     $j('#resource_enabled').prop('checked', r['enabled']);
+    $j('#resource_lease').val(r['lease'] > 0 ? r['lease'] : '');
 
     if (type === 'quoted') {
       $j('#resource_quota').val(r['quota']);
@@ -142,6 +144,8 @@ BS.ResourceDialog = OO.extend(BS.AbstractModalDialog, {
     $j('#error_Quota').html("");
     BS.Util.hide('error_Values');
     $j('#error_Values').html("");
+    BS.Util.hide('error_Lease');
+    $j('#error_Lease').html("");
   },
 
   validate: function () {
@@ -169,6 +173,15 @@ BS.ResourceDialog = OO.extend(BS.AbstractModalDialog, {
         errorsPresent = true;
       }
     }
+    if (flag !== 'infinite') {
+      var lease = $j.trim($j('#resource_lease').val());
+      if (lease.length > 0 && !/^[0-9]+$/.test(lease)) {
+        BS.Util.show('error_Lease');
+        var leaseMessage = "Value " + lease + " is not correct";
+        $j('#error_Lease').html(leaseMessage.escapeHTML());
+        errorsPresent = true;
+      }
+    }
 
     var element = $j('#resource_name');
     var value = $j.trim(element.val());
@@ -200,16 +213,19 @@ BS.ResourceDialog = OO.extend(BS.AbstractModalDialog, {
   toggleModeInfinite: function () {
     BS.Util.hide('quota_row');
     BS.Util.hide('custom_row');
+    BS.Util.hide('lease_row');
   },
 
   toggleModeQuota: function () {
     BS.Util.show('quota_row');
     BS.Util.hide('custom_row');
+    BS.Util.show('lease_row');
   },
 
   toggleModeCustom: function () {
     BS.Util.hide('quota_row');
     BS.Util.show('custom_row');
+    BS.Util.show('lease_row');
   },
 
   onNameChange: function() {
@@ -27,6 +27,7 @@
 <c:set var="PARAM_RESOURCE_QUOTA" value="<%=SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_QUOTA%>"/>
 <c:set var="PARAM_RESOURCE_TYPE" value="<%=SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_TYPE%>"/>
 <c:set var="PARAM_RESOURCE_VALUES" value="<%=SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_VALUES%>"/>
+<c:set var="PARAM_RESOURCE_LEASE" value="<%=SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE%>"/>
 <c:set var="PARAM_OLD_RESOURCE_NAME" value="<%=SharedResourcesPluginConstants.WEB.PARAM_OLD_RESOURCE_NAME%>"/>
 <c:set var="PARAM_RESOURCE_STATE" value="<%=SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_STATE%>"/>
 <c:set var="PARAM_RESOURCE_ID" value="<%=SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_ID%>"/>
@@ -72,6 +73,10 @@
         params['${PARAM_RESOURCE_TYPE}'] = 'custom';
         params['${PARAM_RESOURCE_VALUES}'] = $j('#customValues').val();
       }
+      // lease
+      if (type !== 'infinite') {
+        params['${PARAM_RESOURCE_LEASE}'] = $j.trim($j('#resource_lease').val());
+      }
       return params;
     },
 
@@ -168,7 +173,8 @@
     name: '<bs:escapeForJs text="${item.name}"/>',
     type: '${item.type}',
     enabled: ${item.enabled},
-    id: '${item.id}'
+    id: '${item.id}',
+    lease: ${item.lease}
   };
   <c:choose>
 
@@ -110,6 +110,9 @@
                       </c:otherwise>
                     </c:choose>
                   </c:when>
+                  <c:when test="${lock.weight > 1}">
+                    <bs:out value="${lock.type.descriptiveName} (${lock.weight} units)"/><br/>
+                  </c:when>
                   <c:otherwise>
                     <bs:out value="${lock.type.descriptiveName}"/><br/>
                   </c:otherwise>
@@ -61,6 +61,8 @@ public class SharedResourcesPluginConstants {
 
     String ACTIONS = "/sharedResourcesActions.html";
 
+    String METRICS = "/sharedResourcesMetrics.html";
+
     String PARAM_PROJECT_ID = "project_id";
     String PARAM_OLD_RESOURCE_NAME = "old_resource_name";
 
@@ -71,6 +73,7 @@ public class SharedResourcesPluginConstants {
 
     String PARAM_RESOURCE_VALUES = "resource_values";
     String PARAM_RESOURCE_QUOTA = "resource_quota";
+    String PARAM_RESOURCE_LEASE = "resource_lease";
 
     String ACTION_MESSAGE_KEY = "resourceActionResultMessage";
   }
@@ -81,6 +84,11 @@ public class SharedResourcesPluginConstants {
     String QUOTA = "quota";
     String VALUES = "values";
     String ENABLED = "enabled";
+    /**
+     * Lease of the resource in seconds. Locks on the resource, held by a running build longer than the lease,
+     * are treated as released. Absent or non-positive value means locks are held until the build finishes
+     */
+    String LEASE = "lease";
   }
 
   public static Comparator<String> RESOURCE_NAMES_COMPARATOR = String::compareToIgnoreCase;
@@ -16,21 +16,116 @@
 
 package jetbrains.buildServer.sharedResources.model;
 
-import java.util.HashSet;
-import java.util.Set;
+import gnu.trove.TLongHashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.runtime.AdmissionVerdicts;
+import jetbrains.buildServer.sharedResources.server.runtime.CompositeChainLocks;
 import jetbrains.buildServer.sharedResources.server.runtime.ResourceAffinity;
+import jetbrains.buildServer.sharedResources.server.runtime.WaiterQueues;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class DistributionData {
 
-  private Set<String> fairSet = new HashSet<>();
+  /**
+   * Builds, waiting for write access to the resources
+   */
+  @NotNull
+  private final WaiterQueues myWaiterQueues = new WaiterQueues();
 
   private ResourceAffinity myResourceAffinity = new ResourceAffinity();
 
-  public Set<String> getFairSet() {
-    return fairSet;
+  /**
+   * Locks taken by running builds, collected once per distribution cycle. Never changed, consumers work on copies
+   */
+  @Nullable
+  private Map<Resource, TakenLock> myRunningLocks = null;
+
+  /**
+   * Copy of {@link #myRunningLocks} with locks of the builds, distributed during the cycle, applied on top of it
+   */
+  @Nullable
+  private Map<Resource, TakenLock> myTakenLocks = null;
+
+  /**
+   * Promotion ids of distributed builds, which locks are already applied to {@link #myTakenLocks}
+   */
+  @NotNull
+  private final TLongHashSet myAppliedDistributedBuilds = new TLongHashSet();
+
+  /**
+   * Version of {@link #myTakenLocks}. Changes every time taken locks are recollected or updated
+   */
+  private int myTakenLocksVersion = 0;
+
+  /**
+   * Resolved locks of composite build chains. Sorted ids of composite promotions of the chain -> chain locks
+   */
+  @NotNull
+  private final Map<List<Long>, CompositeChainLocks> myCompositeChains = new HashMap<>();
+
+  /**
+   * Verdicts of the queued builds, computed in a single pass at the start of the distribution cycle
+   */
+  @Nullable
+  private AdmissionVerdicts myAdmissionVerdicts = null;
+
+  @NotNull
+  public WaiterQueues getWaiterQueues() {
+    return myWaiterQueues;
   }
 
   public ResourceAffinity getResourceAffinity() {
     return myResourceAffinity;
   }
+
+  @Nullable
+  public Map<Resource, TakenLock> getRunningLocks() {
+    return myRunningLocks;
+  }
+
+  public void setRunningLocks(@Nullable final Map<Resource, TakenLock> runningLocks) {
+    myRunningLocks = runningLocks;
+  }
+
+  @Nullable
+  public Map<Resource, TakenLock> getTakenLocks() {
+    return myTakenLocks;
+  }
+
+  public void setTakenLocks(@Nullable final Map<Resource, TakenLock> takenLocks) {
+    myTakenLocks = takenLocks;
+    myAppliedDistributedBuilds.clear();
+    myTakenLocksVersion++;
+  }
+
+  public void takenLocksUpdated() {
+    myTakenLocksVersion++;
+  }
+
+  public int getTakenLocksVersion() {
+    return myTakenLocksVersion;
+  }
+
+  @NotNull
+  public TLongHashSet getAppliedDistributedBuilds() {
+    return myAppliedDistributedBuilds;
+  }
+
+  @NotNull
+  public Map<List<Long>, CompositeChainLocks> getCompositeChains() {
+    return myCompositeChains;
+  }
+
+  @Nullable
+  public AdmissionVerdicts getAdmissionVerdicts() {
+    return myAdmissionVerdicts;
+  }
+
+  public void setAdmissionVerdicts(@Nullable final AdmissionVerdicts admissionVerdicts) {
+    myAdmissionVerdicts = admissionVerdicts;
+  }
 }
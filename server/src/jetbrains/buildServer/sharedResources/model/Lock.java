@@ -28,6 +28,11 @@ public class Lock {
   @NotNull
   private static final String NO_VALUE = "";
 
+  /**
+   * Weight of the lock, that does not specify weight explicitly
+   */
+  public static final int DEFAULT_WEIGHT = 1;
+
   /**
    * Name of the lock
    */
@@ -46,10 +51,20 @@ public class Lock {
   @NotNull
   private final String myValue;
 
-  public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value) {
+  /**
+   * Number of quota units, taken by the lock. Only read locks on quoted resources can take several units
+   */
+  private final int myWeight;
+
+  public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value, final int weight) {
     myName = name;
     myType = type;
     myValue = value;
+    myWeight = weight;
+  }
+
+  public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value) {
+    this(name, type, value, DEFAULT_WEIGHT);
   }
 
   public Lock(@NotNull final String name, @NotNull final LockType type) {
@@ -65,7 +80,7 @@ public class Lock {
    * @return copy of combined lock definition and custom value
    */
   public static Lock createFrom(@NotNull final Lock from, @NotNull final String value) {
-    return new Lock(from.getName(), from.getType(), value);
+    return new Lock(from.getName(), from.getType(), value, from.getWeight());
   }
 
   @NotNull
@@ -83,6 +98,10 @@ public class Lock {
     return myValue;
   }
 
+  public int getWeight() {
+    return myWeight;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -90,7 +109,8 @@ public class Lock {
     Lock lock = (Lock) o;
     return myName.equals(lock.myName)
             && myType == lock.myType
-            && myValue.equals(lock.myValue);
+            && myValue.equals(lock.myValue)
+            && myWeight == lock.myWeight;
 
   }
 
@@ -99,6 +119,7 @@ public class Lock {
     int result = myName.hashCode();
     result = 31 * result + myType.hashCode();
     result = 31 * result + myValue.hashCode();
+    result = 31 * result + myWeight;
     return result;
   }
 
@@ -108,6 +129,7 @@ public class Lock {
             "myName='" + myName + '\'' +
             ", myType=" + myType +
             ", myValue='" + myValue + '\'' +
+            ", myWeight=" + myWeight +
             '}';
   }
 }
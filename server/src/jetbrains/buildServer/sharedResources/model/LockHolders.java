@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildTypeEx;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable snapshot of the promotions, holding locks on a resource.
+ *
+ * Snapshot is taken once per version of {@link TakenLock} and is shared by all wait reasons,
+ * created against this version. Description of the holders is rendered on first access
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public final class LockHolders {
+
+  @NotNull
+  public static final LockHolders EMPTY = new LockHolders(-1, new BuildPromotionEx[0]);
+
+  private final int myVersion;
+
+  @NotNull
+  private final BuildPromotionEx[] myPromotions;
+
+  private volatile String myDescription;
+
+  LockHolders(final int version, @NotNull final BuildPromotionEx[] promotions) {
+    myVersion = version;
+    myPromotions = promotions;
+  }
+
+  int getVersion() {
+    return myVersion;
+  }
+
+  public boolean isEmpty() {
+    return myPromotions.length == 0;
+  }
+
+  @NotNull
+  public long[] getPromotionIds() {
+    return Arrays.stream(myPromotions).mapToLong(BuildPromotionEx::getId).toArray();
+  }
+
+  /**
+   * Returns sorted full names of build configurations of the holders, separated by comma
+   *
+   * @return description of the holders
+   */
+  @NotNull
+  public String getDescription() {
+    String result = myDescription;
+    if (result == null) {
+      final Collection<String> names = Arrays.stream(myPromotions)
+                                             .map(BuildPromotionEx::getBuildType)
+                                             .filter(Objects::nonNull)
+                                             .map(BuildTypeEx::getExtendedFullName)
+                                             .collect(Collectors.toCollection(TreeSet::new));
+      result = String.join(", ", names);
+      myDescription = result;
+    }
+    return result;
+  }
+}
@@ -16,62 +16,364 @@
 
 package jetbrains.buildServer.sharedResources.model;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongIntIterator;
+import gnu.trove.TLongIterator;
+import gnu.trove.TLongObjectHashMap;
+import gnu.trove.TLongObjectIterator;
+import java.util.*;
+import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Class {@code TakenLock}.
  *
  * For each resource, instance of this class contains locks that are acquired
  *
+ * Locks are keyed by promotion id. Lock values are kept as int codes:
+ * index of the value in custom resource, {@link #NO_VALUE} for empty value,
+ * or a code of the value, that is not defined in the resource.
+ *
+ * Read locks can take several units of quota. Units, taken by all locks, are tracked as a counter
+ *
+ * Promotion can hold several read locks on the resource, i.e. several specific values of custom resource.
+ * Value of the first read lock is kept along with the values of single read locks, values of the rest are kept aside
+ *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
 public class TakenLock {
 
+  private static final int NO_VALUE = -1;
+
   @NotNull
   private final Resource myResource;
 
+  @Nullable
+  private final CustomResource myCustomResource;
+
+  /**
+   * Promotion id -> promotion
+   */
+  @NotNull
+  private final TLongObjectHashMap<BuildPromotionEx> myPromotions = new TLongObjectHashMap<>();
+
+  /**
+   * Promotion id -> value code
+   */
+  @NotNull
+  private final TLongIntHashMap myReadLocks = new TLongIntHashMap();
+
+  /**
+   * Promotion id -> value code
+   */
   @NotNull
-  private final Map<BuildPromotionEx, String> myReadLocks = new HashMap<>();
+  private final TLongIntHashMap myWriteLocks = new TLongIntHashMap();
 
+  /**
+   * Promotion id -> value codes of read locks, that follow the first one. Kept only for promotions with several read locks
+   */
   @NotNull
-  private final Map<BuildPromotionEx, String> myWriteLocks = new HashMap<>();
+  private final TLongObjectHashMap<int[]> myExtraReadLocks = new TLongObjectHashMap<>();
+
+  /**
+   * Number of read locks, that follow the first read lock of their promotions
+   */
+  private int myExtraReadLocksCount = 0;
+
+  /**
+   * Promotion id -> total weight of read locks. Kept only for promotions,
+   * some read lock of which has weight, different from {@link Lock#DEFAULT_WEIGHT}
+   */
+  @NotNull
+  private final TLongIntHashMap myReadWeights = new TLongIntHashMap();
+
+  /**
+   * Units of quota, taken by all locks. Each write lock takes one unit
+   */
+  private int myWeight = 0;
+
+  /**
+   * Values, that are not defined in the resource. Value with code {@code c} is stored at {@code -2 - c}
+   */
+  @NotNull
+  private final List<String> myForeignValues = new ArrayList<>();
+
+  /**
+   * Indices of values, held by read locks. Maintained for custom resources only
+   */
+  @NotNull
+  private final BitSet myReadValues = new BitSet();
+
+  /**
+   * Indices of values, held by read or write locks. Maintained for custom resources only
+   */
+  @NotNull
+  private final BitSet myTakenValues = new BitSet();
+
+  /**
+   * Version of the set of holders. Changes every time a lock is added
+   */
+  private int myVersion = 0;
+
+  /**
+   * Snapshot of the holders for the current version. Taken on demand
+   */
+  @NotNull
+  private LockHolders myHolders = LockHolders.EMPTY;
 
   public TakenLock(@NotNull final Resource resource) {
     myResource = resource;
+    myCustomResource = resource instanceof CustomResource ? (CustomResource)resource : null;
   }
 
   public TakenLock(@NotNull final Resource resource,
                    @NotNull final Map<BuildPromotionEx, String> readLocks,
                    @NotNull final Map<BuildPromotionEx, String> writeLocks) {
-    myResource = resource;
-    myReadLocks.putAll(readLocks);
-    myWriteLocks.putAll(writeLocks);
+    this(resource);
+    readLocks.forEach((promotion, value) -> addLock(promotion, LockType.READ, value, Lock.DEFAULT_WEIGHT));
+    writeLocks.forEach((promotion, value) -> addLock(promotion, LockType.WRITE, value, Lock.DEFAULT_WEIGHT));
+  }
+
+  /**
+   * Creates a copy of the taken lock, that can be changed independently
+   *
+   * @return copy of the taken lock
+   */
+  @NotNull
+  public TakenLock copy() {
+    final TakenLock result = new TakenLock(myResource);
+    myPromotions.forEachEntry((id, promotion) -> {
+      result.myPromotions.put(id, promotion);
+      return true;
+    });
+    myReadLocks.forEachEntry((id, code) -> {
+      result.myReadLocks.put(id, code);
+      return true;
+    });
+    myWriteLocks.forEachEntry((id, code) -> {
+      result.myWriteLocks.put(id, code);
+      return true;
+    });
+    // arrays of extra read lock codes are replaced, not changed, so they can be shared
+    myExtraReadLocks.forEachEntry((id, codes) -> {
+      result.myExtraReadLocks.put(id, codes);
+      return true;
+    });
+    myReadWeights.forEachEntry((id, weight) -> {
+      result.myReadWeights.put(id, weight);
+      return true;
+    });
+    result.myExtraReadLocksCount = myExtraReadLocksCount;
+    result.myWeight = myWeight;
+    result.myForeignValues.addAll(myForeignValues);
+    result.myReadValues.or(myReadValues);
+    result.myTakenValues.or(myTakenValues);
+    result.myVersion = myVersion;
+    result.myHolders = myHolders;
+    return result;
   }
 
   public void addLock(@NotNull final BuildPromotionEx info, @NotNull final Lock lock) {
-    switch (lock.getType()) {
+    addLock(info, lock.getType(), lock.getValue(), lock.getWeight());
+  }
+
+  /**
+   * Adds all locks of the promotion on the resource.
+   * First read lock replaces read locks of the promotion, that were added before, the rest are added to it
+   *
+   * @param info promotion, that holds the locks
+   * @param locks locks on the resource
+   */
+  public void addLocks(@NotNull final BuildPromotionEx info, @NotNull final Collection<Lock> locks) {
+    boolean hasRead = false;
+    for (Lock lock: locks) {
+      if (hasRead && lock.getType() == LockType.READ) {
+        addExtraReadLock(info.getId(), lock);
+      } else {
+        addLock(info, lock);
+        hasRead |= lock.getType() == LockType.READ;
+      }
+    }
+  }
+
+  private void addLock(@NotNull final BuildPromotionEx info, @NotNull final LockType type, @NotNull final String value, final int weight) {
+    final long id = info.getId();
+    final int code = encode(value);
+    myPromotions.put(id, info);
+    myVersion++;
+    switch (type) {
       case READ:
-        myReadLocks.put(info, lock.getValue());
+        myWeight -= getReadWeight(id);
+        final int previous = myReadLocks.containsKey(id) ? myReadLocks.get(id) : NO_VALUE;
+        final int[] extra = myExtraReadLocks.remove(id);
+        if (extra != null) {
+          myExtraReadLocksCount -= extra.length;
+        }
+        myReadLocks.put(id, code);
+        if (weight != Lock.DEFAULT_WEIGHT) {
+          myReadWeights.put(id, weight);
+        } else {
+          myReadWeights.remove(id);
+        }
+        myWeight += weight;
+        if (code >= 0) {
+          myReadValues.set(code);
+          myTakenValues.set(code);
+        }
+        // values of the replaced read locks may be held by other promotions as well
+        unindexValue(previous);
+        if (extra != null) {
+          for (int c: extra) {
+            unindexValue(c);
+          }
+        }
         break;
       case WRITE:
-        myWriteLocks.put(info, lock.getValue());
+        final int previousWrite = myWriteLocks.containsKey(id) ? myWriteLocks.get(id) : NO_VALUE;
+        if (!myWriteLocks.containsKey(id)) {
+          myWeight++;
+        }
+        myWriteLocks.put(id, code);
+        if (code >= 0) {
+          myTakenValues.set(code);
+        }
+        unindexValue(previousWrite);
         break;
     }
   }
 
+  private void addExtraReadLock(final long id, @NotNull final Lock lock) {
+    final int code = encode(lock.getValue());
+    final int readWeight = getReadWeight(id) + lock.getWeight();
+    if (lock.getWeight() != Lock.DEFAULT_WEIGHT || myReadWeights.containsKey(id)) {
+      myReadWeights.put(id, readWeight);
+    }
+    final int[] extra = myExtraReadLocks.get(id);
+    final int[] codes;
+    if (extra == null) {
+      codes = new int[] {code};
+    } else {
+      codes = Arrays.copyOf(extra, extra.length + 1);
+      codes[extra.length] = code;
+    }
+    myExtraReadLocks.put(id, codes);
+    myExtraReadLocksCount++;
+    myWeight += lock.getWeight();
+    myVersion++;
+    if (code >= 0) {
+      myReadValues.set(code);
+      myTakenValues.set(code);
+    }
+  }
+
+  /**
+   * Clears index of the value, that is no longer held by the replaced lock, unless other locks still hold it
+   */
+  private void unindexValue(final int code) {
+    if (code < 0 || myReadLocks.containsValue(code) || holdsExtraCode(code)) {
+      return;
+    }
+    myReadValues.clear(code);
+    if (!myWriteLocks.containsValue(code)) {
+      myTakenValues.clear(code);
+    }
+  }
+
+  private boolean holdsExtraCode(final int code) {
+    final TLongObjectIterator<int[]> it = myExtraReadLocks.iterator();
+    while (it.hasNext()) {
+      it.advance();
+      for (int c: it.value()) {
+        if (c == code) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns snapshot of the promotions, holding read or write locks.
+   * Snapshot is shared until the set of holders changes
+   *
+   * @return holders of the locks
+   */
+  @NotNull
+  public LockHolders getHolders() {
+    if (myHolders.getVersion() != myVersion) {
+      final BuildPromotionEx[] promotions = new BuildPromotionEx[myPromotions.size()];
+      final TLongObjectIterator<BuildPromotionEx> it = myPromotions.iterator();
+      for (int i = 0; it.hasNext(); i++) {
+        it.advance();
+        promotions[i] = it.value();
+      }
+      myHolders = new LockHolders(myVersion, promotions);
+    }
+    return myHolders;
+  }
+
+  /**
+   * Returns read locks as map of promotion to value.
+   * For promotions with several read locks, value of the first one is returned.
+   * Returned map is an unmodifiable view
+   *
+   * @return read locks
+   */
   @NotNull
   public Map<BuildPromotionEx, String> getReadLocks() {
-    return Collections.unmodifiableMap(myReadLocks);
+    return new LocksView(myReadLocks);
   }
 
+  /**
+   * Returns write locks as map of promotion to value.
+   * Returned map is an unmodifiable view
+   *
+   * @return write locks
+   */
   @NotNull
   public Map<BuildPromotionEx, String> getWriteLocks() {
-    return Collections.unmodifiableMap(myWriteLocks);
+    return new LocksView(myWriteLocks);
+  }
+
+  /**
+   * Returns indices of the values, held by read locks
+   *
+   * @param resource custom resource to resolve indices against
+   * @return indices of the values, held by read locks. Must not be modified
+   */
+  @NotNull
+  public BitSet getReadValueIndices(@NotNull final CustomResource resource) {
+    if (resource == myResource) {
+      return myReadValues;
+    }
+    // resource was changed, resolve values against the given one
+    final BitSet result = new BitSet();
+    indexValues(resource, myReadLocks, result);
+    indexExtraValues(resource, null, result);
+    return result;
+  }
+
+  /**
+   * Returns indices of the values, held by read or write locks
+   *
+   * @param resource custom resource to resolve indices against
+   * @return indices of the values, held by read or write locks. Must not be modified
+   */
+  @NotNull
+  public BitSet getTakenValueIndices(@NotNull final CustomResource resource) {
+    if (resource == myResource) {
+      return myTakenValues;
+    }
+    final BitSet result = new BitSet();
+    indexValues(resource, myReadLocks, result);
+    indexExtraValues(resource, null, result);
+    indexValues(resource, myWriteLocks, result);
+    return result;
   }
 
   /**
@@ -90,7 +392,48 @@ public class TakenLock {
    * @return overall locks count
    */
   public int getLocksCount() {
-    return myReadLocks.size() + myWriteLocks.size();
+    return myReadLocks.size() + myExtraReadLocksCount + myWriteLocks.size();
+  }
+
+  public int getReadLocksCount() {
+    return myReadLocks.size() + myExtraReadLocksCount;
+  }
+
+  public int getWriteLocksCount() {
+    return myWriteLocks.size();
+  }
+
+  /**
+   * Gets units of quota, taken by all locks. Each write lock takes one unit, read lock takes units according to its weight
+   *
+   * @return units of quota, taken by all locks
+   */
+  public int getWeight() {
+    return myWeight;
+  }
+
+  /**
+   * @return {@code true} if some of the read locks take several units of quota
+   */
+  public boolean isWeighted() {
+    return !myReadWeights.isEmpty();
+  }
+
+  /**
+   * Gets units of quota, taken by read locks of the promotion
+   *
+   * @param promotionId id of the promotion
+   * @return units of quota, taken by read locks of the promotion, {@code 0} if the promotion does not hold read locks
+   */
+  public int getReadWeight(final long promotionId) {
+    if (!myReadLocks.containsKey(promotionId)) {
+      return 0;
+    }
+    if (myReadWeights.containsKey(promotionId)) {
+      return myReadWeights.get(promotionId);
+    }
+    final int[] extra = myExtraReadLocks.get(promotionId);
+    return Lock.DEFAULT_WEIGHT * (extra != null ? extra.length + 1 : 1);
   }
 
   public boolean hasReadLocks() {
@@ -101,4 +444,281 @@ public class TakenLock {
     return !myWriteLocks.isEmpty();
   }
 
+  /*
+   * Accessors below skip locks of excluded promotions on access instead of copying remaining locks.
+   * They are used to look at the taken lock without locks held by the nodes of a composite build chain
+   */
+
+  public int getLocksCount(@NotNull final TLongHashSet excluded) {
+    return getLocksCount() - countExcluded(myReadLocks, excluded) - countExcludedExtra(excluded) - countExcluded(myWriteLocks, excluded);
+  }
+
+  public int getWeight(@NotNull final TLongHashSet excluded) {
+    if (excluded.isEmpty()) {
+      return myWeight;
+    }
+    int result = myWeight;
+    final TLongIterator it = excluded.iterator();
+    while (it.hasNext()) {
+      final long id = it.next();
+      result -= getReadWeight(id);
+      if (myWriteLocks.containsKey(id)) {
+        result--;
+      }
+    }
+    return result;
+  }
+
+  public boolean hasReadLocks(@NotNull final TLongHashSet excluded) {
+    return myReadLocks.size() > countExcluded(myReadLocks, excluded);
+  }
+
+  public boolean hasWriteLocks(@NotNull final TLongHashSet excluded) {
+    return myWriteLocks.size() > countExcluded(myWriteLocks, excluded);
+  }
+
+  /**
+   * Returns indices of the values, held by read or write locks of promotions, that are not excluded
+   *
+   * @param resource custom resource to resolve indices against
+   * @param excluded ids of promotions to skip
+   * @return indices of the values, held by read or write locks. Must not be modified
+   */
+  @NotNull
+  public BitSet getTakenValueIndices(@NotNull final CustomResource resource, @NotNull final TLongHashSet excluded) {
+    final BitSet taken = getTakenValueIndices(resource);
+    if (taken.isEmpty() || !holdValues(excluded)) {
+      return taken;
+    }
+    final BitSet result = new BitSet();
+    indexValues(resource, myReadLocks, excluded, result);
+    indexExtraValues(resource, excluded, result);
+    indexValues(resource, myWriteLocks, excluded, result);
+    return result;
+  }
+
+  /**
+   * Checks whether given value is held by read or write lock of a promotion, that is not excluded
+   *
+   * @param value value to check
+   * @param excluded ids of promotions to skip
+   * @return {@code true} if the value is held, {@code false} otherwise
+   */
+  public boolean holdsValue(@NotNull final String value, @NotNull final TLongHashSet excluded) {
+    return holdsValue(myReadLocks, value, excluded) || holdsExtraValue(value, excluded) || holdsValue(myWriteLocks, value, excluded);
+  }
+
+  private int countExcluded(@NotNull final TLongIntHashMap locks, @NotNull final TLongHashSet excluded) {
+    if (excluded.isEmpty() || locks.isEmpty()) {
+      return 0;
+    }
+    int result = 0;
+    final TLongIterator it = excluded.iterator();
+    while (it.hasNext()) {
+      if (locks.containsKey(it.next())) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  private int countExcludedExtra(@NotNull final TLongHashSet excluded) {
+    if (excluded.isEmpty() || myExtraReadLocks.isEmpty()) {
+      return 0;
+    }
+    int result = 0;
+    final TLongIterator it = excluded.iterator();
+    while (it.hasNext()) {
+      final int[] extra = myExtraReadLocks.get(it.next());
+      if (extra != null) {
+        result += extra.length;
+      }
+    }
+    return result;
+  }
+
+  private boolean holdValues(@NotNull final TLongHashSet excluded) {
+    final TLongIterator it = excluded.iterator();
+    while (it.hasNext()) {
+      final long id = it.next();
+      if ((myReadLocks.containsKey(id) && myReadLocks.get(id) >= 0) || (myWriteLocks.containsKey(id) && myWriteLocks.get(id) >= 0)) {
+        return true;
+      }
+      final int[] extra = myExtraReadLocks.get(id);
+      if (extra != null) {
+        for (int code: extra) {
+          if (code >= 0) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean holdsExtraValue(@NotNull final String value, @NotNull final TLongHashSet excluded) {
+    final TLongObjectIterator<int[]> it = myExtraReadLocks.iterator();
+    while (it.hasNext()) {
+      it.advance();
+      if (!excluded.contains(it.key())) {
+        for (int code: it.value()) {
+          if (value.equals(decode(code))) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean holdsValue(@NotNull final TLongIntHashMap locks, @NotNull final String value, @NotNull final TLongHashSet excluded) {
+    final TLongIntIterator it = locks.iterator();
+    while (it.hasNext()) {
+      it.advance();
+      if (!excluded.contains(it.key()) && value.equals(decode(it.value()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int encode(@NotNull final String value) {
+    if ("".equals(value)) {
+      return NO_VALUE;
+    }
+    if (myCustomResource != null) {
+      final int index = myCustomResource.getValueIndex(value);
+      if (index >= 0) {
+        return index;
+      }
+    }
+    int foreign = myForeignValues.indexOf(value);
+    if (foreign < 0) {
+      foreign = myForeignValues.size();
+      myForeignValues.add(value);
+    }
+    return -2 - foreign;
+  }
+
+  @NotNull
+  private String decode(final int code) {
+    if (code == NO_VALUE) {
+      return "";
+    }
+    if (code >= 0) {
+      //noinspection ConstantConditions
+      return myCustomResource.getValueByIndex(code);
+    }
+    return myForeignValues.get(-2 - code);
+  }
+
+  private void indexValues(@NotNull final CustomResource resource,
+                           @NotNull final TLongIntHashMap locks,
+                           @NotNull final BitSet indices) {
+    for (int code : locks.getValues()) {
+      indexValue(resource, code, indices);
+    }
+  }
+
+  private void indexValues(@NotNull final CustomResource resource,
+                           @NotNull final TLongIntHashMap locks,
+                           @NotNull final TLongHashSet excluded,
+                           @NotNull final BitSet indices) {
+    final TLongIntIterator it = locks.iterator();
+    while (it.hasNext()) {
+      it.advance();
+      if (!excluded.contains(it.key())) {
+        indexValue(resource, it.value(), indices);
+      }
+    }
+  }
+
+  private void indexExtraValues(@NotNull final CustomResource resource,
+                                @Nullable final TLongHashSet excluded,
+                                @NotNull final BitSet indices) {
+    final TLongObjectIterator<int[]> it = myExtraReadLocks.iterator();
+    while (it.hasNext()) {
+      it.advance();
+      if (excluded == null || !excluded.contains(it.key())) {
+        for (int code: it.value()) {
+          indexValue(resource, code, indices);
+        }
+      }
+    }
+  }
+
+  private void indexValue(@NotNull final CustomResource resource, final int code, @NotNull final BitSet indices) {
+    if (code != NO_VALUE) {
+      final int index = resource == myResource && code >= 0 ? code : resource.getValueIndex(decode(code));
+      if (index >= 0) {
+        indices.set(index);
+      }
+    }
+  }
+
+  /**
+   * Read-only view of locks of one type in format {@code promotion -> value}
+   */
+  private final class LocksView extends AbstractMap<BuildPromotionEx, String> {
+
+    @NotNull
+    private final TLongIntHashMap myLocks;
+
+    private LocksView(@NotNull final TLongIntHashMap locks) {
+      myLocks = locks;
+    }
+
+    @Override
+    public int size() {
+      return myLocks.size();
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+      return key instanceof BuildPromotion && myLocks.containsKey(((BuildPromotion)key).getId());
+    }
+
+    @Override
+    public String get(final Object key) {
+      if (key instanceof BuildPromotion) {
+        final long id = ((BuildPromotion)key).getId();
+        if (myLocks.containsKey(id)) {
+          return decode(myLocks.get(id));
+        }
+      }
+      return null;
+    }
+
+    @NotNull
+    @Override
+    public Set<Entry<BuildPromotionEx, String>> entrySet() {
+      return new AbstractSet<Entry<BuildPromotionEx, String>>() {
+        @NotNull
+        @Override
+        public Iterator<Entry<BuildPromotionEx, String>> iterator() {
+          final TLongIntIterator it = myLocks.iterator();
+          return new Iterator<Entry<BuildPromotionEx, String>>() {
+            @Override
+            public boolean hasNext() {
+              return it.hasNext();
+            }
+
+            @Override
+            public Entry<BuildPromotionEx, String> next() {
+              if (!it.hasNext()) {
+                throw new NoSuchElementException();
+              }
+              it.advance();
+              return new SimpleImmutableEntry<>(myPromotions.get(it.key()), decode(it.value()));
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return myLocks.size();
+        }
+      };
+    }
+  }
 }
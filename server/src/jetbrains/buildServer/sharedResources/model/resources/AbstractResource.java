@@ -27,16 +27,20 @@ public abstract class AbstractResource implements Resource {
 
   private final boolean myState;
 
+  private final int myLease;
+
   protected AbstractResource(@NotNull final String id,
                              @NotNull final String projectId,
                              @NotNull final String name,
                              @NotNull final ResourceType type,
-                             boolean state) {
+                             boolean state,
+                             int lease) {
     myId = id;
     myName = name;
     myProjectId = projectId;
     myType = type;
     myState = state;
+    myLease = Math.max(lease, 0);
   }
 
   @NotNull
@@ -68,14 +72,23 @@ public abstract class AbstractResource implements Resource {
     return myId;
   }
 
+  @Override
+  public final int getLease() {
+    return myLease;
+  }
+
   @NotNull
   @Override
   public Map<String, String> getParameters() {
-    return CollectionsUtil.asMap(
+    final Map<String, String> result = CollectionsUtil.asMap(
             "type", myType.name().toLowerCase(),
             "name", myName,
             "enabled", Boolean.toString(myState)
     );
+    if (myLease > 0) {
+      result.put("lease", Integer.toString(myLease));
+    }
+    return result;
   }
 
   @Override
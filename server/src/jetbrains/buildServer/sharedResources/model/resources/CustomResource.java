@@ -2,10 +2,7 @@ package jetbrains.buildServer.sharedResources.model.resources;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -20,13 +17,33 @@ public class CustomResource extends AbstractResource {
   @NotNull
   private final List<String> myValues;
 
+  /**
+   * Distinct values of the resource in order of appearance.
+   * Position of the value in this list is its index
+   */
+  @NotNull
+  private final List<String> myIndexedValues = new ArrayList<>();
+
+  /**
+   * Value -> index of the value
+   */
+  @NotNull
+  private final Map<String, Integer> myValueIndices = new HashMap<>();
+
   private CustomResource(@NotNull final String id,
                          @NotNull final String projectId,
                          @NotNull final String name,
                          @NotNull final List<String> values,
-                         boolean state) {
-    super(id, projectId, name, ResourceType.CUSTOM, state);
+                         boolean state,
+                         int lease) {
+    super(id, projectId, name, ResourceType.CUSTOM, state, lease);
     myValues = new ArrayList<>(values);
+    for (String value : myValues) {
+      if (!myValueIndices.containsKey(value)) {
+        myValueIndices.put(value, myIndexedValues.size());
+        myIndexedValues.add(value);
+      }
+    }
   }
 
   @NotNull
@@ -35,7 +52,17 @@ public class CustomResource extends AbstractResource {
                                           @NotNull final String name,
                                           @NotNull final List<String> values,
                                           boolean state) {
-    return new CustomResource(id, projectId, name, values, state);
+    return newCustomResource(id, projectId, name, values, state, 0);
+  }
+
+  @NotNull
+  static CustomResource newCustomResource(@NotNull final String id,
+                                          @NotNull final String projectId,
+                                          @NotNull final String name,
+                                          @NotNull final List<String> values,
+                                          boolean state,
+                                          int lease) {
+    return new CustomResource(id, projectId, name, values, state, lease);
   }
 
   @NotNull
@@ -43,6 +70,37 @@ public class CustomResource extends AbstractResource {
     return Collections.unmodifiableList(myValues);
   }
 
+  /**
+   * Returns index of the given value. Indices are dense, duplicate values share the same index
+   *
+   * @param value value to get index for
+   * @return index of the value, {@code -1} if resource does not contain the value
+   */
+  public int getValueIndex(@NotNull final String value) {
+    final Integer result = myValueIndices.get(value);
+    return result == null ? -1 : result;
+  }
+
+  /**
+   * Returns value with given index
+   *
+   * @param index index of the value, {@code 0 <= index < getIndexedValuesCount()}
+   * @return value with given index
+   */
+  @NotNull
+  public String getValueByIndex(final int index) {
+    return myIndexedValues.get(index);
+  }
+
+  /**
+   * Returns number of distinct values of the resource
+   *
+   * @return number of distinct values
+   */
+  public int getIndexedValuesCount() {
+    return myIndexedValues.size();
+  }
+
   @NotNull
   @Override
   public Map<String, String> getParameters() {
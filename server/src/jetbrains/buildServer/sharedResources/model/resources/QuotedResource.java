@@ -35,19 +35,25 @@ public class QuotedResource extends AbstractResource {
                          @NotNull final String projectId,
                          @NotNull String name,
                          int quota,
-                         boolean state) {
-    super(id, projectId, name, ResourceType.QUOTED, state);
+                         boolean state,
+                         int lease) {
+    super(id, projectId, name, ResourceType.QUOTED, state, lease);
     myQuota = quota;
   }
 
   @NotNull
   static QuotedResource newResource(@NotNull final String id, @NotNull final String projectId, @NotNull String name, int quota, boolean state) {
-    return new QuotedResource(id, projectId, name, quota, state);
+    return newResource(id, projectId, name, quota, state, 0);
+  }
+
+  @NotNull
+  static QuotedResource newResource(@NotNull final String id, @NotNull final String projectId, @NotNull String name, int quota, boolean state, int lease) {
+    return new QuotedResource(id, projectId, name, quota, state, lease);
   }
 
   @NotNull
   static QuotedResource newInfiniteResource(@NotNull final String id, @NotNull final String projectId, @NotNull String name, boolean state) {
-    return new QuotedResource(id, projectId, name, QUOTA_INFINITE, state);
+    return new QuotedResource(id, projectId, name, QUOTA_INFINITE, state, 0);
   }
 
   public boolean isInfinite() {
@@ -50,6 +50,14 @@ public interface Resource {
   @NotNull
   String getProjectId();
 
+  /**
+   * Returns lease of the resource in seconds.
+   * Locks on the resource, held by a running build longer than the lease, are considered expired
+   *
+   * @return lease of the resource in seconds, {@code 0} if locks on the resource do not expire
+   */
+  int getLease();
+
   /**
    * Converts resource to the set of project feature parameters
    *
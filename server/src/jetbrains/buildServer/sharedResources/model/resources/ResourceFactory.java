@@ -42,6 +42,20 @@ public class ResourceFactory {
     return QuotedResource.newResource(id, projectId, name, quota, state);
   }
 
+  /**
+   * Creates new quoted resource with limited quota and lease
+   *
+   * @param name name of the resource
+   * @param quota resource quota
+   * @param state state of the resource
+   * @param lease lease of the resource in seconds, {@code 0} for no lease
+   * @return new quoted resource with limited quota
+   */
+  @NotNull
+  public static Resource newQuotedResource(@NotNull final String id, @NotNull final String projectId, @NotNull final String name, final int quota, boolean state, int lease) {
+    return QuotedResource.newResource(id, projectId, name, quota, state, lease);
+  }
+
   /**
    * Creates new custom resource with specified value space
    *
@@ -55,6 +69,20 @@ public class ResourceFactory {
     return CustomResource.newCustomResource(id, projectId, name, values, state);
   }
 
+  /**
+   * Creates new custom resource with specified value space and lease
+   *
+   * @param name name of the resource
+   * @param values values
+   * @param state state of the resource
+   * @param lease lease of the resource in seconds, {@code 0} for no lease
+   * @return new custom resource with specified value space
+   */
+  @NotNull
+  public static Resource newCustomResource(@NotNull final String id, @NotNull final String projectId, @NotNull final String name, @NotNull final List<String> values, boolean state, int lease) {
+    return CustomResource.newCustomResource(id, projectId, name, values, state, lease);
+  }
+
   @Nullable
   public static Resource fromDescriptor(@NotNull final SProjectFeatureDescriptor descriptor) {
     Resource result = null;
@@ -66,12 +94,13 @@ public class ResourceFactory {
     if (isEmptyOrSpaces(name)) {
       return null;
     }
+    final int lease = parseLease(parameters.get(LEASE));
     if (type == ResourceType.QUOTED) {
       final String quotaStr = parameters.get(QUOTA);
       if (!isEmptyOrSpaces(quotaStr)) {
         try {
           int quota = Integer.parseInt(quotaStr);
-          result = QuotedResource.newResource(descriptor.getId(), descriptor.getProjectId(), name, quota, resourceState);
+          result = QuotedResource.newResource(descriptor.getId(), descriptor.getProjectId(), name, quota, resourceState, lease);
         } catch (NumberFormatException ignored) {}
       }
     } else {
@@ -79,11 +108,19 @@ public class ResourceFactory {
       if (!isEmptyOrSpaces(valuesStr)) {
         List<String> values = split(valuesStr, true, '\r', '\n');
         if (!values.isEmpty()) {
-          result = CustomResource.newCustomResource(descriptor.getId(), descriptor.getProjectId(), name, values, resourceState);
+          result = CustomResource.newCustomResource(descriptor.getId(), descriptor.getProjectId(), name, values, resourceState, lease);
         }
       }
     }
     return result;
   }
 
+  private static int parseLease(@Nullable final String leaseStr) {
+    if (!isEmptyOrSpaces(leaseStr)) {
+      try {
+        return Math.max(Integer.parseInt(leaseStr.trim()), 0);
+      } catch (NumberFormatException ignored) {}
+    }
+    return 0;
+  }
 }
@@ -115,7 +115,7 @@ public class EditFeatureController extends BaseController {
     final BuildFeaturesBean buildFeaturesBean = form.getBuildFeaturesBean();
 
     final String buildFeatureId = request.getParameter("featureId");
-    final Map<String, Lock> locks = new HashMap<>();
+    final Map<String, Collection<Lock>> locks = new HashMap<>();
     // map of all visible resources from this project and its subtree
     final List<Resource> projectResources = myResources.getResources(project);
     final Set<String> available = projectResources.stream().map(Resource::getName).collect(Collectors.toSet());
@@ -57,6 +57,16 @@ public class ResourceHelper {
     final String type = request.getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_TYPE);
     result.put(SharedResourcesPluginConstants.ProjectFeatureParameters.TYPE, type);
     final ResourceType resourceType = ResourceType.fromString(type);
+    if (resourceType == null) {
+      return null;
+    }
+    final Integer lease = getLeaseFromRequest(request, resourceName);
+    if (lease == null) {
+      return null;
+    }
+    if (lease > 0) {
+      result.put(SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE, Integer.toString(lease));
+    }
     if (ResourceType.QUOTED.equals(resourceType)) {
       final String resourceQuota = request.getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_QUOTA);
       if (!isEmptyOrSpaces(resourceQuota)) { // we have quoted resource
@@ -106,11 +116,15 @@ public class ResourceHelper {
       return null;
     }
     if (ResourceType.QUOTED.equals(resourceType)) {
+      final Integer lease = getLeaseFromRequest(request, resourceName);
+      if (lease == null) {
+        return null;
+      }
       final String resourceQuota = request.getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_QUOTA);
       if (!isEmptyOrSpaces(resourceQuota)) { // we have quoted resource
         try {
           int quota = Integer.parseInt(resourceQuota);
-          resource = ResourceFactory.newQuotedResource(resourceId, projectId, resourceName, quota, true);
+          resource = ResourceFactory.newQuotedResource(resourceId, projectId, resourceName, quota, true, lease);
         } catch (IllegalArgumentException e) {
           LOG.warn("Illegal argument supplied in quota for resource [" + resourceName + "]");
         }
@@ -118,9 +132,13 @@ public class ResourceHelper {
         resource = ResourceFactory.newInfiniteResource(resourceId, projectId, resourceName, true);
       }
     } else if (ResourceType.CUSTOM.equals(resourceType)) {
+      final Integer lease = getLeaseFromRequest(request, resourceName);
+      if (lease == null) {
+        return null;
+      }
       final String values = request.getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_VALUES);
       final List<String> strings = StringUtil.split(values, true, '\r', '\n');
-      resource = ResourceFactory.newCustomResource(resourceId, projectId, resourceName, strings, true);
+      resource = ResourceFactory.newCustomResource(resourceId, projectId, resourceName, strings, true, lease);
     }
     return resource;
   }
@@ -134,15 +152,37 @@ public class ResourceHelper {
       if (qr.isInfinite()) {
         result = ResourceFactory.newInfiniteResource(resource.getId(), projectId, resource.getName(), state);
       } else {
-        result = ResourceFactory.newQuotedResource(resource.getId(), projectId, resource.getName(), qr.getQuota(), state);
+        result = ResourceFactory.newQuotedResource(resource.getId(), projectId, resource.getName(), qr.getQuota(), state, resource.getLease());
       }
     } else {
       final CustomResource cr = (CustomResource) resource;
-      result = ResourceFactory.newCustomResource(resource.getId(), projectId, resource.getName(), cr.getValues(), state);
+      result = ResourceFactory.newCustomResource(resource.getId(), projectId, resource.getName(), cr.getValues(), state, resource.getLease());
     }
     return result;
   }
 
+  /**
+   * Reads lease of the resource from request
+   *
+   * @return lease in seconds, {@code 0} if lease is not specified, {@code null} if lease is invalid
+   */
+  @Nullable
+  private Integer getLeaseFromRequest(@NotNull final HttpServletRequest request, @Nullable final String resourceName) {
+    final String resourceLease = request.getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE);
+    if (isEmptyOrSpaces(resourceLease)) {
+      return 0;
+    }
+    try {
+      final int lease = Integer.parseInt(resourceLease.trim());
+      if (lease >= 0) {
+        return lease;
+      }
+    } catch (NumberFormatException ignored) {
+    }
+    LOG.warn("Illegal argument supplied in lease for resource [" + resourceName + "]");
+    return null;
+  }
+
   @NotNull
   public static String formatLocksList(@NotNull final Collection<Lock> invalidLocks) {
     return StringUtil.join(invalidLocks, new Function<Lock, String>() {
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.pages;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.AuthorityHolder;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.serverSide.auth.SecurityContext;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Serves shared resources metrics as plain text.
+ * Available to users, that can view server settings
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class SharedResourcesMetricsController extends BaseController {
+
+  @NotNull
+  private final SharedResourcesMetrics myMetrics;
+
+  @NotNull
+  private final SecurityContext mySecurityContext;
+
+  public SharedResourcesMetricsController(@NotNull final WebControllerManager controllerManager,
+                                          @NotNull final SecurityContext securityContext,
+                                          @NotNull final SharedResourcesMetrics metrics) {
+    myMetrics = metrics;
+    mySecurityContext = securityContext;
+    controllerManager.registerController(SharedResourcesPluginConstants.WEB.METRICS, this);
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull final HttpServletRequest request,
+                                  @NotNull final HttpServletResponse response) throws IOException {
+    final AuthorityHolder holder = mySecurityContext.getAuthorityHolder();
+    if (!holder.isPermissionGrantedGlobally(Permission.VIEW_SERVER_SETTINGS)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return null;
+    }
+    response.setContentType("text/plain;charset=UTF-8");
+    response.getWriter().write(myMetrics.getReport());
+    return null;
+  }
+}
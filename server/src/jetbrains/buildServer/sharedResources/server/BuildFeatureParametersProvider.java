@@ -16,12 +16,12 @@
 
 package jetbrains.buildServer.sharedResources.server;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.parameters.AbstractBuildParametersProvider;
 import jetbrains.buildServer.serverSide.parameters.BuildParametersProvider;
+import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
@@ -61,18 +61,22 @@ public class BuildFeatureParametersProvider extends AbstractBuildParametersProvi
     if (emulationMode || !build.getBuildPromotion().isCompositeBuild()) {
       return getParametersFromFeatures(build);
     } else {
-      return myLocks.asBuildParameters(myStorage.load(build.getBuildPromotion()).values());
+      return myLocks.asBuildParameters(flatten(myStorage.load(build.getBuildPromotion())));
     }
   }
 
   private Map<String, String> getParametersFromFeatures(@NotNull final SBuild build) {
-    final Map<String, String> result = new HashMap<>();
     final SBuildType buildType = build.getBuildType();
     if (buildType != null) {
-      myLocks.fromBuildFeaturesAsMap(myFeatures.searchForFeatures(buildType))
-             .values()
-             .forEach(lock -> result.put(myLocks.asBuildParameter(lock), lock.getValue()));
+      return myLocks.asBuildParameters(flatten(myLocks.fromBuildFeaturesAsMap(myFeatures.searchForFeatures(buildType))));
     }
+    return new HashMap<>();
+  }
+
+  @NotNull
+  private static List<Lock> flatten(@NotNull final Map<String, Collection<Lock>> locks) {
+    final List<Lock> result = new ArrayList<>();
+    locks.values().forEach(result::addAll);
     return result;
   }
 }
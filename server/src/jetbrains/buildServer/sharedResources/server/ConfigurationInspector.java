@@ -1,11 +1,15 @@
 package jetbrains.buildServer.sharedResources.server;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import jetbrains.buildServer.serverSide.SBuildType;
-import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.QuotedResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
@@ -13,6 +17,8 @@ import jetbrains.buildServer.sharedResources.model.resources.ResourceType;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
@@ -22,7 +28,9 @@ import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstan
 /**
  * Class {@code ConfigurationInspector}
  *
- * Inspects build configuration settings and reports errors
+ * Inspects build configuration settings and reports errors.
+ * Results of build configuration inspection are cached until settings of the build configuration,
+ * projects in its path or resources change. Only live build configurations are cached
  *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
@@ -34,20 +42,112 @@ public class ConfigurationInspector {
   @NotNull
   private final Resources myResources;
 
-  public ConfigurationInspector(@NotNull final SharedResourcesFeatures features,
-                                @NotNull final Resources resources) {
+  @NotNull
+  private final ResourceProjectFeatures myProjectFeatures;
+
+  @NotNull
+  private final ProjectManager myProjectManager;
+
+  /**
+   * Inspection results of build configurations. Build type internal id -> inspection
+   */
+  @NotNull
+  private final ConcurrentMap<String, Inspection> myInspections = new ConcurrentHashMap<>();
+
+  /**
+   * Number of invalidations. Used to detect invalidations, that happened while build configuration was inspected
+   */
+  @NotNull
+  private final AtomicLong myInvalidations = new AtomicLong();
+
+  public ConfigurationInspector(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                                @NotNull final ResourceProjectFeatures projectFeatures,
+                                @NotNull final SharedResourcesFeatures features,
+                                @NotNull final Resources resources,
+                                @NotNull final ProjectManager projectManager) {
+    myProjectFeatures = projectFeatures;
     myFeatures = features;
     myResources = resources;
+    myProjectManager = projectManager;
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void projectPersisted(@NotNull final String projectId) {
+        invalidateProject(projectId);
+      }
+
+      @Override
+      public void projectRestored(@NotNull final String projectId) {
+        invalidateProject(projectId);
+      }
+
+      @Override
+      public void projectRemoved(@NotNull final String projectId) {
+        invalidateProject(projectId);
+      }
+
+      @Override
+      public void projectMoved(@NotNull final SProject project, @NotNull final SProject originalParentProject) {
+        invalidateProject(project.getProjectId());
+      }
+
+      @Override
+      public void buildTypePersisted(@NotNull final SBuildType buildType) {
+        invalidateBuildType(buildType);
+      }
+
+      @Override
+      public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+        invalidateBuildType(buildType);
+      }
+
+      @Override
+      public void buildTypeMoved(@NotNull final SBuildType buildType, @NotNull final SProject original) {
+        invalidateBuildType(buildType);
+      }
+
+      @Override
+      public void buildTypeTemplatePersisted(@NotNull final BuildTypeTemplate buildTemplate) {
+        // features can be inherited from the template by any number of build configurations
+        myInvalidations.incrementAndGet();
+        myInspections.clear();
+      }
+    });
   }
 
+  /**
+   * Inspects locks of the build configuration.
+   * Result is cached until the settings of the build configuration or the projects in its path change.
+   * Settings, that are not the live build configuration (i.e. settings of a particular build), are inspected every time
+   *
+   * @param type build configuration to inspect
+   * @return invalid locks with error descriptions. Must not be modified
+   */
   @NotNull
   public Map<Lock, String> inspect(@NotNull final SBuildType type) {
-    return getInvalidLocks(type.getProject(), myFeatures.searchForFeatures(type));
+    final String buildTypeId = type.getInternalId();
+    if (myProjectManager.findBuildTypeById(buildTypeId) != type) {
+      return Collections.unmodifiableMap(getInvalidLocks(() -> type.getProject().getProjectPath(), myFeatures.searchForFeatures(type)));
+    }
+    final long stamp = myProjectFeatures.getModificationStamp();
+    final Inspection cached = myInspections.get(buildTypeId);
+    if (cached != null && cached.myStamp == stamp) {
+      return cached.myInvalidLocks;
+    }
+    final long invalidations = myInvalidations.get();
+    final List<SProject> path = type.getProject().getProjectPath();
+    final Map<Lock, String> invalidLocks = Collections.unmodifiableMap(getInvalidLocks(() -> path, myFeatures.searchForFeatures(type)));
+    final Inspection inspection = new Inspection(stamp, path.stream().map(SProject::getProjectId).collect(Collectors.toSet()), invalidLocks);
+    myInspections.put(buildTypeId, inspection);
+    if (invalidations != myInvalidations.get()) {
+      // settings have changed while we were inspecting the build configuration
+      myInspections.remove(buildTypeId, inspection);
+    }
+    return invalidLocks;
   }
 
   @NotNull
   public Map<Lock, String> inspect(@NotNull final SProject project, @NotNull final SharedResourcesFeature feature) {
-    return getInvalidLocks(project, Collections.singleton(feature));
+    return getInvalidLocks(project::getProjectPath, Collections.singleton(feature));
   }
 
   /**
@@ -137,6 +237,16 @@ public class ConfigurationInspector {
             }
           }
         }
+        final String lease = parameters.get(LEASE);
+        if (!isEmptyOrSpaces(lease)) {
+          try {
+            if (Integer.parseInt(lease.trim()) < 0) {
+              errors.add("Value of parameter 'lease' must not be negative. Got '" + lease + "'");
+            }
+          } catch (NumberFormatException e) {
+            errors.add("Value of parameter 'lease' must be a valid integer. Got '" + lease + "'");
+          }
+        }
         if (!errors.isEmpty()) {
           result.put(fd.getId(), errors);
         }
@@ -146,15 +256,15 @@ public class ConfigurationInspector {
 
   private static final String OK = "OK";
 
-  private Map<Lock, String> getInvalidLocks(@NotNull final SProject project,
+  private Map<Lock, String> getInvalidLocks(@NotNull final Supplier<List<SProject>> projectPath,
                                             @NotNull final Collection<SharedResourcesFeature> features) {
     final Map<Lock, String> result = new HashMap<>();
-    final Map<String, Lock> locks = new HashMap<>();
+    final Map<String, Collection<Lock>> locks = new HashMap<>();
     features.stream().map(SharedResourcesFeature::getLockedResources).forEach(locks::putAll);
     if (locks.isEmpty()) {
       return result;
     }
-    final List<SProject> path = project.getProjectPath();
+    final List<SProject> path = projectPath.get();
     final ListIterator<SProject> iterator = path.listIterator(path.size());
     while (iterator.hasPrevious() && !locks.isEmpty()) {
       SProject p = iterator.previous();
@@ -166,9 +276,9 @@ public class ConfigurationInspector {
         duplicates.retainAll(locks.keySet());
         if (!duplicates.isEmpty()) {
           duplicates.forEach(dup -> {
-            Lock lock = locks.remove(dup);
-            if (lock != null) {
-              result.put(lock, "Resource '" + lock.getName() + "' cannot be resolved due to duplicate name");
+            final Collection<Lock> resourceLocks = locks.remove(dup);
+            if (resourceLocks != null) {
+              resourceLocks.forEach(lock -> result.put(lock, "Resource '" + lock.getName() + "' cannot be resolved due to duplicate name"));
             }
           });
         }
@@ -177,33 +287,84 @@ public class ConfigurationInspector {
         break;
       }
       // 2) resolve rest of the locks
-      Map<String, String> resolutionResult = resolveStep(myResources.getOwnResources(p), locks);
-      resolutionResult.forEach((name, res) -> {
-        Lock lock = locks.remove(name);
-        if (!OK.equals(res) && lock != null) { // we have error.
-          result.put(lock, res);
-        }
-      });
+      result.putAll(resolveStep(myResources.getOwnResources(p), locks));
     }
     // 3) after all iterations, only locks left are those without resources
-    locks.values().forEach(lock -> result.put(lock, "Resource '" + lock.getName() + "' does not exist"));
+    locks.values().forEach(resourceLocks -> resourceLocks.forEach(lock -> result.put(lock, "Resource '" + lock.getName() + "' does not exist")));
     return result;
   }
 
+  /**
+   * Resolves locks against resources of single project. Resolved locks are removed from given locks
+   *
+   * @return invalid locks with error descriptions
+   */
   @NotNull
-  private Map<String, String> resolveStep(@NotNull final List<Resource> resources,
-                                          @NotNull final Map<String, Lock> locks) {
-    Map<String, String> result = new HashMap<>();
+  private Map<Lock, String> resolveStep(@NotNull final List<Resource> resources,
+                                        @NotNull final Map<String, Collection<Lock>> locks) {
+    final Map<Lock, String> result = new HashMap<>();
     resources.forEach(rc -> {
-      Lock lock = locks.get(rc.getName());
-      if (lock != null) {
-        // some lock is requesting this resource
-        result.put(lock.getName(), tryMatch(rc, lock));
+      final Collection<Lock> resourceLocks = locks.remove(rc.getName());
+      if (resourceLocks != null) {
+        // some locks are requesting this resource
+        boolean valid = true;
+        for (Lock lock: resourceLocks) {
+          final String res = tryMatch(rc, lock);
+          if (!OK.equals(res)) { // we have error.
+            result.put(lock, res);
+            valid = false;
+          }
+        }
+        if (valid && resourceLocks.size() > 1) {
+          result.putAll(tryMatchTogether(rc, resourceLocks));
+        }
       }
     });
     return result;
   }
 
+  /**
+   * Checks, that several locks on the same resource can be acquired by the build at once
+   *
+   * @param r resource
+   * @param locks locks on the resource
+   * @return locks, that cannot be combined with the others, with error descriptions
+   */
+  @NotNull
+  private Map<Lock, String> tryMatchTogether(@NotNull final Resource r, @NotNull final Collection<Lock> locks) {
+    final Map<Lock, String> result = new HashMap<>();
+    int units = 0;
+    boolean hasAnyValue = false;
+    for (Lock lock: locks) {
+      if (lock.getType() == LockType.WRITE) {
+        result.put(lock, "Write lock on resource '" + lock.getName() + "' cannot be combined with other locks on the same resource");
+        continue;
+      }
+      if (ResourceType.CUSTOM == r.getType()) {
+        if ("".equals(lock.getValue())) {
+          if (hasAnyValue) {
+            // single value of the resource is reserved for the build
+            result.put(lock, "Resource '" + lock.getName() + "' can be locked with only one lock on any value");
+            continue;
+          }
+          hasAnyValue = true;
+        }
+        units++;
+        if (units > ((CustomResource) r).getValues().size()) {
+          result.put(lock, "Resource '" + lock.getName() + "' does not have enough values for " + units + " locks");
+        }
+      } else {
+        units += lock.getWeight();
+        final QuotedResource quoted = (QuotedResource) r;
+        if (!quoted.isInfinite() && units > quoted.getQuota()) {
+          // such locks can never be acquired together
+          result.put(lock, "Locks on resource '" + lock.getName() + "' take " + units + " units, that exceeds quota " + quoted.getQuota());
+        }
+      }
+    }
+    return result;
+  }
+
   @NotNull
   private String tryMatch(@NotNull final Resource r, @NotNull final Lock lock) {
     if (!"".equals(lock.getValue())) {
@@ -217,6 +378,48 @@ public class ConfigurationInspector {
         return "Resource '" + lock.getName() + "' has wrong type: expected 'custom' got " + (((QuotedResource) r).isInfinite() ? "'infinite'" : "'quoted'");
       }
     }
+    if (lock.getWeight() != Lock.DEFAULT_WEIGHT) {
+      if (ResourceType.CUSTOM == r.getType()) {
+        return "Resource '" + lock.getName() + "' has wrong type: expected 'quoted' for lock with weight got 'custom'";
+      }
+      final QuotedResource quoted = (QuotedResource) r;
+      if (!quoted.isInfinite() && lock.getWeight() > quoted.getQuota()) {
+        // such lock can never be acquired
+        return "Lock weight " + lock.getWeight() + " exceeds quota " + quoted.getQuota() + " of resource '" + lock.getName() + "'";
+      }
+    }
     return OK;
   }
+
+  private void invalidateProject(@NotNull final String projectId) {
+    myInvalidations.incrementAndGet();
+    myInspections.values().removeIf(inspection -> inspection.myPathProjectIds.contains(projectId));
+  }
+
+  private void invalidateBuildType(@NotNull final SBuildType buildType) {
+    myInvalidations.incrementAndGet();
+    myInspections.remove(buildType.getInternalId());
+  }
+
+  private static final class Inspection {
+
+    /**
+     * Modification stamp of resource project features at the moment of inspection
+     */
+    private final long myStamp;
+
+    @NotNull
+    private final Set<String> myPathProjectIds;
+
+    @NotNull
+    private final Map<Lock, String> myInvalidLocks;
+
+    Inspection(final long stamp,
+               @NotNull final Set<String> pathProjectIds,
+               @NotNull final Map<Lock, String> invalidLocks) {
+      myStamp = stamp;
+      myPathProjectIds = pathProjectIds;
+      myInvalidLocks = invalidLocks;
+    }
+  }
 }
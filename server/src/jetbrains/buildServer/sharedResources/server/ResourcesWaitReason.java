@@ -0,0 +1,142 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockHolders;
+import jetbrains.buildServer.sharedResources.model.resources.QuotedResource;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Wait reason of the build, blocked by unavailable resources.
+ *
+ * Keeps unavailable resources and snapshots of their holders.
+ * Description is rendered when it is requested for the first time.
+ * Usage of quoted resources is shown in units of quota, if weighted locks are involved
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class ResourcesWaitReason implements WaitReason {
+
+  @NotNull
+  private final List<Entry> myEntries = new ArrayList<>();
+
+  private volatile String myDescription;
+
+  /**
+   * @param resource unavailable resource
+   * @param lock requested lock
+   * @param holders holders of the resource
+   * @param usedWeight units of quota, taken by the holders
+   * @param weighted whether some of the holders take several units of quota
+   */
+  void add(@NotNull final Resource resource,
+           @NotNull final Lock lock,
+           @NotNull final LockHolders holders,
+           final int usedWeight,
+           final boolean weighted) {
+    myEntries.add(new Entry(resource, lock, holders, usedWeight, weighted));
+  }
+
+  @NotNull
+  public List<Resource> getResources() {
+    final List<Resource> result = new ArrayList<>(myEntries.size());
+    myEntries.forEach(entry -> result.add(entry.myResource));
+    return result;
+  }
+
+  @NotNull
+  public LockHolders getHolders(@NotNull final String resourceId) {
+    for (Entry entry : myEntries) {
+      if (entry.myResource.getId().equals(resourceId)) {
+        return entry.myHolders;
+      }
+    }
+    throw new IllegalArgumentException("Resource " + resourceId + " is not a part of the wait reason");
+  }
+
+  @NotNull
+  @Override
+  public String getDescription() {
+    String result = myDescription;
+    if (result == null) {
+      final StringBuilder builder = new StringBuilder("Build is waiting for the following ");
+      builder.append(myEntries.size() > 1 ? "resources " : "resource ");
+      builder.append("to become available: ");
+      final Set<String> lockDescriptions = new LinkedHashSet<>();
+      for (Entry entry : myEntries) {
+        lockDescriptions.add(entry.getDescription());
+      }
+      builder.append(String.join(", ", lockDescriptions));
+      result = builder.toString();
+      myDescription = result;
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return getDescription();
+  }
+
+  private static final class Entry {
+
+    @NotNull
+    private final Resource myResource;
+
+    @NotNull
+    private final Lock myLock;
+
+    @NotNull
+    private final LockHolders myHolders;
+
+    private final int myUsedWeight;
+
+    private final boolean myWeighted;
+
+    private Entry(@NotNull final Resource resource,
+                  @NotNull final Lock lock,
+                  @NotNull final LockHolders holders,
+                  final int usedWeight,
+                  final boolean weighted) {
+      myResource = resource;
+      myLock = lock;
+      myHolders = holders;
+      myUsedWeight = usedWeight;
+      myWeighted = weighted;
+    }
+
+    @NotNull
+    private String getDescription() {
+      final List<String> details = new ArrayList<>(2);
+      if ((myWeighted || myLock.getWeight() != Lock.DEFAULT_WEIGHT) && myResource instanceof QuotedResource && !((QuotedResource)myResource).isInfinite()) {
+        details.add(myLock.getWeight() + " of " + Math.max(0, ((QuotedResource)myResource).getQuota() - myUsedWeight) + " available units requested");
+      }
+      final String holders = myHolders.getDescription();
+      if (!holders.isEmpty()) {
+        details.add("locked by " + holders);
+      }
+      return details.isEmpty() ? myLock.getName() : myLock.getName() + " (" + String.join(", ", details) + ")";
+    }
+  }
+}
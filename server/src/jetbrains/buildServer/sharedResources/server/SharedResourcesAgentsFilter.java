@@ -2,13 +2,17 @@ package jetbrains.buildServer.sharedResources.server;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
+import gnu.trove.TLongHashSet;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.buildDistribution.*;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.DistributionData;
 import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockHolders;
 import jetbrains.buildServer.sharedResources.model.TakenLock;
 import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
@@ -16,10 +20,14 @@ import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
+import jetbrains.buildServer.sharedResources.server.runtime.AdmissionVerdicts;
+import jetbrains.buildServer.sharedResources.server.runtime.CompositeChainLocks;
 import jetbrains.buildServer.sharedResources.server.runtime.DistributionDataAccessor;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
 import jetbrains.buildServer.sharedResources.server.runtime.ResourceAffinity;
 import jetbrains.buildServer.sharedResources.server.runtime.TakenLocks;
+import jetbrains.buildServer.sharedResources.server.runtime.WaiterQueues;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -33,6 +41,12 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
   @NotNull
   private static final Logger LOG = Logger.getInstance(SharedResourcesAgentsFilter.class.getName());
 
+  /**
+   * Enables computation of the verdicts for the whole queue in a single pass at the start of the distribution cycle
+   */
+  @NotNull
+  static final String BATCH_ADMISSION_ENABLED = "teamcity.sharedResources.batchAdmission.enabled";
+
   @NotNull
   private final SharedResourcesFeatures myFeatures;
 
@@ -42,9 +56,6 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
   @NotNull
   private final TakenLocks myTakenLocks;
 
-  @NotNull
-  private final RunningBuildsManager myRunningBuildsManager;
-
   @NotNull
   private final ConfigurationInspector myInspector;
 
@@ -54,28 +65,41 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
   @NotNull
   private final Resources myResources;
 
+  @NotNull
+  private final SharedResourcesMetrics myMetrics;
+
   public SharedResourcesAgentsFilter(@NotNull final SharedResourcesFeatures features,
                                      @NotNull final Locks locks,
                                      @NotNull final TakenLocks takenLocks,
-                                     @NotNull final RunningBuildsManager runningBuildsManager,
                                      @NotNull final ConfigurationInspector inspector,
                                      @NotNull final LocksStorage locksStorage,
-                                     @NotNull final Resources resources) {
+                                     @NotNull final Resources resources,
+                                     @NotNull final SharedResourcesMetrics metrics) {
     myFeatures = features;
     myLocks = locks;
     myTakenLocks = takenLocks;
-    myRunningBuildsManager = runningBuildsManager;
     myInspector = inspector;
     myLocksStorage = locksStorage;
     myResources = resources;
+    myMetrics = metrics;
   }
 
   @NotNull
   @Override
   public AgentsFilterResult filterAgents(@NotNull final AgentsFilterContext context) {
+    final long start = System.nanoTime();
+    try {
+      return doFilterAgents(context);
+    } finally {
+      myMetrics.record(SharedResourcesMetrics.Operation.FILTER_AGENTS, start);
+    }
+  }
+
+  @NotNull
+  private AgentsFilterResult doFilterAgents(@NotNull final AgentsFilterContext context) {
     // get custom data
     final DistributionDataAccessor accessor = new DistributionDataAccessor(context);
-    final AtomicReference<List<SRunningBuild>> runningBuilds = new AtomicReference<>();
+    accessor.getWaiterQueues().setQueuedBuilds(() -> context.getDistributorInput().getQueuedBuilds());
     final AtomicReference<Map<Resource,TakenLock>> takenLocks = new AtomicReference<>();
     // get or create our collection of resources
     WaitReason reason = null;
@@ -88,82 +112,159 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
       final List<BuildPromotionEx> depPromos = myPromotion.getDependentCompositePromotions();
       if (depPromos.isEmpty()) {
         LOG.debug("Queued build does not have dependent composite promotions");
-        reason = processSingleBuild(myPromotion, accessor, runningBuilds, canBeStarted, takenLocks, myPromotion);
+        reason = admitBuild(context, myPromotion, accessor,
+                            () -> processSingleBuild(myPromotion, accessor, canBeStarted, takenLocks, myPromotion));
       } else {
         LOG.debug("Queued build does have " + depPromos.size() + " dependent composite " + StringUtil.pluralize("promotion", depPromos.size()));
-        // contains resources and locks that are INSIDE of the build chain
-        final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks = new HashMap<>(); // resource -> {promotion -> lock}
-        final Map<String, Map<String, Resource>> chainResources = new HashMap<>(); // projectID -> {name, resource}
-        // first - get top of the chain. Builds that are already running.
-        // they have locks already taken
-        depPromos.stream()
-                 .filter(it -> it.getProjectId() != null)
-                 .forEach(promo -> {
-                   if (myLocksStorage.locksStored(promo)) {
-                     LOG.debug("build promotion" + promo.getId() + " is running. Loading locks");
-                     final Map<String, Lock> currentNodeLocks = myLocksStorage.load(promo);
-                     if (!currentNodeLocks.isEmpty()) {
-                       chainResources.computeIfAbsent(promo.getProjectId(), myResources::getResourcesMap);
-                       // if there are locks - resolve locks against resources according to project hierarchy of composite build
-                       resolve(chainLocks, chainResources.get(promo.getProjectId()), promo, currentNodeLocks);
-                     }
-                   }
-                 });
-
-        // rest are queued builds.
-        // make sure queued builds can start.
-        // builds inside composite build chain are not affected by the locks taken in the same chain
-        final List<SQueuedBuild> queued = depPromos.stream()
-                                                   .map(BuildPromotion::getQueuedBuild)
-                                                   .filter(Objects::nonNull)
-                                                   .collect(Collectors.toList());
-        for (SQueuedBuild compositeQueuedBuild : queued) {
-          final SBuildType compositeQueuedBuildType = getBuildTypeSafe(compositeQueuedBuild);
-          if (compositeQueuedBuildType == null) continue;
-          final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(compositeQueuedBuildType);
-          if (!features.isEmpty()) {
-            final Map<String, Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
-            if (!locksToTake.isEmpty()) {
-              // resolve locks that build wants to take against actual resources
-              chainResources.computeIfAbsent(compositeQueuedBuildType.getProjectId(), myResources::getResourcesMap);
-              reason = processBuildInChain(accessor, runningBuilds, canBeStarted, takenLocks,
-                                           chainResources.get(compositeQueuedBuildType.getProjectId()), chainLocks, locksToTake, compositeQueuedBuild.getBuildPromotion());
-              if (reason != null) {
-                if (LOG.isDebugEnabled()) {
-                  LOG.debug("Firing precondition for queued build [" + compositeQueuedBuild + "] with reason: [" + reason.getDescription() + "]");
-                  LOG.debug("Found blocked composite build on the path: " + compositeQueuedBuild);
-                }
-                break;
-              }
-            }
-          }
-        }
-        // process build itself
-        if (reason == null) {
-          final BuildTypeEx promoBuildType = myPromotion.getBuildType();
-          if (promoBuildType != null) {
-            final String projectId = promoBuildType.getProjectId();
-            chainResources.computeIfAbsent(projectId, myResources::getResourcesMap);
-            final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(promoBuildType);
-
-            if (!features.isEmpty()) {
-              reason = checkForInvalidLocks(promoBuildType);
-            }
-            final Map<String, Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
-            if (!locksToTake.isEmpty()) {
-              reason = processBuildInChain(accessor, runningBuilds, canBeStarted, takenLocks, chainResources.get(projectId), chainLocks, locksToTake, myPromotion);
-            }
-          }
+        final CompositeChainLocks chain = getCompositeChain(accessor, depPromos);
+        if (chain.holdsOrRequestsLocks()) {
+          reason = processBuildWithCompositeChain(myPromotion, accessor, canBeStarted, takenLocks, chain);
+        } else {
+          // composite builds of the chain do not affect the build. It is checked the same way as a part of the whole queue
+          reason = admitBuild(context, myPromotion, accessor,
+                              () -> processBuildWithCompositeChain(myPromotion, accessor, canBeStarted, takenLocks, chain));
         }
       }
     } else {
-      reason = processSingleBuild(myPromotion, accessor, runningBuilds, canBeStarted, takenLocks, myPromotion);
+      reason = admitBuild(context, myPromotion, accessor,
+                          () -> processSingleBuild(myPromotion, accessor, canBeStarted, takenLocks, myPromotion));
+    }
+    final AdmissionVerdicts verdicts = accessor.getAdmissionVerdicts();
+    if (verdicts != null) {
+      verdicts.checked(queuedBuild);
+    }
+    if (reason instanceof ResourcesWaitReason) {
+      myMetrics.buildBlocked(((ResourcesWaitReason)reason).getResources());
     }
     final AgentsFilterResult result = new AgentsFilterResult();
     result.setWaitReason(reason);
     return result;
   }
 
+  /**
+   * Returns locks of the composite build chain.
+   * Chain locks are resolved once per distribution cycle and are shared by all queued members of the chain
+   */
+  @NotNull
+  private CompositeChainLocks getCompositeChain(@NotNull final DistributionDataAccessor accessor,
+                                                @NotNull final List<BuildPromotionEx> depPromos) {
+    final List<Long> chainKey = depPromos.stream()
+                                         .map(BuildPromotion::getId)
+                                         .sorted()
+                                         .collect(Collectors.toList());
+    return accessor.getCompositeChainLocks(chainKey, () -> resolveCompositeChain(depPromos));
+  }
+
+  /**
+   * Checks the build, that has composite builds in its chain
+   */
+  @Nullable
+  private WaitReason processBuildWithCompositeChain(@NotNull final BuildPromotionEx promotion,
+                                                    @NotNull final DistributionDataAccessor accessor,
+                                                    @NotNull final Map<QueuedBuildInfo, SBuildAgent> canBeStarted,
+                                                    @NotNull final AtomicReference<Map<Resource, TakenLock>> takenLocks,
+                                                    @NotNull final CompositeChainLocks chain) {
+    // make sure queued composite builds of the chain can start.
+    // builds inside composite build chain are not affected by the locks taken in the same chain
+    WaitReason reason = processQueuedCompositeBuilds(accessor, canBeStarted, takenLocks, chain);
+    // process build itself
+    if (reason == null) {
+      final BuildTypeEx promoBuildType = promotion.getBuildType();
+      if (promoBuildType != null) {
+        final String projectId = promoBuildType.getProjectId();
+        final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(promoBuildType);
+
+        if (!features.isEmpty()) {
+          reason = checkForInvalidLocks(promoBuildType);
+        }
+        final Map<String, Collection<Lock>> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
+        if (!locksToTake.isEmpty()) {
+          reason = processBuildInChain(accessor, canBeStarted, takenLocks, chain.getResources(projectId, myResources::getResourcesMap),
+                                       chain.getChainLocks(), locksToTake, promotion);
+        }
+      }
+    }
+    return reason;
+  }
+
+  /**
+   * Resolves locks of the composite build chain.
+   * Running composite builds of the chain have their locks already taken,
+   * queued composite builds are remembered with the locks they request
+   *
+   * @param depPromos composite promotions of the chain
+   * @return resolved chain locks
+   */
+  @NotNull
+  private CompositeChainLocks resolveCompositeChain(@NotNull final List<BuildPromotionEx> depPromos) {
+    final CompositeChainLocks chain = new CompositeChainLocks();
+    // first - get top of the chain. Builds that are already running.
+    // they have locks already taken
+    depPromos.stream()
+             .filter(it -> it.getProjectId() != null)
+             .forEach(promo -> {
+               if (myLocksStorage.locksStored(promo)) {
+                 LOG.debug("build promotion" + promo.getId() + " is running. Loading locks");
+                 final Map<String, Collection<Lock>> currentNodeLocks = myLocksStorage.load(promo);
+                 if (!currentNodeLocks.isEmpty()) {
+                   // if there are locks - resolve locks against resources according to project hierarchy of composite build
+                   resolve(chain.getChainLocks(), chain.getResources(promo.getProjectId(), myResources::getResourcesMap), promo, currentNodeLocks);
+                 }
+               }
+             });
+    // rest are queued builds.
+    depPromos.stream()
+             .map(BuildPromotion::getQueuedBuild)
+             .filter(Objects::nonNull)
+             .forEach(compositeQueuedBuild -> {
+               final SBuildType compositeQueuedBuildType = getBuildTypeSafe(compositeQueuedBuild);
+               if (compositeQueuedBuildType == null) return;
+               final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(compositeQueuedBuildType);
+               if (!features.isEmpty()) {
+                 final Map<String, Collection<Lock>> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
+                 if (!locksToTake.isEmpty()) {
+                   chain.addQueuedNode(compositeQueuedBuild.getBuildPromotion(), compositeQueuedBuildType.getProjectId(), locksToTake);
+                 }
+               }
+             });
+    return chain;
+  }
+
+  /**
+   * Checks that queued composite builds of the chain can start.
+   * The result is shared by all members of the chain until taken locks, write requests or assigned values change
+   *
+   * @return wait reason of the first blocked queued composite build, {@code null} if all of them can start
+   */
+  @Nullable
+  private WaitReason processQueuedCompositeBuilds(@NotNull final DistributionDataAccessor accessor,
+                                                  @NotNull final Map<QueuedBuildInfo, SBuildAgent> canBeStarted,
+                                                  @NotNull final AtomicReference<Map<Resource, TakenLock>> takenLocks,
+                                                  @NotNull final CompositeChainLocks chain) {
+    if (chain.getQueuedNodes().isEmpty()) {
+      return null;
+    }
+    gatherRuntimeInfo(accessor, canBeStarted, takenLocks);
+    if (chain.hasVerdict(accessor.getTakenLocksVersion(), accessor.getWaiterQueues().getVersion(), accessor.getResourceAffinity().getVersion())) {
+      return chain.getVerdict();
+    }
+    WaitReason reason = null;
+    for (CompositeChainLocks.QueuedNode node : chain.getQueuedNodes()) {
+      // resolve locks that build wants to take against actual resources
+      reason = processBuildInChain(accessor, canBeStarted, takenLocks, chain.getResources(node.getProjectId(), myResources::getResourcesMap),
+                                   chain.getChainLocks(), node.getLocksToTake(), node.getPromotion());
+      if (reason != null) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Firing precondition for queued build [" + node.getPromotion().getQueuedBuild() + "] with reason: [" + reason.getDescription() + "]");
+          LOG.debug("Found blocked composite build on the path: " + node.getPromotion());
+        }
+        break;
+      }
+    }
+    chain.setVerdict(reason, accessor.getTakenLocksVersion(), accessor.getWaiterQueues().getVersion(), accessor.getResourceAffinity().getVersion());
+    return reason;
+  }
+
   @Nullable
   private SBuildType getBuildTypeSafe(@NotNull final SQueuedBuild queuedBuild) {
     try {
@@ -174,15 +275,14 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
 
   @Nullable
   private WaitReason processBuildInChain(@NotNull final DistributionDataAccessor accessor,
-                                         @NotNull final AtomicReference<List<SRunningBuild>> runningBuilds,
                                          @NotNull final Map<QueuedBuildInfo, SBuildAgent> canBeStarted,
                                          @NotNull final AtomicReference<Map<Resource, TakenLock>> takenLocks,
                                          @NotNull final Map<String, Resource> chainNodeResources,
-                                         @NotNull final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks,
-                                         @NotNull final Map<String, Lock> locksToTake,
+                                         @NotNull final Map<Resource, Map<BuildPromotionEx, Collection<Lock>>> chainLocks,
+                                         @NotNull final Map<String, Collection<Lock>> locksToTake,
                                          @NotNull final BuildPromotion promotion) {
     WaitReason reason = null;
-    gatherRuntimeInfo(runningBuilds, canBeStarted, takenLocks);
+    gatherRuntimeInfo(accessor, canBeStarted, takenLocks);
     final Map<Resource, Lock> unavailableLocks = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks.get(), accessor, chainNodeResources, chainLocks, promotion);
     if (!unavailableLocks.isEmpty()) {
       reason = createWaitReason(takenLocks.get(), unavailableLocks);
@@ -190,9 +290,90 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
     return reason;
   }
 
+  /**
+   * Checks the build, that is not affected by composite builds of its chain.
+   * Verdict, computed for the whole queue at the start of the distribution cycle, is used if it is still valid
+   *
+   * @param check check of the build alone, used if there is no valid verdict
+   */
+  @Nullable
+  private WaitReason admitBuild(@NotNull final AgentsFilterContext context,
+                                @NotNull final BuildPromotionEx promotion,
+                                @NotNull final DistributionDataAccessor accessor,
+                                @NotNull final Supplier<WaitReason> check) {
+    AdmissionVerdicts verdicts = accessor.getAdmissionVerdicts();
+    if (verdicts == null && TeamCityProperties.getBooleanOrTrue(BATCH_ADMISSION_ENABLED)) {
+      verdicts = computeAdmissionVerdicts(context.getDistributorInput().getQueuedBuilds(), accessor);
+      accessor.setAdmissionVerdicts(verdicts);
+    }
+    final AdmissionVerdicts.Verdict verdict = verdicts != null
+                                              ? verdicts.lookup(promotion, context.getDistributedBuilds(), accessor.getWaiterQueues())
+                                              : null;
+    if (verdict == null) {
+      return check.get();
+    }
+    // apply the changes the check would have made to the state of the cycle
+    accessor.getWaiterQueues().addAll(verdict.getWaitersAfter());
+    if (!verdict.getAffinity().isEmpty()) {
+      accessor.getResourceAffinity().store(promotion, verdict.getAffinity());
+    }
+    return verdict.getReason();
+  }
+
+  /**
+   * Computes verdicts for the queued builds in a single pass, assuming that every admitted build is distributed.
+   * Builds are checked the same way they are checked one by one, against separate state.
+   * Builds of the chains, which composite builds hold or request locks, are skipped: they are checked one by one
+   *
+   * @param queuedBuilds queued builds in the order of distribution
+   * @param cycleAccessor distribution data of the cycle. Provides locks of running builds and resolved composite chains
+   * @return verdicts of the queued builds
+   */
+  @NotNull
+  AdmissionVerdicts computeAdmissionVerdicts(@NotNull final Collection<QueuedBuildInfo> queuedBuilds,
+                                             @NotNull final DistributionDataAccessor cycleAccessor) {
+    final long start = System.nanoTime();
+    final AdmissionVerdicts result = new AdmissionVerdicts();
+    final DistributionDataAccessor accessor = new DistributionDataAccessor(new DistributionData());
+    accessor.getWaiterQueues().setQueuedBuilds(() -> queuedBuilds);
+    final AtomicReference<Map<Resource, TakenLock>> takenLocks = new AtomicReference<>(cycleAccessor.copyRunningLocks(myTakenLocks::collectRunningLocks));
+    final boolean chainsEnabled = TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.RESOURCES_IN_CHAINS_ENABLED);
+    for (QueuedBuildInfo build : queuedBuilds) {
+      final BuildPromotionEx promotion = (BuildPromotionEx)build.getBuildPromotionInfo();
+      final SBuildType buildType = promotion.getBuildType();
+      final boolean holdsLocks = buildType != null && !myLocks.fromBuildFeaturesAsMap(myFeatures.searchForFeatures(buildType)).isEmpty();
+      final Set<WaiterQueues.Waiter> waitersBefore = accessor.getWaiterQueues().snapshot();
+      final WaitReason reason;
+      final List<BuildPromotionEx> depPromos = chainsEnabled && promotion.isPartOfBuildChain()
+                                               ? promotion.getDependentCompositePromotions()
+                                               : Collections.emptyList();
+      if (depPromos.isEmpty()) {
+        reason = processSingleBuild(promotion, accessor, Collections.emptyMap(), takenLocks, promotion);
+      } else {
+        // chains are resolved against the cycle, as they do not depend on the state of the pass
+        final CompositeChainLocks chain = getCompositeChain(cycleAccessor, depPromos);
+        if (chain.holdsOrRequestsLocks()) {
+          result.skip(promotion, holdsLocks);
+          continue;
+        }
+        reason = processBuildWithCompositeChain(promotion, accessor, Collections.emptyMap(), takenLocks, chain);
+      }
+      Map<String, String> affinity = Collections.emptyMap();
+      if (reason == null && holdsLocks) {
+        affinity = accessor.getResourceAffinity().getRequestedValues(promotion);
+        myTakenLocks.addDistributedLocks(takenLocks.get(), Collections.singletonList(build));
+      }
+      result.add(promotion, holdsLocks, waitersBefore, accessor.getWaiterQueues().snapshot(), reason, affinity);
+    }
+    myMetrics.record(SharedResourcesMetrics.Operation.BATCH_ADMISSION, start);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Computed admission verdicts for " + result.size() + " of " + queuedBuilds.size() + " queued builds");
+    }
+    return result;
+  }
+
   private WaitReason processSingleBuild(@NotNull final BuildPromotionEx buildPromotion,
                                         @NotNull final DistributionDataAccessor accessor,
-                                        @NotNull final AtomicReference<List<SRunningBuild>> runningBuilds,
                                         @NotNull final Map<QueuedBuildInfo, SBuildAgent> canBeStarted,
                                         @NotNull final AtomicReference<Map<Resource, TakenLock>> takenLocks,
                                         @NotNull final BuildPromotion promotion) {
@@ -205,9 +386,9 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
         reason = checkForInvalidLocks(buildType);
         if (reason == null) {
           // Collection<Lock> ---> Collection<ResolvedLock> (i.e. lock against resolved resource. With project and so on)
-          final Collection<Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features).values();
+          final Map<String, Collection<Lock>> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
           if (!locksToTake.isEmpty()) {
-            gatherRuntimeInfo(runningBuilds, canBeStarted, takenLocks);
+            gatherRuntimeInfo(accessor, canBeStarted, takenLocks);
             // Collection<Lock> --> Collection<ResolvedLock>. For quoted - number of insufficient quotes, for custom -> custom values
             final Map<Resource, Lock> unavailableLocks = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks.get(), projectId, accessor, promotion);
             if (!unavailableLocks.isEmpty()) {
@@ -229,24 +410,34 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
   private void storeResourcesAffinity(@NotNull final BuildPromotion promotion,
                                       @NotNull final String projectId,
                                       @NotNull final Map<Resource, TakenLock> takenLocks,
-                                      @NotNull final Collection<Lock> locksToTake,
+                                      @NotNull final Map<String, Collection<Lock>> locksToTake,
                                       @NotNull final DistributionDataAccessor accessor) {
 
     final Map<String, Resource> resources = myResources.getResourcesMap(projectId);
     final Map<String, String> affinityMap = new HashMap<>();
-    locksToTake.forEach(lock -> {
-      Resource r = resources.get(lock.getName());
+    locksToTake.forEach((name, locks) -> {
+      Resource r = resources.get(name);
       if (r instanceof CustomResource) {
-        if (StringUtil.isEmptyOrSpaces(lock.getValue())) {
+        String specificValue = null;
+        boolean any = false;
+        for (Lock lock : locks) {
+          if (StringUtil.isEmptyOrSpaces(lock.getValue())) {
+            any = true;
+          } else if (specificValue == null) {
+            specificValue = lock.getValue();
+          }
+        }
+        if (any) {
           // if lock is ANY lock -> choose next available value
-          final String next = getNextAvailableValue((CustomResource)r, takenLocks, promotion, accessor);
+          final String next = getNextAvailableValue((CustomResource)r, locks, takenLocks, promotion, accessor);
           if (StringUtil.isEmptyOrSpaces(next)) {
             LOG.warn("Failed to allocate values for promotion: " + promotion + ", resource: " + r);
           }
           affinityMap.put(r.getId(), next);
-        } else {
-          // if lock is SPECIFIC lock - choose lock value
-          affinityMap.put(r.getId(), lock.getValue());
+        } else if (specificValue != null) {
+          // if lock is SPECIFIC lock - choose lock value.
+          // Other specific values of the build are not reserved, they are held by taken locks once the build is distributed
+          affinityMap.put(r.getId(), specificValue);
         }
       }
     });
@@ -255,32 +446,71 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
     }
   }
 
-  private String getNextAvailableValue(final CustomResource r, final Map<Resource, TakenLock> takenLocks, final BuildPromotion promotion, @NotNull final DistributionDataAccessor accessor) {
-    final Set<String> values = new HashSet<>(r.getValues());
-    values.removeAll(accessor.getResourceAffinity().getOtherAssignedValues(r, promotion));
+  private String getNextAvailableValue(final CustomResource r,
+                                       final Collection<Lock> locks,
+                                       final Map<Resource, TakenLock> takenLocks,
+                                       final BuildPromotion promotion,
+                                       @NotNull final DistributionDataAccessor accessor) {
+    final BitSet unavailable = accessor.getResourceAffinity().getOtherAssignedValueIndices(r, promotion);
+    // specific values, requested by the build itself, are not available for its ANY lock
+    for (Lock lock : locks) {
+      final int index = lock.getValue().isEmpty() ? -1 : r.getValueIndex(lock.getValue());
+      if (index >= 0) {
+        unavailable.set(index);
+      }
+    }
     // remove values from taken locks
     final TakenLock takenLock = takenLocks.get(r);
     if (takenLock != null) {
-      values.removeAll(takenLock.getReadLocks().values());
-    }
-    return values.isEmpty() ? "" : values.iterator().next();
+      unavailable.or(takenLock.getReadValueIndices(r));
     }
+    final int next = unavailable.nextClearBit(0);
+    return next < r.getIndexedValuesCount() ? r.getValueByIndex(next) : "";
+  }
 
   /**
-   * Gathers information about running and distributed build from runtime
-   * @param runningBuilds local running build reference
+   * Gathers information about running and distributed build from runtime.
+   * Locks of running builds are collected once per distribution cycle and are kept in distribution data.
+   * Taken locks of the cycle start from a copy of them,
+   * locks of the builds, distributed since the previous call, are applied on top of it
+   *
+   * @param accessor accessor for distribution data
    * @param canBeStarted distributor output
    * @param takenLocks local taken locks reference
    */
-  private void gatherRuntimeInfo(@NotNull final AtomicReference<List<SRunningBuild>> runningBuilds,
+  private void gatherRuntimeInfo(@NotNull final DistributionDataAccessor accessor,
                                  @NotNull final Map<QueuedBuildInfo, SBuildAgent> canBeStarted,
                                  @NotNull final AtomicReference<Map<Resource, TakenLock>> takenLocks) {
-    if (runningBuilds.get() == null) {
-      runningBuilds.set(myRunningBuildsManager.getRunningBuilds());
+    if (takenLocks.get() != null) {
+      return;
+    }
+    if (accessor.getTakenLocks() == null) {
+      accessor.setTakenLocks(accessor.copyRunningLocks(myTakenLocks::collectRunningLocks));
     }
-    if (takenLocks.get() == null) {
-      takenLocks.set(myTakenLocks.collectTakenLocks(runningBuilds.get(), canBeStarted.keySet()));
+    final TLongHashSet applied = accessor.getAppliedDistributedBuilds();
+    final List<QueuedBuildInfo> newlyDistributed = new ArrayList<>();
+    int appliedCount = 0;
+    for (QueuedBuildInfo build: canBeStarted.keySet()) {
+      if (applied.contains(build.getBuildPromotionInfo().getId())) {
+        appliedCount++;
+      } else {
+        newlyDistributed.add(build);
+      }
+    }
+    if (appliedCount < applied.size()) {
+      // some of the applied builds are not distributed anymore. Start over
+      LOG.debug("Distributed builds changed during distribution cycle. Recollecting taken locks");
+      accessor.setTakenLocks(accessor.copyRunningLocks(myTakenLocks::collectRunningLocks));
+      newlyDistributed.clear();
+      newlyDistributed.addAll(canBeStarted.keySet());
+    }
+    final Map<Resource, TakenLock> result = accessor.getTakenLocks();
+    if (!newlyDistributed.isEmpty()) {
+      myTakenLocks.addDistributedLocks(result, newlyDistributed);
+      newlyDistributed.forEach(build -> applied.add(build.getBuildPromotionInfo().getId()));
+      accessor.takenLocksUpdated();
     }
+    takenLocks.set(result);
   }
 
   /**
@@ -291,57 +521,35 @@ public class SharedResourcesAgentsFilter implements StartingBuildAgentsFilter {
    * @param promo build promotion of the current node
    * @param nodeLocks locks requested by the current node in the build chain
    */
-  private void resolve(@NotNull final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks,
+  private void resolve(@NotNull final Map<Resource, Map<BuildPromotionEx, Collection<Lock>>> chainLocks,
                        @NotNull final Map<String, Resource> nodeResources,
                        @NotNull final BuildPromotionEx promo,
-                       @NotNull final Map<String, Lock> nodeLocks) {
-    nodeLocks.forEach((name, lock) -> {
+                       @NotNull final Map<String, Collection<Lock>> nodeLocks) {
+    nodeLocks.forEach((name, locks) -> {
       Resource resource = nodeResources.get(name);
       if (resource == null) {
         // todo: handle. this should not happen as configuration inspector should prevent this
         throw new RuntimeException("Invalid configuration!");
       }
       // here list instead of set as we need to know how much quota we should ignore
-      chainLocks.computeIfAbsent(resource, k -> new HashMap<>()).put(promo, lock);
+      chainLocks.computeIfAbsent(resource, k -> new HashMap<>()).put(promo, locks);
     });
   }
 
   @NotNull
   private WaitReason createWaitReason(@NotNull final Map<Resource, TakenLock> takenLocks,
                                       @NotNull final Map<Resource, Lock> unavailableLocks) {
-    final StringBuilder builder = new StringBuilder("Build is waiting for the following ");
-    builder.append(unavailableLocks.size() > 1 ? "resources " : "resource ");
-    builder.append("to become available: ");
-    final Set<String> lockDescriptions = new HashSet<>();
-    for (Map.Entry<Resource, Lock> entry : unavailableLocks.entrySet()) {
-      final StringBuilder description = new StringBuilder();
-      final Set<String> buildTypeNames = new HashSet<>();
-      final TakenLock takenLock = takenLocks.get(entry.getKey());
-      if (takenLock != null) {
-        for (BuildPromotionInfo promotion : takenLock.getReadLocks().keySet()) {
-          BuildTypeEx bt = ((BuildPromotionEx) promotion).getBuildType();
-          if (bt != null) {
-            buildTypeNames.add(bt.getExtendedFullName());
-          }
-        }
-        for (BuildPromotionInfo promotion : takenLock.getWriteLocks().keySet()) {
-          BuildTypeEx bt = ((BuildPromotionEx) promotion).getBuildType();
-          if (bt != null) {
-            buildTypeNames.add(bt.getExtendedFullName());
-          }
-        }
-      }
-      description.append(entry.getValue().getName());
-      if (!buildTypeNames.isEmpty()) {
-        description.append(" (locked by ");
-        description.append(buildTypeNames.stream().sorted().collect(Collectors.joining(", ")));
-        description.append(")");
+    // description is rendered on demand. Snapshots of holders are shared by all builds blocked on the same holders
+    final ResourcesWaitReason result = new ResourcesWaitReason();
+    unavailableLocks.forEach((resource, lock) -> {
+      final TakenLock takenLock = takenLocks.get(resource);
+      if (takenLock == null) {
+        result.add(resource, lock, LockHolders.EMPTY, 0, false);
+      } else {
+        result.add(resource, lock, takenLock.getHolders(), takenLock.getWeight(), takenLock.isWeighted());
       }
-      lockDescriptions.add(description.toString());
-    }
-    builder.append(StringUtil.join(lockDescriptions, ", "));
-    final String reasonDescription = builder.toString();
-    return new SimpleWaitReason(reasonDescription);
+    });
+    return result;
   }
 
   @Nullable
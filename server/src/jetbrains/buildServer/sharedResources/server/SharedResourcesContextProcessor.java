@@ -1,9 +1,9 @@
 package jetbrains.buildServer.sharedResources.server;
 
+import com.google.common.util.concurrent.Striped;
 import com.intellij.openapi.diagnostic.Logger;
 import gnu.trove.TLongHashSet;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.serverSide.*;
@@ -16,8 +16,10 @@ import jetbrains.buildServer.sharedResources.model.resources.ResourceType;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
 import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocksLedger;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
@@ -33,8 +35,14 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   @NotNull
   private static final Logger LOG = Logger.getInstance(SharedResourcesContextProcessor.class.getName());
 
+  private static final int STRIPES_COUNT = 64;
+
+  /**
+   * Guards assignment of custom resource values and composite chain processing.
+   * Resource or composite promotion -> lock
+   */
   @NotNull
-  private final Object o = new Object();
+  private final Striped<java.util.concurrent.locks.Lock> myStripes = Striped.lock(STRIPES_COUNT);
 
   @NotNull
   private final SharedResourcesFeatures myFeatures;
@@ -49,23 +57,28 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   private final LocksStorage myLocksStorage;
 
   @NotNull
-  private final RunningBuildsManager myRunningBuildsManager;
+  private final TakenLocksLedger myLedger;
 
   @NotNull
   private final BuildUsedResourcesReport myBuildUsedResourcesReport;
 
+  @NotNull
+  private final SharedResourcesMetrics myMetrics;
+
   public SharedResourcesContextProcessor(@NotNull final SharedResourcesFeatures features,
                                          @NotNull final Locks locks,
                                          @NotNull final Resources resources,
                                          @NotNull final LocksStorage locksStorage,
-                                         @NotNull final RunningBuildsManager runningBuildsManager,
-                                         @NotNull final BuildUsedResourcesReport buildUsedResourcesReport) {
+                                         @NotNull final TakenLocksLedger ledger,
+                                         @NotNull final BuildUsedResourcesReport buildUsedResourcesReport,
+                                         @NotNull final SharedResourcesMetrics metrics) {
     myFeatures = features;
     myLocks = locks;
     myResources = resources;
     myLocksStorage = locksStorage;
-    myRunningBuildsManager = runningBuildsManager;
+    myLedger = ledger;
     myBuildUsedResourcesReport = buildUsedResourcesReport;
+    myMetrics = metrics;
   }
 
   /**
@@ -85,6 +98,15 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
    */
   @Override
   public void updateParameters(@NotNull final BuildStartContext context) {
+    final long start = System.nanoTime();
+    try {
+      doUpdateParameters(context);
+    } finally {
+      myMetrics.record(SharedResourcesMetrics.Operation.UPDATE_PARAMETERS, start);
+    }
+  }
+
+  private void doUpdateParameters(@NotNull final BuildStartContext context) {
     final SRunningBuild startingBuild = context.getBuild();
     final BuildPromotionEx startingBuildPromotion = (BuildPromotionEx)startingBuild.getBuildPromotion();
     final TLongHashSet compositeIds = new TLongHashSet();
@@ -92,35 +114,75 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
     final Map<String, Map<String, CustomResource>> projectTreeCustomResources = new HashMap<>();
     // projectId -> Map of all resources
     final Map<String, Map<String, Resource>> projectTreeResources = new HashMap<>();
-    final AtomicReference<List<SRunningBuild>> runningBuilds = new AtomicReference<>();
+    final List<BuildPromotionEx> depPromos;
+    if (TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.RESOURCES_IN_CHAINS_ENABLED) && startingBuildPromotion.isPartOfBuildChain()) {
+      // get all dependent composite promotions
+      depPromos = startingBuildPromotion.getDependentCompositePromotions();
+      // collect promotion ids of composite builds in chain.
+      // we don't need to check the values against them
+      depPromos.forEach(promo -> compositeIds.add(promo.getId()));
+    } else {
+      depPromos = Collections.emptyList();
+    }
+    final Map<String, Collection<Lock>> startingBuildLocks = extractLocks(startingBuildPromotion);
     // several locks on same resource may be taken by the chain
-    synchronized (o) {
-      if (TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.RESOURCES_IN_CHAINS_ENABLED) && startingBuildPromotion.isPartOfBuildChain()) {
-        // get all dependent composite promotions
-        final List<BuildPromotionEx> depPromos = startingBuildPromotion.getDependentCompositePromotions();
-        // collect promotion ids of composite builds in chain.
-        // we don't need to check the values against them
-        depPromos.forEach(promo -> compositeIds.add(promo.getId()));
-        // some build promotions in composite chain may not have the locks stored -> we need to process and store locks
-        depPromos.stream()
-                 .filter(promo -> !myLocksStorage.locksStored(promo))
-                 .forEach(promo -> processBuild(context, promo, compositeIds, projectTreeResources, projectTreeCustomResources, runningBuilds));
+    final Iterable<java.util.concurrent.locks.Lock> stripes = myStripes.bulkGet(getStripeKeys(startingBuildPromotion, startingBuildLocks, depPromos,
+                                                                                             projectTreeResources, projectTreeCustomResources));
+    final List<java.util.concurrent.locks.Lock> taken = new ArrayList<>();
+    try {
+      for (java.util.concurrent.locks.Lock stripe: stripes) {
+        stripe.lock();
+        taken.add(stripe);
+      }
+      // some build promotions in composite chain may not have the locks stored -> we need to process and store locks
+      depPromos.stream()
+               .filter(promo -> !myLocksStorage.locksStored(promo))
+               .forEach(promo -> processBuild(context, promo, extractLocks(promo), compositeIds, projectTreeResources, projectTreeCustomResources));
+      processBuild(context, startingBuildPromotion, startingBuildLocks, compositeIds, projectTreeResources, projectTreeCustomResources);
+    } finally {
+      for (int i = taken.size() - 1; i >= 0; i--) {
+        taken.get(i).unlock();
       }
-      processBuild(context, startingBuild.getBuildPromotion(), compositeIds, projectTreeResources, projectTreeCustomResources, runningBuilds);
     }
   }
 
+  /**
+   * Starting builds are serialized only if they assign values of the same custom resources,
+   * or process the same composite builds of the chain.
+   * Builds without custom locks outside of composite chains take no locks at all
+   *
+   * @return keys of the stripes to lock
+   */
+  @NotNull
+  private Set<String> getStripeKeys(@NotNull final BuildPromotionEx startingBuildPromotion,
+                                    @NotNull final Map<String, Collection<Lock>> startingBuildLocks,
+                                    @NotNull final List<BuildPromotionEx> depPromos,
+                                    @NotNull final Map<String, Map<String, Resource>> projectTreeResources,
+                                    @NotNull final Map<String, Map<String, CustomResource>> projectTreeCustomResources) {
+    final Set<String> result = new HashSet<>();
+    depPromos.stream()
+             .filter(promo -> !myLocksStorage.locksStored(promo))
+             .forEach(promo -> result.add("promotion:" + promo.getId()));
+    final String projectId = startingBuildPromotion.getProjectId();
+    if (startingBuildPromotion.getBuildType() != null && projectId != null && !startingBuildPromotion.isCompositeBuild()) {
+      final Map<String, Resource> projectResources = getResources(projectId, projectTreeResources);
+      matchCustomResources(getCustomResources(projectId, projectResources, projectTreeCustomResources), startingBuildLocks)
+        .values()
+        .forEach(resource -> result.add("resource:" + resource.getProjectId() + ":" + resource.getId()));
+    }
+    return result;
+  }
+
   private void processBuild(@NotNull final BuildStartContext context,
                             @NotNull final BuildPromotion currentBuildPromotion,
+                            @NotNull final Map<String, Collection<Lock>> locks,
                             @NotNull final TLongHashSet compositeRunningBuildIds,
                             @NotNull final Map<String, Map<String, Resource>> projectTreeResources,
-                            @NotNull final Map<String, Map<String, CustomResource>> projectTreeCustomResources,
-                            @NotNull final AtomicReference<List<SRunningBuild>> runningBuilds) {
+                            @NotNull final Map<String, Map<String, CustomResource>> projectTreeCustomResources) {
     if (currentBuildPromotion.getBuildType() == null || currentBuildPromotion.getProjectId() == null) {
       return;
     }
-    final Map<String, Lock> locks = extractLocks(currentBuildPromotion);
-    final Map<Lock, String> myTakenValues = initTakenValues(locks.values());
+    final Map<Lock, String> myTakenValues = initTakenValues(locks);
     // get custom resources from our locks
     final Map<String, Resource> projectResources = getResources(currentBuildPromotion.getProjectId(), projectTreeResources);
     // FIXME: disable custom resources processing for composite builds until method of consistent delivery of values to the chain is implemented
@@ -131,7 +193,7 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
       // decide whether we need to resolve values
       if (!myCustomResources.isEmpty()) {
         // used values should not include the values from composite chain
-        final Map<String, List<String>> usedValues = collectTakenValuesFromRuntime(locks, compositeRunningBuildIds, runningBuilds);
+        final Map<String, List<String>> usedValues = collectTakenValuesFromRuntime(locks, compositeRunningBuildIds);
         for (Map.Entry<String, CustomResource> entry : myCustomResources.entrySet()) {
           if (entry.getValue().isEnabled()) {
             // get value space for current resources
@@ -140,27 +202,37 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
             // remove used values
             usedValues.get(key).forEach(values::remove);
             if (!values.isEmpty()) {
-              final Lock currentLock = locks.get(key);
-              final String paramName = myLocks.asBuildParameter(currentLock);
-              String currentValue;
-              if (LockType.READ.equals(currentLock.getType())) {
-                if (currentLock.getValue().equals("")) {
-                  currentValue = (String)((BuildPromotionEx)currentBuildPromotion).getAttribute(getReservedResourceAttributeKey(entry.getValue().getId()));
+              // values of several read locks on the resource are exposed in a single parameter
+              final List<String> readValues = new ArrayList<>();
+              String readParamName = null;
+              for (Lock currentLock: locks.get(key)) {
+                final String paramName = myLocks.asBuildParameter(currentLock);
+                String currentValue;
+                if (LockType.READ.equals(currentLock.getType())) {
+                  if (currentLock.getValue().equals("")) {
+                    currentValue = (String)((BuildPromotionEx)currentBuildPromotion).getAttribute(getReservedResourceAttributeKey(entry.getValue().getId()));
+                  } else {
+                    currentValue = currentLock.getValue();
+                  }
+                  myTakenValues.put(currentLock, currentValue);
+                  readParamName = paramName;
                 } else {
-                  currentValue = currentLock.getValue();
+                  currentValue = StringUtil.join(values, ";");
                 }
-                myTakenValues.put(currentLock, currentValue);
-              } else {
-                currentValue = StringUtil.join(values, ";");
-              }
-              if (!currentBuildPromotion.isCompositeBuild()) {
-                if (currentValue != null) {
-                  context.addSharedParameter(paramName, currentValue);
-                } else {
-                  LOG.warn("Unable to assign value to lock [" + key + "] for build promotion with id [" + currentBuildPromotion.getId() + "]. " +
-                           "Expected reserved value, got null");
+                if (!currentBuildPromotion.isCompositeBuild()) {
+                  if (currentValue == null) {
+                    LOG.warn("Unable to assign value to lock [" + key + "] for build promotion with id [" + currentBuildPromotion.getId() + "]. " +
+                             "Expected reserved value, got null");
+                  } else if (LockType.READ.equals(currentLock.getType())) {
+                    readValues.add(currentValue);
+                  } else {
+                    context.addSharedParameter(paramName, currentValue);
+                  }
                 }
               }
+              if (readParamName != null && !readValues.isEmpty()) {
+                context.addSharedParameter(readParamName, StringUtil.join(readValues, ";"));
+              }
             } else {
               // throw exception?
               LOG.warn("Unable to assign value to lock [" + key + "] for build promotion with id [" + currentBuildPromotion.getId() + "]");
@@ -170,11 +242,12 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
       }
     }
     myLocksStorage.store(currentBuildPromotion, myTakenValues);
+    myLedger.locksStored(currentBuildPromotion, myTakenValues);
     myBuildUsedResourcesReport.save((BuildPromotionEx)currentBuildPromotion, projectResources, myTakenValues);
   }
 
-  private Map<String, Lock> extractLocks(@NotNull final BuildPromotion buildPromotion) {
-    final Map<String, Lock> result = new HashMap<>();
+  private Map<String, Collection<Lock>> extractLocks(@NotNull final BuildPromotion buildPromotion) {
+    final Map<String, Collection<Lock>> result = new HashMap<>();
     if (buildPromotion.getBuildType() != null) {
       result.putAll(myLocks.fromBuildFeaturesAsMap(myFeatures.searchForFeatures(buildPromotion.getBuildType())));
     }
@@ -182,46 +255,24 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   }
 
   /**
-   * Collects acquired values for all locks from runtime
+   * Collects acquired values for all locks from runtime.
+   * Values are taken from the index of the ledger, so only locks of current build are looked up
    *
    * @param locks locks required by current build
-   * @param runningBuilds reference to running builds collection
+   * @param compositePromotionIds promotions of composite builds in chain, which values are not checked
    * @return map of locks and taken values
    */
   @NotNull
-  private Map<String, List<String>> collectTakenValuesFromRuntime(@NotNull final Map<String, Lock> locks,
-                                                                  @NotNull final TLongHashSet compositePromotionIds,
-                                                                  @NotNull final AtomicReference<List<SRunningBuild>> runningBuilds) {
-    if (runningBuilds.get() == null) {
-      runningBuilds.set(myRunningBuildsManager.getRunningBuilds()
-                                              .stream()
-                                              .filter(b -> !compositePromotionIds.contains(b.getBuildPromotion().getId()))
-                                              .collect(Collectors.toList()));
-    }
-
-    final Map<String, List<String>> usedValues = new HashMap<>();
-    locks.forEach((k, v) -> usedValues.put(k, new ArrayList<>()));
-    // collect taken values from runtime
-    for (SRunningBuild runningBuild: runningBuilds.get()) {
-      Map<String, Lock> locksInRunningBuild = myLocksStorage.load(runningBuild.getBuildPromotion());
-      for (Lock l: locks.values()) {
-        Lock runningLock = locksInRunningBuild.get(l.getName());
-        if (runningLock != null) {
-          String value = runningLock.getValue();
-          if (!"".equals(value)) {
-            usedValues.get(l.getName()).add(value);
-          }
-        }
-      }
-    }
-    return usedValues;
+  private Map<String, List<String>> collectTakenValuesFromRuntime(@NotNull final Map<String, Collection<Lock>> locks,
+                                                                  @NotNull final TLongHashSet compositePromotionIds) {
+    return myLedger.getHeldValues(locks.keySet(), compositePromotionIds);
   }
 
   private Map<String, CustomResource> matchCustomResources(@NotNull final Map<String, CustomResource> resources,
-                                                           @NotNull final Map<String, Lock> locks) {
+                                                           @NotNull final Map<String, Collection<Lock>> locks) {
     final Map<String, CustomResource> result = new HashMap<>();
-    for (Map.Entry<String, Lock> entry: locks.entrySet()) {
-      final CustomResource r = resources.get(entry.getKey());
+    for (String name: locks.keySet()) {
+      final CustomResource r = resources.get(name);
       if (r != null) {
         result.put(r.getName(), r);
       }
@@ -245,8 +296,9 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   }
 
   @NotNull
-  private Map<Lock, String> initTakenValues(@NotNull final Collection<Lock> myLocks) {
-    return myLocks.stream()
+  private Map<Lock, String> initTakenValues(@NotNull final Map<String, Collection<Lock>> myLocks) {
+    return myLocks.values().stream()
+                  .flatMap(Collection::stream)
                   .collect(Collectors.toMap(Function.identity(), val -> ""));
   }
 }
@@ -69,16 +69,16 @@ public class ResourceUsageAnalyzer {
         for (SharedResourcesFeature feature: features) {
           // for each feature
           //  get locked resources
-          final Map<String, Lock> lockedResources = feature.getLockedResources();
+          final Map<String, Collection<Lock>> lockedResources = feature.getLockedResources();
           //  collect usages of current resource
-          if (!lockedResources.isEmpty() && lockedResources.containsKey(resource.getName())) { // <- for now assume single feature has _single_ lock on resource
+          if (!lockedResources.isEmpty() && lockedResources.containsKey(resource.getName())) {
             List<Lock> storedUsages;
             if (btSettings instanceof SBuildType) {
               storedUsages = buildTypes.computeIfAbsent((SBuildType)btSettings, k -> new ArrayList<>());
             } else {
               storedUsages = templates.computeIfAbsent((BuildTypeTemplate)btSettings, k-> new ArrayList<>());
             }
-            storedUsages.add(lockedResources.get(resource.getName()));
+            storedUsages.addAll(lockedResources.get(resource.getName()));
           }
         }
       }
@@ -106,7 +106,7 @@ public class ResourceUsageAnalyzer {
           }
           if (!currentBtResources.isEmpty()) {
             for (SharedResourcesFeature feature : features) {
-              final Map<String, Lock> lockedResources = feature.getLockedResources();
+              final Map<String, Collection<Lock>> lockedResources = feature.getLockedResources();
               if (!lockedResources.isEmpty()) {
                 for (String resourceName : lockedResources.keySet()) {
                   if (currentBtResources.containsKey(resourceName)) {
@@ -54,19 +54,24 @@ public final class FeatureParamsImpl implements FeatureParams {
   @Override
   public String describeParams(@NotNull final Map<String, String> params) {
     final StringBuilder sb = new StringBuilder();
-    final Map<String, Lock> locks = myLocks.fromFeatureParameters(params);
-    final List<String> readLockNames = new ArrayList<String>();
-    final List<String> writeLockNames = new ArrayList<String>();
-    for (Lock lock : locks.values()) {
-      switch (lock.getType()) {
-        case READ:
-          readLockNames.add(lock.getName());
-          break;
-        case WRITE:
-          writeLockNames.add(lock.getName());
-          break;
+    final Map<String, Collection<Lock>> locks = myLocks.fromFeatureParameters(params);
+    // several locks of the same type on the resource are described once
+    final Set<String> readLocks = new LinkedHashSet<String>();
+    final Set<String> writeLocks = new LinkedHashSet<String>();
+    for (Collection<Lock> resourceLocks : locks.values()) {
+      for (Lock lock : resourceLocks) {
+        switch (lock.getType()) {
+          case READ:
+            readLocks.add(lock.getWeight() != Lock.DEFAULT_WEIGHT ? lock.getName() + " (" + lock.getWeight() + " units)" : lock.getName());
+            break;
+          case WRITE:
+            writeLocks.add(lock.getName());
+            break;
+        }
       }
     }
+    final List<String> readLockNames = new ArrayList<String>(readLocks);
+    final List<String> writeLockNames = new ArrayList<String>(writeLocks);
     Collections.sort(readLockNames, RESOURCE_NAMES_COMPARATOR);
     Collections.sort(writeLockNames, RESOURCE_NAMES_COMPARATOR);
     if (!readLockNames.isEmpty()) {
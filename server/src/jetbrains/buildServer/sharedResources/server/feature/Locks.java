@@ -42,20 +42,20 @@ public interface Locks {
    * Parses build feature descriptor for parameters containing locks
    *
    * @param descriptor build feature descriptor
-   * @return map of locks, taken by the build
+   * @return map of locks, taken by the build. Resource name -> locks on the resource in order of definition
    */
   @NotNull
-  Map<String, Lock> fromFeatureParameters(@NotNull final SBuildFeatureDescriptor descriptor);
+  Map<String, Collection<Lock>> fromFeatureParameters(@NotNull final SBuildFeatureDescriptor descriptor);
 
 
   /**
    * Parses given map of parameters for entries that contain locks
    *
    * @param parameters map of parameters
-   * @return map of locks, taken by the build
+   * @return map of locks, taken by the build. Resource name -> locks on the resource in order of definition
    */
   @NotNull
-  Map<String, Lock> fromFeatureParameters(@NotNull final Map<String, String> parameters);
+  Map<String, Collection<Lock>> fromFeatureParameters(@NotNull final Map<String, String> parameters);
 
   /**
    * Serializes given locks to build feature param
@@ -75,7 +75,8 @@ public interface Locks {
   String asBuildParameter(@NotNull final Lock lock);
 
   /**
-   * Converts given collection of locks to build parameters
+   * Converts given collection of locks to build parameters.
+   * Values of several locks of the same type on the same resource are joined with {@code ;}
    *
    * @param locks locks to convert
    * @return {@code Collection} of build parameters that represent given locks
@@ -84,11 +85,17 @@ public interface Locks {
   Map<String, String> asBuildParameters(@NotNull final Collection<Lock> locks);
 
   /**
-   * Extracts locks from build features
-   * @param features features to extract locks from
-   * @return map of locks defined in build features
+   * Extracts locks from build features.
+   * Locks on the resource are taken from the first feature, that defines them. Locks on the same resource
+   * from features that follow are ignored, they are not merged. Features are expected in the order
+   * they are returned by {@link SharedResourcesFeatures#searchForFeatures}: enforced settings, own features
+   * of the build configuration, features inherited from the template. So enforced locks on the resource
+   * override own locks, and own locks override locks from the template
+   *
+   * @param features features to extract locks from, in order of precedence
+   * @return map of locks defined in build features. Resource name -> locks on the resource
    */
   @NotNull
-  Map<String, Lock> fromBuildFeaturesAsMap(@NotNull final Collection<SharedResourcesFeature> features);
+  Map<String, Collection<Lock>> fromBuildFeaturesAsMap(@NotNull final Collection<SharedResourcesFeature> features);
 
 }
@@ -33,15 +33,20 @@ import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams
  */
 public final class LocksImpl implements Locks {
 
+  /**
+   * Separates weight of the lock from its type in feature parameter, i.e. {@code memory readLock:8}
+   */
+  private static final char WEIGHT_SEPARATOR = ':';
+
   @NotNull
   @Override
-  public Map<String, Lock> fromFeatureParameters(@NotNull final SBuildFeatureDescriptor descriptor) {
+  public Map<String, Collection<Lock>> fromFeatureParameters(@NotNull final SBuildFeatureDescriptor descriptor) {
     return fromFeatureParametersInternal(descriptor.getParameters());
   }
 
   @NotNull
   @Override
-  public Map<String, Lock> fromFeatureParameters(@NotNull final Map<String, String> parameters) {
+  public Map<String, Collection<Lock>> fromFeatureParameters(@NotNull final Map<String, String> parameters) {
     return fromFeatureParametersInternal(parameters);
   }
 
@@ -50,15 +55,16 @@ public final class LocksImpl implements Locks {
   public Map<String, String> asBuildParameters(@NotNull final Collection<Lock> locks) {
     final Map<String, String> buildParams = new HashMap<>();
     for (Lock lock: locks) {
-      buildParams.put(asBuildParameterInternal(lock), lock.getValue());
+      buildParams.merge(asBuildParameterInternal(lock), lock.getValue(), LocksImpl::joinValues);
     }
     return buildParams;
   }
 
   @NotNull
   @Override
-  public Map<String, Lock> fromBuildFeaturesAsMap(@NotNull final Collection<SharedResourcesFeature> features) {
-    final Map<String, Lock> result = new LinkedHashMap<>();       // enforced -> my -> template
+  public Map<String, Collection<Lock>> fromBuildFeaturesAsMap(@NotNull final Collection<SharedResourcesFeature> features) {
+    final Map<String, Collection<Lock>> result = new LinkedHashMap<>();
+    // features come as enforced -> my -> template. All locks on the resource are taken from the first feature, that defines them
     features.stream()
             .flatMap(f -> f.getLockedResources().entrySet().stream())
             .forEach(e -> result.putIfAbsent(e.getKey(), e.getValue()));
@@ -81,7 +87,11 @@ public final class LocksImpl implements Locks {
       final StringBuilder builder = new StringBuilder();
       for (Lock lock: locks) {
         builder.append(lock.getName()).append(" ");
-        builder.append(lock.getType()).append(" ");
+        builder.append(lock.getType());
+        if (lock.getWeight() != Lock.DEFAULT_WEIGHT) {
+          builder.append(WEIGHT_SEPARATOR).append(lock.getWeight());
+        }
+        builder.append(" ");
         builder.append(lock.getValue()).append("\n");
       }
       result = builder.substring(0, builder.length() - 1);
@@ -112,15 +122,26 @@ public final class LocksImpl implements Locks {
   }
 
   @NotNull
-  private Map<String, Lock> fromFeatureParametersInternal(@NotNull final Map<String, String> featureParameters) {
+  private static String joinValues(@NotNull final String first, @NotNull final String second) {
+    if (first.isEmpty()) {
+      return second;
+    }
+    return second.isEmpty() ? first : first + ";" + second;
+  }
+
+  @NotNull
+  private Map<String, Collection<Lock>> fromFeatureParametersInternal(@NotNull final Map<String, String> featureParameters) {
     final String locksString = featureParameters.get(LOCKS_FEATURE_PARAM_KEY);
-    final Map<String, Lock> result = new LinkedHashMap<>();
+    final Map<String, Collection<Lock>> result = new LinkedHashMap<>();
     if (locksString != null && !"".equals(locksString)) {
       final List<String> serializedLocks = StringUtil.split(locksString, true, '\n');
       for (String str: serializedLocks) {
         final Lock lock = getSingleLockFromString(str);
         if (lock != null) {
-          result.put(lock.getName(), lock);
+          final Collection<Lock> resourceLocks = result.computeIfAbsent(lock.getName(), name -> new ArrayList<>(1));
+          if (!resourceLocks.contains(lock)) {
+            resourceLocks.add(lock);
+          }
         }
       }
     }
@@ -143,15 +164,35 @@ public final class LocksImpl implements Locks {
     if (type != null) {
       final String name = str.substring(0, t).trim();
       int m = str.indexOf(' ', t + 1);
+      // only read locks can take several units of quota
+      final int weight = type == LockType.READ ? parseWeight(str.substring(t + type.getName().length(), m > 0 ? m : str.length())) : Lock.DEFAULT_WEIGHT;
       // lock is valid
       if (m > 0) {
         // values
-        result = new Lock(name, type, str.substring(m + 1).trim());
+        result = new Lock(name, type, str.substring(m + 1).trim(), weight);
       } else {
         // no values
-        result = new Lock(name, type);
+        result = new Lock(name, type, "", weight);
       }
     }
     return result;
   }
+
+  /**
+   * Parses optional weight, that follows type of the lock
+   *
+   * @param str part of the lock definition between the type and the value
+   * @return weight of the lock. Default weight, if weight is not specified or is not a positive number
+   */
+  private int parseWeight(@NotNull final String str) {
+    if (str.length() > 1 && str.charAt(0) == WEIGHT_SEPARATOR) {
+      try {
+        final int weight = Integer.parseInt(str.substring(1));
+        if (weight > 0) {
+          return weight;
+        }
+      } catch (NumberFormatException ignored) {}
+    }
+    return Lock.DEFAULT_WEIGHT;
+  }
 }
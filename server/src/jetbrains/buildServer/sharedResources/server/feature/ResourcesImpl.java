@@ -17,13 +17,16 @@
 package jetbrains.buildServer.sharedResources.server.feature;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import jetbrains.buildServer.serverSide.ProjectManager;
-import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeature;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
+import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -39,23 +42,70 @@ public final class ResourcesImpl implements Resources {
   @NotNull
   private final ProjectManager myProjectManager;
 
+  /**
+   * Resolved resources of the project tree. Project id -> resources available in the project
+   */
+  @NotNull
+  private final ConcurrentMap<String, IndexEntry> myIndex = new ConcurrentHashMap<>();
+
+  /**
+   * Number of index invalidations. Used to detect invalidations, that happened while index entry was computed
+   */
+  @NotNull
+  private final AtomicLong myInvalidations = new AtomicLong();
 
-  public ResourcesImpl(@NotNull final ProjectManager projectManager,
+  public ResourcesImpl(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                       @NotNull final ProjectManager projectManager,
                        @NotNull final ResourceProjectFeatures resourceProjectFeatures) {
     myProjectManager = projectManager;
     myFeatures = resourceProjectFeatures;
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void projectPersisted(@NotNull final String projectId) {
+        invalidate(projectId);
+      }
+
+      @Override
+      public void projectRestored(@NotNull final String projectId) {
+        invalidate(projectId);
+      }
+
+      @Override
+      public void projectRemoved(@NotNull final String projectId) {
+        invalidate(projectId);
+      }
+
+      @Override
+      public void projectMoved(@NotNull final SProject project, @NotNull final SProject originalParentProject) {
+        invalidate(project.getProjectId());
+      }
+    });
   }
 
   @NotNull
   @Override
   public Map<String, Resource> getResourcesMap(@NotNull final String projectId) {
+    final long stamp = myFeatures.getModificationStamp();
+    final IndexEntry entry = myIndex.get(projectId);
+    if (entry != null && entry.myStamp == stamp) {
+      return entry.myResources;
+    }
+    final long invalidations = myInvalidations.get();
     final SProject project = myProjectManager.findProjectById(projectId);
-    if (project != null) {
-      return getResources(project).stream()
-                                  .collect(Collectors.toMap(Resource::getName, Function.identity()));
-    } else {
+    if (project == null) {
       return Collections.emptyMap();
     }
+    final List<SProject> path = project.getProjectPath();
+    final IndexEntry newEntry = new IndexEntry(stamp,
+                                               path.stream().map(SProject::getProjectId).collect(Collectors.toSet()),
+                                               Collections.unmodifiableMap(getResources(path).stream()
+                                                                                              .collect(Collectors.toMap(Resource::getName, Function.identity()))));
+    myIndex.put(projectId, newEntry);
+    if (invalidations != myInvalidations.get()) {
+      // project tree has changed while we were resolving resources
+      myIndex.remove(projectId, newEntry);
+    }
+    return newEntry.myResources;
   }
 
   @NotNull
@@ -94,9 +144,13 @@ public final class ResourcesImpl implements Resources {
   @NotNull
   @Override
   public List<Resource> getResources(@NotNull final SProject project) {
+    return getResources(project.getProjectPath());
+  }
+
+  @NotNull
+  private List<Resource> getResources(@NotNull final List<SProject> path) {
     final Set<String> names = new HashSet<>();
     final Set<Resource> result = new HashSet<>();
-    final List<SProject> path = project.getProjectPath();
     final ListIterator<SProject> it = path.listIterator(path.size());
     while (it.hasPrevious()) {
       final Set<Resource> filtered = getOwnResources(it.previous()).stream()
@@ -112,4 +166,36 @@ public final class ResourcesImpl implements Resources {
   public int getCount(@NotNull final SProject project) {
     return getResources(project).size();
   }
+
+  /**
+   * Drops resolved resources of all projects, that have given project in their project path
+   *
+   * @param projectId id of the changed project
+   */
+  private void invalidate(@NotNull final String projectId) {
+    myInvalidations.incrementAndGet();
+    myIndex.values().removeIf(entry -> entry.myPathProjectIds.contains(projectId));
+  }
+
+  private static final class IndexEntry {
+
+    /**
+     * Modification stamp of resource project features at the moment of resolution
+     */
+    private final long myStamp;
+
+    @NotNull
+    private final Set<String> myPathProjectIds;
+
+    @NotNull
+    private final Map<String, Resource> myResources;
+
+    IndexEntry(final long stamp,
+               @NotNull final Set<String> pathProjectIds,
+               @NotNull final Map<String, Resource> resources) {
+      myStamp = stamp;
+      myPathProjectIds = pathProjectIds;
+      myResources = resources;
+    }
+  }
 }
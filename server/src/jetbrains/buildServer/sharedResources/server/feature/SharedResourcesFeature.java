@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.sharedResources.server.feature;
 
+import java.util.Collection;
 import java.util.Map;
 import jetbrains.buildServer.serverSide.BuildTypeSettings;
 import jetbrains.buildServer.sharedResources.model.Lock;
@@ -31,10 +32,10 @@ public interface SharedResourcesFeature {
   /**
    * Gets locked resources from current build feature
    *
-   * @return map of locked resources. Map format is {@code <LockName, Lock>}
+   * @return map of locked resources. Map format is {@code <LockName, Locks on the resource>}
    */
   @NotNull
-  Map<String, Lock> getLockedResources();
+  Map<String, Collection<Lock>> getLockedResources();
 
   /**
    * Updates lock inside build feature
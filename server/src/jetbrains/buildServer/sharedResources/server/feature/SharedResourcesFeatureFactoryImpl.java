@@ -16,9 +16,22 @@
 
 package jetbrains.buildServer.sharedResources.server.feature;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
 import org.jetbrains.annotations.NotNull;
 
+import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LOCKS_FEATURE_PARAM_KEY;
+
 /**
  * Created with IntelliJ IDEA.
  *
@@ -29,13 +42,57 @@ public final class SharedResourcesFeatureFactoryImpl implements SharedResourcesF
   @NotNull
   private final Locks myLocks;
 
-  public SharedResourcesFeatureFactoryImpl(@NotNull final Locks locks) {
+  /**
+   * Compiled locks of build features. Serialized locks -> unmodifiable map of locks on resources.
+   *
+   * Keyed by the contents of feature parameter, so any change of the settings
+   * (build type, template, or project being reloaded from disk) results in a different key.
+   * No invalidation is needed, stale entries are evicted by size
+   */
+  @NotNull
+  private final Cache<String, Map<String, Collection<Lock>>> myCompiledLocks = CacheBuilder.newBuilder()
+                                                                              .maximumSize(10000)
+                                                                              .recordStats()
+                                                                              .build();
+
+  public SharedResourcesFeatureFactoryImpl(@NotNull final Locks locks,
+                                           @NotNull final SharedResourcesMetrics metrics) {
     myLocks = locks;
+    metrics.registerCache("compiledLocks", this::getCompiledLocksStats);
   }
 
   @NotNull
   @Override
   public SharedResourcesFeature createFeature(@NotNull final SBuildFeatureDescriptor descriptor) {
-    return new SharedResourcesFeatureImpl(myLocks, descriptor);
+    return new SharedResourcesFeatureImpl(myLocks, descriptor, getCompiledLocks(descriptor));
+  }
+
+  /**
+   * Returns statistics of compiled locks cache
+   *
+   * @return hit/miss statistics of compiled locks cache
+   */
+  @NotNull
+  public CacheStats getCompiledLocksStats() {
+    return myCompiledLocks.stats();
+  }
+
+  @NotNull
+  private Map<String, Collection<Lock>> getCompiledLocks(@NotNull final SBuildFeatureDescriptor descriptor) {
+    final String serializedLocks = descriptor.getParameters().get(LOCKS_FEATURE_PARAM_KEY);
+    try {
+      return myCompiledLocks.get(serializedLocks == null ? "" : serializedLocks,
+                                 () -> compile(myLocks.fromFeatureParameters(descriptor)));
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  @NotNull
+  private static Map<String, Collection<Lock>> compile(@NotNull final Map<String, Collection<Lock>> locks) {
+    // compiled locks are shared by features with the same settings and must not be modified
+    final Map<String, Collection<Lock>> result = new LinkedHashMap<>(locks.size());
+    locks.forEach((name, resourceLocks) -> result.put(name, Collections.unmodifiableList(new ArrayList<>(resourceLocks))));
+    return Collections.unmodifiableMap(result);
   }
 }
@@ -16,13 +16,11 @@
 
 package jetbrains.buildServer.sharedResources.server.feature;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.stream.Collectors;
 import jetbrains.buildServer.serverSide.BuildTypeSettings;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
 import jetbrains.buildServer.sharedResources.model.Lock;
-import jetbrains.buildServer.sharedResources.model.LockType;
 import org.jetbrains.annotations.NotNull;
 
 import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LOCKS_FEATURE_PARAM_KEY;
@@ -40,21 +38,24 @@ public final class SharedResourcesFeatureImpl implements SharedResourcesFeature
   @NotNull
   private final SBuildFeatureDescriptor myDescriptor;
 
+  /**
+   * Compiled locks of the feature. Unmodifiable, may be shared between features with the same settings
+   */
   @NotNull
-  private final Map<String, Lock> myLockedResources;
-
+  private Map<String, Collection<Lock>> myLockedResources;
 
   SharedResourcesFeatureImpl(@NotNull final Locks locks,
-                             @NotNull final SBuildFeatureDescriptor descriptor) {
+                             @NotNull final SBuildFeatureDescriptor descriptor,
+                             @NotNull final Map<String, Collection<Lock>> lockedResources) {
     myLocks = locks;
     myDescriptor = descriptor;
-    myLockedResources = myLocks.fromFeatureParameters(myDescriptor);
+    myLockedResources = lockedResources;
   }
 
   @NotNull
   @Override
-  public Map<String, Lock> getLockedResources() {
-    return Collections.unmodifiableMap(myLockedResources);
+  public Map<String, Collection<Lock>> getLockedResources() {
+    return myLockedResources;
   }
 
   @Override
@@ -62,16 +63,20 @@ public final class SharedResourcesFeatureImpl implements SharedResourcesFeature
                             @NotNull final String oldName,
                             @NotNull final String newName) {
     boolean result = false;
-    final Lock lock = myLockedResources.remove(oldName);
-    if (lock != null) {
-      // save its type
+    // compiled locks are shared, update the copy
+    final Map<String, Collection<Lock>> lockedResources = new LinkedHashMap<>(myLockedResources);
+    final Collection<Lock> locks = lockedResources.remove(oldName);
+    if (locks != null) {
       result = true;
-      final LockType lockType = lock.getType();
-      final String lockValue = lock.getValue();
-      // add lock with new resource name and saved type
-      myLockedResources.put(newName, new Lock(newName, lockType, lockValue));
+      // add locks with new resource name and saved types, values and weights
+      final List<Lock> renamed = new ArrayList<>(locks.size());
+      locks.forEach(lock -> renamed.add(new Lock(newName, lock.getType(), lock.getValue(), lock.getWeight())));
+      lockedResources.put(newName, Collections.unmodifiableList(renamed));
+      myLockedResources = Collections.unmodifiableMap(lockedResources);
       // serialize locks
-      final String locksAsString = myLocks.asFeatureParameter(myLockedResources.values());
+      final String locksAsString = myLocks.asFeatureParameter(lockedResources.values().stream()
+                                                                             .flatMap(Collection::stream)
+                                                                             .collect(Collectors.toList()));
       // update build feature parameters
       final Map<String, String> newParams = new HashMap<>(myDescriptor.getParameters());
       newParams.put(LOCKS_FEATURE_PARAM_KEY, locksAsString);
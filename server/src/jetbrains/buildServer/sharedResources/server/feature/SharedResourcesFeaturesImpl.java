@@ -2,10 +2,15 @@ package jetbrains.buildServer.sharedResources.server.feature;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import jetbrains.buildServer.serverSide.BuildTypeSettings;
-import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import static jetbrains.buildServer.sharedResources.server.SharedResourcesBuildFeature.FEATURE_TYPE;
 
@@ -19,14 +24,120 @@ public final class SharedResourcesFeaturesImpl implements SharedResourcesFeature
   @NotNull
   private final SharedResourcesFeatureFactory myFactory;
 
+  /**
+   * Build types, that were checked for enabled shared resources features. Build type internal id -> has enabled features.
+   * Build types without features skip the search with a single lookup.
+   * Only live build types, registered in the project manager, are tracked. Settings of the build type,
+   * that are used by a particular build, can differ from the live ones.
+   * {@code null} if build types are not tracked
+   */
+  @Nullable
+  private final ConcurrentMap<String, Boolean> myFeaturedBuildTypes;
+
+  @Nullable
+  private final ProjectManager myProjectManager;
+
+  /**
+   * Number of invalidations. Used to detect invalidations, that happened while build type was checked
+   */
+  @NotNull
+  private final AtomicLong myInvalidations = new AtomicLong();
+
   public SharedResourcesFeaturesImpl(@NotNull final SharedResourcesFeatureFactory factory) {
     myFactory = factory;
+    myFeaturedBuildTypes = null;
+    myProjectManager = null;
+  }
+
+  public SharedResourcesFeaturesImpl(@NotNull final SharedResourcesFeatureFactory factory,
+                                     @NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                                     @NotNull final ProjectManager projectManager) {
+    myFactory = factory;
+    myFeaturedBuildTypes = new ConcurrentHashMap<>();
+    myProjectManager = projectManager;
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildTypeRegistered(@NotNull final SBuildType buildType) {
+        invalidate(buildType);
+      }
+
+      @Override
+      public void buildTypeUnregistered(@NotNull final SBuildType buildType) {
+        invalidate(buildType);
+      }
+
+      @Override
+      public void buildTypePersisted(@NotNull final SBuildType buildType) {
+        invalidate(buildType);
+      }
+
+      @Override
+      public void buildTypeMoved(@NotNull final SBuildType buildType, @NotNull final SProject original) {
+        invalidate(buildType);
+      }
+
+      @Override
+      public void buildTypeTemplatePersisted(@NotNull final BuildTypeTemplate buildTemplate) {
+        // features can be inherited from the template by any number of build types
+        invalidateAll();
+      }
+
+      @Override
+      public void projectPersisted(@NotNull final String projectId) {
+        invalidateAll();
+      }
+
+      @Override
+      public void projectRestored(@NotNull final String projectId) {
+        invalidateAll();
+      }
+
+      @Override
+      public void projectRemoved(@NotNull final String projectId) {
+        invalidateAll();
+      }
+    });
   }
 
   @NotNull
   @Override
   public Collection<SharedResourcesFeature> searchForFeatures(@NotNull final BuildTypeSettings settings) {
-    return createFeatures(getEnabledUnresolvedFeatureDescriptors(settings));
+    if (myFeaturedBuildTypes == null || !(settings instanceof SBuildType) || !isLive((SBuildType)settings)) {
+      return createFeatures(getEnabledUnresolvedFeatureDescriptors(settings));
+    }
+    final String buildTypeId = ((SBuildType)settings).getInternalId();
+    final Boolean featured = myFeaturedBuildTypes.get(buildTypeId);
+    if (Boolean.FALSE.equals(featured)) {
+      return Collections.emptyList();
+    }
+    final long invalidations = myInvalidations.get();
+    final Collection<SBuildFeatureDescriptor> descriptors = getEnabledUnresolvedFeatureDescriptors(settings);
+    if (featured == null) {
+      final Boolean value = !descriptors.isEmpty();
+      myFeaturedBuildTypes.put(buildTypeId, value);
+      if (invalidations != myInvalidations.get()) {
+        // settings have changed while we were looking for features
+        myFeaturedBuildTypes.remove(buildTypeId, value);
+      }
+    }
+    return createFeatures(descriptors);
+  }
+
+  private boolean isLive(@NotNull final SBuildType buildType) {
+    //noinspection ConstantConditions
+    return myProjectManager.findBuildTypeById(buildType.getInternalId()) == buildType;
+  }
+
+  private void invalidate(@NotNull final SBuildType buildType) {
+    myInvalidations.incrementAndGet();
+    //noinspection ConstantConditions
+    myFeaturedBuildTypes.remove(buildType.getInternalId());
+  }
+
+  private void invalidateAll() {
+    myInvalidations.incrementAndGet();
+    //noinspection ConstantConditions
+    myFeaturedBuildTypes.clear();
   }
 
   @NotNull
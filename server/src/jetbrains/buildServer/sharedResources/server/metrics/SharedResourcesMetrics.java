@@ -0,0 +1,320 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.metrics;
+
+import com.google.common.cache.CacheStats;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Class {@code SharedResourcesMetrics}
+ *
+ * Collects latencies and call counts of build distribution hot path,
+ * hit ratios of internal caches and number of times queued builds were blocked by each resource
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class SharedResourcesMetrics {
+
+  public enum Operation {
+    FILTER_AGENTS("filterAgents"),
+    COLLECT_RUNNING_LOCKS("collectRunningLocks"),
+    ADD_DISTRIBUTED_LOCKS("addDistributedLocks"),
+    GET_UNAVAILABLE_LOCKS("getUnavailableLocks"),
+    UPDATE_PARAMETERS("updateParameters"),
+    LOCKS_STORAGE_LOAD("locksStorage.load"),
+    LOCKS_STORAGE_STORE("locksStorage.store"),
+    LOCKS_STORAGE_RECOVERY("locksStorage.recovery"),
+    BATCH_ADMISSION("batchAdmission");
+
+    @NotNull
+    private final String myName;
+
+    Operation(@NotNull final String name) {
+      myName = name;
+    }
+
+    @NotNull
+    public String getName() {
+      return myName;
+    }
+  }
+
+  @NotNull
+  private final Map<Operation, LatencyHistogram> myLatencies = new EnumMap<>(Operation.class);
+
+  /**
+   * Resource id -> number of times queued builds were blocked by the resource
+   */
+  @NotNull
+  private final ConcurrentMap<String, BlockedBuilds> myBlockedBuilds = new ConcurrentHashMap<>();
+
+  /**
+   * Cache name -> statistics of the cache
+   */
+  @NotNull
+  private final Map<String, Supplier<CacheStats>> myCaches = new ConcurrentHashMap<>();
+
+  /**
+   * Lookups of taken locks in locks storage
+   */
+  @NotNull
+  private final StorageLoads myLocksStorageLoads = new StorageLoads();
+
+  public SharedResourcesMetrics() {
+    for (Operation operation: Operation.values()) {
+      myLatencies.put(operation, new LatencyHistogram());
+    }
+  }
+
+  /**
+   * Records latency of the operation
+   *
+   * @param operation operation to record latency for
+   * @param startNanos {@code System.nanoTime()} taken at the start of operation
+   */
+  public void record(@NotNull final Operation operation, final long startNanos) {
+    myLatencies.get(operation).add(System.nanoTime() - startNanos);
+  }
+
+  public void buildBlocked(@NotNull final Collection<Resource> resources) {
+    resources.forEach(r -> myBlockedBuilds.computeIfAbsent(r.getId(), id -> new BlockedBuilds(r.getProjectId(), r.getName())).myCount.increment());
+  }
+
+  public void registerCache(@NotNull final String name, @NotNull final Supplier<CacheStats> stats) {
+    myCaches.put(name, stats);
+  }
+
+  @NotNull
+  public LatencyHistogram getLatency(@NotNull final Operation operation) {
+    return myLatencies.get(operation);
+  }
+
+  @NotNull
+  public StorageLoads getLocksStorageLoads() {
+    return myLocksStorageLoads;
+  }
+
+  @NotNull
+  public Map<String, CacheStats> getCacheStats() {
+    final Map<String, CacheStats> result = new TreeMap<>();
+    myCaches.forEach((name, stats) -> result.put(name, stats.get()));
+    return result;
+  }
+
+  /**
+   * @return {@code projectId/resourceName} -> number of times queued builds were blocked by the resource
+   */
+  @NotNull
+  public Map<String, Long> getBlockedBuilds() {
+    final Map<String, Long> result = new TreeMap<>();
+    myBlockedBuilds.values().forEach(b -> result.merge(b.getDisplayName(), b.myCount.sum(), Long::sum));
+    return result;
+  }
+
+  /**
+   * Renders all collected metrics as plain text
+   *
+   * @return plain text report
+   */
+  @NotNull
+  public String getReport() {
+    final StringBuilder builder = new StringBuilder();
+    builder.append("# latencies, microseconds\n");
+    for (Operation operation: Operation.values()) {
+      final LatencyHistogram h = myLatencies.get(operation);
+      builder.append(operation.getName())
+             .append(" count=").append(h.getCount())
+             .append(" mean=").append(TimeUnit.NANOSECONDS.toMicros(h.getMeanNanos()))
+             .append(" max=").append(TimeUnit.NANOSECONDS.toMicros(h.getMaxNanos()));
+      final long[] counts = h.getBucketCounts();
+      for (int i = 0; i < counts.length; i++) {
+        builder.append(" le_").append(i < LatencyHistogram.BOUNDS_MICROS.length ? String.valueOf(LatencyHistogram.BOUNDS_MICROS[i]) : "inf")
+               .append('=').append(counts[i]);
+      }
+      builder.append('\n');
+    }
+    builder.append("# caches\n");
+    getCacheStats().forEach((name, stats) -> builder.append(name)
+                                                    .append(" requests=").append(stats.requestCount())
+                                                    .append(" hitRate=").append(String.format(Locale.US, "%.4f", stats.hitRate()))
+                                                    .append(" hits=").append(stats.hitCount())
+                                                    .append(" misses=").append(stats.missCount())
+                                                    .append(" loads=").append(stats.loadCount())
+                                                    .append(" meanLoadMicros=").append(TimeUnit.NANOSECONDS.toMicros((long)stats.averageLoadPenalty()))
+                                                    .append(" evictions=").append(stats.evictionCount())
+                                                    .append('\n'));
+    builder.append("# locks storage\n")
+           .append("hits=").append(myLocksStorageLoads.getHits())
+           .append(" misses=").append(myLocksStorageLoads.getMisses())
+           .append(" loadFailures=").append(myLocksStorageLoads.getLoadFailures())
+           .append(" meanLoadMicros=").append(TimeUnit.NANOSECONDS.toMicros(myLocksStorageLoads.getMeanLoadNanos()))
+           .append('\n');
+    builder.append("# blocked builds by resource\n");
+    getBlockedBuilds().forEach((name, count) -> builder.append(name).append(' ').append(count).append('\n'));
+    return builder.toString();
+  }
+
+  /**
+   * Latency histogram with fixed exponential buckets
+   */
+  public static final class LatencyHistogram {
+
+    /**
+     * Upper bounds of the buckets. Last bucket is unbounded
+     */
+    static final long[] BOUNDS_MICROS = {10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000, 500000, 1000000};
+
+    @NotNull
+    private final LongAdder[] myBuckets = new LongAdder[BOUNDS_MICROS.length + 1];
+
+    @NotNull
+    private final LongAdder myCount = new LongAdder();
+
+    @NotNull
+    private final LongAdder myTotalNanos = new LongAdder();
+
+    @NotNull
+    private final LongAccumulator myMaxNanos = new LongAccumulator(Long::max, 0);
+
+    private LatencyHistogram() {
+      for (int i = 0; i < myBuckets.length; i++) {
+        myBuckets[i] = new LongAdder();
+      }
+    }
+
+    private void add(final long nanos) {
+      final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+      int bucket = 0;
+      while (bucket < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[bucket]) {
+        bucket++;
+      }
+      myBuckets[bucket].increment();
+      myCount.increment();
+      myTotalNanos.add(nanos);
+      myMaxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+      return myCount.sum();
+    }
+
+    public long getMeanNanos() {
+      final long count = myCount.sum();
+      return count == 0 ? 0 : myTotalNanos.sum() / count;
+    }
+
+    public long getMaxNanos() {
+      return myMaxNanos.get();
+    }
+
+    @NotNull
+    public long[] getBucketCounts() {
+      final long[] result = new long[myBuckets.length];
+      for (int i = 0; i < myBuckets.length; i++) {
+        result[i] = myBuckets[i].sum();
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Counters of lookups in a storage, that is backed by persistence.
+   * Hits are served from memory, misses are loaded from persistence
+   */
+  public static final class StorageLoads {
+
+    @NotNull
+    private final LongAdder myHits = new LongAdder();
+
+    @NotNull
+    private final LongAdder myMisses = new LongAdder();
+
+    @NotNull
+    private final LongAdder myLoadFailures = new LongAdder();
+
+    @NotNull
+    private final LongAdder myLoadNanos = new LongAdder();
+
+    private StorageLoads() {
+    }
+
+    public void hit() {
+      myHits.increment();
+    }
+
+    public void loaded(final long startNanos) {
+      myMisses.increment();
+      myLoadNanos.add(System.nanoTime() - startNanos);
+    }
+
+    public void loadFailed(final long startNanos) {
+      myLoadFailures.increment();
+      loaded(startNanos);
+    }
+
+    public long getHits() {
+      return myHits.sum();
+    }
+
+    public long getMisses() {
+      return myMisses.sum();
+    }
+
+    public long getLoadFailures() {
+      return myLoadFailures.sum();
+    }
+
+    public long getLoadNanos() {
+      return myLoadNanos.sum();
+    }
+
+    public long getMeanLoadNanos() {
+      final long misses = myMisses.sum();
+      return misses == 0 ? 0 : myLoadNanos.sum() / misses;
+    }
+  }
+
+  private static final class BlockedBuilds {
+
+    @NotNull
+    private final String myProjectId;
+
+    @NotNull
+    private final String myName;
+
+    @NotNull
+    private final LongAdder myCount = new LongAdder();
+
+    private BlockedBuilds(@NotNull final String projectId, @NotNull final String name) {
+      myProjectId = projectId;
+      myName = name;
+    }
+
+    @NotNull
+    private String getDisplayName() {
+      return myProjectId + "/" + myName;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.metrics;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Registers {@link SharedResourcesMetrics} in platform MBean server
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class SharedResourcesMetricsJmx implements SharedResourcesMetricsMXBean {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(SharedResourcesMetricsJmx.class.getName());
+
+  @NotNull
+  static final String OBJECT_NAME = "jetbrains.buildServer.sharedResources:type=Metrics";
+
+  @NotNull
+  private final SharedResourcesMetrics myMetrics;
+
+  public SharedResourcesMetricsJmx(@NotNull final SharedResourcesMetrics metrics,
+                                   @NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    myMetrics = metrics;
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        // plugin was reloaded
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+      dispatcher.addListener(new BuildServerAdapter() {
+        @Override
+        public void serverShutdown() {
+          try {
+            server.unregisterMBean(name);
+          } catch (JMException e) {
+            LOG.warn("Failed to unregister shared resources metrics MBean: " + e.getMessage());
+          }
+        }
+      });
+    } catch (JMException e) {
+      LOG.warn("Failed to register shared resources metrics MBean: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public Map<String, Long> getCallCounts() {
+    return collect(SharedResourcesMetrics.LatencyHistogram::getCount);
+  }
+
+  @Override
+  public Map<String, Long> getMeanLatenciesMicros() {
+    return collect(h -> TimeUnit.NANOSECONDS.toMicros(h.getMeanNanos()));
+  }
+
+  @Override
+  public Map<String, Long> getMaxLatenciesMicros() {
+    return collect(h -> TimeUnit.NANOSECONDS.toMicros(h.getMaxNanos()));
+  }
+
+  @Override
+  public Map<String, Double> getCacheHitRates() {
+    final Map<String, Double> result = new TreeMap<>();
+    myMetrics.getCacheStats().forEach((name, stats) -> result.put(name, stats.hitRate()));
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getCacheHitCounts() {
+    final Map<String, Long> result = new TreeMap<>();
+    myMetrics.getCacheStats().forEach((name, stats) -> result.put(name, stats.hitCount()));
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getCacheMissCounts() {
+    final Map<String, Long> result = new TreeMap<>();
+    myMetrics.getCacheStats().forEach((name, stats) -> result.put(name, stats.missCount()));
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getCacheMeanLoadMicros() {
+    final Map<String, Long> result = new TreeMap<>();
+    myMetrics.getCacheStats().forEach((name, stats) -> result.put(name, TimeUnit.NANOSECONDS.toMicros((long)stats.averageLoadPenalty())));
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getLocksStorageLoads() {
+    final SharedResourcesMetrics.StorageLoads loads = myMetrics.getLocksStorageLoads();
+    final Map<String, Long> result = new LinkedHashMap<>();
+    result.put("hits", loads.getHits());
+    result.put("misses", loads.getMisses());
+    result.put("loadFailures", loads.getLoadFailures());
+    result.put("totalLoadMicros", TimeUnit.NANOSECONDS.toMicros(loads.getLoadNanos()));
+    result.put("meanLoadMicros", TimeUnit.NANOSECONDS.toMicros(loads.getMeanLoadNanos()));
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getBlockedBuilds() {
+    return myMetrics.getBlockedBuilds();
+  }
+
+  @Override
+  public String getReport() {
+    return myMetrics.getReport();
+  }
+
+  @NotNull
+  private Map<String, Long> collect(@NotNull final ToLongFunction<SharedResourcesMetrics.LatencyHistogram> value) {
+    final Map<String, Long> result = new LinkedHashMap<>();
+    for (SharedResourcesMetrics.Operation operation: SharedResourcesMetrics.Operation.values()) {
+      result.put(operation.getName(), value.applyAsLong(myMetrics.getLatency(operation)));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link SharedResourcesMetrics}
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public interface SharedResourcesMetricsMXBean {
+
+  /**
+   * @return operation name -> number of calls
+   */
+  Map<String, Long> getCallCounts();
+
+  /**
+   * @return operation name -> mean latency in microseconds
+   */
+  Map<String, Long> getMeanLatenciesMicros();
+
+  /**
+   * @return operation name -> max latency in microseconds
+   */
+  Map<String, Long> getMaxLatenciesMicros();
+
+  /**
+   * @return cache name -> hit rate
+   */
+  Map<String, Double> getCacheHitRates();
+
+  /**
+   * @return cache name -> number of hits
+   */
+  Map<String, Long> getCacheHitCounts();
+
+  /**
+   * @return cache name -> number of misses
+   */
+  Map<String, Long> getCacheMissCounts();
+
+  /**
+   * @return cache name -> mean time of loading an entry in microseconds
+   */
+  Map<String, Long> getCacheMeanLoadMicros();
+
+  /**
+   * @return counter name -> value of the counter for lookups of taken locks in locks storage:
+   * {@code hits}, {@code misses}, {@code loadFailures}, {@code totalLoadMicros}, {@code meanLoadMicros}
+   */
+  Map<String, Long> getLocksStorageLoads();
+
+  /**
+   * @return {@code projectId/resourceName} -> number of times queued builds were blocked by the resource
+   */
+  Map<String, Long> getBlockedBuilds();
+
+  /**
+   * @return all metrics as plain text
+   */
+  String getReport();
+}
@@ -42,4 +42,11 @@ public interface ResourceProjectFeatures {
 
   @Nullable
   SProjectFeatureDescriptor removeFeature(@NotNull final SProject project, @NotNull final String id);
+
+  /**
+   * Returns modification stamp, that changes every time a resource is added, updated or removed
+   *
+   * @return current modification stamp
+   */
+  long getModificationStamp();
 }
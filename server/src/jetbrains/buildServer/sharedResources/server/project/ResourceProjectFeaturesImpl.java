@@ -19,6 +19,7 @@ package jetbrains.buildServer.sharedResources.server.project;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
@@ -34,10 +35,17 @@ import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstan
  */
 public class ResourceProjectFeaturesImpl implements ResourceProjectFeatures {
 
+  @NotNull
+  private final AtomicLong myModificationStamp = new AtomicLong();
+
   @Override
   public SProjectFeatureDescriptor addFeature(@NotNull final SProject project,
                          @NotNull final Map<String, String> featureParameters) {
-    return project.addFeature(FEATURE_TYPE, featureParameters);
+    try {
+      return project.addFeature(FEATURE_TYPE, featureParameters);
+    } finally {
+      myModificationStamp.incrementAndGet();
+    }
   }
 
   @Override
@@ -46,6 +54,7 @@ public class ResourceProjectFeaturesImpl implements ResourceProjectFeatures {
     final SProjectFeatureDescriptor descriptor = getFeatureById(project, id);
     if (descriptor != null) {
       project.removeFeature(descriptor.getId());
+      myModificationStamp.incrementAndGet();
     }
     return descriptor;
   }
@@ -56,9 +65,15 @@ public class ResourceProjectFeaturesImpl implements ResourceProjectFeatures {
     final SProjectFeatureDescriptor descriptor = getFeatureById(project, id);
     if (descriptor != null) {
       project.updateFeature(id, FEATURE_TYPE, featureParameters);
+      myModificationStamp.incrementAndGet();
     }
   }
 
+  @Override
+  public long getModificationStamp() {
+    return myModificationStamp.get();
+  }
+
   @NotNull
   @Override
   public List<ResourceProjectFeature> getOwnFeatures(@NotNull final SProject project) {
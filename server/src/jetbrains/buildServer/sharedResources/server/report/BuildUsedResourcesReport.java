@@ -32,6 +32,7 @@ import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.runtime.ArtifactsWriteBehind;
 import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
 
@@ -50,8 +51,13 @@ public class BuildUsedResourcesReport {
   @NotNull
   private final UsedResourcesSerializer mySerializer;
 
-  public BuildUsedResourcesReport(@NotNull final UsedResourcesSerializer serializer) {
+  @NotNull
+  private final ArtifactsWriteBehind myWriteBehind;
+
+  public BuildUsedResourcesReport(@NotNull final UsedResourcesSerializer serializer,
+                                  @NotNull final ArtifactsWriteBehind writeBehind) {
     mySerializer = serializer;
+    myWriteBehind = writeBehind;
   }
 
   public void save(@NotNull final BuildPromotionEx promo,
@@ -67,6 +73,10 @@ public class BuildUsedResourcesReport {
         LOG.warn("Resource with name " + lock.getName() + " was not found for used resources report for build promotion with id " + promo.getId());
       }
     });
+    myWriteBehind.submit(promo.getId(), "usedResources", () -> write(promo, usedResources));
+  }
+
+  private void write(@NotNull final BuildPromotionEx promo, @NotNull final List<UsedResource> usedResources) {
     final File artifact = new File(promo.getArtifactsDirectory(), ARTIFACT_PATH);
     try {
       if (FileUtil.createParentDirs(artifact)) {
@@ -80,6 +90,7 @@ public class BuildUsedResourcesReport {
   }
 
   public List<UsedResource> load(@NotNull final SBuild build) {
+    myWriteBehind.flush(build.getBuildPromotion().getId());
     final File artifact = new File(build.getArtifactsDirectory(), ARTIFACT_PATH);
     if (artifact.isFile()) {
       try (FileReader reader = new FileReader(artifact)) {
@@ -92,6 +103,7 @@ public class BuildUsedResourcesReport {
   }
 
   public boolean exists(@NotNull final SBuild build) {
+    myWriteBehind.flush(build.getBuildPromotion().getId());
     return new File(build.getArtifactsDirectory(), ARTIFACT_PATH).isFile();
   }
 }
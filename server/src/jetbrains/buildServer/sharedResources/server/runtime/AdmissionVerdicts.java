@@ -0,0 +1,259 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongObjectHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Verdicts for the queued builds, computed in a single pass over the queue at the start of the distribution cycle.
+ *
+ * Pass assumes, that every admitted build is distributed. Verdict of the build is valid only if the state of the cycle
+ * at the moment of the check is the same as the state the verdict was computed against:
+ * the same builds holding locks were distributed, and the same writers were waiting for the resources.
+ *
+ * Builds of the chains, which composite builds hold or request locks, are not checked by the pass.
+ * Distribution of such build does not invalidate the verdicts, unless the build requests locks itself.
+ *
+ * Distributed builds are accounted for incrementally: only the builds, checked since the previous lookup,
+ * can be distributed since then. All distributed builds are walked only if their number does not match.
+ *
+ * Belongs to a single distribution cycle and is not thread safe
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class AdmissionVerdicts {
+
+  /**
+   * Promotion id -> verdict
+   */
+  @NotNull
+  private final TLongObjectHashMap<Verdict> myVerdicts = new TLongObjectHashMap<>();
+
+  /**
+   * Promotion ids of the builds, that request locks
+   */
+  @NotNull
+  private final TLongHashSet myBuildsWithLocks = new TLongHashSet();
+
+  /**
+   * Promotion id of admitted build, that requests locks -> order of admission
+   */
+  @NotNull
+  private final TLongIntHashMap myAdmitted = new TLongIntHashMap();
+
+  /**
+   * Promotion ids of the builds, that were not checked by the pass and do not request locks
+   */
+  @NotNull
+  private final TLongHashSet mySkippedWithoutLocks = new TLongHashSet();
+
+  /**
+   * Builds, checked since the previous lookup. Only they can be distributed since then
+   */
+  @NotNull
+  private final List<QueuedBuildInfo> myChecked = new ArrayList<>();
+
+  /**
+   * Promotion ids of the distributed builds, accounted for
+   */
+  @NotNull
+  private final TLongHashSet myDistributed = new TLongHashSet();
+
+  /**
+   * Number of accounted distributed builds, that request locks
+   */
+  private int myDistributedWithLocks = 0;
+
+  /**
+   * Greatest order of admission among accounted distributed builds
+   */
+  private int myLastDistributedAdmitted = -1;
+
+  /**
+   * Whether all accounted distributed builds were admitted by the pass or do not change taken locks
+   */
+  private boolean myDistributedAdmitted = true;
+
+  /**
+   * Records verdict of the build. Should be called in queue order
+   *
+   * @param promotion promotion of the build
+   * @param holdsLocks whether the build requests locks
+   * @param waitersBefore waiting writers before the build was checked
+   * @param waitersAfter waiting writers after the build was checked
+   * @param reason wait reason, {@code null} if the build is admitted
+   * @param affinity values of custom resources, assigned to admitted build
+   */
+  public void add(@NotNull final BuildPromotion promotion,
+                  final boolean holdsLocks,
+                  @NotNull final Set<WaiterQueues.Waiter> waitersBefore,
+                  @NotNull final Set<WaiterQueues.Waiter> waitersAfter,
+                  @Nullable final WaitReason reason,
+                  @NotNull final Map<String, String> affinity) {
+    final long id = promotion.getId();
+    myVerdicts.put(id, new Verdict(myAdmitted.size(), waitersBefore, waitersAfter, reason, affinity));
+    if (holdsLocks) {
+      myBuildsWithLocks.add(id);
+      if (reason == null) {
+        myAdmitted.put(id, myAdmitted.size());
+      }
+    }
+  }
+
+  /**
+   * Records the build, that was not checked by the pass
+   *
+   * @param promotion promotion of the build
+   * @param holdsLocks whether the build requests locks
+   */
+  public void skip(@NotNull final BuildPromotion promotion, final boolean holdsLocks) {
+    if (!holdsLocks) {
+      mySkippedWithoutLocks.add(promotion.getId());
+    }
+  }
+
+  public int size() {
+    return myVerdicts.size();
+  }
+
+  /**
+   * Remembers the build, checked during the cycle. Should be called for every checked build,
+   * so that distributed builds are accounted for without walking all of them
+   *
+   * @param build checked build
+   */
+  public void checked(@NotNull final QueuedBuildInfo build) {
+    myChecked.add(build);
+  }
+
+  /**
+   * Returns verdict of the build, if it was computed against the current state of the cycle.
+   * Distributed builds are walked only if they do not match the builds, passed to {@link #checked(QueuedBuildInfo)}
+   *
+   * @param promotion promotion of the build
+   * @param distributedBuilds builds, distributed during the cycle
+   * @param waiterQueues writers, currently waiting for the resources
+   * @return verdict of the build, {@code null} if the build has to be checked separately
+   */
+  @Nullable
+  public Verdict lookup(@NotNull final BuildPromotion promotion,
+                        @NotNull final Map<QueuedBuildInfo, ?> distributedBuilds,
+                        @NotNull final WaiterQueues waiterQueues) {
+    updateDistributed(distributedBuilds);
+    final Verdict verdict = myVerdicts.get(promotion.getId());
+    if (verdict == null || !myDistributedAdmitted) {
+      return null;
+    }
+    if (!waiterQueues.contentEquals(verdict.myWaitersBefore)) {
+      return null;
+    }
+    // distributed builds with locks are exactly the builds, admitted before the current one
+    return myDistributedWithLocks == verdict.myAdmittedBefore && myLastDistributedAdmitted < verdict.myAdmittedBefore ? verdict : null;
+  }
+
+  private void updateDistributed(@NotNull final Map<QueuedBuildInfo, ?> distributedBuilds) {
+    for (QueuedBuildInfo build : myChecked) {
+      if (distributedBuilds.containsKey(build)) {
+        addDistributed(build.getBuildPromotionInfo().getId());
+      }
+    }
+    myChecked.clear();
+    if (myDistributed.size() != distributedBuilds.size()) {
+      // some builds are not distributed anymore, or were not checked through this instance. Start over
+      myDistributed.clear();
+      myDistributedWithLocks = 0;
+      myLastDistributedAdmitted = -1;
+      myDistributedAdmitted = true;
+      distributedBuilds.keySet().forEach(build -> addDistributed(build.getBuildPromotionInfo().getId()));
+    }
+  }
+
+  private void addDistributed(final long id) {
+    if (!myDistributed.add(id)) {
+      return;
+    }
+    if (!myVerdicts.containsKey(id)) {
+      // build, that was not a part of the pass, does not change taken locks only if it does not request locks
+      myDistributedAdmitted &= mySkippedWithoutLocks.contains(id);
+    } else if (myBuildsWithLocks.contains(id)) {
+      if (myAdmitted.containsKey(id)) {
+        myDistributedWithLocks++;
+        myLastDistributedAdmitted = Math.max(myLastDistributedAdmitted, myAdmitted.get(id));
+      } else {
+        myDistributedAdmitted = false;
+      }
+    }
+  }
+
+  public static final class Verdict {
+
+    /**
+     * Number of admitted builds with locks before the build
+     */
+    private final int myAdmittedBefore;
+
+    @NotNull
+    private final Set<WaiterQueues.Waiter> myWaitersBefore;
+
+    @NotNull
+    private final Set<WaiterQueues.Waiter> myWaitersAfter;
+
+    @Nullable
+    private final WaitReason myReason;
+
+    @NotNull
+    private final Map<String, String> myAffinity;
+
+    private Verdict(final int admittedBefore,
+                    @NotNull final Set<WaiterQueues.Waiter> waitersBefore,
+                    @NotNull final Set<WaiterQueues.Waiter> waitersAfter,
+                    @Nullable final WaitReason reason,
+                    @NotNull final Map<String, String> affinity) {
+      myAdmittedBefore = admittedBefore;
+      myWaitersBefore = waitersBefore;
+      myWaitersAfter = waitersAfter;
+      myReason = reason;
+      myAffinity = affinity;
+    }
+
+    @NotNull
+    public Set<WaiterQueues.Waiter> getWaitersAfter() {
+      return myWaitersAfter;
+    }
+
+    @Nullable
+    public WaitReason getReason() {
+      return myReason;
+    }
+
+    @NotNull
+    public Map<String, String> getAffinity() {
+      return myAffinity;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TLongHashSet;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Class {@code ArtifactLocksPersistence}
+ *
+ * Stores taken locks as a text file inside hidden artifacts of the build
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class ArtifactLocksPersistence implements LocksPersistence {
+
+  @NotNull
+  private static final String FILE_NAME = "taken_locks.txt";
+
+  @NotNull
+  static final String FILE_PATH = SharedResourcesPluginConstants.BASE_ARTIFACT_PATH + "/" + FILE_NAME; // package visibility for tests
+
+  @NotNull
+  private static final Logger log = Logger.getInstance(ArtifactLocksPersistence.class.getName());
+
+  @NotNull
+  private static final String MY_ENCODING = "UTF-8";
+
+  @Override
+  public boolean write(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Collection<Lock>> locks) {
+    final Collection<String> serializedStrings = new ArrayList<>();
+    for (Collection<Lock> resourceLocks: locks.values()) {
+      for (Lock lock: resourceLocks) {
+        serializedStrings.add(serializeTakenLock(lock));
+      }
+    }
+    try {
+      final File artifact = new File(buildPromotion.getArtifactsDirectory(), FILE_PATH);
+      if (FileUtil.createParentDirs(artifact)) {
+        FileUtil.writeFile(artifact, StringUtil.join(serializedStrings, "\n"), MY_ENCODING);
+        return true;
+      } else {
+        log.warn("Failed to create parent dirs for file with taken locks for build {" + buildPromotion + "}");
+      }
+    } catch (IOException e) {
+      log.warn("Failed to store taken locks for build [" + buildPromotion + "]; Message is: " + e.getMessage());
+    }
+    return false;
+  }
+
+  @Nullable
+  @Override
+  public Map<String, Collection<Lock>> read(@NotNull final BuildPromotion buildPromotion) {
+    final File artifact = new File(buildPromotion.getArtifactsDirectory(), FILE_PATH);
+    if (!artifact.exists()) {
+      return null;
+    }
+    final Map<String, Collection<Lock>> result = new HashMap<>();
+    try {
+      final String content = FileUtil.readText(artifact, MY_ENCODING);
+      final String[] lines = content.split("\\r?\\n");
+      for (String line: lines) {
+        final Lock lock = deserializeTakenLock(line);
+        if (lock != null) {
+          result.computeIfAbsent(lock.getName(), name -> new ArrayList<>(1)).add(lock);
+        } else {
+          if (log.isDebugEnabled()) {
+            log.debug("Wrong locks storage format in file {" + artifact.getAbsolutePath() + "} line: {" + line + "}");
+          }
+        }
+      }
+    } catch(IOException e) {
+      log.warn("Failed to load taken locks for build [" + buildPromotion + "]; Message is: " + e.getMessage());
+    }
+    return result;
+  }
+
+  /**
+   * Artifacts are kept with the build. Nothing to release
+   */
+  @Override
+  public void release(@NotNull final BuildPromotion buildPromotion) {
+  }
+
+  @Override
+  public void retainOnly(@NotNull final TLongHashSet runningPromotionIds) {
+    // artifacts are removed together with the build
+  }
+
+  @NotNull
+  private String serializeTakenLock(@NotNull final Lock lock) {
+    final String value = lock.getValue();
+    final String result = StringUtil.join("\t", lock.getName(), lock.getType(), value.equals("") ? " " : value);
+    // weight is written only if it differs from the default one, so that locks stay readable by previous versions
+    return lock.getWeight() != Lock.DEFAULT_WEIGHT ? result + "\t" + lock.getWeight() : result;
+  }
+
+  @Nullable
+  private Lock deserializeTakenLock(@NotNull final String line) {
+    final List<String> strings = StringUtil.split(line, true, '\t'); // we need empty values for locks without values
+    Lock result = null;
+    if (strings.size() == 3 || strings.size() == 4) {
+      String value =  StringUtil.trim(strings.get(2));
+      if (value == null) {
+        value = "";
+      }
+      int weight = Lock.DEFAULT_WEIGHT;
+      if (strings.size() == 4) {
+        try {
+          weight = Integer.parseInt(strings.get(3).trim());
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      }
+      result = new Lock(strings.get(0), LockType.byName(strings.get(1)), value, weight);
+    }
+    return result;
+  }
+}
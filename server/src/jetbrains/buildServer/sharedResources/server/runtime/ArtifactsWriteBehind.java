@@ -0,0 +1,172 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Class {@code ArtifactsWriteBehind}
+ *
+ * Writes build artifacts of the plugin in background, so that build start does not wait for artifacts storage.
+ *
+ * Writes are grouped by build promotion. Pending write of the same kind for the same promotion
+ * is replaced by the later one. Writes of one promotion are performed in the order they were submitted.
+ * Pending writes are flushed when the build finishes and on server shutdown.
+ * When the queue is full, writes are performed in the calling thread
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class ArtifactsWriteBehind {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(ArtifactsWriteBehind.class.getName());
+
+  @NotNull
+  static final String THREADS_COUNT = "teamcity.sharedResources.artifactsWriter.threads";
+
+  @NotNull
+  static final String QUEUE_SIZE = "teamcity.sharedResources.artifactsWriter.queueSize";
+
+  @NotNull
+  static final String SHUTDOWN_TIMEOUT_SECONDS = "teamcity.sharedResources.artifactsWriter.shutdownTimeout.seconds";
+
+  /**
+   * Promotion id -> writes, that are not performed yet
+   */
+  @NotNull
+  private final ConcurrentMap<Long, PendingWrites> myPending = new ConcurrentHashMap<>();
+
+  @NotNull
+  private final ThreadPoolExecutor myExecutor;
+
+  public ArtifactsWriteBehind(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    final int threads = TeamCityProperties.getInteger(THREADS_COUNT, 2);
+    myExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                        new ArrayBlockingQueue<>(TeamCityProperties.getInteger(QUEUE_SIZE, 1000)),
+                                        new NamedThreadFactory("Shared resources artifacts writer"),
+                                        (task, executor) -> task.run());
+    myExecutor.allowCoreThreadTimeOut(true);
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildFinished(@NotNull final SRunningBuild build) {
+        flush(build.getBuildPromotion().getId());
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull final SRunningBuild build) {
+        flush(build.getBuildPromotion().getId());
+      }
+
+      @Override
+      public void serverShutdown() {
+        shutdown();
+      }
+    });
+  }
+
+  /**
+   * Schedules write of the artifact
+   *
+   * @param promotionId id of the build promotion, artifact belongs to
+   * @param kind kind of the artifact. Pending write of the same kind for the same promotion is replaced
+   * @param write write to perform
+   */
+  public void submit(final long promotionId, @NotNull final String kind, @NotNull final Runnable write) {
+    final PendingWrites pending = myPending.computeIfAbsent(promotionId, id -> new PendingWrites());
+    if (pending.add(kind, write)) {
+      myExecutor.execute(pending::run);
+    }
+  }
+
+  /**
+   * Performs pending writes of the promotion in the calling thread
+   *
+   * @param promotionId id of the build promotion
+   */
+  public void flush(final long promotionId) {
+    final PendingWrites pending = myPending.remove(promotionId);
+    if (pending != null) {
+      pending.run();
+    }
+  }
+
+  private void shutdown() {
+    new ArrayList<>(myPending.keySet()).forEach(this::flush);
+    myExecutor.shutdown();
+    try {
+      if (!myExecutor.awaitTermination(TeamCityProperties.getInteger(SHUTDOWN_TIMEOUT_SECONDS, 30), TimeUnit.SECONDS)) {
+        LOG.warn("Shared resources artifacts writer did not finish in time");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static final class PendingWrites {
+
+    /**
+     * Kind -> write. Guarded by this
+     */
+    @NotNull
+    private final Map<String, Runnable> myWrites = new LinkedHashMap<>();
+
+    /**
+     * Keeps writes of the promotion ordered, when several threads perform them
+     */
+    @NotNull
+    private final Object myRunLock = new Object();
+
+    /**
+     * @return {@code true} if there were no pending writes, and the writes must be scheduled
+     */
+    private synchronized boolean add(@NotNull final String kind, @NotNull final Runnable write) {
+      final boolean wasEmpty = myWrites.isEmpty();
+      myWrites.put(kind, write);
+      return wasEmpty;
+    }
+
+    private void run() {
+      synchronized (myRunLock) {
+        final List<Runnable> writes;
+        synchronized (this) {
+          writes = new ArrayList<>(myWrites.values());
+          myWrites.clear();
+        }
+        for (Runnable write: writes) {
+          try {
+            write.run();
+          } catch (RuntimeException e) {
+            LOG.warnAndDebugDetails("Failed to write shared resources artifact", e);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.*;
+import java.util.function.Function;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Resolved locks of a composite build chain, shared by all queued members of the chain
+ * during one distribution cycle. Not thread safe
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class CompositeChainLocks {
+
+  /**
+   * Locks taken by running composite builds of the chain. Resource -> {promotion -> locks}
+   */
+  @NotNull
+  private final Map<Resource, Map<BuildPromotionEx, Collection<Lock>>> myChainLocks = new HashMap<>();
+
+  /**
+   * Resources of the projects of chain nodes. Project id -> {name -> resource}
+   */
+  @NotNull
+  private final Map<String, Map<String, Resource>> myChainResources = new HashMap<>();
+
+  /**
+   * Queued composite builds of the chain, that request locks
+   */
+  @NotNull
+  private final List<QueuedNode> myQueuedNodes = new ArrayList<>();
+
+  /**
+   * Wait reason of the queued composite builds of the chain, computed against the state of the cycle,
+   * identified by {@link #myVerdictTakenLocksVersion}, {@link #myVerdictWaitersVersion} and {@link #myVerdictAffinityVersion}
+   */
+  @Nullable
+  private WaitReason myVerdict = null;
+
+  private int myVerdictTakenLocksVersion = -1;
+
+  private int myVerdictWaitersVersion = -1;
+
+  private int myVerdictAffinityVersion = -1;
+
+  @NotNull
+  public Map<Resource, Map<BuildPromotionEx, Collection<Lock>>> getChainLocks() {
+    return myChainLocks;
+  }
+
+  @NotNull
+  public Map<String, Resource> getResources(@NotNull final String projectId,
+                                            @NotNull final Function<String, Map<String, Resource>> resourcesProvider) {
+    return myChainResources.computeIfAbsent(projectId, resourcesProvider);
+  }
+
+  public void addQueuedNode(@NotNull final BuildPromotion promotion,
+                            @NotNull final String projectId,
+                            @NotNull final Map<String, Collection<Lock>> locksToTake) {
+    myQueuedNodes.add(new QueuedNode(promotion, projectId, locksToTake));
+  }
+
+  /**
+   * @return {@code true} if running composite builds of the chain hold locks, or queued ones request them
+   */
+  public boolean holdsOrRequestsLocks() {
+    return !myChainLocks.isEmpty() || !myQueuedNodes.isEmpty();
+  }
+
+  @NotNull
+  public List<QueuedNode> getQueuedNodes() {
+    return myQueuedNodes;
+  }
+
+  public boolean hasVerdict(final int takenLocksVersion, final int waitersVersion, final int affinityVersion) {
+    return myVerdictTakenLocksVersion == takenLocksVersion
+           && myVerdictWaitersVersion == waitersVersion
+           && myVerdictAffinityVersion == affinityVersion;
+  }
+
+  @Nullable
+  public WaitReason getVerdict() {
+    return myVerdict;
+  }
+
+  public void setVerdict(@Nullable final WaitReason verdict,
+                         final int takenLocksVersion,
+                         final int waitersVersion,
+                         final int affinityVersion) {
+    myVerdict = verdict;
+    myVerdictTakenLocksVersion = takenLocksVersion;
+    myVerdictWaitersVersion = waitersVersion;
+    myVerdictAffinityVersion = affinityVersion;
+  }
+
+  public static class QueuedNode {
+
+    @NotNull
+    private final BuildPromotion myPromotion;
+
+    @NotNull
+    private final String myProjectId;
+
+    @NotNull
+    private final Map<String, Collection<Lock>> myLocksToTake;
+
+    QueuedNode(@NotNull final BuildPromotion promotion,
+               @NotNull final String projectId,
+               @NotNull final Map<String, Collection<Lock>> locksToTake) {
+      myPromotion = promotion;
+      myProjectId = projectId;
+      myLocksToTake = locksToTake;
+    }
+
+    @NotNull
+    public BuildPromotion getPromotion() {
+      return myPromotion;
+    }
+
+    @NotNull
+    public String getProjectId() {
+      return myProjectId;
+    }
+
+    @NotNull
+    public Map<String, Collection<Lock>> getLocksToTake() {
+      return myLocksToTake;
+    }
+  }
+}
@@ -16,11 +16,18 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
-import java.util.Set;
+import gnu.trove.TLongHashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterContext;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.DistributionData;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class DistributionDataAccessor {
 
@@ -29,6 +36,15 @@ public class DistributionDataAccessor {
 
   private DistributionData myData;
 
+  /**
+   * Creates accessor for standalone distribution data, that is not shared through the context
+   *
+   * @param data distribution data
+   */
+  public DistributionDataAccessor(@NotNull final DistributionData data) {
+    myData = data;
+  }
+
   public DistributionDataAccessor(@NotNull AgentsFilterContext context) {
     myData = (DistributionData)context.getCustomData(DISTRIBUTION_DATA_KEY);
     if (myData == null) {
@@ -37,11 +53,75 @@ public class DistributionDataAccessor {
     }
   }
 
-  public Set<String> getFairSet() {
-    return myData.getFairSet();
+  @NotNull
+  public WaiterQueues getWaiterQueues() {
+    return myData.getWaiterQueues();
   }
 
   public ResourceAffinity getResourceAffinity() {
     return myData.getResourceAffinity();
   }
+
+  /**
+   * Returns a copy of the locks taken by running builds.
+   * Locks of running builds are collected once per distribution cycle
+   *
+   * @param collector collector of the locks, called if the locks were not collected during the current cycle
+   * @return copy of the locks taken by running builds, that can be changed by the caller
+   */
+  @NotNull
+  public Map<Resource, TakenLock> copyRunningLocks(@NotNull final Supplier<Map<Resource, TakenLock>> collector) {
+    Map<Resource, TakenLock> runningLocks = myData.getRunningLocks();
+    if (runningLocks == null) {
+      runningLocks = collector.get();
+      myData.setRunningLocks(runningLocks);
+    }
+    final Map<Resource, TakenLock> result = new HashMap<>(runningLocks.size());
+    runningLocks.forEach((resource, takenLock) -> result.put(resource, takenLock.copy()));
+    return result;
+  }
+
+  @Nullable
+  public Map<Resource, TakenLock> getTakenLocks() {
+    return myData.getTakenLocks();
+  }
+
+  public void setTakenLocks(@Nullable final Map<Resource, TakenLock> takenLocks) {
+    myData.setTakenLocks(takenLocks);
+  }
+
+  @NotNull
+  public TLongHashSet getAppliedDistributedBuilds() {
+    return myData.getAppliedDistributedBuilds();
+  }
+
+  public void takenLocksUpdated() {
+    myData.takenLocksUpdated();
+  }
+
+  public int getTakenLocksVersion() {
+    return myData.getTakenLocksVersion();
+  }
+
+  /**
+   * Returns locks of the composite build chain, resolved once per distribution cycle
+   *
+   * @param chainKey sorted ids of composite promotions of the chain
+   * @param resolver resolver of the chain locks, called if the chain was not resolved during the current cycle
+   * @return resolved chain locks
+   */
+  @NotNull
+  public CompositeChainLocks getCompositeChainLocks(@NotNull final List<Long> chainKey,
+                                                    @NotNull final Supplier<CompositeChainLocks> resolver) {
+    return myData.getCompositeChains().computeIfAbsent(chainKey, k -> resolver.get());
+  }
+
+  @Nullable
+  public AdmissionVerdicts getAdmissionVerdicts() {
+    return myData.getAdmissionVerdicts();
+  }
+
+  public void setAdmissionVerdicts(@Nullable final AdmissionVerdicts admissionVerdicts) {
+    myData.setAdmissionVerdicts(admissionVerdicts);
+  }
 }
@@ -0,0 +1,538 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TLongHashSet;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Class {@code JournalLocksPersistence}
+ *
+ * Appends taken locks of all running builds to a single server-local binary journal.
+ *
+ * Journal starts with a header and consists of length-prefixed records:
+ * <ul>
+ *   <li>string record: interned id, string. Names and values of locks are written once and then referenced by id</li>
+ *   <li>locks record: promotion id, number of locks, (name id, type, value id) for each lock</li>
+ *   <li>weighted locks record: same as locks record with weight following each lock.
+ *   Written only if some of the locks has weight, different from the default one</li>
+ *   <li>release record: promotion id of the finished build</li>
+ * </ul>
+ * Weighted locks records were introduced in version 2 of the journal. Journals of version 1 are read as is,
+ * previous versions of the plugin do not read journals of version 2 and recreate them.
+ *
+ * Records are replayed on startup, torn tail left by a crash is truncated.
+ * Once locks of running builds are recovered on startup, locks of the builds, that finished
+ * while the server was down, are dropped and the journal is compacted to the locks of running builds.
+ * Journal is compacted again as soon as it contains too many records of finished builds.
+ *
+ * Journal is written synchronously, as it is local to the server and must survive server crash.
+ * Taken locks can optionally be exported to build artifacts as well. Export is performed in background.
+ * Locks of builds that are not in the journal (i.e. started before the journal was introduced)
+ * are read from artifacts
+ *
+ * If the journal can not be written, locks are written to artifacts only
+ * and the journal is reopened not earlier than after the retry interval
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class JournalLocksPersistence implements LocksPersistence {
+
+  @NotNull
+  private static final Logger log = Logger.getInstance(JournalLocksPersistence.class.getName());
+
+  @NotNull
+  static final String JOURNAL_FILE_NAME = "taken_locks.journal";
+
+  /**
+   * Enables export of taken locks to build artifacts
+   */
+  @NotNull
+  static final String ARTIFACT_EXPORT_ENABLED = "teamcity.sharedResources.locksJournal.artifactExport.enabled";
+
+  /**
+   * Minimum number of records in the journal to consider compaction
+   */
+  @NotNull
+  static final String COMPACTION_THRESHOLD = "teamcity.sharedResources.locksJournal.compactionThreshold";
+
+  /**
+   * Interval between attempts to reopen the journal, that could not be written
+   */
+  @NotNull
+  static final String RETRY_INTERVAL = "teamcity.sharedResources.locksJournal.retryInterval.seconds";
+
+  private static final int MAGIC = 0x53524a4c; // SRJL
+
+  private static final byte VERSION = 2;
+
+  /**
+   * Version of the journals without weighted locks records
+   */
+  private static final byte VERSION_UNWEIGHTED = 1;
+
+  private static final byte RECORD_STRING = 1;
+
+  private static final byte RECORD_LOCKS = 2;
+
+  private static final byte RECORD_RELEASE = 3;
+
+  private static final byte RECORD_WEIGHTED_LOCKS = 4;
+
+  private static final int HEADER_SIZE = 5;
+
+  @NotNull
+  private final File myJournalFile;
+
+  @NotNull
+  private final LocksPersistence myArtifacts;
+
+  @NotNull
+  private final ArtifactsWriteBehind myWriteBehind;
+
+  /**
+   * Interned strings. String -> id. Guarded by this
+   */
+  @NotNull
+  private final Map<String, Integer> myStringIds = new HashMap<>();
+
+  /**
+   * Interned strings. Id -> string. Guarded by this
+   */
+  @NotNull
+  private final List<String> myStrings = new ArrayList<>();
+
+  /**
+   * Locks of builds that are not released yet. Promotion id -> lock name -> locks. Guarded by this
+   */
+  @NotNull
+  private final TLongObjectMap<Map<String, Collection<Lock>>> myLiveLocks = new TLongObjectHashMap<>();
+
+  @Nullable
+  private DataOutputStream myOut;
+
+  /**
+   * Number of locks and release records in the journal
+   */
+  private int myRecordsCount;
+
+  private boolean myClosed;
+
+  /**
+   * Whether the journal was replayed. Once replayed, live locks are kept in memory
+   * and the journal is reopened by rewriting them
+   */
+  private boolean myReplayed;
+
+  /**
+   * Whether the journal is unavailable because of an error. Error is reported once until the journal is reopened
+   */
+  private boolean myFailed;
+
+  /**
+   * Time, before which no attempts to reopen the failed journal are made
+   */
+  private long myRetryAt;
+
+  public JournalLocksPersistence(@NotNull final ServerPaths serverPaths,
+                                 @NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                                 @NotNull final ArtifactsWriteBehind writeBehind) {
+    this(new File(new File(serverPaths.getPluginDataDirectory(), SharedResourcesPluginConstants.PLUGIN_NAME), JOURNAL_FILE_NAME),
+         new ArtifactLocksPersistence(), writeBehind);
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        close();
+      }
+    });
+  }
+
+  JournalLocksPersistence(@NotNull final File journalFile,
+                          @NotNull final LocksPersistence artifacts,
+                          @NotNull final ArtifactsWriteBehind writeBehind) {
+    myJournalFile = journalFile;
+    myArtifacts = artifacts;
+    myWriteBehind = writeBehind;
+  }
+
+  @Override
+  public boolean write(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Collection<Lock>> locks) {
+    final long promotionId = buildPromotion.getId();
+    final boolean result;
+    synchronized (this) {
+      result = append(bytes -> writeLocksRecord(bytes, promotionId, locks, myStringIds, myStrings));
+      if (result) {
+        myLiveLocks.put(promotionId, Collections.unmodifiableMap(new HashMap<>(locks)));
+        myRecordsCount++;
+      }
+    }
+    if (!result) {
+      // locks, that could not be written to the journal, are still read from artifacts
+      return myArtifacts.write(buildPromotion, locks);
+    }
+    if (TeamCityProperties.getBooleanOrTrue(ARTIFACT_EXPORT_ENABLED)) {
+      myWriteBehind.submit(promotionId, "takenLocks", () -> myArtifacts.write(buildPromotion, locks));
+    }
+    return true;
+  }
+
+  @Nullable
+  @Override
+  public Map<String, Collection<Lock>> read(@NotNull final BuildPromotion buildPromotion) {
+    synchronized (this) {
+      ensureOpen();
+      final Map<String, Collection<Lock>> result = myLiveLocks.get(buildPromotion.getId());
+      if (result != null) {
+        return result;
+      }
+    }
+    return myArtifacts.read(buildPromotion);
+  }
+
+  @Override
+  public synchronized void release(@NotNull final BuildPromotion buildPromotion) {
+    final long promotionId = buildPromotion.getId();
+    ensureOpen();
+    if (!myLiveLocks.containsKey(promotionId)) {
+      return;
+    }
+    final boolean appended = append(bytes -> writeRecord(bytes, out -> {
+      out.writeByte(RECORD_RELEASE);
+      out.writeLong(promotionId);
+    }));
+    // journal, that could not be appended, is rewritten from live locks when it is reopened
+    myLiveLocks.remove(promotionId);
+    if (appended) {
+      myRecordsCount++;
+      if (myRecordsCount >= TeamCityProperties.getInteger(COMPACTION_THRESHOLD, 10000) && myRecordsCount > 2 * myLiveLocks.size()) {
+        compact();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void retainOnly(@NotNull final TLongHashSet runningPromotionIds) {
+    ensureOpen();
+    final int liveCount = myLiveLocks.size();
+    myLiveLocks.retainEntries((promotionId, locks) -> runningPromotionIds.contains(promotionId));
+    if (myLiveLocks.size() != liveCount) {
+      log.info("Dropped taken locks of " + (liveCount - myLiveLocks.size()) + " builds, that are not running anymore, from the journal");
+      if (myOut != null) {
+        compact();
+      }
+    }
+  }
+
+  synchronized void close() {
+    myClosed = true;
+    closeOutput();
+  }
+
+  /**
+   * Serializes records into buffer and appends them to the journal in a single write,
+   * so that records of one call are either all written or form a torn tail
+   */
+  private boolean append(@NotNull final RecordsWriter writer) {
+    ensureOpen();
+    if (myOut == null) {
+      return false;
+    }
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    final int stringsCount = myStrings.size();
+    try {
+      writer.write(new DataOutputStream(buffer));
+      buffer.writeTo(myOut);
+      myOut.flush();
+      return true;
+    } catch (IOException e) {
+      failed("Failed to append to taken locks journal {" + myJournalFile.getAbsolutePath() + "}; Message is: " + e.getMessage());
+      // strings interned by the failed call may not be in the journal
+      for (int i = myStrings.size() - 1; i >= stringsCount; i--) {
+        myStringIds.remove(myStrings.remove(i));
+      }
+      closeOutput();
+      return false;
+    }
+  }
+
+  private static void writeRecord(@NotNull final DataOutputStream out, @NotNull final RecordsWriter writer) throws IOException {
+    final ByteArrayOutputStream record = new ByteArrayOutputStream(32);
+    writer.write(new DataOutputStream(record));
+    out.writeInt(record.size());
+    record.writeTo(out);
+  }
+
+  /**
+   * Replays the journal on first access and opens it for appending.
+   * Journal is rewritten right after replay, which drops records of released builds
+   * as well as incomplete records at the end of the journal.
+   * Failed journal is rewritten from live locks, once the retry interval passes
+   */
+  private void ensureOpen() {
+    if (myOut != null || myClosed || (myFailed && System.currentTimeMillis() < myRetryAt)) {
+      return;
+    }
+    if (!myReplayed) {
+      myStrings.clear();
+      myStringIds.clear();
+      myLiveLocks.clear();
+      if (myJournalFile.exists() && !replay()) {
+        myStrings.clear();
+        myStringIds.clear();
+        myLiveLocks.clear();
+      }
+      myReplayed = true;
+    }
+    compact();
+    if (myOut != null && myFailed) {
+      log.info("Taken locks journal {" + myJournalFile.getAbsolutePath() + "} is available again");
+      myFailed = false;
+    }
+  }
+
+  /**
+   * Makes the journal unavailable until the retry interval passes.
+   * Only the first error is reported as a warning until the journal is reopened
+   */
+  private void failed(@NotNull final String message) {
+    if (myFailed) {
+      log.debug(message);
+    } else {
+      log.warn(message + ". Taken locks are written to build artifacts until the journal is available again");
+      myFailed = true;
+    }
+    myRetryAt = System.currentTimeMillis() + TeamCityProperties.getInteger(RETRY_INTERVAL, 60) * 1000L;
+  }
+
+  private boolean replay() {
+    final long start = System.currentTimeMillis();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(myJournalFile)))) {
+      final int magic = in.readInt();
+      final byte version = in.readByte();
+      if (magic != MAGIC || (version != VERSION && version != VERSION_UNWEIGHTED)) {
+        log.warn("Unknown format of taken locks journal {" + myJournalFile.getAbsolutePath() + "}. Journal will be recreated");
+        return false;
+      }
+      final long length = myJournalFile.length();
+      long position = HEADER_SIZE;
+      while (position + 4 <= length) {
+        final int size = in.readInt();
+        if (size <= 0 || position + 4 + size > length) {
+          break;
+        }
+        final byte[] record = new byte[size];
+        in.readFully(record);
+        if (!replayRecord(new DataInputStream(new ByteArrayInputStream(record)))) {
+          break;
+        }
+        position += 4 + size;
+      }
+      if (position < length) {
+        log.warn("Taken locks journal {" + myJournalFile.getAbsolutePath() + "} has " + (length - position) + " bytes of incomplete records at the end. They are ignored");
+      }
+      log.info("Replayed taken locks journal in " + (System.currentTimeMillis() - start) + " ms. Running builds with locks: " + myLiveLocks.size());
+      return true;
+    } catch (IOException e) {
+      log.warn("Failed to read taken locks journal {" + myJournalFile.getAbsolutePath() + "}; Message is: " + e.getMessage());
+      return false;
+    }
+  }
+
+  private boolean replayRecord(@NotNull final DataInputStream in) throws IOException {
+    final byte recordType = in.readByte();
+    switch (recordType) {
+      case RECORD_STRING: {
+        final int id = in.readInt();
+        final String str = in.readUTF();
+        if (id != myStrings.size()) {
+          return false;
+        }
+        myStrings.add(str);
+        myStringIds.put(str, id);
+        return true;
+      }
+      case RECORD_LOCKS:
+      case RECORD_WEIGHTED_LOCKS: {
+        final boolean weighted = recordType == RECORD_WEIGHTED_LOCKS;
+        final long promotionId = in.readLong();
+        final int count = in.readInt();
+        final Map<String, Collection<Lock>> locks = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+          final int nameId = in.readInt();
+          final LockType type = in.readByte() == 1 ? LockType.WRITE : LockType.READ;
+          final int valueId = in.readInt();
+          final int weight = weighted ? in.readInt() : Lock.DEFAULT_WEIGHT;
+          if (nameId >= myStrings.size() || valueId >= myStrings.size()) {
+            return false;
+          }
+          final String name = myStrings.get(nameId);
+          locks.computeIfAbsent(name, k -> new ArrayList<>(1)).add(new Lock(name, type, myStrings.get(valueId), weight));
+        }
+        myLiveLocks.put(promotionId, Collections.unmodifiableMap(locks));
+        return true;
+      }
+      case RECORD_RELEASE: {
+        myLiveLocks.remove(in.readLong());
+        return true;
+      }
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Rewrites the journal with locks of unreleased builds only and reopens it for appending
+   */
+  private void compact() {
+    closeOutput();
+    final Map<String, Integer> stringIds = new HashMap<>();
+    final List<String> strings = new ArrayList<>();
+    final File tmp = new File(myJournalFile.getParentFile(), myJournalFile.getName() + ".tmp");
+    try {
+      if (!FileUtil.createParentDirs(tmp)) {
+        throw new IOException("Failed to create directory " + tmp.getParentFile().getAbsolutePath());
+      }
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        final IOException[] error = new IOException[1];
+        myLiveLocks.forEachEntry((promotionId, locks) -> {
+          try {
+            writeLocksRecord(out, promotionId, locks, stringIds, strings);
+            return true;
+          } catch (IOException e) {
+            error[0] = e;
+            return false;
+          }
+        });
+        if (error[0] != null) {
+          throw error[0];
+        }
+      }
+      Files.move(tmp.toPath(), myJournalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      myStringIds.clear();
+      myStringIds.putAll(stringIds);
+      myStrings.clear();
+      myStrings.addAll(strings);
+      myRecordsCount = myLiveLocks.size();
+      openOutput();
+    } catch (IOException e) {
+      failed("Failed to compact taken locks journal {" + myJournalFile.getAbsolutePath() + "}; Message is: " + e.getMessage());
+      FileUtil.delete(tmp);
+    }
+  }
+
+  private static void writeLocksRecord(@NotNull final DataOutputStream out,
+                                       final long promotionId,
+                                       @NotNull final Map<String, Collection<Lock>> locks,
+                                       @NotNull final Map<String, Integer> stringIds,
+                                       @NotNull final List<String> strings) throws IOException {
+    // several locks on the same resource are written as separate entries of the record
+    int count = 0;
+    for (Collection<Lock> resourceLocks: locks.values()) {
+      count += resourceLocks.size();
+    }
+    final int[] ids = new int[count * 2];
+    // locks without weights are written in the shorter format
+    boolean weighted = false;
+    int i = 0;
+    for (Collection<Lock> resourceLocks: locks.values()) {
+      for (Lock lock: resourceLocks) {
+        ids[i++] = intern(lock.getName(), stringIds, strings, out);
+        ids[i++] = intern(lock.getValue(), stringIds, strings, out);
+        weighted |= lock.getWeight() != Lock.DEFAULT_WEIGHT;
+      }
+    }
+    final int locksCount = count;
+    final boolean writeWeights = weighted;
+    writeRecord(out, o -> {
+      o.writeByte(writeWeights ? RECORD_WEIGHTED_LOCKS : RECORD_LOCKS);
+      o.writeLong(promotionId);
+      o.writeInt(locksCount);
+      int j = 0;
+      for (Collection<Lock> resourceLocks: locks.values()) {
+        for (Lock lock: resourceLocks) {
+          o.writeInt(ids[j++]);
+          o.writeByte(lock.getType() == LockType.WRITE ? 1 : 0);
+          o.writeInt(ids[j++]);
+          if (writeWeights) {
+            o.writeInt(lock.getWeight());
+          }
+        }
+      }
+    });
+  }
+
+  private static int intern(@NotNull final String str,
+                            @NotNull final Map<String, Integer> stringIds,
+                            @NotNull final List<String> strings,
+                            @NotNull final DataOutputStream out) throws IOException {
+    Integer id = stringIds.get(str);
+    if (id == null) {
+      id = strings.size();
+      strings.add(str);
+      stringIds.put(str, id);
+      final int newId = id;
+      writeRecord(out, o -> {
+        o.writeByte(RECORD_STRING);
+        o.writeInt(newId);
+        o.writeUTF(str);
+      });
+    }
+    return id;
+  }
+
+  private void openOutput() {
+    try {
+      myOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myJournalFile, true)));
+    } catch (IOException e) {
+      failed("Failed to open taken locks journal {" + myJournalFile.getAbsolutePath() + "}; Message is: " + e.getMessage());
+      myOut = null;
+    }
+  }
+
+  private void closeOutput() {
+    if (myOut != null) {
+      try {
+        myOut.close();
+      } catch (IOException e) {
+        log.warn("Failed to close taken locks journal {" + myJournalFile.getAbsolutePath() + "}; Message is: " + e.getMessage());
+      }
+      myOut = null;
+    }
+  }
+
+  @FunctionalInterface
+  private interface RecordsWriter {
+    void write(@NotNull final DataOutputStream out) throws IOException;
+  }
+}
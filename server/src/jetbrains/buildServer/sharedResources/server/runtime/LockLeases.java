@@ -0,0 +1,276 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.BuildProblemData;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Class {@code LockLeases}
+ *
+ * Expires locks of running builds on resources with lease.
+ *
+ * Locks are scheduled in the timing wheel at build start, so that expiration check
+ * does not walk running builds. Expired locks are not considered taken by build distribution
+ * and a build problem is reported on the build, that holds them
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class LockLeases {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(LockLeases.class.getName());
+
+  @NotNull
+  static final String TICK_MILLIS = "teamcity.sharedResources.leases.tick.millis";
+
+  @NotNull
+  static final String WHEEL_SIZE = "teamcity.sharedResources.leases.wheelSize";
+
+  @NotNull
+  static final String BUILD_PROBLEM_TYPE = "sharedResourcesLeaseExpired";
+
+  @NotNull
+  private final Resources myResources;
+
+  /**
+   * Scheduled leases. Guards {@link #myLeases}
+   */
+  @NotNull
+  private final TimingWheel<Lease> myWheel;
+
+  /**
+   * Scheduled leases of running builds. Promotion id -> leases
+   */
+  @NotNull
+  private final Map<Long, List<TimingWheel.Entry<Lease>>> myLeases = new HashMap<>();
+
+  /**
+   * Names of the locks with expired lease. Promotion id -> lock names
+   */
+  @NotNull
+  private final ConcurrentMap<Long, Set<String>> myExpired = new ConcurrentHashMap<>();
+
+  private final long myTickMillis;
+
+  /**
+   * Whether leases are expired by the timer. Otherwise {@link #expire(long)} is called explicitly
+   */
+  private final boolean myTimerEnabled;
+
+  @Nullable
+  private ScheduledExecutorService myExecutor;
+
+  private boolean myShutdown = false;
+
+  public LockLeases(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                    @NotNull final Resources resources) {
+    this(dispatcher, resources, System.currentTimeMillis(), true);
+  }
+
+  LockLeases(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+             @NotNull final Resources resources,
+             final long startMillis,
+             final boolean timerEnabled) {
+    myResources = resources;
+    myTimerEnabled = timerEnabled;
+    myTickMillis = Math.max(TeamCityProperties.getInteger(TICK_MILLIS, 1000), 1);
+    myWheel = new TimingWheel<>(myTickMillis, TeamCityProperties.getInteger(WHEEL_SIZE, 512), startMillis);
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        shutdown();
+      }
+    });
+  }
+
+  /**
+   * Schedules expiration of the locks of the running build on resources with lease
+   *
+   * @param build running build
+   * @param projectId id of the project of build type of the build
+   * @param lockNames names of the locks, held by the build
+   */
+  public void acquire(@NotNull final SRunningBuild build,
+                      @NotNull final String projectId,
+                      @NotNull final Collection<String> lockNames) {
+    if (lockNames.isEmpty()) {
+      return;
+    }
+    final Map<String, Resource> resources = myResources.getResourcesMap(projectId);
+    List<Resource> leased = null;
+    for (String name: lockNames) {
+      final Resource resource = resources.get(name);
+      if (resource != null && resource.getLease() > 0) {
+        if (leased == null) {
+          leased = new ArrayList<>(1);
+        }
+        leased.add(resource);
+      }
+    }
+    if (leased == null) {
+      return;
+    }
+    final long promotionId = build.getBuildPromotion().getId();
+    final Date startDate = build.getStartDate();
+    final long startMillis = startDate != null ? startDate.getTime() : System.currentTimeMillis();
+    synchronized (myWheel) {
+      final List<TimingWheel.Entry<Lease>> entries = myLeases.computeIfAbsent(promotionId, id -> new ArrayList<>(1));
+      for (Resource resource: leased) {
+        final Lease lease = new Lease(build, promotionId, resource.getName(), resource.getLease());
+        entries.add(myWheel.schedule(lease, startMillis + TimeUnit.SECONDS.toMillis(resource.getLease())));
+      }
+      ensureStarted();
+    }
+  }
+
+  /**
+   * Cancels leases of the build and forgets its expired locks
+   *
+   * @param promotionId id of the build promotion
+   */
+  public void release(final long promotionId) {
+    synchronized (myWheel) {
+      final List<TimingWheel.Entry<Lease>> entries = myLeases.remove(promotionId);
+      if (entries != null) {
+        entries.forEach(myWheel::cancel);
+      }
+      myExpired.remove(promotionId);
+    }
+  }
+
+  /**
+   * Returns locks of the build, which lease has not expired
+   *
+   * @param promotionId id of the build promotion
+   * @param locks locks held by the build. Lock name -> locks
+   * @return given locks, if none of them has expired, otherwise copy of the given locks without expired ones
+   */
+  @NotNull
+  public <T> Map<String, T> withoutExpired(final long promotionId, @NotNull final Map<String, T> locks) {
+    final Set<String> expired = myExpired.get(promotionId);
+    if (expired == null) {
+      return locks;
+    }
+    final Map<String, T> result = new HashMap<>(locks);
+    result.keySet().removeAll(expired);
+    return result;
+  }
+
+  /**
+   * @param promotionId id of the build promotion
+   * @param lockName name of the lock
+   * @return {@code true} if lease of the lock, held by the build, has expired
+   */
+  public boolean isExpired(final long promotionId, @NotNull final String lockName) {
+    final Set<String> expired = myExpired.get(promotionId);
+    return expired != null && expired.contains(lockName);
+  }
+
+  /**
+   * Expires leases with deadline not later than given time
+   *
+   * @param nowMillis current time
+   */
+  void expire(final long nowMillis) {
+    final List<Lease> expired = new ArrayList<>();
+    synchronized (myWheel) {
+      myWheel.advance(nowMillis, lease -> {
+        myExpired.computeIfAbsent(lease.myPromotionId, id -> ConcurrentHashMap.newKeySet()).add(lease.myLockName);
+        expired.add(lease);
+      });
+    }
+    expired.forEach(this::reportExpired);
+  }
+
+  private void reportExpired(@NotNull final Lease lease) {
+    final SRunningBuild build = lease.myBuild;
+    LOG.warn("Lease of " + lease.mySeconds + " seconds on lock '" + lease.myLockName + "' has expired for build " + build.getBuildId()
+             + ". Lock is released for other builds");
+    if (build.isFinished()) {
+      return;
+    }
+    try {
+      build.addBuildProblem(BuildProblemData.createBuildProblem(
+        "lease:" + lease.myLockName,
+        BUILD_PROBLEM_TYPE,
+        "Build has held lock on shared resource '" + lease.myLockName + "' longer than the lease of " + lease.mySeconds
+        + " seconds. The lock was released for other builds"));
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Failed to report expired lease on lock '" + lease.myLockName + "' for build " + build.getBuildId(), e);
+    }
+  }
+
+  /**
+   * Timer is started with the first lease, so that there is no background activity
+   * while no resources with lease are used. Guarded by {@link #myWheel}
+   */
+  private void ensureStarted() {
+    if (myTimerEnabled && myExecutor == null && !myShutdown) {
+      myExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Shared resources lock leases"));
+      myExecutor.scheduleWithFixedDelay(() -> {
+        try {
+          expire(System.currentTimeMillis());
+        } catch (Exception e) {
+          LOG.warnAndDebugDetails("Failed to expire lock leases", e);
+        }
+      }, myTickMillis, myTickMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void shutdown() {
+    synchronized (myWheel) {
+      myShutdown = true;
+      if (myExecutor != null) {
+        myExecutor.shutdownNow();
+        myExecutor = null;
+      }
+    }
+  }
+
+  private static final class Lease {
+
+    @NotNull
+    private final SRunningBuild myBuild;
+
+    private final long myPromotionId;
+
+    @NotNull
+    private final String myLockName;
+
+    private final int mySeconds;
+
+    Lease(@NotNull final SRunningBuild build, final long promotionId, @NotNull final String lockName, final int seconds) {
+      myBuild = build;
+      myPromotionId = promotionId;
+      myLockName = lockName;
+      mySeconds = seconds;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongHashSet;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Interface {@code LocksPersistence}
+ *
+ * Backend of {@link LocksStorageImpl}. Persists taken locks of running builds
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public interface LocksPersistence {
+
+  /**
+   * Persists taken locks of the build
+   *
+   * @param buildPromotion build promotion to persist locks for
+   * @param locks lock name -> locks with taken values
+   * @return {@code true} if locks were persisted, {@code false} otherwise
+   */
+  boolean write(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Collection<Lock>> locks);
+
+  /**
+   * Reads persisted taken locks of the build
+   *
+   * @param buildPromotion build promotion to read locks for
+   * @return lock name -> locks with taken values, {@code null} if no locks were persisted for the build
+   */
+  @Nullable
+  Map<String, Collection<Lock>> read(@NotNull final BuildPromotion buildPromotion);
+
+  /**
+   * Releases persisted locks of the finished build
+   *
+   * @param buildPromotion build promotion to release locks of
+   */
+  void release(@NotNull final BuildPromotion buildPromotion);
+
+  /**
+   * Drops persisted locks of the builds, that are not running anymore.
+   * Called once, after locks of the running builds are recovered on startup,
+   * as builds may finish or be removed while the server is down
+   *
+   * @param runningPromotionIds promotion ids of the running builds
+   */
+  void retainOnly(@NotNull final TLongHashSet runningPromotionIds);
+
+}
@@ -20,6 +20,7 @@ import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -42,10 +43,10 @@ public interface LocksStorage {
    * Loads taken locks
    *
    * @param buildPromotion build promotion to load locks for
-   * @return collection of taken locks. Values are restored inside locks
+   * @return taken locks, lock name -> locks on the resource. Values are restored inside locks
    */
   @NotNull
-  Map<String, Lock> load(@NotNull final BuildPromotion buildPromotion);
+  Map<String, Collection<Lock>> load(@NotNull final BuildPromotion buildPromotion);
 
   /**
    * Checks, whether locks has been already stored
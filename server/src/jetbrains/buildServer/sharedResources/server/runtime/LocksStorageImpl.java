@@ -16,124 +16,115 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.intellij.openapi.diagnostic.Logger;
 import gnu.trove.TLongHashSet;
-import gnu.trove.impl.sync.TSynchronizedLongObjectMap;
-import gnu.trove.map.TLongObjectMap;
-import gnu.trove.map.hash.TLongObjectHashMap;
 import jetbrains.buildServer.serverSide.*;
-import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
-import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
 import jetbrains.buildServer.util.EventDispatcher;
-import jetbrains.buildServer.util.FileUtil;
-import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.NamedThreadFactory;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 /**
  * Class {@code LocksStorageImpl}
  *
  * Implements storage for taken locks during build execution
  *
+ * Each promotion with taken locks has a state record, that goes through
+ * {@code absent -> storing -> stored -> released} transitions.
+ * Readers of a promotion, that is being stored, wait for the locks to be published.
+ * Promotions of different builds never contend with each other
+ *
+ * Persisted locks are released by whichever comes last: the finishing build or the thread, that writes the locks.
+ * So persistence never sees the release before the write, and the finishing build never waits for the write
+ *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
 public class LocksStorageImpl implements LocksStorage {
 
   @NotNull
-  private static final String FILE_NAME = "taken_locks.txt";
+  private static final Logger log = Logger.getInstance(LocksStorageImpl.class.getName());
 
+  /**
+   * Number of threads, that read locks of running builds on server startup
+   */
   @NotNull
-  static final String FILE_PATH = SharedResourcesPluginConstants.BASE_ARTIFACT_PATH + "/" + FILE_NAME; // package visibility for tests
+  static final String RECOVERY_THREADS = "teamcity.sharedResources.locksStorage.recovery.threads";
 
+  /**
+   * Taken locks of running builds. Promotion id -> state of stored locks.
+   * Records are removed when the build finishes
+   */
   @NotNull
-  private static final Logger log = Logger.getInstance(LocksStorageImpl.class.getName());
+  private final ConcurrentMap<Long, StoredLocks> myStoredLocks = new ConcurrentHashMap<>();
 
   @NotNull
-  private static final String MY_ENCODING = "UTF-8";
+  private final SharedResourcesMetrics myMetrics;
 
-  /**
-   * Contains the set of build ids, that contain taken locks that are stored
-   * Added to avoid calling of {@code CacheLoader} for the items that were not stored
-   */
   @NotNull
-  private final TLongHashSet existsSet = new TLongHashSet();
+  private final LocksPersistence myPersistence;
 
   /**
-   * Stores last N entries of taken locks
-   * It is highly unlikely, that we will have more than 300 running builds at the same time
-   * Ff we do, data for at least 300 of them will be accessed without accessing artifacts storage
+   * Supplies builds, that were running when the server started. Their locks are restored from persistence
    */
   @NotNull
-  private LoadingCache<BuildPromotion, Map<String, Lock>> myLocksCache;
+  private final Supplier<Collection<? extends SRunningBuild>> myRunningBuilds;
 
-  /**
-   * Map with separate guarding lock for each build
-   */
   @NotNull
-  private final TLongObjectMap<ReentrantLock> myGuards = new TSynchronizedLongObjectMap<>(new TLongObjectHashMap<>());
+  private final Object myRecoveryLock = new Object();
 
-  public LocksStorageImpl(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
-    CacheLoader<BuildPromotion, Map<String, Lock>> loader = new CacheLoader<BuildPromotion, Map<String, Lock>>() {
-      @Override
-      public Map<String, Lock> load(@NotNull final BuildPromotion buildPromotion) {
-        final Map<String, Lock> result;
-        final File artifact = new File(buildPromotion.getArtifactsDirectory(), FILE_PATH);
-        if (artifact.exists()) {
-          result = new HashMap<>();
-          try {
-            final String content = FileUtil.readText(artifact, MY_ENCODING);
-            final String[] lines = content.split("\\r?\\n");
-            for (String line: lines) {
-              final Lock lock = deserializeTakenLock(line);
-              if (lock != null) {
-                result.put(lock.getName(), lock);
-              } else {
-                if (log.isDebugEnabled()) {
-                  log.debug("Wrong locks storage format in file {" + artifact.getAbsolutePath() + "} line: {" + line + "}");
-                }
-              }
-            }
-          } catch(IOException e) {
-            log.warn("Failed to load taken locks for build [" + buildPromotion + "]; Message is: " + e.getMessage());
-          }
-        } else {
-          result = Collections.emptyMap();
-        }
-        return result;
-      }
-    };
-    myLocksCache = CacheBuilder.<SBuild, Map<String, Lock>>newBuilder()
-            .maximumSize(300) // each entry corresponds to a running build
-            .build(loader);
+  private volatile boolean myRecovered = false;
+
+  public LocksStorageImpl(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                          @NotNull final SharedResourcesMetrics metrics) {
+    this(dispatcher, metrics, new ArtifactLocksPersistence(), Collections::emptyList);
+  }
+
+  public LocksStorageImpl(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                          @NotNull final SharedResourcesMetrics metrics,
+                          @NotNull final LocksPersistence persistence,
+                          @NotNull final RunningBuildsManager runningBuildsManager) {
+    this(dispatcher, metrics, persistence, runningBuildsManager::getRunningBuilds);
+  }
+
+  LocksStorageImpl(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                   @NotNull final SharedResourcesMetrics metrics,
+                   @NotNull final LocksPersistence persistence,
+                   @NotNull final Supplier<Collection<? extends SRunningBuild>> runningBuilds) {
+    myMetrics = metrics;
+    myPersistence = persistence;
+    myRunningBuilds = runningBuilds;
 
     dispatcher.addListener(new BuildServerAdapter() {
 
+      @Override
+      public void serverStartup() {
+        ensureRecovered();
+      }
+
       /**
-       * Evicts stored items from cache, as the build is finished and locks are no longer needed
+       * Releases stored locks, as the build is finished and locks are no longer needed
        */
       @Override
       public void buildFinished(@NotNull SRunningBuild build) {
-        final ReentrantLock l = myGuards.get(build.getBuildId());
-        try {
-          if (l != null) {
-            l.lock();
-          }
-          myLocksCache.invalidate(build);
-          existsSet.remove(build.getBuildId());
-        } finally {
-          if (l != null) {
-            l.unlock();
+        final BuildPromotion promotion = build.getBuildPromotion();
+        final long promotionId = promotion.getId();
+        final StoredLocks stored = myStoredLocks.get(promotionId);
+        if (stored != null) {
+          myStoredLocks.remove(promotionId, stored);
+          if (!stored.release()) {
+            // locks are still being written. Storing thread releases them afterwards
+            return;
           }
         }
+        myPersistence.release(promotion);
       }
     });
   }
@@ -142,90 +133,224 @@ public class LocksStorageImpl implements LocksStorage {
   public void store(@NotNull final BuildPromotion buildPromotion,
                     @NotNull final Map<Lock, String> takenLocks) {
     if (!takenLocks.isEmpty()) {
-      final Long promotionId = buildPromotion.getId();
-      final ReentrantLock l = new ReentrantLock(true);
+      ensureRecovered();
+      final long start = System.nanoTime();
+      final long promotionId = buildPromotion.getId();
+      final StoredLocks stored = new StoredLocks();
       try {
-        l.lock();
-        myGuards.put(promotionId, l);
-        final Collection<String> serializedStrings = new ArrayList<>();
-        Map<String, Lock> locksToStore = new HashMap<>();
+        myStoredLocks.put(promotionId, stored);
+        final Map<String, Collection<Lock>> locksToStore = new HashMap<>();
         for (Map.Entry<Lock, String> entry: takenLocks.entrySet()) {
-          serializedStrings.add(serializeTakenLock(entry.getKey(), entry.getValue()));
-          locksToStore.put(entry.getKey().getName(), Lock.createFrom(entry.getKey(), entry.getValue()));
+          locksToStore.computeIfAbsent(entry.getKey().getName(), name -> new ArrayList<>(1))
+                      .add(Lock.createFrom(entry.getKey(), entry.getValue()));
         }
-        try {
-          final File artifact = new File(buildPromotion.getArtifactsDirectory(), FILE_PATH);
-          if (FileUtil.createParentDirs(artifact)) {
-            FileUtil.writeFile(artifact, StringUtil.join(serializedStrings, "\n"), MY_ENCODING);
-            myLocksCache.put(buildPromotion, locksToStore);
-            existsSet.add(promotionId);
-          } else {
-            log.warn("Failed to create parent dirs for file with taken locks for build {" + buildPromotion + "}");
-          }
-        } catch (IOException e) {
-          log.warn("Failed to store taken locks for build [" + buildPromotion + "]; Message is: " + e.getMessage());
+        // in-memory state is authoritative as soon as the values are assigned
+        stored.publish(Collections.unmodifiableMap(locksToStore));
+        if (!myPersistence.write(buildPromotion, locksToStore)) {
+          log.warn("Taken locks of build [" + buildPromotion + "] were not persisted. They will be lost on server restart");
         }
       } finally {
-        l.unlock();
-        myGuards.remove(promotionId);
+        // readers must not wait forever, even if something went wrong
+        stored.publish(Collections.emptyMap());
+        myMetrics.record(SharedResourcesMetrics.Operation.LOCKS_STORAGE_STORE, start);
+        if (stored.persisted()) {
+          // build has finished while its locks were being written
+          myPersistence.release(buildPromotion);
+        }
       }
     }
   }
 
   @NotNull
   @Override
-  public Map<String, Lock> load(@NotNull final BuildPromotion buildPromotion) {
-    final ReentrantLock l = myGuards.get(buildPromotion.getId());
+  public Map<String, Collection<Lock>> load(@NotNull final BuildPromotion buildPromotion) {
+    ensureRecovered();
+    final long start = System.nanoTime();
     try {
-      if (l != null) {
-        l.lock();
+      final long id = buildPromotion.getId();
+      final StoredLocks stored = myStoredLocks.get(id);
+      if (stored != null) {
+        myMetrics.getLocksStorageLoads().hit();
+        return stored.getLocks();
       }
+      final long loadStart = System.nanoTime();
+      final Map<String, Collection<Lock>> persisted;
       try {
-        return myLocksCache.get(buildPromotion);
-      } catch (Exception e) {
-        log.warn(e);
-        return Collections.emptyMap();
+        persisted = myPersistence.read(buildPromotion);
+      } catch (RuntimeException e) {
+        myMetrics.getLocksStorageLoads().loadFailed(loadStart);
+        throw e;
       }
+      myMetrics.getLocksStorageLoads().loaded(loadStart);
+      // locks of the promotion were not stored by this server. They are not kept in memory,
+      // otherwise locks of a finishing build could be resurrected
+      return persisted != null ? Collections.unmodifiableMap(persisted) : Collections.emptyMap();
     } finally {
-      if (l != null) {
-        l.unlock();
-      }
+      myMetrics.record(SharedResourcesMetrics.Operation.LOCKS_STORAGE_LOAD, start);
     }
   }
 
   @Override
   public boolean locksStored(@NotNull final BuildPromotion buildPromotion) {
-    final long id = buildPromotion.getId();
-    final ReentrantLock l = myGuards.get(id);
-    try {
-      if (l != null) {
-        l.lock();
+    ensureRecovered();
+    final StoredLocks stored = myStoredLocks.get(buildPromotion.getId());
+    return stored != null && stored.isStored();
+  }
+
+  /**
+   * Restores stored locks for the builds, that were running when the server started.
+   * Otherwise, locks of such builds would be resolved from build features again and assigned values would be lost.
+   * Locks are read from persistence in parallel. Failure to read locks of one build does not affect the others.
+   * Persisted locks of the builds, that finished while the server was down, are dropped afterwards
+   */
+  private void ensureRecovered() {
+    if (myRecovered) {
+      return;
+    }
+    synchronized (myRecoveryLock) {
+      if (myRecovered) {
+        return;
       }
-      return existsSet.contains(id);
-    } finally {
-      if (l != null) {
-        l.unlock();
+      final long start = System.nanoTime();
+      final Collection<? extends SRunningBuild> runningBuilds = myRunningBuilds.get();
+      int recovered = 0;
+      if (!runningBuilds.isEmpty()) {
+        final int threads = Math.max(1, Math.min(runningBuilds.size(), TeamCityProperties.getInteger(RECOVERY_THREADS, 8)));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Shared resources locks recovery"));
+        try {
+          final List<CompletableFuture<Void>> futures = new ArrayList<>();
+          final Map<Long, Map<String, Collection<Lock>>> restored = new ConcurrentHashMap<>();
+          for (SRunningBuild build: runningBuilds) {
+            final BuildPromotion promotion = build.getBuildPromotion();
+            futures.add(CompletableFuture.runAsync(() -> {
+              final long loadStart = System.nanoTime();
+              try {
+                final Map<String, Collection<Lock>> locks = myPersistence.read(promotion);
+                myMetrics.getLocksStorageLoads().loaded(loadStart);
+                if (locks != null) {
+                  restored.put(promotion.getId(), locks);
+                }
+              } catch (Exception e) {
+                myMetrics.getLocksStorageLoads().loadFailed(loadStart);
+                log.warnAndDebugDetails("Failed to restore taken locks of running build [" + build + "]", e);
+              }
+            }, executor));
+          }
+          CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+          for (Map.Entry<Long, Map<String, Collection<Lock>>> entry: restored.entrySet()) {
+            final StoredLocks stored = new StoredLocks();
+            stored.publish(Collections.unmodifiableMap(entry.getValue()));
+            stored.persisted();
+            myStoredLocks.putIfAbsent(entry.getKey(), stored);
+          }
+          recovered = restored.size();
+        } catch (CompletionException e) {
+          log.warn("Failed to restore taken locks of running builds: " + e.getMessage());
+        } finally {
+          executor.shutdown();
+        }
       }
+      final TLongHashSet runningIds = new TLongHashSet(runningBuilds.size());
+      runningBuilds.forEach(build -> runningIds.add(build.getBuildPromotion().getId()));
+      myPersistence.retainOnly(runningIds);
+      myMetrics.record(SharedResourcesMetrics.Operation.LOCKS_STORAGE_RECOVERY, start);
+      log.info("Restored taken locks of " + recovered + " out of " + runningBuilds.size() + " running builds in " +
+               TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+      myRecovered = true;
     }
   }
 
-  @NotNull
-  private String serializeTakenLock(@NotNull final Lock lock, @NotNull final String value) {
-    return StringUtil.join("\t", lock.getName(), lock.getType(), value.equals("") ? " " : value);
+  private enum State {
+    STORING,
+    STORED,
+    RELEASED
   }
 
-  @Nullable
-  private Lock deserializeTakenLock(@NotNull final String line) {
-    final List<String> strings = StringUtil.split(line, true, '\t'); // we need empty values for locks without values
-    Lock result = null;
-    if (strings.size() == 3) {
-      String value =  StringUtil.trim(strings.get(2));
-      if (value == null) {
-        value = "";
+  /**
+   * Stored locks of single promotion.
+   * Locks are written once, before the {@code STORING -> STORED} transition, which publishes them to readers
+   */
+  private static final class StoredLocks {
+
+    @NotNull
+    private final AtomicReference<State> myState = new AtomicReference<>(State.STORING);
+
+    @NotNull
+    private final CountDownLatch myPublished = new CountDownLatch(1);
+
+    /**
+     * Set by the first of the storing and the finishing threads. The second one releases persisted locks
+     */
+    @NotNull
+    private final AtomicBoolean myHandedOver = new AtomicBoolean(false);
+
+    @Nullable
+    private Map<String, Collection<Lock>> myLocks;
+
+    /**
+     * Publishes locks, unless they are already published
+     */
+    private void publish(@NotNull final Map<String, Collection<Lock>> locks) {
+      if (myPublished.getCount() == 0) {
+        return;
       }
-      result = new Lock(strings.get(0), LockType.byName(strings.get(1)), value);
+      myLocks = locks;
+      // locks written above are visible to any thread, that observes the state change or passes the latch
+      myState.compareAndSet(State.STORING, State.STORED);
+      myPublished.countDown();
+    }
+
+    /**
+     * Marks locks as written to persistence
+     *
+     * @return {@code true} if the build has already finished and persisted locks are to be released by the caller
+     */
+    private boolean persisted() {
+      return !myHandedOver.compareAndSet(false, true);
+    }
+
+    /**
+     * Both storing and stored locks can be released. Locks, that are being stored, are not published as stored then
+     *
+     * @return {@code true} if locks were already written and persisted locks are to be released by the caller
+     */
+    private boolean release() {
+      State state;
+      do {
+        state = myState.get();
+      } while (state != State.RELEASED && !myState.compareAndSet(state, State.RELEASED));
+      return !myHandedOver.compareAndSet(false, true);
+    }
+
+    private boolean isStored() {
+      awaitPublished();
+      return myState.get() == State.STORED;
+    }
+
+    @NotNull
+    private Map<String, Collection<Lock>> getLocks() {
+      awaitPublished();
+      final Map<String, Collection<Lock>> result = myLocks;
+      return result != null ? result : Collections.emptyMap();
+    }
+
+    private void awaitPublished() {
+      await(myPublished);
     }
-    return result;
-  }
 
+    private static void await(@NotNull final CountDownLatch latch) {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          latch.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
 }
@@ -19,20 +19,22 @@ package jetbrains.buildServer.sharedResources.server.runtime;
 import gnu.trove.TLongObjectHashMap;
 import java.util.*;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import javax.annotation.concurrent.NotThreadSafe;
 import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.serverSide.BuildPromotionEx;
 import jetbrains.buildServer.serverSide.buildDistribution.DistributionCycleExtension;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Storage for custom resource requested values during build distribution
  *
+ * Lives within single distribution cycle and is not thread safe
+ *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
-@NotThreadSafe
 public class ResourceAffinity {
 
   /**
@@ -46,6 +48,17 @@ public class ResourceAffinity {
    */
   private final TLongObjectHashMap<Set<String>> myBuildLockedResources = new TLongObjectHashMap<>();
 
+  /**
+   * Indices of locked values. Resource id -> indexed values.
+   * Computed on demand, dropped when values of the resource are stored
+   */
+  private final Map<String, IndexedValues> myIndexedValues = new HashMap<>();
+
+  /**
+   * Version of the stored values. Changes every time values are stored
+   */
+  private int myVersion = 0;
+
   /**
    * Stores resource affinity
    *
@@ -54,10 +67,15 @@ public class ResourceAffinity {
    */
   public void store(@NotNull final BuildPromotion promotion,
                     @NotNull final Map<String, String> affinityMap) {
+      if (affinityMap.isEmpty()) {
+        return;
+      }
+      myVersion++;
       final long promotionId = promotion.getId();
       affinityMap.forEach((resourceId, value) -> {
         // store the value
         myLockedValues.computeIfAbsent(resourceId, it -> new TLongObjectHashMap<>()).put(promotionId, value);
+        myIndexedValues.remove(resourceId);
         Set<String> buildLockedResources = myBuildLockedResources.get(promotionId);
         if (buildLockedResources == null) {
           buildLockedResources = new HashSet<>();
@@ -68,6 +86,10 @@ public class ResourceAffinity {
 
   }
 
+  public int getVersion() {
+    return myVersion;
+  }
+
   /**
    * Returns set of values assigned to other build promotions
    *
@@ -94,6 +116,74 @@ public class ResourceAffinity {
     return Collections.emptySet();
   }
 
+  /**
+   * Returns indices of values, assigned to promotions other than the given one
+   *
+   * @param resource resource to compute for
+   * @param currentPromotion promotion to compute the set for
+   * @return new set of indices of the values, assigned to other promotions
+   */
+  @NotNull
+  public BitSet getOtherAssignedValueIndices(@NotNull final CustomResource resource,
+                                             @NotNull final BuildPromotion currentPromotion) {
+    final IndexedValues indexed = getIndexedValues(resource);
+    if (indexed == null) {
+      return new BitSet();
+    }
+    final BitSet result = (BitSet)indexed.myAssigned.clone();
+    final int own = getOwnIndex(resource, currentPromotion);
+    if (own >= 0 && !indexed.myShared.get(own)) {
+      result.clear(own);
+    }
+    return result;
+  }
+
+  /**
+   * Checks whether the value with given index is assigned to a promotion other than the given one
+   *
+   * @param resource resource to check
+   * @param currentPromotion promotion to check for
+   * @param index index of the value
+   * @return {@code true} if value is assigned to some other promotion, {@code false} otherwise
+   */
+  public boolean isAssignedToOther(@NotNull final CustomResource resource,
+                                   @NotNull final BuildPromotion currentPromotion,
+                                   final int index) {
+    final IndexedValues indexed = getIndexedValues(resource);
+    if (indexed == null || !indexed.myAssigned.get(index)) {
+      return false;
+    }
+    return indexed.myShared.get(index) || getOwnIndex(resource, currentPromotion) != index;
+  }
+
+  private int getOwnIndex(@NotNull final CustomResource resource, @NotNull final BuildPromotion promotion) {
+    final String ownValue = myLockedValues.get(resource.getId()).get(promotion.getId());
+    return ownValue == null ? -1 : resource.getValueIndex(ownValue);
+  }
+
+  @Nullable
+  private IndexedValues getIndexedValues(@NotNull final CustomResource resource) {
+    final TLongObjectHashMap<String> allValues = myLockedValues.get(resource.getId());
+    if (allValues == null) {
+      return null;
+    }
+    IndexedValues result = myIndexedValues.get(resource.getId());
+    if (result == null || result.myResource != resource) {
+      result = new IndexedValues(resource);
+      for (Object value: allValues.getValues()) {
+        final int index = resource.getValueIndex((String)value);
+        if (index >= 0) {
+          if (result.myAssigned.get(index)) {
+            result.myShared.set(index);
+          }
+          result.myAssigned.set(index);
+        }
+      }
+      myIndexedValues.put(resource.getId(), result);
+    }
+    return result;
+  }
+
   /**
    * Returns all requested resources with values for given promotion
    *
@@ -101,7 +191,7 @@ public class ResourceAffinity {
    * @return map of resources with corresponding requested values
    */
   @NotNull
-  Map<String, String> getRequestedValues(@NotNull final BuildPromotion buildPromotion) {
+  public Map<String, String> getRequestedValues(@NotNull final BuildPromotion buildPromotion) {
     final Map<String, String> result = new HashMap<>();
     final long promotionId = buildPromotion.getId();
     final Set<String> buildLockedResources = myBuildLockedResources.get(promotionId);
@@ -118,4 +208,29 @@ public class ResourceAffinity {
     }
     return result;
   }
+
+  private static final class IndexedValues {
+
+    /**
+     * Resource, indices are resolved against
+     */
+    @NotNull
+    private final CustomResource myResource;
+
+    /**
+     * Indices of values assigned to any promotion
+     */
+    @NotNull
+    private final BitSet myAssigned = new BitSet();
+
+    /**
+     * Indices of values assigned to more than one promotion
+     */
+    @NotNull
+    private final BitSet myShared = new BitSet();
+
+    private IndexedValues(@NotNull final CustomResource resource) {
+      myResource = resource;
+    }
+  }
 }
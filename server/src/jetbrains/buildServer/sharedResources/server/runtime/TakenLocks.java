@@ -18,10 +18,8 @@ package jetbrains.buildServer.sharedResources.server.runtime;
 
 import java.util.Collection;
 import java.util.Map;
-import java.util.Set;
 import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.serverSide.BuildPromotionEx;
-import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.TakenLock;
@@ -34,43 +32,43 @@ import org.jetbrains.annotations.NotNull;
 public interface TakenLocks {
 
   /**
-   * For given project collects taken locks using both artifacts and build promotions.
+   * Collects locks held by running builds, that are tracked by {@link TakenLocksLedger}
    *
-   * For running builds :
-   *    looking first into artifact
-   *    secondly, if no artifact exists, looking into promotion+buildType
-   *
-   * For queued builds looking only in promotion+buildType
-   *
-   * @param runningBuilds running builds
-   * @param queuedBuilds queued builds
-   *
-   * @return map of taken locks in format {@code <Resource, TakenLock>}
+   * @return mutable map of taken locks in format {@code <Resource, TakenLock>}
    */
   @NotNull
-  Map<Resource, TakenLock> collectTakenLocks(@NotNull final Collection<SRunningBuild> runningBuilds,
-                                             @NotNull final Collection<QueuedBuildInfo> queuedBuilds);
+  Map<Resource, TakenLock> collectRunningLocks();
+
+  /**
+   * Applies locks of given distributed builds on top of already collected taken locks
+   *
+   * @param takenLocks taken locks to update
+   * @param distributedBuilds builds, that were distributed in current distribution cycle
+   */
+  void addDistributedLocks(@NotNull final Map<Resource, TakenLock> takenLocks,
+                           @NotNull final Collection<QueuedBuildInfo> distributedBuilds);
 
   /**
    * Decides, whether required locks can be acquired by the build
    *
-   * @param locksToTake required locks
+   * @param locksToTake required locks. Resource name -> locks on the resource
    * @param takenLocks taken locks
    * @param distributionDataAccessor accessor for custom data
    * @param promotion build promotion context of computation
-   * @return empty collection, if locks can be acquired, collection, that contains unavailable locks otherwise
+   * @return empty map, if locks can be acquired, otherwise the first unavailable lock for each resource
    */
   @NotNull
-  Map<Resource, Lock> getUnavailableLocks(@NotNull final Collection<Lock> locksToTake,
+  Map<Resource, Lock> getUnavailableLocks(@NotNull final Map<String, Collection<Lock>> locksToTake,
                                           @NotNull final Map<Resource, TakenLock> takenLocks,
                                           @NotNull final String projectId,
                                           @NotNull final DistributionDataAccessor distributionDataAccessor,
                                           @NotNull final BuildPromotion promotion);
 
-  Map<Resource, Lock> getUnavailableLocks(@NotNull final Map<String, Lock> locksToTake,
+  @NotNull
+  Map<Resource, Lock> getUnavailableLocks(@NotNull final Map<String, Collection<Lock>> locksToTake,
                                           @NotNull final Map<Resource, TakenLock> takenLocks,
                                           @NotNull final DistributionDataAccessor distributionDataAccessor,
                                           @NotNull final Map<String, Resource> chainNodeResources,
-                                          @NotNull final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks,
+                                          @NotNull final Map<Resource, Map<BuildPromotionEx, Collection<Lock>>> chainLocks,
                                           @NotNull final BuildPromotion promotion);
 }
@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
+import gnu.trove.TLongHashSet;
 import java.util.*;
 import jetbrains.buildServer.runner.SimpleRunnerConstants;
 import jetbrains.buildServer.serverSide.*;
@@ -32,14 +33,21 @@ import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
-import jetbrains.buildServer.util.CollectionsUtil;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
 public class TakenLocksImpl implements TakenLocks {
 
+  /**
+   * No promotions are excluded from taken locks. Never modified
+   */
+  @NotNull
+  private static final TLongHashSet NO_PROMOTIONS = new TLongHashSet();
+
   @NotNull
   private final Locks myLocks;
 
@@ -47,75 +55,82 @@ public class TakenLocksImpl implements TakenLocks {
   private final Resources myResources;
 
   @NotNull
-  private final LocksStorage myLocksStorage;
+  private final SharedResourcesFeatures myFeatures;
+
+  @NotNull
+  private final TakenLocksLedger myLedger;
 
   @NotNull
-  private final SharedResourcesFeatures myFeatures;
+  private final SharedResourcesMetrics myMetrics;
 
   public TakenLocksImpl(@NotNull final Locks locks,
                         @NotNull final Resources resources,
-                        @NotNull final LocksStorage locksStorage,
-                        @NotNull final SharedResourcesFeatures features) {
+                        @NotNull final SharedResourcesFeatures features,
+                        @NotNull final TakenLocksLedger ledger,
+                        @NotNull final SharedResourcesMetrics metrics) {
     myLocks = locks;
     myResources = resources;
-    myLocksStorage = locksStorage;
     myFeatures = features;
+    myLedger = ledger;
+    myMetrics = metrics;
   }
 
   @NotNull
   @Override
-  public Map<Resource, TakenLock> collectTakenLocks(@NotNull final Collection<SRunningBuild> runningBuilds,
-                                                    @NotNull final Collection<QueuedBuildInfo> queuedBuilds) {
+  public Map<Resource, TakenLock> collectRunningLocks() {
+    final long start = System.nanoTime();
     final Map<Resource, TakenLock> result = new HashMap<>();
     final Map<String, Map<String, Resource>> cachedResources = new HashMap<>();
-    for (SRunningBuild build: runningBuilds) {
-      final SBuildType buildType = build.getBuildType();
-      if (buildType != null) {
-        final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(buildType);
-        if (features.isEmpty()) continue;
-        // at this point we have features
-        final BuildPromotionEx bpEx = (BuildPromotionEx) ((RunningBuildEx) build).getBuildPromotionInfo();
-        Map<String, Lock> locks;
-        if (myLocksStorage.locksStored(bpEx)) { // lock values are already resolved
-          locks = myLocksStorage.load(bpEx);
-        } else {
-          locks = myLocks.fromBuildFeaturesAsMap(features); // in future: <String, Set<Lock>>
-          // here we need to look for values in build promotion. build is running -> we have values in build promotion parameters
-        }
-        if (locks.isEmpty()) continue;
-        // get resources defined in project tree, respecting inheritance
-        final Map<String, Resource> resources = getResources(buildType.getProjectId(), cachedResources);
-        // resolve locks against resources defined in project tree
-        for (Map.Entry<String, Lock> entry: locks.entrySet()) {
-          // collection, promotion, resource, lock
-          final Resource resource = resources.get(entry.getKey());
-          if (resource != null) {
-            addLockToTaken(result, bpEx, resource, entry.getValue());
-          }
-        }
-      }
+    for (TakenLocksLedger.HeldLocks heldLocks: myLedger.getHeldLocks()) {
+      final Map<String, Collection<Lock>> locks = heldLocks.getLocks();
+      if (locks.isEmpty()) continue;
+      addLocksToTaken(result, heldLocks.getPromotion(), heldLocks.getProjectId(), locks, cachedResources);
     }
+    myMetrics.record(SharedResourcesMetrics.Operation.COLLECT_RUNNING_LOCKS, start);
+    return result;
+  }
 
+  @Override
+  public void addDistributedLocks(@NotNull final Map<Resource, TakenLock> takenLocks,
+                                  @NotNull final Collection<QueuedBuildInfo> distributedBuilds) {
+    final long start = System.nanoTime();
+    addQueuedBuildsLocks(takenLocks, distributedBuilds, new HashMap<>());
+    myMetrics.record(SharedResourcesMetrics.Operation.ADD_DISTRIBUTED_LOCKS, start);
+  }
+
+  private void addQueuedBuildsLocks(@NotNull final Map<Resource, TakenLock> takenLocks,
+                                    @NotNull final Collection<QueuedBuildInfo> queuedBuilds,
+                                    @NotNull final Map<String, Map<String, Resource>> cachedResources) {
     for (QueuedBuildInfo build : queuedBuilds) {
       BuildPromotionEx bpEx = (BuildPromotionEx) build.getBuildPromotionInfo();
       final BuildTypeEx buildType = bpEx.getBuildType();
       if (buildType != null) {
         final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(buildType);
         if (features.isEmpty()) continue;
-        Map<String, Lock> locks = myLocks.fromBuildFeaturesAsMap(features); // in future: <String, Set<Lock>>
+        final Map<String, Collection<Lock>> locks = myLocks.fromBuildFeaturesAsMap(features);
         if (locks.isEmpty()) continue;
-        // get resources defined in project tree, respecting inheritance
-        final Map<String, Resource> resources = getResources(buildType.getProjectId(), cachedResources);
-        for (Map.Entry<String, Lock> entry: locks.entrySet()) {
-          // collection, promotion, resource, lock
-          final Resource resource = resources.get(entry.getKey());
-          if (resource != null) {
-            addLockToTaken(result, bpEx, resource, entry.getValue());
-          }
-        }
+        addLocksToTaken(takenLocks, bpEx, buildType.getProjectId(), locks, cachedResources);
+      }
+    }
+  }
+
+  /**
+   * Resolves locks of the build against resources defined in project tree, respecting inheritance,
+   * and adds resolved locks to taken locks
+   */
+  private void addLocksToTaken(@NotNull final Map<Resource, TakenLock> takenLocks,
+                               @NotNull final BuildPromotionEx bpEx,
+                               @NotNull final String projectId,
+                               @NotNull final Map<String, Collection<Lock>> locks,
+                               @NotNull final Map<String, Map<String, Resource>> cachedResources) {
+    final Map<String, Resource> resources = getResources(projectId, cachedResources);
+    for (Map.Entry<String, Collection<Lock>> entry: locks.entrySet()) {
+      // collection, promotion, resource, locks
+      final Resource resource = resources.get(entry.getKey());
+      if (resource != null) {
+        getOrCreateTakenLock(takenLocks, resource).addLocks(bpEx, entry.getValue());
       }
     }
-    return result;
   }
 
   @NotNull
@@ -125,70 +140,104 @@ public class TakenLocksImpl implements TakenLocks {
   }
 
   @NotNull
-  @Override // todo: support several locks on resource here too -> Map<Resource, Collection<Lock>>
-  public Map<Resource, Lock> getUnavailableLocks(@NotNull Collection<Lock> locksToTake,
-                                                 @NotNull Map<Resource, TakenLock> takenLocks,
-                                                 @NotNull String projectId,
+  @Override
+  public Map<Resource, Lock> getUnavailableLocks(@NotNull final Map<String, Collection<Lock>> locksToTake,
+                                                 @NotNull final Map<Resource, TakenLock> takenLocks,
+                                                 @NotNull final String projectId,
                                                  @NotNull final DistributionDataAccessor distributionDataAccessor,
                                                  @NotNull final BuildPromotion buildPromotion) {
+    final long start = System.nanoTime();
     final Map<String, Resource> resources = myResources.getResourcesMap(projectId);
     final Map<Resource, Lock> result = new HashMap<>();
-    for (Lock lock : locksToTake) {
-      final Resource resource = resources.get(lock.getName());
+    for (Map.Entry<String, Collection<Lock>> entry : locksToTake.entrySet()) {
+      final Resource resource = resources.get(entry.getKey());
       if (resource != null) {
-        if (!resource.isEnabled() || !checkAgainstResource(lock, takenLocks, resource, distributionDataAccessor, buildPromotion)) {
-          result.put(resource, lock);
+        final Lock unavailable = findUnavailableLock(entry.getValue(), getOrCreateTakenLock(takenLocks, resource), NO_PROMOTIONS, resource,
+                                                     distributionDataAccessor, buildPromotion);
+        if (unavailable != null) {
+          result.put(resource, unavailable);
         }
       }
     }
+    markBlockedWriter(result, distributionDataAccessor, buildPromotion);
+    myMetrics.record(SharedResourcesMetrics.Operation.GET_UNAVAILABLE_LOCKS, start);
     return result;
   }
 
   @NotNull
   @Override
-  public Map<Resource, Lock> getUnavailableLocks(@NotNull final Map<String, Lock> locksToTake,
+  public Map<Resource, Lock> getUnavailableLocks(@NotNull final Map<String, Collection<Lock>> locksToTake,
                                                  @NotNull final Map<Resource, TakenLock> takenLocks,
                                                  @NotNull final DistributionDataAccessor distributionDataAccessor,
                                                  @NotNull final Map<String, Resource> chainNodeResources,
-                                                 @NotNull final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks,
+                                                 @NotNull final Map<Resource, Map<BuildPromotionEx, Collection<Lock>>> chainLocks,
                                                  @NotNull final BuildPromotion buildPromotion) {
+    final long start = System.nanoTime();
     final Map<Resource, Lock> result = new HashMap<>();
-    Map<Resource, TakenLock> chainTakenLocks = purifyTakenLocks(takenLocks, chainLocks);
-    locksToTake.forEach((name, lock) -> {
+    locksToTake.forEach((name, locks) -> {
       final Resource resource = chainNodeResources.get(name);
       if (resource != null) {
-        if (!resource.isEnabled() || !checkAgainstResource(lock, chainTakenLocks, resource, distributionDataAccessor, buildPromotion)) {
-          result.put(resource, lock);
+        // locks, taken by the nodes of the chain, do not affect current node. They are skipped on access
+        final TakenLock takenLock = takenLocks.get(resource);
+        final Lock unavailable = findUnavailableLock(locks, takenLock != null ? takenLock : new TakenLock(resource), getChainPromotionIds(chainLocks.get(resource)),
+                                                     resource, distributionDataAccessor, buildPromotion);
+        if (unavailable != null) {
+          result.put(resource, unavailable);
         }
       }
     });
-
+    markBlockedWriter(result, distributionDataAccessor, buildPromotion);
+    myMetrics.record(SharedResourcesMetrics.Operation.GET_UNAVAILABLE_LOCKS, start);
     return result;
   }
 
-  private Map<Resource, TakenLock> purifyTakenLocks(final Map<Resource, TakenLock> takenLocks,
-                                                    final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks) {
-    Map<Resource, TakenLock> result = new HashMap<>();
-    takenLocks.forEach((rc, tl) -> {
-      Map<BuildPromotionEx, Lock> chainTakenLock = chainLocks.get(rc);
-      if (chainTakenLock != null) {
-        result.put(rc, new TakenLock(rc,
-                                     CollectionsUtil.filterMapByKeys(tl.getReadLocks(), key -> !chainTakenLock.containsKey(key)),
-                                     CollectionsUtil.filterMapByKeys(tl.getWriteLocks(), key -> !chainTakenLock.containsKey(key))));
-      } else {
-        result.put(rc, tl);
+  /**
+   * Failed read lock or lock on disabled resource keeps the build waiting regardless of the readers
+   * of the resources, the build waits to write. Such writer does not block the readers then
+   */
+  private void markBlockedWriter(@NotNull final Map<Resource, Lock> unavailableLocks,
+                                 @NotNull final DistributionDataAccessor distributionDataAccessor,
+                                 @NotNull final BuildPromotion buildPromotion) {
+    for (Map.Entry<Resource, Lock> entry : unavailableLocks.entrySet()) {
+      if (!entry.getKey().isEnabled() || entry.getValue().getType() == LockType.READ) {
+        distributionDataAccessor.getWaiterQueues().writerBlocked(buildPromotion);
+        return;
       }
-    });
-    return result;
+    }
   }
 
+  /**
+   * Checks locks of the build on the resource one by one.
+   * Each lock is checked along with the values or units of quota, requested by the preceding locks of the build
+   *
+   * @return first lock, that cannot be acquired, {@code null} if all locks can be acquired
+   */
+  @Nullable
+  private Lock findUnavailableLock(@NotNull final Collection<Lock> locks,
+                                   @NotNull final TakenLock takenLock,
+                                   @NotNull final TLongHashSet excluded,
+                                   @NotNull final Resource resource,
+                                   @NotNull final DistributionDataAccessor distributionDataAccessor,
+                                   @NotNull final BuildPromotion buildPromotion) {
+    int requested = 0;
+    for (Lock lock : locks) {
+      if (!resource.isEnabled() || !checkAgainstResource(lock, requested, takenLock, excluded, resource, distributionDataAccessor, buildPromotion)) {
+        return lock;
+      }
+      // each lock on custom resource takes one value
+      requested += ResourceType.CUSTOM.equals(resource.getType()) ? 1 : lock.getWeight();
+    }
+    return null;
+  }
 
-  private void addLockToTaken(@NotNull final Map<Resource, TakenLock> takenLocks,
-                              @NotNull final BuildPromotionEx bpEx,
-                              @NotNull final Resource resource,
-                              @NotNull final Lock lock) {
-    final TakenLock takenLock = getOrCreateTakenLock(takenLocks, resource);
-    takenLock.addLock(bpEx, lock);
+  @NotNull
+  private TLongHashSet getChainPromotionIds(@Nullable final Map<BuildPromotionEx, Collection<Lock>> chainResourceLocks) {
+    if (chainResourceLocks == null || chainResourceLocks.isEmpty()) {
+      return NO_PROMOTIONS;
+    }
+    final TLongHashSet result = new TLongHashSet(chainResourceLocks.size());
+    chainResourceLocks.keySet().forEach(promotion -> result.add(promotion.getId()));
+    return result;
   }
 
   private TakenLock getOrCreateTakenLock(@NotNull final Map<Resource, TakenLock> takenLocks,
@@ -198,21 +247,25 @@ public class TakenLocksImpl implements TakenLocks {
 
   @SuppressWarnings("BooleanMethodIsAlwaysInverted")
   private boolean checkAgainstResource(@NotNull final Lock lock,
-                                       @NotNull final Map<Resource, TakenLock> takenLocks,
+                                       final int requested,
+                                       @NotNull final TakenLock takenLock,
+                                       @NotNull final TLongHashSet excluded,
                                        @NotNull final Resource resource,
                                        @NotNull final DistributionDataAccessor distributionDataAccessor,
                                        @NotNull final BuildPromotion buildPromotion) {
     boolean result = true;
     if (ResourceType.QUOTED.equals(resource.getType())) {
-      result = checkAgainstQuotedResource(lock, takenLocks, (QuotedResource) resource, distributionDataAccessor);
+      result = checkAgainstQuotedResource(lock, requested, takenLock, excluded, (QuotedResource) resource, distributionDataAccessor, buildPromotion);
     } else if (ResourceType.CUSTOM.equals(resource.getType())) {
-      result = checkAgainstCustomResource(lock, takenLocks, (CustomResource) resource, distributionDataAccessor, buildPromotion);
+      result = checkAgainstCustomResource(lock, requested, takenLock, excluded, (CustomResource) resource, distributionDataAccessor, buildPromotion);
     }
     return result;
   }
 
   private boolean checkAgainstCustomResource(@NotNull final Lock lock,
-                                             @NotNull final Map<Resource, TakenLock> takenLocks,
+                                             final int requested,
+                                             @NotNull final TakenLock takenLock,
+                                             @NotNull final TLongHashSet excluded,
                                              @NotNull final CustomResource resource,
                                              @NotNull final DistributionDataAccessor distributionDataAccessor,
                                              @NotNull final BuildPromotion buildPromotion) {
@@ -221,22 +274,21 @@ public class TakenLocksImpl implements TakenLocks {
     // write            -> all
     // read with value  -> specific
     // read             -> any
-    final TakenLock takenLock = getOrCreateTakenLock(takenLocks, resource);
     switch (lock.getType()) {
       case READ:   // check at least one value is available
-        // check for unique writeLocks
-        if (distributionDataAccessor.getFairSet().contains(lock.getName())) {
+        // some build before us in the queue waits for write access to the resource
+        if (distributionDataAccessor.getWaiterQueues().isReaderBlocked(resource, buildPromotion)) {
           result = false;
           break;
         }
 
         // check for write locks
-        if (takenLock.hasWriteLocks()) { // ALL values are locked
+        if (takenLock.hasWriteLocks(excluded)) { // ALL values are locked
           result = false;
           break;
         }
-        // 2) check for quota (read + write)
-        if (resource.getValues().size() <= takenLock.getLocksCount()) {
+        // 2) check for quota (read + write), including values requested by the preceding locks of the build
+        if (resource.getValues().size() <= takenLock.getLocksCount(excluded) + requested) {
           // quota exceeded
           result = false;
           break;
@@ -244,12 +296,18 @@ public class TakenLocksImpl implements TakenLocks {
         // 3) SPECIFIC case
         if (!"".equals(lock.getValue())) { // we have custom lock
           final String requiredValue = lock.getValue();
-          final Set<String> takenValues = new HashSet<>();
-          takenValues.addAll(takenLock.getReadLocks().values());
-          takenValues.addAll(takenLock.getWriteLocks().values());
-          // get resource value affinity with other builds
-          takenValues.addAll(distributionDataAccessor.getResourceAffinity().getOtherAssignedValues(resource, buildPromotion));
-          if (takenValues.contains(requiredValue)) {
+          final int requiredIndex = resource.getValueIndex(requiredValue);
+          if (requiredIndex >= 0) {
+            if (takenLock.getTakenValueIndices(resource, excluded).get(requiredIndex)
+                || distributionDataAccessor.getResourceAffinity().isAssignedToOther(resource, buildPromotion, requiredIndex)) {
+              result = false;
+            }
+            break;
+          }
+          // value is not defined in the resource. Compare values directly
+          // also check resource value affinity with other builds
+          if (takenLock.holdsValue(requiredValue, excluded)
+              || distributionDataAccessor.getResourceAffinity().getOtherAssignedValues(resource, buildPromotion).contains(requiredValue)) {
             result = false;
             break;
           }
@@ -257,8 +315,8 @@ public class TakenLocksImpl implements TakenLocks {
         break;
       case WRITE:
         // 'ALL' case
-        if (takenLock.hasReadLocks() || takenLock.hasWriteLocks()) {
-          distributionDataAccessor.getFairSet().add(lock.getName());
+        if (takenLock.hasReadLocks(excluded) || takenLock.hasWriteLocks(excluded)) {
+          distributionDataAccessor.getWaiterQueues().addWriter(resource, buildPromotion);
           result = false;
           break;
         }
@@ -268,39 +326,48 @@ public class TakenLocksImpl implements TakenLocks {
   }
 
   private boolean checkAgainstQuotedResource(@NotNull final Lock lock,
-                                             @NotNull final Map<Resource, TakenLock> takenLocks,
+                                             final int requested,
+                                             @NotNull final TakenLock takenLock,
+                                             @NotNull final TLongHashSet excluded,
                                              @NotNull final QuotedResource resource,
-                                             @NotNull final DistributionDataAccessor distributionDataAccessor) {
+                                             @NotNull final DistributionDataAccessor distributionDataAccessor,
+                                             @NotNull final BuildPromotion buildPromotion) {
     boolean result = true;
-    final TakenLock takenLock = getOrCreateTakenLock(takenLocks, resource);
     switch (lock.getType()) {
       case READ:
-        // some build requested write lock on the current resource before us
-        if (distributionDataAccessor.getFairSet().contains(resource.getId())) {
+        // some build before us in the queue waits for write access to the resource
+        if (distributionDataAccessor.getWaiterQueues().isReaderBlocked(resource, buildPromotion)) {
           result = false;
           break;
         }
         // Check that no write lock exists
-        if (takenLock.hasWriteLocks()) {
+        if (takenLock.hasWriteLocks(excluded)) {
           result = false;
           break;
         }
-        if (isOverQuota(takenLock, resource)) {
+        if (isOverQuota(takenLock, excluded, resource, requested + lock.getWeight())) {
           result = false;
           break;
         }
         break;
       case WRITE:
         // if anyone is accessing the resource
-        if (takenLock.hasReadLocks() || takenLock.hasWriteLocks() || isOverQuota(takenLock, resource)) {
-          distributionDataAccessor.getFairSet().add(resource.getId()); // remember write access request on the current resource
+        if (takenLock.hasReadLocks(excluded) || takenLock.hasWriteLocks(excluded) || isOverQuota(takenLock, excluded, resource, requested + Lock.DEFAULT_WEIGHT)) {
+          distributionDataAccessor.getWaiterQueues().addWriter(resource, buildPromotion); // remember write access request on the current resource
           result = false;
         }
     }
     return result;
   }
 
-  private boolean isOverQuota(@NotNull final TakenLock takenLock, @NotNull final QuotedResource resource) {
-    return !resource.isInfinite() && takenLock.getLocksCount() >= resource.getQuota();
+  /**
+   * Checks whether requested units of quota do not fit into the quota of the resource.
+   * Units are taken by all locks according to their weights
+   */
+  private boolean isOverQuota(@NotNull final TakenLock takenLock,
+                              @NotNull final TLongHashSet excluded,
+                              @NotNull final QuotedResource resource,
+                              final int requestedWeight) {
+    return !resource.isInfinite() && takenLock.getWeight(excluded) + requestedWeight > resource.getQuota();
   }
 }
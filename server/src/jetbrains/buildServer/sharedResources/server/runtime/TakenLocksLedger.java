@@ -0,0 +1,329 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TLongHashSet;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.server.feature.Locks;
+import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
+import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Class {@code TakenLocksLedger}
+ *
+ * Keeps track of locks held by running builds.
+ * Updated on build start and finish, so that build distribution
+ * does not need to walk all running builds on every call.
+ *
+ * Also indexes values of custom resources, held by running builds,
+ * so that value assignment at build start does not need to load locks of all running builds.
+ *
+ * Locks on resources with lease are not reported once their lease expires, see {@link LockLeases}
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class TakenLocksLedger {
+
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(TakenLocksLedger.class.getName());
+
+  /**
+   * Running builds that hold locks. Promotion id -> held locks
+   */
+  @NotNull
+  private final ConcurrentMap<Long, HeldLocks> myHeldLocks = new ConcurrentHashMap<>();
+
+  /**
+   * Stored locks of running builds. Promotion id -> lock name -> locks with values
+   */
+  @NotNull
+  private final ConcurrentMap<Long, Map<String, Collection<Lock>>> myStoredLocks = new ConcurrentHashMap<>();
+
+  /**
+   * Values held by running builds. Lock name -> value -> ids of promotions holding the value.
+   * Guarded by itself
+   */
+  @NotNull
+  private final Map<String, Map<String, TLongHashSet>> myHeldValues = new HashMap<>();
+
+  @NotNull
+  private final RunningBuildsManager myRunningBuildsManager;
+
+  @NotNull
+  private final LocksStorage myLocksStorage;
+
+  @NotNull
+  private final SharedResourcesFeatures myFeatures;
+
+  @NotNull
+  private final Locks myLocks;
+
+  @NotNull
+  private final LockLeases myLeases;
+
+  private volatile boolean myInitialized = false;
+
+  public TakenLocksLedger(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                          @NotNull final RunningBuildsManager runningBuildsManager,
+                          @NotNull final LocksStorage locksStorage,
+                          @NotNull final SharedResourcesFeatures features,
+                          @NotNull final Locks locks,
+                          @NotNull final LockLeases leases) {
+    myRunningBuildsManager = runningBuildsManager;
+    myLocksStorage = locksStorage;
+    myFeatures = features;
+    myLocks = locks;
+    myLeases = leases;
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildStarted(@NotNull final SRunningBuild build) {
+        ensureInitialized();
+        add(build, false);
+      }
+
+      @Override
+      public void buildFinished(@NotNull final SRunningBuild build) {
+        remove(build);
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull final SRunningBuild build) {
+        remove(build);
+      }
+    });
+  }
+
+  /**
+   * Returns locks held by currently running builds.
+   * Running builds without locks are not included
+   *
+   * @return locks held by currently running builds
+   */
+  @NotNull
+  public Collection<HeldLocks> getHeldLocks() {
+    ensureInitialized();
+    return Collections.unmodifiableCollection(myHeldLocks.values());
+  }
+
+  /**
+   * Indexes locks with values, that were stored for the starting build
+   *
+   * @param promotion promotion of the starting build
+   * @param takenLocks taken locks with assigned values
+   */
+  public void locksStored(@NotNull final BuildPromotion promotion, @NotNull final Map<Lock, String> takenLocks) {
+    final Map<String, Collection<Lock>> locks = new HashMap<>();
+    takenLocks.forEach((lock, value) -> locks.computeIfAbsent(lock.getName(), name -> new ArrayList<>(1)).add(Lock.createFrom(lock, value)));
+    index(promotion.getId(), locks);
+  }
+
+  /**
+   * Returns values held by running builds for given locks.
+   * Value is returned as many times, as many builds hold it.
+   * Values of locks with expired lease are not returned
+   *
+   * @param lockNames names of the locks to get values for
+   * @param excludedPromotionIds promotions, which values should be ignored
+   * @return lock name -> values held by running builds
+   */
+  @NotNull
+  public Map<String, List<String>> getHeldValues(@NotNull final Collection<String> lockNames,
+                                                 @NotNull final TLongHashSet excludedPromotionIds) {
+    ensureInitialized();
+    final Map<String, List<String>> result = new HashMap<>();
+    synchronized (myHeldValues) {
+      for (String name: lockNames) {
+        final List<String> values = new ArrayList<>();
+        final Map<String, TLongHashSet> held = myHeldValues.get(name);
+        if (held != null) {
+          held.forEach((value, holders) -> holders.forEach(id -> {
+            if (!excludedPromotionIds.contains(id) && !myLeases.isExpired(id, name)) {
+              values.add(value);
+            }
+            return true;
+          }));
+        }
+        result.put(name, values);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Ledger is populated lazily from running builds to handle builds,
+   * that were already running when the server (or the plugin) started
+   */
+  private void ensureInitialized() {
+    if (!myInitialized) {
+      synchronized (this) {
+        if (!myInitialized) {
+          myRunningBuildsManager.getRunningBuilds().forEach(build -> add(build, true));
+          myInitialized = true;
+        }
+      }
+    }
+  }
+
+  private void add(@NotNull final SRunningBuild build, final boolean loadStored) {
+    final SBuildType buildType = build.getBuildType();
+    if (buildType == null) {
+      return;
+    }
+    final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(buildType);
+    if (features.isEmpty()) {
+      return;
+    }
+    final BuildPromotionEx promotion = (BuildPromotionEx)build.getBuildPromotion();
+    if (loadStored && !myStoredLocks.containsKey(promotion.getId()) && myLocksStorage.locksStored(promotion)) {
+      // build was started before the ledger was populated. Values were not indexed at build start
+      index(promotion.getId(), myLocksStorage.load(promotion));
+    }
+    if (!myHeldLocks.containsKey(promotion.getId())) {
+      final Map<String, Collection<Lock>> locks = myLocks.fromBuildFeaturesAsMap(features);
+      // leases are acquired outside of the map update and only by the call, that has added the build
+      if (myHeldLocks.putIfAbsent(promotion.getId(), new HeldLocks(promotion, buildType, locks)) == null) {
+        myLeases.acquire(build, buildType.getProjectId(), locks.keySet());
+      }
+    }
+    if (build.isFinished()) {
+      // build has finished while we were adding it
+      remove(build);
+    }
+  }
+
+  private void remove(@NotNull final SRunningBuild build) {
+    final long promotionId = build.getBuildPromotion().getId();
+    unindex(promotionId);
+    myLeases.release(promotionId);
+    if (myHeldLocks.remove(promotionId) != null && LOG.isDebugEnabled()) {
+      LOG.debug("Released locks of build " + build);
+    }
+  }
+
+  private void index(final long promotionId, @NotNull final Map<String, Collection<Lock>> locks) {
+    final Map<String, Collection<Lock>> previous = myStoredLocks.put(promotionId, Collections.unmodifiableMap(locks));
+    synchronized (myHeldValues) {
+      if (previous != null) {
+        unindexValues(promotionId, previous);
+      }
+      locks.values().stream()
+           .flatMap(Collection::stream)
+           .filter(lock -> !"".equals(lock.getValue()))
+           .forEach(lock -> myHeldValues.computeIfAbsent(lock.getName(), k -> new HashMap<>())
+                                        .computeIfAbsent(lock.getValue(), k -> new TLongHashSet())
+                                        .add(promotionId));
+    }
+  }
+
+  private void unindex(final long promotionId) {
+    final Map<String, Collection<Lock>> locks = myStoredLocks.remove(promotionId);
+    if (locks != null) {
+      synchronized (myHeldValues) {
+        unindexValues(promotionId, locks);
+      }
+    }
+  }
+
+  private void unindexValues(final long promotionId, @NotNull final Map<String, Collection<Lock>> locks) {
+    locks.values().stream().flatMap(Collection::stream).forEach(lock -> {
+      final Map<String, TLongHashSet> held = myHeldValues.get(lock.getName());
+      if (held != null) {
+        final TLongHashSet holders = held.get(lock.getValue());
+        if (holders != null) {
+          holders.remove(promotionId);
+          if (holders.isEmpty()) {
+            held.remove(lock.getValue());
+          }
+        }
+        if (held.isEmpty()) {
+          myHeldValues.remove(lock.getName());
+        }
+      }
+    });
+  }
+
+  /**
+   * Locks held by single running build
+   */
+  public final class HeldLocks {
+
+    @NotNull
+    private final BuildPromotionEx myPromotion;
+
+    @NotNull
+    private final SBuildType myBuildType;
+
+    @NotNull
+    private volatile Map<String, Collection<Lock>> myLocks;
+
+    /**
+     * Locks, resolved from build features are replaced by the stored ones,
+     * as soon as the values are assigned and stored at build start
+     */
+    private volatile boolean myStored = false;
+
+    private HeldLocks(@NotNull final BuildPromotionEx promotion,
+                      @NotNull final SBuildType buildType,
+                      @NotNull final Map<String, Collection<Lock>> locks) {
+      myPromotion = promotion;
+      myBuildType = buildType;
+      myLocks = locks;
+    }
+
+    @NotNull
+    public BuildPromotionEx getPromotion() {
+      return myPromotion;
+    }
+
+    @NotNull
+    public String getProjectId() {
+      return myBuildType.getProjectId();
+    }
+
+    /**
+     * Returns locks held by the build. Locks with expired lease are not included
+     *
+     * @return lock name -> locks
+     */
+    @NotNull
+    public Map<String, Collection<Lock>> getLocks() {
+      return myLeases.withoutExpired(myPromotion.getId(), getAllLocks());
+    }
+
+    @NotNull
+    private Map<String, Collection<Lock>> getAllLocks() {
+      if (!myStored) {
+        final Map<String, Collection<Lock>> stored = myStoredLocks.get(myPromotion.getId());
+        if (stored != null) {
+          myLocks = stored;
+          myStored = true;
+        } else if (myLocksStorage.locksStored(myPromotion)) {
+          myLocks = myLocksStorage.load(myPromotion);
+          myStored = true;
+        }
+      }
+      return myLocks;
+    }
+  }
+}
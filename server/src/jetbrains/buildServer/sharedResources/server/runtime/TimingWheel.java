@@ -0,0 +1,209 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.function.Consumer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Class {@code TimingWheel}
+ *
+ * Hashed timing wheel. Scheduled entries are put into the bucket of their deadline tick,
+ * so that advancing the wheel by one tick only visits entries of a single bucket.
+ * Entries with deadline further than one revolution stay in their bucket until the wheel comes round to them.
+ *
+ * Scheduling and cancellation cost O(1). Time is supplied by the caller.
+ * Not thread safe, callers synchronize access to the wheel
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class TimingWheel<T> {
+
+  private final long myTickMillis;
+
+  private final int myMask;
+
+  @NotNull
+  private final Bucket<T>[] myBuckets;
+
+  /**
+   * Last processed tick
+   */
+  private long myCurrentTick;
+
+  private int mySize = 0;
+
+  /**
+   * @param tickMillis duration of one tick in milliseconds
+   * @param wheelSize number of buckets, rounded up to the power of two
+   * @param startMillis time the wheel starts at
+   */
+  @SuppressWarnings("unchecked")
+  public TimingWheel(final long tickMillis, final int wheelSize, final long startMillis) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("Tick duration must be positive: " + tickMillis);
+    }
+    if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+      throw new IllegalArgumentException("Wheel size must be in range (0, 2^30]: " + wheelSize);
+    }
+    int size = 1;
+    while (size < wheelSize) {
+      size <<= 1;
+    }
+    myTickMillis = tickMillis;
+    myMask = size - 1;
+    myBuckets = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      myBuckets[i] = new Bucket<>();
+    }
+    myCurrentTick = startMillis / tickMillis;
+  }
+
+  /**
+   * Schedules expiration of the payload
+   *
+   * @param payload payload to expire
+   * @param deadlineMillis time of expiration. Deadlines in the past expire on the next tick
+   * @return entry, that can be used to cancel expiration
+   */
+  @NotNull
+  public Entry<T> schedule(@NotNull final T payload, final long deadlineMillis) {
+    // round up, so that entry never expires before its deadline
+    final long deadlineTick = Math.max(Math.floorDiv(deadlineMillis + myTickMillis - 1, myTickMillis), myCurrentTick + 1);
+    final Entry<T> entry = new Entry<>(payload, deadlineTick);
+    myBuckets[(int)(deadlineTick & myMask)].add(entry);
+    mySize++;
+    return entry;
+  }
+
+  /**
+   * Cancels expiration of the entry. Cancelling expired or already cancelled entry has no effect
+   *
+   * @param entry entry to cancel
+   */
+  public void cancel(@NotNull final Entry<T> entry) {
+    if (entry.myBucket != null) {
+      entry.myBucket.remove(entry);
+      mySize--;
+    }
+  }
+
+  /**
+   * Advances the wheel to the given time, passing payloads of expired entries to the consumer.
+   * Each elapsed tick visits one bucket. If more than one revolution elapsed, each bucket is visited once
+   *
+   * @param nowMillis current time
+   * @param expired consumer of expired payloads
+   */
+  public void advance(final long nowMillis, @NotNull final Consumer<T> expired) {
+    final long targetTick = nowMillis / myTickMillis;
+    final long ticks = Math.min(targetTick - myCurrentTick, myBuckets.length);
+    for (long i = 1; i <= ticks; i++) {
+      myBuckets[(int)((myCurrentTick + i) & myMask)].expire(targetTick, entry -> {
+        mySize--;
+        expired.accept(entry.myPayload);
+      });
+    }
+    if (targetTick > myCurrentTick) {
+      myCurrentTick = targetTick;
+    }
+  }
+
+  /**
+   * @return number of scheduled entries
+   */
+  public int size() {
+    return mySize;
+  }
+
+  public static final class Entry<T> {
+
+    @NotNull
+    private final T myPayload;
+
+    private final long myDeadlineTick;
+
+    @Nullable
+    private Bucket<T> myBucket;
+
+    @Nullable
+    private Entry<T> myPrev;
+
+    @Nullable
+    private Entry<T> myNext;
+
+    private Entry(@NotNull final T payload, final long deadlineTick) {
+      myPayload = payload;
+      myDeadlineTick = deadlineTick;
+    }
+
+    @NotNull
+    public T getPayload() {
+      return myPayload;
+    }
+
+    public boolean isScheduled() {
+      return myBucket != null;
+    }
+  }
+
+  /**
+   * Doubly linked list of entries
+   */
+  private static final class Bucket<T> {
+
+    @Nullable
+    private Entry<T> myHead;
+
+    void add(@NotNull final Entry<T> entry) {
+      entry.myBucket = this;
+      entry.myPrev = null;
+      entry.myNext = myHead;
+      if (myHead != null) {
+        myHead.myPrev = entry;
+      }
+      myHead = entry;
+    }
+
+    void remove(@NotNull final Entry<T> entry) {
+      if (entry.myPrev != null) {
+        entry.myPrev.myNext = entry.myNext;
+      } else {
+        myHead = entry.myNext;
+      }
+      if (entry.myNext != null) {
+        entry.myNext.myPrev = entry.myPrev;
+      }
+      entry.myBucket = null;
+      entry.myPrev = null;
+      entry.myNext = null;
+    }
+
+    void expire(final long tick, @NotNull final Consumer<Entry<T>> expired) {
+      Entry<T> entry = myHead;
+      while (entry != null) {
+        final Entry<T> next = entry.myNext;
+        if (entry.myDeadlineTick <= tick) {
+          remove(entry);
+          expired.accept(entry);
+        }
+        entry = next;
+      }
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIntHashMap;
+import java.util.*;
+import java.util.function.Supplier;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Builds, waiting for write access to the resources during the distribution cycle.
+ * Each resource has its own queue of waiting writers, ordered by position of the builds in the build queue.
+ * Build queue is ordered by priority, so the position reflects priority of the build too.
+ *
+ * Reader is blocked only if admitting it would delay an earlier writer. Writer, that cannot take
+ * some of its other locks anyway (quota or values are taken, resource is disabled), is marked as blocked
+ * and does not stop readers. As soon as only write access keeps the writer waiting, readers after it
+ * are blocked again, so the writer does not starve. Queues are keyed by resource id, so resources
+ * with the same name in different projects do not affect each other.
+ *
+ * Belongs to a single distribution cycle and is not thread safe
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+public class WaiterQueues {
+
+  /**
+   * Position of the build, that is not found in the build queue.
+   * Such builds are considered to be after all queued builds. Such writers (queued composite builds of the chains)
+   * block all readers, such readers are blocked by any writer, that is not marked as blocked
+   */
+  static final int UNKNOWN_POSITION = Integer.MAX_VALUE;
+
+  /**
+   * Resource id -> writers, waiting for the resource, ordered by position
+   */
+  @NotNull
+  private final Map<String, List<Waiter>> myQueues = new HashMap<>();
+
+  /**
+   * Promotion ids of all waiting writers
+   */
+  @NotNull
+  private final TLongHashSet myWriters = new TLongHashSet();
+
+  /**
+   * Provider of the queued builds in the order of distribution. Positions are computed on first access
+   */
+  @Nullable
+  private Supplier<? extends Collection<QueuedBuildInfo>> myQueuedBuilds = null;
+
+  /**
+   * Promotion id -> position in the build queue
+   */
+  @Nullable
+  private TLongIntHashMap myPositions = null;
+
+  /**
+   * Version of the queues. Changes every time a writer is added or marked as blocked
+   */
+  private int myVersion = 0;
+
+  /**
+   * Immutable snapshot of all waiters, shared until the queues change
+   */
+  @NotNull
+  private Set<Waiter> mySnapshot = Collections.emptySet();
+
+  private int mySnapshotVersion = 0;
+
+  /**
+   * Sets the queued builds, used to order the waiters. Only the first provider, set during the cycle, is used
+   *
+   * @param queuedBuilds provider of the queued builds in the order of distribution
+   */
+  public void setQueuedBuilds(@NotNull final Supplier<? extends Collection<QueuedBuildInfo>> queuedBuilds) {
+    if (myQueuedBuilds == null) {
+      myQueuedBuilds = queuedBuilds;
+    }
+  }
+
+  /**
+   * Returns position of the build in the build queue
+   *
+   * @param promotion promotion of the build
+   * @return position of the build, {@link #UNKNOWN_POSITION} if the build is not in the queue
+   */
+  public int getPosition(@NotNull final BuildPromotion promotion) {
+    if (myPositions == null) {
+      myPositions = new TLongIntHashMap();
+      if (myQueuedBuilds != null) {
+        int position = 0;
+        for (QueuedBuildInfo build : myQueuedBuilds.get()) {
+          myPositions.put(build.getBuildPromotionInfo().getId(), position++);
+        }
+      }
+    }
+    final long id = promotion.getId();
+    return myPositions.containsKey(id) ? myPositions.get(id) : UNKNOWN_POSITION;
+  }
+
+  /**
+   * Remembers write access request on the resource
+   *
+   * @param resource requested resource
+   * @param promotion promotion of the waiting build
+   */
+  public void addWriter(@NotNull final Resource resource, @NotNull final BuildPromotion promotion) {
+    add(new Waiter(resource.getId(), promotion.getId(), getPosition(promotion), false));
+  }
+
+  /**
+   * Marks writers of the build as blocked. The build cannot take some other lock anyway,
+   * so readers of the resources it waits for do not delay it
+   *
+   * @param promotion promotion of the waiting build
+   */
+  public void writerBlocked(@NotNull final BuildPromotion promotion) {
+    final long promotionId = promotion.getId();
+    if (!myWriters.contains(promotionId)) {
+      return;
+    }
+    for (List<Waiter> queue : myQueues.values()) {
+      for (int i = 0; i < queue.size(); i++) {
+        final Waiter waiter = queue.get(i);
+        if (waiter.getPromotionId() == promotionId && !waiter.isBlocked()) {
+          queue.set(i, new Waiter(waiter.getResourceId(), promotionId, waiter.getPosition(), true));
+          myVersion++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks whether read access to the resource would delay any of the waiting writers
+   *
+   * @param resource requested resource
+   * @param promotion promotion of the reading build
+   * @return {@code true} if some writer, that is not blocked, is waiting for the resource before the reader,
+   * or the resource is waited for by a writer outside the build queue
+   */
+  public boolean isReaderBlocked(@NotNull final Resource resource, @NotNull final BuildPromotion promotion) {
+    final List<Waiter> queue = myQueues.get(resource.getId());
+    if (queue == null) {
+      return false;
+    }
+    final int position = getPosition(promotion);
+    // queue is ordered, writers outside the build queue are the last ones
+    for (Waiter writer : queue) {
+      if (writer.getPosition() == UNKNOWN_POSITION) {
+        return true;
+      }
+      if (writer.getPosition() > position) {
+        return false;
+      }
+      if (!writer.isBlocked()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param resource resource
+   * @return writers, waiting for the resource, ordered by position
+   */
+  @NotNull
+  public List<Waiter> getWaiters(@NotNull final Resource resource) {
+    final List<Waiter> queue = myQueues.get(resource.getId());
+    return queue != null ? Collections.unmodifiableList(queue) : Collections.emptyList();
+  }
+
+  public int getVersion() {
+    return myVersion;
+  }
+
+  /**
+   * Returns immutable snapshot of all waiters. Snapshot is reused while the queues do not change
+   *
+   * @return snapshot of all waiters
+   */
+  @NotNull
+  public Set<Waiter> snapshot() {
+    if (mySnapshotVersion != myVersion) {
+      final Set<Waiter> result = new HashSet<>();
+      myQueues.values().forEach(result::addAll);
+      mySnapshot = Collections.unmodifiableSet(result);
+      mySnapshotVersion = myVersion;
+    }
+    return mySnapshot;
+  }
+
+  /**
+   * @param waiters snapshot of the waiters
+   * @return {@code true} if queues contain exactly the given waiters
+   */
+  public boolean contentEquals(@NotNull final Set<Waiter> waiters) {
+    return snapshot().equals(waiters);
+  }
+
+  /**
+   * Adds waiters, that are not in the queues yet
+   *
+   * @param waiters waiters to add
+   */
+  public void addAll(@NotNull final Collection<Waiter> waiters) {
+    waiters.forEach(this::add);
+  }
+
+  private void add(@NotNull final Waiter waiter) {
+    final List<Waiter> queue = myQueues.computeIfAbsent(waiter.getResourceId(), k -> new ArrayList<>(2));
+    int index = queue.size();
+    while (index > 0 && queue.get(index - 1).getPosition() > waiter.getPosition()) {
+      index--;
+    }
+    for (int i = index - 1; i >= 0 && queue.get(i).getPosition() == waiter.getPosition(); i--) {
+      final Waiter existing = queue.get(i);
+      if (existing.getPromotionId() == waiter.getPromotionId()) {
+        if (existing.isBlocked() != waiter.isBlocked()) {
+          queue.set(i, waiter);
+          myVersion++;
+        }
+        return;
+      }
+    }
+    queue.add(index, waiter);
+    myWriters.add(waiter.getPromotionId());
+    myVersion++;
+  }
+
+  public static final class Waiter {
+
+    @NotNull
+    private final String myResourceId;
+
+    private final long myPromotionId;
+
+    private final int myPosition;
+
+    /**
+     * Writer cannot take some other lock anyway and does not block readers
+     */
+    private final boolean myBlocked;
+
+    Waiter(@NotNull final String resourceId, final long promotionId, final int position, final boolean blocked) {
+      myResourceId = resourceId;
+      myPromotionId = promotionId;
+      myPosition = position;
+      myBlocked = blocked;
+    }
+
+    @NotNull
+    public String getResourceId() {
+      return myResourceId;
+    }
+
+    public long getPromotionId() {
+      return myPromotionId;
+    }
+
+    public int getPosition() {
+      return myPosition;
+    }
+
+    public boolean isBlocked() {
+      return myBlocked;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      final Waiter waiter = (Waiter)o;
+      return myPromotionId == waiter.myPromotionId && myPosition == waiter.myPosition && myBlocked == waiter.myBlocked
+             && myResourceId.equals(waiter.myResourceId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * (31 * myResourceId.hashCode() + Long.hashCode(myPromotionId)) + myPosition) + (myBlocked ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+      return "Waiter{resource=" + myResourceId + ", promotion=" + myPromotionId + ", position=" + myPosition + ", blocked=" + myBlocked + "}";
+    }
+  }
+}
@@ -20,8 +20,7 @@ import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
 
-import java.util.Random;
-import java.util.UUID;
+import java.util.*;
 
 /**
  * Created with IntelliJ IDEA.
@@ -76,4 +75,42 @@ public class TestUtils {
   public static String generateRandomName() {
     return UUID.randomUUID().toString();
   }
+
+  /**
+   * Groups locks by resource name, as they are defined in build features
+   * @return resource name -> locks on the resource
+   */
+  public static Map<String, Collection<Lock>> asLocksMap(Collection<Lock> locks) {
+    final Map<String, Collection<Lock>> result = new LinkedHashMap<>();
+    for (Lock lock: locks) {
+      result.computeIfAbsent(lock.getName(), name -> new ArrayList<>()).add(lock);
+    }
+    return result;
+  }
+
+  public static Map<String, Collection<Lock>> asLocksMap(Lock... locks) {
+    return asLocksMap(Arrays.asList(locks));
+  }
+
+  /**
+   * Gets the only lock on the resource
+   * @return lock on the resource
+   */
+  public static Lock singleLock(Map<String, Collection<Lock>> locks, String name) {
+    final Collection<Lock> resourceLocks = locks.get(name);
+    if (resourceLocks == null || resourceLocks.size() != 1) {
+      throw new AssertionError("Expected single lock on resource '" + name + "', found: " + resourceLocks);
+    }
+    return resourceLocks.iterator().next();
+  }
+
+  /**
+   * Gets all locks, grouped by resource name, in a single list
+   * @return list of all locks
+   */
+  public static List<Lock> flattenLocks(Map<String, Collection<Lock>> locks) {
+    final List<Lock> result = new ArrayList<>();
+    locks.values().forEach(result::addAll);
+    return result;
+  }
 }
@@ -77,6 +77,9 @@ public class ResourceHelperTest extends BaseTestCase {
       oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_TYPE);
       will(returnValue(ResourceType.QUOTED.name()));
 
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE);
+      will(returnValue(null));
+
       oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_QUOTA);
       will(returnValue(null));
     }});
@@ -100,6 +103,9 @@ public class ResourceHelperTest extends BaseTestCase {
       oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_TYPE);
       will(returnValue(ResourceType.QUOTED.name()));
 
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE);
+      will(returnValue(null));
+
       oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_QUOTA);
       will(returnValue("1"));
     }});
@@ -124,6 +130,9 @@ public class ResourceHelperTest extends BaseTestCase {
       oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_TYPE);
       will(returnValue(ResourceType.CUSTOM.name()));
 
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE);
+      will(returnValue(null));
+
       oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_VALUES);
       will(returnValue("value1\r\nvalue2\r\nvalue3"));
     }});
@@ -151,6 +160,9 @@ public class ResourceHelperTest extends BaseTestCase {
       oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_TYPE);
       will(returnValue(ResourceType.QUOTED.name()));
 
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE);
+      will(returnValue(null));
+
       oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_QUOTA);
       will(returnValue("some value"));
     }});
@@ -158,6 +170,50 @@ public class ResourceHelperTest extends BaseTestCase {
     assertNull(rc);
   }
 
+  @Test
+  public void testGetResourceFromRequest_Lease() {
+    m.checking(new Expectations() {{
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_ID);
+      will(returnValue("my_id"));
+
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_NAME);
+      will(returnValue(RESOURCE_NAME));
+
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_TYPE);
+      will(returnValue(ResourceType.QUOTED.name()));
+
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE);
+      will(returnValue("600"));
+
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_QUOTA);
+      will(returnValue("1"));
+    }});
+    final Resource rc = myHelper.getResourceFromRequest(PROJECT_ID, myRequest);
+    assertNotNull(rc);
+    assertEquals(600, rc.getLease());
+    assertEquals("600", rc.getParameters().get(SharedResourcesPluginConstants.ProjectFeatureParameters.LEASE));
+    validateResourceParameters(rc);
+  }
+
+  @Test
+  public void testGetResourceFromRequest_Invalid_Lease() {
+    m.checking(new Expectations() {{
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_ID);
+      will(returnValue("my_id"));
+
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_NAME);
+      will(returnValue(RESOURCE_NAME));
+
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_TYPE);
+      will(returnValue(ResourceType.CUSTOM.name()));
+
+      oneOf(myRequest).getParameter(SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_LEASE);
+      will(returnValue("-5"));
+    }});
+    final Resource rc = myHelper.getResourceFromRequest(PROJECT_ID, myRequest);
+    assertNull(rc);
+  }
+
   @Test
   public void testGetResourceFromRequest_Invalid_Type() {
     m.checking(new Expectations() {{
@@ -199,6 +255,15 @@ public class ResourceHelperTest extends BaseTestCase {
       assertFalse(result.isEnabled());
       validateResourceParameters(result);
     }
+
+    {
+      final Resource rc = ResourceFactory.newQuotedResource(RESOURCE_NAME + "id", PROJECT_ID, RESOURCE_NAME, 1, true, 60);
+      final Resource result = myHelper.getResourceInState(PROJECT_ID, rc, false);
+      assertEquals(rc, result);
+      assertFalse(result.isEnabled());
+      assertEquals(60, result.getLease());
+      validateResourceParameters(result);
+    }
   }
 
   private void validateResourceParameters(@NotNull final Resource resource) {
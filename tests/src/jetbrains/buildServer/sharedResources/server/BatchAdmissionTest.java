@@ -0,0 +1,413 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server;
+
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.buildDistribution.*;
+import jetbrains.buildServer.sharedResources.model.DistributionData;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.feature.*;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
+import jetbrains.buildServer.sharedResources.server.runtime.*;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks, that verdicts computed for the whole queue are the same as verdicts of the builds, checked one by one
+ *
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = {SharedResourcesAgentsFilter.class, AdmissionVerdicts.class})
+public class BatchAdmissionTest extends BaseTestCase {
+
+  private static final String PROJECT_ID = "PROJECT_ID";
+
+  private static final int QUEUE_SIZE = 60;
+
+  /**
+   * Every n-th build of the queue is a part of the build chain
+   */
+  private static final int CHAIN_BUILD_FREQUENCY = 4;
+
+  private enum ChainKind {
+    NO_COMPOSITE,
+    FREE_COMPOSITE,
+    LOCKED_COMPOSITE
+  }
+
+  private Mockery m;
+
+  private SharedResourcesFeatures myFeatures;
+
+  private TakenLocksImpl myTakenLocks;
+
+  private SharedResourcesAgentsFilter myFilter;
+
+  private SBuildAgent myAgent;
+
+  private Map<String, Resource> myResources;
+
+  private SharedResourcesMetrics myMetrics;
+
+  private long myNextPromotionId = 1;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    myResources = new HashMap<>();
+    myResources.put("quoted", ResourceFactory.newQuotedResource("quoted_id", PROJECT_ID, "quoted", 2, true));
+    myResources.put("custom", ResourceFactory.newCustomResource("custom_id", PROJECT_ID, "custom", Arrays.asList("v1", "v2", "v3"), true));
+    myResources.put("infinite", ResourceFactory.newInfiniteResource("infinite_id", PROJECT_ID, "infinite", true));
+
+    final Locks locks = new LocksImpl();
+    final Resources resources = m.mock(Resources.class);
+    final LocksStorage locksStorage = m.mock(LocksStorage.class);
+    final TakenLocksLedger ledger = m.mock(TakenLocksLedger.class);
+    final ConfigurationInspector inspector = m.mock(ConfigurationInspector.class);
+    myFeatures = m.mock(SharedResourcesFeatures.class);
+    myAgent = m.mock(SBuildAgent.class);
+    m.checking(new Expectations() {{
+      allowing(resources).getResourcesMap(PROJECT_ID);
+      will(returnValue(myResources));
+
+      allowing(ledger).getHeldLocks();
+      will(returnValue(Collections.emptyList()));
+
+      allowing(inspector).inspect(with(any(SBuildType.class)));
+      will(returnValue(Collections.emptyMap()));
+
+      // composite builds of the chains are not running
+      allowing(locksStorage).locksStored(with(any(BuildPromotion.class)));
+      will(returnValue(false));
+    }});
+    myMetrics = new SharedResourcesMetrics();
+    myTakenLocks = new TakenLocksImpl(locks, resources, myFeatures, ledger, myMetrics);
+    myFilter = new SharedResourcesAgentsFilter(myFeatures, locks, myTakenLocks, inspector, locksStorage, resources, myMetrics);
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    m.assertIsSatisfied();
+    super.tearDown();
+  }
+
+  @Test
+  public void testAllAdmittedBuildsDistributed() {
+    for (long seed = 0; seed < 5; seed++) {
+      final List<QueuedBuildInfo> queue = createQueue(new Random(seed), true, false);
+      final List<String> expected = runCycle(queue, false, index -> true);
+      final List<String> actual = runCycle(queue, true, index -> true);
+      assertEquals("Seed " + seed, expected, actual);
+    }
+  }
+
+  @Test
+  public void testSomeAdmittedBuildsNotDistributed() {
+    for (long seed = 0; seed < 5; seed++) {
+      final List<QueuedBuildInfo> queue = createQueue(new Random(seed), true, false);
+      // every third build has no compatible agents
+      final List<String> expected = runCycle(queue, false, index -> index % 3 != 0);
+      final List<String> actual = runCycle(queue, true, index -> index % 3 != 0);
+      assertEquals("Seed " + seed, expected, actual);
+    }
+  }
+
+  @Test
+  public void testVerdictsMatchUnavailableLocks() {
+    for (long seed = 0; seed < 5; seed++) {
+      // locks on any value of custom resource are assigned by the filter, so they are not used here
+      final List<QueuedBuildInfo> queue = createQueue(new Random(seed), false, false);
+      final AdmissionVerdicts verdicts = myFilter.computeAdmissionVerdicts(queue, new DistributionDataAccessor(new DistributionData()));
+      assertEquals(queue.size(), verdicts.size());
+
+      final Map<Resource, TakenLock> takenLocks = myTakenLocks.collectRunningLocks();
+      final DistributionDataAccessor accessor = new DistributionDataAccessor(new DistributionData());
+      accessor.getWaiterQueues().setQueuedBuilds(() -> queue);
+      final Map<QueuedBuildInfo, SBuildAgent> distributed = new LinkedHashMap<>();
+      for (QueuedBuildInfo build : queue) {
+        final BuildPromotionEx promotion = (BuildPromotionEx)build.getBuildPromotionInfo();
+        final Map<String, Collection<Lock>> locksToTake = getLocks(promotion);
+        final boolean available = locksToTake.isEmpty()
+                                  || myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, PROJECT_ID, accessor, promotion).isEmpty();
+        final AdmissionVerdicts.Verdict verdict = verdicts.lookup(promotion, distributed, accessor.getWaiterQueues());
+        assertNotNull(verdict);
+        verdicts.checked(build);
+        assertEquals("Seed " + seed + ", build " + promotion.getId(), available, verdict.getReason() == null);
+        if (available) {
+          myTakenLocks.addDistributedLocks(takenLocks, Collections.singletonList(build));
+          distributed.put(build, myAgent);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testVerdictsInvalidatedByBuildOutsideOfPass() {
+    final List<QueuedBuildInfo> queue = createQueue(new Random(0), false, false);
+    final AdmissionVerdicts verdicts = myFilter.computeAdmissionVerdicts(queue, new DistributionDataAccessor(new DistributionData()));
+    final DistributionDataAccessor accessor = new DistributionDataAccessor(new DistributionData());
+    accessor.getWaiterQueues().setQueuedBuilds(() -> queue);
+    final BuildPromotion first = queue.get(0).getBuildPromotionInfo();
+    final Map<QueuedBuildInfo, SBuildAgent> distributed = new LinkedHashMap<>();
+    assertNotNull(verdicts.lookup(first, distributed, accessor.getWaiterQueues()));
+    // build, that was not checked by the pass, is distributed
+    final QueuedBuildInfo other = createQueuedBuild("other", Collections.emptyMap(), null);
+    distributed.put(other, myAgent);
+    assertNull(verdicts.lookup(first, distributed, accessor.getWaiterQueues()));
+    // build is not distributed anymore
+    distributed.remove(other);
+    assertNotNull(verdicts.lookup(first, distributed, accessor.getWaiterQueues()));
+  }
+
+  @Test
+  public void testChainBuildsInTheMiddleOfQueue() {
+    for (long seed = 0; seed < 5; seed++) {
+      final List<QueuedBuildInfo> queue = createQueue(new Random(seed), true, true);
+      assertEquals("Seed " + seed, runCycle(queue, false, index -> true), runCycle(queue, true, index -> true));
+      assertEquals("Seed " + seed, runCycle(queue, false, index -> index % 3 != 0), runCycle(queue, true, index -> index % 3 != 0));
+
+      // only builds, which composite builds request locks, are left for the check one by one
+      final AdmissionVerdicts verdicts = myFilter.computeAdmissionVerdicts(queue, new DistributionDataAccessor(new DistributionData()));
+      assertEquals("Seed " + seed, queue.size() - QUEUE_SIZE / CHAIN_BUILD_FREQUENCY / ChainKind.values().length, verdicts.size());
+    }
+  }
+
+  @Test
+  public void testRunningLocksCollectedOncePerCycle() {
+    final List<QueuedBuildInfo> queue = createQueue(new Random(0), true, true);
+    final SharedResourcesMetrics.LatencyHistogram latency = myMetrics.getLatency(SharedResourcesMetrics.Operation.COLLECT_RUNNING_LOCKS);
+    final long before = latency.getCount();
+    runCycle(queue, true, index -> index % 3 != 0);
+    assertEquals(1, latency.getCount() - before);
+  }
+
+  @NotNull
+  private List<String> runCycle(@NotNull final List<QueuedBuildInfo> queue,
+                                final boolean batch,
+                                @NotNull final java.util.function.IntPredicate hasAgent) {
+    setInternalProperty(SharedResourcesAgentsFilter.BATCH_ADMISSION_ENABLED, String.valueOf(batch));
+    final List<String> result = new ArrayList<>();
+    final Map<String, Object> customData = new HashMap<>();
+    final Map<QueuedBuildInfo, SBuildAgent> distributed = new LinkedHashMap<>();
+    for (int i = 0; i < queue.size(); i++) {
+      final QueuedBuildInfo build = queue.get(i);
+      final AgentsFilterContext context = createContext(customData, build, distributed, queue);
+      final WaitReason reason = myFilter.filterAgents(context).getWaitReason();
+      if (reason == null) {
+        final Map<String, String> affinity = new DistributionDataAccessor(context).getResourceAffinity()
+                                                                                  .getRequestedValues(build.getBuildPromotionInfo());
+        result.add(i + ": admitted " + new TreeMap<>(affinity));
+        if (hasAgent.test(i)) {
+          distributed.put(build, myAgent);
+        }
+      } else {
+        result.add(i + ": " + reason.getDescription());
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private List<QueuedBuildInfo> createQueue(@NotNull final Random random, final boolean anyValueLocks, final boolean withChains) {
+    final List<QueuedBuildInfo> result = new ArrayList<>();
+    for (int i = 0; i < QUEUE_SIZE; i++) {
+      final Map<String, Collection<Lock>> locks = new HashMap<>();
+      if (i % 5 != 0) {
+        final int count = 1 + random.nextInt(2);
+        for (int j = 0; j < count; j++) {
+          final Lock lock = randomLock(random, anyValueLocks);
+          locks.putIfAbsent(lock.getName(), Collections.singletonList(lock));
+        }
+      }
+      final ChainKind chainKind = withChains && i % CHAIN_BUILD_FREQUENCY == CHAIN_BUILD_FREQUENCY - 1
+                                  ? ChainKind.values()[(i / CHAIN_BUILD_FREQUENCY) % ChainKind.values().length]
+                                  : null;
+      result.add(createQueuedBuild("build_" + i, locks, chainKind));
+    }
+    return result;
+  }
+
+  @NotNull
+  private Lock randomLock(@NotNull final Random random, final boolean anyValueLocks) {
+    final LockType type = random.nextInt(4) == 0 ? LockType.WRITE : LockType.READ;
+    switch (random.nextInt(3)) {
+      case 0:
+        return new Lock("quoted", type);
+      case 1:
+        if (type == LockType.READ) {
+          if (anyValueLocks && random.nextBoolean()) {
+            return new Lock("custom", LockType.READ);
+          }
+          return new Lock("custom", LockType.READ, "v" + (1 + random.nextInt(3)));
+        }
+        return new Lock("custom", LockType.WRITE);
+      default:
+        return new Lock("infinite", type);
+    }
+  }
+
+  @NotNull
+  private QueuedBuildInfo createQueuedBuild(@NotNull final String name,
+                                            @NotNull final Map<String, Collection<Lock>> locks,
+                                            @Nullable final ChainKind chainKind) {
+    final QueuedBuildInfo build = m.mock(QueuedBuildInfo.class, name);
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class, name + "-promotion");
+    final BuildTypeEx buildType = m.mock(BuildTypeEx.class, name + "-buildType");
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class, name + "-feature");
+    final long id = myNextPromotionId++;
+    final List<BuildPromotionEx> compositePromotions = chainKind == null || chainKind == ChainKind.NO_COMPOSITE
+                                                       ? Collections.emptyList()
+                                                       : Collections.singletonList(createCompositePromotion(name + "-composite", chainKind == ChainKind.LOCKED_COMPOSITE));
+    m.checking(new Expectations() {{
+      allowing(build).getBuildPromotionInfo();
+      will(returnValue(promotion));
+
+      allowing(promotion).getId();
+      will(returnValue(id));
+
+      allowing(promotion).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(promotion).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(promotion).isPartOfBuildChain();
+      will(returnValue(chainKind != null));
+
+      allowing(promotion).getDependentCompositePromotions();
+      will(returnValue(compositePromotions));
+
+      allowing(promotion).getQueuedBuild();
+      will(returnValue(null));
+
+      allowing(buildType).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(buildType).getExtendedFullName();
+      will(returnValue(name));
+
+      allowing(myFeatures).searchForFeatures(buildType);
+      will(returnValue(locks.isEmpty() ? Collections.emptyList() : Collections.singletonList(feature)));
+
+      allowing(feature).getLockedResources();
+      will(returnValue(locks));
+    }});
+    return build;
+  }
+
+  @NotNull
+  private BuildPromotionEx createCompositePromotion(@NotNull final String name, final boolean requestsLocks) {
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class, name + "-promotion");
+    final SQueuedBuild queuedBuild = m.mock(SQueuedBuild.class, name);
+    final SBuildType buildType = m.mock(SBuildType.class, name + "-buildType");
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class, name + "-feature");
+    final long id = myNextPromotionId++;
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(id));
+
+      allowing(promotion).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(promotion).getQueuedBuild();
+      will(returnValue(queuedBuild));
+
+      allowing(queuedBuild).getBuildPromotion();
+      will(returnValue(promotion));
+
+      allowing(queuedBuild).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(buildType).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(myFeatures).searchForFeatures(buildType);
+      will(returnValue(requestsLocks ? Collections.singletonList(feature) : Collections.emptyList()));
+
+      allowing(feature).getLockedResources();
+      will(returnValue(Collections.singletonMap("quoted", Collections.singletonList(new Lock("quoted", LockType.WRITE)))));
+    }});
+    return promotion;
+  }
+
+  @NotNull
+  private Map<String, Collection<Lock>> getLocks(@NotNull final BuildPromotionEx promotion) {
+    //noinspection ConstantConditions
+    final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(promotion.getBuildType());
+    return features.isEmpty() ? Collections.emptyMap() : features.iterator().next().getLockedResources();
+  }
+
+  @NotNull
+  private AgentsFilterContext createContext(@NotNull final Map<String, Object> customData,
+                                            @NotNull final QueuedBuildInfo startingBuild,
+                                            @NotNull final Map<QueuedBuildInfo, SBuildAgent> distributed,
+                                            @NotNull final List<QueuedBuildInfo> queue) {
+    final BuildDistributorInput input = m.mock(BuildDistributorInput.class, "input-" + startingBuild.getBuildPromotionInfo().getId() + "-" + customData.size());
+    m.checking(new Expectations() {{
+      allowing(input).getQueuedBuilds();
+      will(returnValue(queue));
+    }});
+    return new DefaultAgentsFilterContext(customData) {
+      @NotNull
+      @Override
+      public QueuedBuildInfo getStartingBuild() {
+        return startingBuild;
+      }
+
+      @NotNull
+      @Override
+      public Collection<SBuildAgent> getAgentsForStartingBuild() {
+        return Collections.singletonList(myAgent);
+      }
+
+      @NotNull
+      @Override
+      public Map<QueuedBuildInfo, SBuildAgent> getDistributedBuilds() {
+        return distributed;
+      }
+
+      @NotNull
+      @Override
+      public BuildDistributorInput getDistributorInput() {
+        return input;
+      }
+
+      @Override
+      public boolean isEmulationMode() {
+        return false;
+      }
+    };
+  }
+}
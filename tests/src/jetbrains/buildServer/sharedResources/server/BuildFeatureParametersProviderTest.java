@@ -139,10 +139,10 @@ public class BuildFeatureParametersProviderTest extends BaseTestCase {
       add(myFeature);
     }};
 
-    final Map<String, Lock> locksMap = new HashMap<String, Lock>() {{
-      put("lock1", new Lock("lock1", LockType.READ));
-      put("lock2", new Lock("lock2", LockType.WRITE));
-      put("lock3", new Lock("lock3", LockType.READ));
+    final Map<String, Collection<Lock>> locksMap = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Collections.singletonList(new Lock("lock1", LockType.READ)));
+      put("lock2", Collections.singletonList(new Lock("lock2", LockType.WRITE)));
+      put("lock3", Collections.singletonList(new Lock("lock3", LockType.READ)));
     }};
 
     m.checking(new Expectations() {{
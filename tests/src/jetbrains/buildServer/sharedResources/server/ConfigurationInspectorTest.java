@@ -18,6 +18,8 @@ package jetbrains.buildServer.sharedResources.server;
 
 import java.util.*;
 import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.sharedResources.model.Lock;
@@ -27,6 +29,9 @@ import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeaturesImpl;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.testng.annotations.AfterMethod;
@@ -48,8 +53,12 @@ public class ConfigurationInspectorTest extends BaseTestCase {
 
   private ConfigurationInspector myInspector;
 
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
   private SProject myProject;
 
+  private ProjectManager myProjectManager;
+
   private static final String PROJECT_ID = "MY_PROJECT";
 
   @BeforeMethod
@@ -59,7 +68,9 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     m = new Mockery();
     myResources = m.mock(Resources.class);
     myFeatures = m.mock(SharedResourcesFeatures.class);
-    myInspector = new ConfigurationInspector(myFeatures, myResources);
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myProjectManager = m.mock(ProjectManager.class);
+    myInspector = new ConfigurationInspector(myDispatcher, new ResourceProjectFeaturesImpl(), myFeatures, myResources, myProjectManager);
     myProject = m.mock(SProject.class, "My Project");
     myFeature = m.mock(SharedResourcesFeature.class, "my-default-feature");
   }
@@ -76,10 +87,10 @@ public class ConfigurationInspectorTest extends BaseTestCase {
   @Test
   @SuppressWarnings("Duplicates")
   public void testInspect_SingleFeature_Correct() {
-    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
-      put("lock1", new Lock("lock1", LockType.READ));
-      put("lock2", new Lock("lock2", LockType.WRITE));
-      put("lock3", new Lock("lock3", LockType.WRITE, "value1"));
+    final Map<String, Collection<Lock>> locks = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Collections.singletonList(new Lock("lock1", LockType.READ)));
+      put("lock2", Collections.singletonList(new Lock("lock2", LockType.WRITE)));
+      put("lock3", Collections.singletonList(new Lock("lock3", LockType.WRITE, "value1")));
     }};
     final List<Resource> resources = new ArrayList<Resource>() {{
       add(ResourceFactory.newInfiniteResource("lock1", PROJECT_ID, "lock1", true));
@@ -109,8 +120,8 @@ public class ConfigurationInspectorTest extends BaseTestCase {
   @SuppressWarnings("Duplicates")
   public void testInspect_SingleFeature_DuplicateResource_Locked() {
     final Lock lock = new Lock("lock1", LockType.READ);
-    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
-      put("lock1", lock);
+    final Map<String, Collection<Lock>> locks = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Collections.singletonList(lock));
     }};
 
     final List<Resource> resources = new ArrayList<Resource>() {{
@@ -137,8 +148,8 @@ public class ConfigurationInspectorTest extends BaseTestCase {
   @SuppressWarnings("Duplicates")
   public void testInspect_SingleFeature_DuplicateResource_NotLocked() {
     final Lock lock = new Lock("lock2", LockType.READ);
-    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
-      put("lock2", lock);
+    final Map<String, Collection<Lock>> locks = new HashMap<String, Collection<Lock>>() {{
+      put("lock2", Collections.singletonList(lock));
     }};
 
     final List<Resource> ownResources = new ArrayList<Resource>() {{
@@ -173,8 +184,8 @@ public class ConfigurationInspectorTest extends BaseTestCase {
   @SuppressWarnings("Duplicates")
   public void testInspect_SingleFeature_MissingResource() {
     final Lock lock = new Lock("lock1", LockType.READ);
-    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
-      put("lock1", lock);
+    final Map<String, Collection<Lock>> locks = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Collections.singletonList(lock));
     }};
 
     final List<Resource> resources = new ArrayList<Resource>() {{
@@ -204,8 +215,8 @@ public class ConfigurationInspectorTest extends BaseTestCase {
   @SuppressWarnings("Duplicates")
   public void testInspect_SingleFeature_WrongType() {
     final Lock lock = new Lock("lock1", LockType.WRITE, "value1");
-    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
-      put("lock1", lock);
+    final Map<String, Collection<Lock>> locks = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Collections.singletonList(lock));
     }};
 
     final List<Resource> resources = new ArrayList<Resource>() {{
@@ -235,8 +246,8 @@ public class ConfigurationInspectorTest extends BaseTestCase {
   @SuppressWarnings("Duplicates")
   public void testInspect_SingleFeature_MissingValue() {
     final Lock lock = new Lock("lock1", LockType.WRITE, "value1");
-    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
-      put("lock1", lock);
+    final Map<String, Collection<Lock>> locks = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Collections.singletonList(lock));
     }};
 
     final List<Resource> resources = new ArrayList<Resource>() {{
@@ -274,9 +285,9 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     final List<SProject> path = Arrays.asList(parent, myProject);
 
     final Lock lock = new Lock("lock1", LockType.WRITE, "my value");
-    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
-      put("lock1", lock);
-      put("lock2", new Lock("lock2", LockType.READ));
+    final Map<String, Collection<Lock>> locks = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Collections.singletonList(lock));
+      put("lock2", Collections.singletonList(new Lock("lock2", LockType.READ)));
     }};
 
     final List<Resource> projectResources = new ArrayList<Resource>() {{
@@ -320,9 +331,9 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     final List<SProject> path = Arrays.asList(parent, myProject);
 
     final Lock lock = new Lock("lock1", LockType.WRITE, "my value");
-    final Map<String, Lock> locks = new HashMap<String, Lock>() {{
-      put("lock1", lock);
-      put("lock2", new Lock("lock2", LockType.READ));
+    final Map<String, Collection<Lock>> locks = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Collections.singletonList(lock));
+      put("lock2", Collections.singletonList(new Lock("lock2", LockType.READ)));
     }};
     final List<Resource> projectResources = new ArrayList<Resource>() {{
       add(ResourceFactory.newCustomResource("lock1", PROJECT_ID, "lock1", Collections.singletonList("custom value"), true));
@@ -367,13 +378,13 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     final SBuildType buildType = m.mock(SBuildType.class);
     final SharedResourcesFeature secondFeature = m.mock(SharedResourcesFeature.class, "second-feature");
 
-    final Map<String, Lock> locked1 = new HashMap<String, Lock>() {{
-      put("lock1", new Lock("lock1", LockType.READ));
+    final Map<String, Collection<Lock>> locked1 = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Collections.singletonList(new Lock("lock1", LockType.READ)));
     }};
 
-    final Map<String, Lock> locked2 = new HashMap<String, Lock>() {{
-      put("lock2", new Lock("lock2", LockType.WRITE));
-      put("lock3", new Lock("lock3", LockType.READ, "my value"));
+    final Map<String, Collection<Lock>> locked2 = new HashMap<String, Collection<Lock>>() {{
+      put("lock2", Collections.singletonList(new Lock("lock2", LockType.WRITE)));
+      put("lock3", Collections.singletonList(new Lock("lock3", LockType.READ, "my value")));
     }};
 
     final List<Resource> projectResources = new ArrayList<Resource>() {{
@@ -386,6 +397,12 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     }};
 
     m.checking(new Expectations() {{
+      allowing(buildType).getInternalId();
+      will(returnValue("bt1"));
+
+      allowing(myProjectManager).findBuildTypeById("bt1");
+      will(returnValue(buildType));
+
       oneOf(buildType).getProject();
       will(returnValue(myProject));
 
@@ -418,6 +435,151 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     assertEquals("Correct build type should not produce errors", 0, result.size());
   }
 
+  @Test
+  public void testInspect_BuildSettings_NotCached() {
+    final SBuildType buildType = m.mock(SBuildType.class, "live-build-type");
+    final SBuildType buildSettings = m.mock(SBuildType.class, "build-settings");
+    final Map<String, Collection<Lock>> locks = Collections.singletonMap("lock1", Collections.singletonList(new Lock("lock1", LockType.READ)));
+    final List<Resource> resources = Collections.singletonList(ResourceFactory.newInfiniteResource("lock1", PROJECT_ID, "lock1", true));
+
+    m.checking(new Expectations() {{
+      allowing(buildSettings).getInternalId();
+      will(returnValue("bt1"));
+
+      allowing(myProjectManager).findBuildTypeById("bt1");
+      will(returnValue(buildType));
+
+      exactly(2).of(buildSettings).getProject();
+      will(returnValue(myProject));
+
+      exactly(2).of(myFeatures).searchForFeatures(buildSettings);
+      will(returnValue(Collections.singletonList(myFeature)));
+
+      exactly(2).of(myFeature).getLockedResources();
+      will(returnValue(locks));
+
+      exactly(2).of(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      exactly(2).of(myResources).getAllOwnResources(myProject);
+      will(returnValue(resources));
+
+      exactly(2).of(myResources).getOwnResources(myProject);
+      will(returnValue(resources));
+    }});
+
+    assertTrue(myInspector.inspect(buildSettings).isEmpty());
+    // settings of the build are inspected every time
+    assertTrue(myInspector.inspect(buildSettings).isEmpty());
+  }
+
+  @Test
+  public void testInspect_BuildType_Cached() {
+    final SBuildType buildType = m.mock(SBuildType.class);
+    final Map<String, Collection<Lock>> locks = Collections.singletonMap("lock1", Collections.singletonList(new Lock("lock1", LockType.READ)));
+    final List<Resource> resources = Collections.singletonList(ResourceFactory.newInfiniteResource("lock1", PROJECT_ID, "lock1", true));
+
+    m.checking(new Expectations() {{
+      allowing(buildType).getInternalId();
+      will(returnValue("bt1"));
+
+      allowing(myProjectManager).findBuildTypeById("bt1");
+      will(returnValue(buildType));
+
+      exactly(3).of(buildType).getProject();
+      will(returnValue(myProject));
+
+      exactly(3).of(myFeatures).searchForFeatures(buildType);
+      will(returnValue(Collections.singletonList(myFeature)));
+
+      exactly(3).of(myFeature).getLockedResources();
+      will(returnValue(locks));
+
+      exactly(3).of(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      allowing(myProject).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      exactly(3).of(myResources).getAllOwnResources(myProject);
+      will(returnValue(resources));
+
+      exactly(3).of(myResources).getOwnResources(myProject);
+      will(returnValue(resources));
+    }});
+
+    final Map<Lock, String> result = myInspector.inspect(buildType);
+    assertTrue(result.isEmpty());
+    // settings did not change, inspection result is reused
+    assertSame(result, myInspector.inspect(buildType));
+    // settings of the build type changed, build type is inspected again
+    myDispatcher.getMulticaster().buildTypePersisted(buildType);
+    assertTrue(myInspector.inspect(buildType).isEmpty());
+    // project was changed
+    myDispatcher.getMulticaster().projectPersisted(PROJECT_ID);
+    assertTrue(myInspector.inspect(buildType).isEmpty());
+  }
+
+  @Test
+  public void testInspect_SingleFeature_SeveralLocksOnResource_Correct() {
+    final Map<String, Collection<Lock>> locks = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Arrays.asList(new Lock("lock1", LockType.READ, "value1"), new Lock("lock1", LockType.READ)));
+      put("lock2", Arrays.asList(new Lock("lock2", LockType.READ, "", 2), new Lock("lock2", LockType.READ)));
+    }};
+    final List<Resource> resources = new ArrayList<Resource>() {{
+      add(ResourceFactory.newCustomResource("lock1", PROJECT_ID, "lock1", Arrays.asList("value1", "value2"), true));
+      add(ResourceFactory.newQuotedResource("lock2", PROJECT_ID, "lock2", 3, true));
+    }};
+    expectResources(locks, resources);
+
+    final Map<Lock, String> result = myInspector.inspect(myProject, myFeature);
+    assertEquals("Locks, that can be acquired together, must produce no invalid locks", 0, result.size());
+  }
+
+  @Test
+  public void testInspect_SingleFeature_SeveralLocksOnResource_Invalid() {
+    final Lock write = new Lock("lock1", LockType.WRITE);
+    final Lock secondAny = new Lock("lock2", LockType.READ);
+    final Lock notEnoughValues = new Lock("lock3", LockType.READ);
+    final Lock overQuota = new Lock("lock4", LockType.READ);
+    final Map<String, Collection<Lock>> locks = new HashMap<String, Collection<Lock>>() {{
+      put("lock1", Arrays.asList(new Lock("lock1", LockType.READ), write));
+      put("lock2", Arrays.asList(new Lock("lock2", LockType.READ, "value1"), new Lock("lock2", LockType.READ), secondAny));
+      put("lock3", Arrays.asList(new Lock("lock3", LockType.READ, "value1"), new Lock("lock3", LockType.READ, "value2"), notEnoughValues));
+      put("lock4", Arrays.asList(new Lock("lock4", LockType.READ, "", 3), overQuota));
+    }};
+    final List<Resource> resources = new ArrayList<Resource>() {{
+      add(ResourceFactory.newInfiniteResource("lock1", PROJECT_ID, "lock1", true));
+      add(ResourceFactory.newCustomResource("lock2", PROJECT_ID, "lock2", Arrays.asList("value1", "value2", "value3"), true));
+      add(ResourceFactory.newCustomResource("lock3", PROJECT_ID, "lock3", Arrays.asList("value1", "value2"), true));
+      add(ResourceFactory.newQuotedResource("lock4", PROJECT_ID, "lock4", 3, true));
+    }};
+    expectResources(locks, resources);
+
+    final Map<Lock, String> result = myInspector.inspect(myProject, myFeature);
+    assertEquals(4, result.size());
+    assertContains(result.keySet(), write);
+    assertContains(result.keySet(), secondAny);
+    assertContains(result.keySet(), notEnoughValues);
+    assertContains(result.keySet(), overQuota);
+  }
+
+  private void expectResources(@NotNull final Map<String, Collection<Lock>> locks, @NotNull final List<Resource> resources) {
+    m.checking(new Expectations() {{
+      oneOf(myFeature).getLockedResources();
+      will(returnValue(locks));
+
+      oneOf(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      oneOf(myResources).getAllOwnResources(myProject);
+      will(returnValue(resources));
+
+      oneOf(myResources).getOwnResources(myProject);
+      will(returnValue(resources));
+    }});
+  }
+
   @AfterMethod
   @Override
   protected void tearDown() throws Exception {
@@ -28,9 +28,13 @@ import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
 import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
+import jetbrains.buildServer.sharedResources.server.runtime.LockLeases;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
 import jetbrains.buildServer.sharedResources.server.runtime.ResourceAffinity;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocksLedger;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
@@ -82,16 +86,18 @@ public class ContextProcessorTest extends BaseTestCase {
     myBuildPromotion = m.mock(BuildPromotionEx.class, "my-build-promotion");
     myReport = m.mock(BuildUsedResourcesReport.class);
     final ResourceAffinity resourceAffinity = m.mock(ResourceAffinity.class);
-    myProcessor = new SharedResourcesContextProcessor(myFeatures, myLocks, myResources, myLocksStorage, myRunningBuildsManager, myReport);
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final TakenLocksLedger ledger = new TakenLocksLedger(dispatcher, myRunningBuildsManager, myLocksStorage, myFeatures, myLocks, new LockLeases(dispatcher, myResources));
+    myProcessor = new SharedResourcesContextProcessor(myFeatures, myLocks, myResources, myLocksStorage, ledger, myReport, new SharedResourcesMetrics());
     m.checking(createCommonExpectations());
   }
 
   @Test(enabled = false)
   @TestFor(issues = "TW-29779")
   public void testWriteLockShouldProvideAllResourceValues() {
-    final Map<String, Lock> myTakenLocks = new HashMap<>();
+    final Map<String, Collection<Lock>> myTakenLocks = new HashMap<>();
     final Lock lock = new Lock("CustomResource", LockType.WRITE);
-    myTakenLocks.put(lock.getName(), lock);
+    myTakenLocks.put(lock.getName(), Collections.singletonList(lock));
 
     final Map<String, Resource> definedResources = new HashMap<>();
     final CustomResource resource = (CustomResource) ResourceFactory.newCustomResource("CustomResource", PROJECT_ID, "CustomResource", Arrays.asList("value1", "value2"), true);
@@ -128,9 +134,9 @@ public class ContextProcessorTest extends BaseTestCase {
 
   @Test(enabled = false)
   public void testProvideValueAny() {
-    final Map<String, Lock> myTakenLocks = new HashMap<>();
+    final Map<String, Collection<Lock>> myTakenLocks = new HashMap<>();
     final Lock lock = new Lock("CustomResource", LockType.READ);
-    myTakenLocks.put(lock.getName(), lock);
+    myTakenLocks.put(lock.getName(), Collections.singletonList(lock));
 
     final Map<String, Resource> definedResources = new HashMap<>();
     final CustomResource resource = (CustomResource) ResourceFactory.newCustomResource("CustomResource", PROJECT_ID, "CustomResource", Arrays.asList("value1", "value2"), true);
@@ -166,9 +172,9 @@ public class ContextProcessorTest extends BaseTestCase {
 
   @Test(enabled = false)
   public void testProvideValueAny_SomeTaken() {
-    final Map<String, Lock> myTakenLocks = new HashMap<>();
+    final Map<String, Collection<Lock>> myTakenLocks = new HashMap<>();
     final Lock lock = new Lock("CustomResource", LockType.READ);
-    myTakenLocks.put(lock.getName(), lock);
+    myTakenLocks.put(lock.getName(), Collections.singletonList(lock));
 
     final Map<String, Resource> definedResources = new HashMap<>();
     final CustomResource resource = (CustomResource) ResourceFactory.newCustomResource("CustomResource", PROJECT_ID, "CustomResource", Arrays.asList("value1", "value2"), true);
@@ -178,8 +184,8 @@ public class ContextProcessorTest extends BaseTestCase {
 
     final SRunningBuild otherRunningBuild = m.mock(SRunningBuild.class, "other-running-build");
     final BuildPromotion otherBuildPromotion = m.mock(BuildPromotion.class, "other-build-promotion");
-    final Map<String, Lock> otherTakenLocks = new HashMap<>();
-    otherTakenLocks.put("CustomResource", new Lock("CustomResource", LockType.READ, "value1"));
+    final Map<String, Collection<Lock>> otherTakenLocks = new HashMap<>();
+    otherTakenLocks.put("CustomResource", Collections.singletonList(new Lock("CustomResource", LockType.READ, "value1")));
 
     final SharedResourcesFeature currentFeature = m.mock(SharedResourcesFeature.class, "my-build-feature");
     final Collection<SharedResourcesFeature> currentFeatures = Collections.singleton(currentFeature);
@@ -229,9 +235,9 @@ public class ContextProcessorTest extends BaseTestCase {
 
   @Test(enabled = false)
   public void testProvideValueSpecific() {
-    final Map<String, Lock> myTakenLocks = new HashMap<>();
+    final Map<String, Collection<Lock>> myTakenLocks = new HashMap<>();
     final Lock lock = new Lock("CustomResource", LockType.READ, "value2");
-    myTakenLocks.put(lock.getName(), lock);
+    myTakenLocks.put(lock.getName(), Collections.singletonList(lock));
 
     final Map<String, Resource> definedResources = new HashMap<>();
     final CustomResource resource = (CustomResource) ResourceFactory.newCustomResource("CustomResource", PROJECT_ID, "CustomResource", Arrays.asList("value1", "value2"), true);
@@ -275,9 +281,9 @@ public class ContextProcessorTest extends BaseTestCase {
     final CustomResource resource = (CustomResource) ResourceFactory.newCustomResource("CustomResource", PROJECT_ID, "CustomResource", Arrays.asList(VALUE, VALUE), true);
     definedResources.put(resource.getName(), resource);
 
-    final Map<String, Lock> takenLocks = new HashMap<>();
+    final Map<String, Collection<Lock>> takenLocks = new HashMap<>();
     final Lock lock = new Lock("CustomResource", LockType.READ);
-    takenLocks.put(lock.getName(), lock);
+    takenLocks.put(lock.getName(), Collections.singletonList(lock));
 
     final String lockParamName = "teamcity.locks.readLock." + lock.getName();
     final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
@@ -285,8 +291,8 @@ public class ContextProcessorTest extends BaseTestCase {
 
     final SRunningBuild runningBuild = m.mock(SRunningBuild.class, "running-build");
     final BuildPromotionEx runningBuildPromotion = m.mock(BuildPromotionEx.class, "running-build-promotion");
-    final Map<String, Lock> runningBuildLocks = new HashMap<>();
-    runningBuildLocks.put(resource.getName(), new Lock(resource.getName(), LockType.READ, VALUE));
+    final Map<String, Collection<Lock>> runningBuildLocks = new HashMap<>();
+    runningBuildLocks.put(resource.getName(), Collections.singletonList(new Lock(resource.getName(), LockType.READ, VALUE)));
 
     m.checking(new Expectations() {{
 
@@ -349,9 +355,9 @@ public class ContextProcessorTest extends BaseTestCase {
     final CustomResource resource = (CustomResource) ResourceFactory.newCustomResource("CustomResource", PROJECT_ID, "CustomResource", Arrays.asList(VALUE_HELD, VALUE_HELD, VALUE_AVAILABLE), true);
     definedResources.put(resource.getName(), resource);
 
-    final Map<String, Lock> takenLocks = new HashMap<>();
+    final Map<String, Collection<Lock>> takenLocks = new HashMap<>();
     final Lock lock = new Lock("CustomResource", LockType.READ);
-    takenLocks.put(lock.getName(), lock);
+    takenLocks.put(lock.getName(), Collections.singletonList(lock));
 
     final String lockParamName = "teamcity.locks.readLock." + lock.getName();
     final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
@@ -359,13 +365,13 @@ public class ContextProcessorTest extends BaseTestCase {
 
     final SRunningBuild runningBuild1 = m.mock(SRunningBuild.class, "running-build-1");
     final BuildPromotionEx runningBuildPromotion1 = m.mock(BuildPromotionEx.class, "running-build-promotion-1");
-    final Map<String, Lock> runningBuildLocks1 = new HashMap<>();
-    runningBuildLocks1.put(resource.getName(), new Lock(resource.getName(), LockType.READ, VALUE_HELD));
+    final Map<String, Collection<Lock>> runningBuildLocks1 = new HashMap<>();
+    runningBuildLocks1.put(resource.getName(), Collections.singletonList(new Lock(resource.getName(), LockType.READ, VALUE_HELD)));
 
     final SRunningBuild runningBuild2 = m.mock(SRunningBuild.class, "running-build-2");
     final BuildPromotionEx runningBuildPromotion2 = m.mock(BuildPromotionEx.class, "running-build-promotion-2");
-    final Map<String, Lock> runningBuildLocks2 = new HashMap<>();
-    runningBuildLocks2.put(resource.getName(), new Lock(resource.getName(), LockType.READ, VALUE_HELD));
+    final Map<String, Collection<Lock>> runningBuildLocks2 = new HashMap<>();
+    runningBuildLocks2.put(resource.getName(), Collections.singletonList(new Lock(resource.getName(), LockType.READ, VALUE_HELD)));
 
     m.checking(new Expectations() {{
       oneOf(myFeatures).searchForFeatures(myBuildType);
@@ -15,6 +15,7 @@ import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
 import jetbrains.buildServer.sharedResources.server.runtime.DistributionDataAccessor;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
 import jetbrains.buildServer.sharedResources.server.runtime.TakenLocks;
@@ -37,6 +38,8 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
   private Mockery m;
 
+  private long myNextPromotionId = 1;
+
   private Locks myLocks;
 
   private SharedResourcesFeatures myFeatures;
@@ -59,8 +62,6 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
   private TakenLocks myTakenLocks;
 
-  private RunningBuildsManager myRunningBuildsManager;
-
   private Map<String, Object> myCustomData;
 
   private ConfigurationInspector myInspector;
@@ -90,7 +91,6 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     myBuildPromotion = m.mock(BuildPromotionEx.class);
     myTakenLocks = m.mock(TakenLocks.class);
     myBuildDistributorInput = m.mock(BuildDistributorInput.class);
-    myRunningBuildsManager = m.mock(RunningBuildsManager.class);
     myCustomData = new HashMap<>();
     myInspector = m.mock(ConfigurationInspector.class);
     myProject = m.mock(ProjectEx.class);
@@ -111,7 +111,9 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       allowing(myResources).getResourcesMap(myProjectId);
       will(returnValue(resourceMap));
     }});
-    myAgentsFilter = new SharedResourcesAgentsFilter(myFeatures, myLocks, myTakenLocks, myRunningBuildsManager, myInspector, locksStorage, myResources);
+    myAgentsFilter = new SharedResourcesAgentsFilter(myFeatures, myLocks, myTakenLocks, myInspector, locksStorage, myResources, new SharedResourcesMetrics());
+    // tests below check builds one by one. Verdicts for the whole queue are checked in BatchAdmissionTest
+    setInternalProperty(SharedResourcesAgentsFilter.BATCH_ADMISSION_ENABLED, "false");
   }
 
   @Override
@@ -268,19 +270,18 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
   @Test
   public void testLocksPresentSingleBuild() {
-    final Map<String, Lock> locksToTake = new HashMap<>();
+    final Map<String, Collection<Lock>> locksToTake = new HashMap<>();
     final Lock lock = new Lock("lock1", LockType.READ);
-    locksToTake.put(lock.getName(), lock);
+    locksToTake.put(lock.getName(), Collections.singletonList(lock));
 
     final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
     final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
 
     final Map<QueuedBuildInfo, BuildAgent> canBeStarted = Collections.emptyMap();
-    final Collection<SRunningBuild> runningBuilds = Collections.emptyList();
 
     final Map<Resource, TakenLock> takenLocks = Collections.emptyMap();
 
-    setupLocks(locksToTake, features, canBeStarted, runningBuilds, takenLocks, Collections.emptyMap());
+    setupLocks(locksToTake, features, canBeStarted, takenLocks, Collections.emptyMap());
 
     final AgentsFilterResult result = myAgentsFilter.filterAgents(createContext());
     assertNotNull(result);
@@ -295,21 +296,20 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
     final Resource resource2 = ResourceFactory.newInfiniteResource("resource2", myProjectId, "resource2", true);
 
-    final Map<String, Lock> locksToTake = new HashMap<>();
+    final Map<String, Collection<Lock>> locksToTake = new HashMap<>();
     final Lock lock = new Lock("resource1", LockType.READ);
-    locksToTake.put(lock.getName(), lock);
+    locksToTake.put(lock.getName(), Collections.singletonList(lock));
 
     final Map<QueuedBuildInfo, BuildAgent> canBeStarted = Collections.emptyMap();
-    final Collection<SRunningBuild> runningBuilds = Collections.emptyList();
 
     final Lock lock2 = new Lock("resource2", LockType.READ);
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
     final TakenLock tl = new TakenLock(resource2);
-    tl.addLock(m.mock(BuildPromotionEx.class, "some-build"), lock2);
+    tl.addLock(mockPromotion("some-build"), lock2);
     takenLocks.put(tl.getResource(), tl);
 
-    setupLocks(locksToTake, features, canBeStarted, runningBuilds, takenLocks, Collections.emptyMap());
+    setupLocks(locksToTake, features, canBeStarted, takenLocks, Collections.emptyMap());
 
     final AgentsFilterResult result = myAgentsFilter.filterAgents(createContext());
     assertNotNull(result);
@@ -325,14 +325,13 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
 
     final Resource resource1 = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", true);
 
-    final Map<String, Lock> locksToTake = new HashMap<>();
+    final Map<String, Collection<Lock>> locksToTake = new HashMap<>();
     final Lock lock = new Lock("resource1", LockType.READ);
-    locksToTake.put(lock.getName(), lock);
+    locksToTake.put(lock.getName(), Collections.singletonList(lock));
 
     final Map<QueuedBuildInfo, BuildAgent> canBeStarted = Collections.emptyMap();
-    final Collection<SRunningBuild> runningBuilds = Collections.emptyList();
 
-    final BuildPromotionEx bpex = m.mock(BuildPromotionEx.class, "bpex-lock1");
+    final BuildPromotionEx bpex = mockPromotion("bpex-lock1");
     final Lock takenLock1 = new Lock("resource1", LockType.WRITE);
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
@@ -348,7 +347,7 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     }};
 
 
-    setupLocks(locksToTake, features, canBeStarted, runningBuilds, takenLocks, unavailableLocks);
+    setupLocks(locksToTake, features, canBeStarted, takenLocks, unavailableLocks);
 
     m.checking(new Expectations() {{
       oneOf(bpex).getBuildType();
@@ -362,6 +361,10 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     assertNotNull(result);
     assertNotNull(result.getWaitReason());
     assertNull(result.getFilteredConnectedAgents());
+    // description is rendered once, on demand
+    final String expected = "Build is waiting for the following resource to become available: resource1 (locked by UNAVAILABLE)";
+    assertEquals(expected, result.getWaitReason().getDescription());
+    assertEquals(expected, result.getWaitReason().getDescription());
   }
 
   /**
@@ -370,9 +373,9 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
   @Test
   @TestFor(issues = "TW-27930")
   public void testNoLockedResources_ResourceDisabled() {
-    final Map<String, Lock> locksToTake = new HashMap<>();
+    final Map<String, Collection<Lock>> locksToTake = new HashMap<>();
     final Lock lock = new Lock("resource1", LockType.READ);
-    locksToTake.put(lock.getName(), lock);
+    locksToTake.put(lock.getName(), Collections.singletonList(lock));
 
     final Resource resource1 = ResourceFactory.newInfiniteResource("resource1", myProjectId, "resource1", false);
 
@@ -380,7 +383,6 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
 
     final Map<QueuedBuildInfo, BuildAgent> canBeStarted = Collections.emptyMap();
-    final Collection<SRunningBuild> runningBuilds = Collections.emptyList();
 
     final Map<Resource, TakenLock> takenLocks = Collections.emptyMap();
 
@@ -388,7 +390,7 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       put(resource1, lock);
     }};
 
-    setupLocks(locksToTake, features, canBeStarted, runningBuilds, takenLocks, unavailableLocks);
+    setupLocks(locksToTake, features, canBeStarted, takenLocks, unavailableLocks);
 
     final AgentsFilterResult result = myAgentsFilter.filterAgents(createContext());
     assertNotNull(result);
@@ -434,10 +436,53 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
     assertNull(result.getFilteredConnectedAgents());
   }
 
-  private void setupLocks(final Map<String, Lock> locksToTake,
+  @Test
+  public void testRunningLocksCollectedOncePerCycle() {
+    final Map<String, Collection<Lock>> locksToTake = new HashMap<>();
+    final Lock lock = new Lock("lock1", LockType.READ);
+    locksToTake.put(lock.getName(), Collections.singletonList(lock));
+
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
+    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+
+    m.checking(new Expectations() {{
+      allowing(myQueuedBuild).getBuildPromotionInfo();
+      will(returnValue(myBuildPromotion));
+
+      allowing(myBuildPromotion).getBuildType();
+      will(returnValue(myBuildType));
+
+      allowing(myBuildPromotion).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(myBuildPromotion).isPartOfBuildChain();
+      will(returnValue(false));
+
+      allowing(myFeatures).searchForFeatures(myBuildType);
+      will(returnValue(features));
+
+      allowing(myLocks).fromBuildFeaturesAsMap(features);
+      will(returnValue(locksToTake));
+
+      allowing(myInspector).inspect(myBuildType);
+      will(returnValue(Collections.emptyMap()));
+
+      oneOf(myTakenLocks).collectRunningLocks();
+      will(returnValue(takenLocks));
+
+      exactly(2).of(myTakenLocks).getUnavailableLocks(with(same(locksToTake)), with(same(takenLocks)), with(same(myProjectId)), with(any(DistributionDataAccessor.class)), with(same(myBuildPromotion)));
+      will(returnValue(Collections.emptyMap()));
+    }});
+
+    // same custom data -> same distribution cycle
+    assertNull(myAgentsFilter.filterAgents(createContext()).getWaitReason());
+    assertNull(myAgentsFilter.filterAgents(createContext()).getWaitReason());
+  }
+
+  private void setupLocks(final Map<String, Collection<Lock>> locksToTake,
                           final Collection<SharedResourcesFeature> features,
                           final Map<QueuedBuildInfo, BuildAgent> canBeStarted,
-                          final Collection<SRunningBuild> runningBuilds,
                           final Map<Resource, TakenLock> takenLocks,
                           final Map<Resource, Lock> unavailableLocks) {
     m.checking(new Expectations() {{
@@ -459,13 +504,10 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       oneOf(myInspector).inspect(myBuildType);
       will(returnValue(Collections.emptyMap()));
 
-      oneOf(myRunningBuildsManager).getRunningBuilds();
-      will(returnValue(runningBuilds));
-
-      oneOf(myTakenLocks).collectTakenLocks(runningBuilds, canBeStarted.keySet());
+      oneOf(myTakenLocks).collectRunningLocks();
       will(returnValue(takenLocks));
 
-      oneOf(myTakenLocks).getUnavailableLocks(with(same(locksToTake.values())), with(same(takenLocks)), with(same(myProjectId)), with(any(DistributionDataAccessor.class)), with(same(myBuildPromotion)));
+      oneOf(myTakenLocks).getUnavailableLocks(with(same(locksToTake)), with(same(takenLocks)), with(same(myProjectId)), with(any(DistributionDataAccessor.class)), with(same(myBuildPromotion)));
       will(returnValue(unavailableLocks));
 
       allowing(myBuildPromotion).isPartOfBuildChain();
@@ -510,4 +552,18 @@ public class SharedResourcesAgentsFilterTest extends BaseTestCase {
       }
     };
   }
+
+  private BuildPromotionEx mockPromotion() {
+    return mockPromotion("promotion-" + myNextPromotionId);
+  }
+
+  private BuildPromotionEx mockPromotion(@NotNull final String name) {
+    final BuildPromotionEx result = m.mock(BuildPromotionEx.class, name);
+    final long id = myNextPromotionId++;
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(id));
+    }});
+    return result;
+  }
 }
@@ -9,6 +9,7 @@ import org.jmock.Mockery;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -59,7 +60,7 @@ public class FeatureParamsImplTest extends BaseTestCase {
 
     m.checking(new Expectations() {{
       oneOf(myLocks).fromFeatureParameters(params);
-      will(returnValue(Collections.<String, Lock>emptyMap()));
+      will(returnValue(Collections.<String, Collection<Lock>>emptyMap()));
     }});
     assertContains(myFeatureParams.describeParams(params), NO_LOCKS_MESSAGE);
   }
@@ -73,9 +74,9 @@ public class FeatureParamsImplTest extends BaseTestCase {
    */
   @Test
   public void testNonEmpty() throws Exception {
-    final Map<String, Lock> locks = new HashMap<>();
-    locks.put("lock1", new Lock("lock1", LockType.READ));
-    locks.put("lock2", new Lock("lock2", LockType.WRITE));
+    final Map<String, Collection<Lock>> locks = new HashMap<>();
+    locks.put("lock1", Collections.singletonList(new Lock("lock1", LockType.READ)));
+    locks.put("lock2", Collections.singletonList(new Lock("lock2", LockType.WRITE)));
     final Map<String, String> params = new HashMap<>();
     params.put(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock\nlock2 writeLock");
     m.checking(new Expectations() {{
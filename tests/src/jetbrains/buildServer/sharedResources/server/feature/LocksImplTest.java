@@ -13,6 +13,7 @@ import org.testng.annotations.Test;
 
 import java.util.*;
 
+import static jetbrains.buildServer.sharedResources.TestUtils.*;
 import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LOCKS_FEATURE_PARAM_KEY;
 
 /**
@@ -55,7 +56,7 @@ public class LocksImplTest extends BaseTestCase {
 
   private void checkNoLocks(final Map<String, String> params) {
     // read from feature parameters
-    Map<String, Lock> result = myLocks.fromFeatureParameters(params);
+    Map<String, Collection<Lock>> result = myLocks.fromFeatureParameters(params);
     assertNotNull(result);
     assertEquals(0, result.size());
 
@@ -80,7 +81,7 @@ public class LocksImplTest extends BaseTestCase {
     params.put(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock\nlock2 writeLock\n");
 
     {
-      final Map<String, Lock> result = myLocks.fromFeatureParameters(params);
+      final Map<String, Collection<Lock>> result = myLocks.fromFeatureParameters(params);
       assertNotNull(result);
       assertEquals(2, result.size());
     }
@@ -91,7 +92,7 @@ public class LocksImplTest extends BaseTestCase {
         oneOf(descriptor).getParameters();
         will(returnValue(params));
       }});
-      final Map<String, Lock> result = myLocks.fromFeatureParameters(descriptor);
+      final Map<String, Collection<Lock>> result = myLocks.fromFeatureParameters(descriptor);
       assertNotNull(result);
       assertEquals(2, result.size());
     }
@@ -107,11 +108,10 @@ public class LocksImplTest extends BaseTestCase {
     params.put(LOCKS_FEATURE_PARAM_KEY, "lock 1 readLock\nlock 2 writeLock\nlock 3 readLock value 1 2 3\nlock 4 wrongType qwerty");
 
     {
-      final Map<String, Lock> result = myLocks.fromFeatureParameters(params);
+      final Map<String, Collection<Lock>> result = myLocks.fromFeatureParameters(params);
       assertNotNull(result);
       assertEquals(3, result.size());
-      final Lock lock = result.get("lock 3");
-      assertNotNull(lock);
+      final Lock lock = singleLock(result, "lock 3");
       assertEquals(LockType.READ, lock.getType());
       assertEquals("value 1 2 3", lock.getValue());
     }
@@ -122,13 +122,34 @@ public class LocksImplTest extends BaseTestCase {
         oneOf(descriptor).getParameters();
         will(returnValue(params));
       }});
-      final Map<String, Lock> result = myLocks.fromFeatureParameters(descriptor);
+      final Map<String, Collection<Lock>> result = myLocks.fromFeatureParameters(descriptor);
       assertNotNull(result);
       assertEquals(3, result.size());
     }
 
   }
 
+  @Test
+  public void testFromFeatureParameters_Weights() throws Exception {
+    final Map<String, String> params = new HashMap<>();
+    params.put(LOCKS_FEATURE_PARAM_KEY, "memory readLock:8\nlock 1 readLock\nlock 2 writeLock:8\nlock 3 readLock:0\nlock 4 readLock:abc\nlock 5 readLock:2 value");
+    final Map<String, Collection<Lock>> result = myLocks.fromFeatureParameters(params);
+    assertEquals(6, result.size());
+    assertEquals(new Lock("memory", LockType.READ, "", 8), singleLock(result, "memory"));
+    assertEquals(Lock.DEFAULT_WEIGHT, singleLock(result, "lock 1").getWeight());
+    // only read locks have weight
+    assertEquals(Lock.DEFAULT_WEIGHT, singleLock(result, "lock 2").getWeight());
+    // malformed weights are ignored
+    assertEquals(Lock.DEFAULT_WEIGHT, singleLock(result, "lock 3").getWeight());
+    assertEquals(Lock.DEFAULT_WEIGHT, singleLock(result, "lock 4").getWeight());
+    assertEquals(new Lock("lock 5", LockType.READ, "value", 2), singleLock(result, "lock 5"));
+
+    // weights survive serialization
+    final Map<String, String> serialized = new HashMap<>();
+    serialized.put(LOCKS_FEATURE_PARAM_KEY, myLocks.asFeatureParameter(flattenLocks(result)));
+    assertEquals(result, myLocks.fromFeatureParameters(serialized));
+  }
+
   @Test
   public void testAsFeatureParameter() throws Exception {
     { // empty collection of locks
@@ -186,14 +207,9 @@ public class LocksImplTest extends BaseTestCase {
   @Test
   public void testFromBuildFeatureAsMap() throws Exception {
 
-    final Map<String, Lock> locks1 = new HashMap<String, Lock>() {{
-      put("lock1", new Lock("lock1", LockType.READ));
-      put("lock2", new Lock("lock2", LockType.WRITE));
-    }};
+    final Map<String, Collection<Lock>> locks1 = asLocksMap(new Lock("lock1", LockType.READ), new Lock("lock2", LockType.WRITE));
 
-    final Map<String, Lock> locks2 = new HashMap<String, Lock>() {{
-      put("lock3", new Lock("lock3", LockType.READ, "lock3_value"));
-    }};
+    final Map<String, Collection<Lock>> locks2 = asLocksMap(new Lock("lock3", LockType.READ, "lock3_value"));
 
     final SharedResourcesFeature feature1 = m.mock(SharedResourcesFeature.class, "f1");
     final SharedResourcesFeature feature2 = m.mock(SharedResourcesFeature.class, "f2");
@@ -205,17 +221,43 @@ public class LocksImplTest extends BaseTestCase {
       oneOf(feature2).getLockedResources();
       will(returnValue(locks2));
     }});
-    final Map<String, Lock> result = myLocks.fromBuildFeaturesAsMap(features);
+    final Map<String, Collection<Lock>> result = myLocks.fromBuildFeaturesAsMap(features);
     assertNotNull(result);
     assertEquals(locks1.size() + locks2.size(), result.size());
-    for (Lock lock: locks1.values()) {
-      assertContains(result.values(), lock);
+    for (Lock lock: flattenLocks(locks1)) {
+      assertContains(flattenLocks(result), lock);
     }
-    for (Lock lock: locks2.values()) {
-      assertContains(result.values(), lock);
+    for (Lock lock: flattenLocks(locks2)) {
+      assertContains(flattenLocks(result), lock);
     }
   }
 
+  @Test
+  public void testFromBuildFeatureAsMap_SameResourceInSeveralFeatures() throws Exception {
+    final Map<String, Collection<Lock>> enforced = asLocksMap(new Lock("lock1", LockType.WRITE), new Lock("lock1", LockType.READ, "value"));
+    final Map<String, Collection<Lock>> own = asLocksMap(new Lock("lock1", LockType.READ), new Lock("lock2", LockType.READ));
+    final Map<String, Collection<Lock>> template = asLocksMap(new Lock("lock2", LockType.WRITE));
+
+    final SharedResourcesFeature enforcedFeature = m.mock(SharedResourcesFeature.class, "enforced");
+    final SharedResourcesFeature ownFeature = m.mock(SharedResourcesFeature.class, "own");
+    final SharedResourcesFeature templateFeature = m.mock(SharedResourcesFeature.class, "template");
+    m.checking(new Expectations() {{
+      oneOf(enforcedFeature).getLockedResources();
+      will(returnValue(enforced));
+
+      oneOf(ownFeature).getLockedResources();
+      will(returnValue(own));
+
+      oneOf(templateFeature).getLockedResources();
+      will(returnValue(template));
+    }});
+    final Map<String, Collection<Lock>> result = myLocks.fromBuildFeaturesAsMap(Arrays.asList(enforcedFeature, ownFeature, templateFeature));
+    assertEquals(2, result.size());
+    // all locks on the resource come from the first feature, that defines them
+    assertEquals(enforced.get("lock1"), result.get("lock1"));
+    assertEquals(own.get("lock2"), result.get("lock2"));
+  }
+
   @Test
   public void testFromFeatureParams_Values() throws Exception {
     final Map<String, String> params = new HashMap<String, String>() {{
@@ -231,14 +273,12 @@ public class LocksImplTest extends BaseTestCase {
         oneOf(descriptor).getParameters();
         will(returnValue(params));
       }});
-      final Map<String, Lock> result = myLocks.fromFeatureParameters(descriptor);
+      final Map<String, Collection<Lock>> result = myLocks.fromFeatureParameters(descriptor);
       assertNotNull(result);
       assertEquals(3, result.size());
-      Lock lock = result.get("lock3");
-      assertNotNull(lock);
+      Lock lock = singleLock(result, "lock3");
       assertEquals("VAL3", lock.getValue());
-      lock = result.get("lock2");
-      assertNotNull(lock);
+      lock = singleLock(result, "lock2");
       assertEquals("VAL2", lock.getValue());
     }
   }
@@ -277,4 +317,28 @@ public class LocksImplTest extends BaseTestCase {
       assertEquals(lock.getValue(), val);
     }
   }
+
+  @Test
+  public void testFromFeatureParameters_SeveralLocksOnResource() throws Exception {
+    final Map<String, String> params = new HashMap<>();
+    params.put(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock v1\nlock2 writeLock\nlock1 readLock v2\nlock1 readLock v1");
+    final Map<String, Collection<Lock>> result = myLocks.fromFeatureParameters(params);
+    assertEquals(2, result.size());
+    // locks are kept in definition order, duplicates are skipped
+    assertEquals(Arrays.asList(new Lock("lock1", LockType.READ, "v1"), new Lock("lock1", LockType.READ, "v2")), new ArrayList<>(result.get("lock1")));
+    assertEquals(new Lock("lock2", LockType.WRITE), singleLock(result, "lock2"));
+
+    final Map<String, String> serialized = new HashMap<>();
+    serialized.put(LOCKS_FEATURE_PARAM_KEY, myLocks.asFeatureParameter(flattenLocks(result)));
+    assertEquals(result, myLocks.fromFeatureParameters(serialized));
+  }
+
+  @Test
+  public void testAsBuildParameters_SeveralValues() throws Exception {
+    final Map<String, String> buildParams = myLocks.asBuildParameters(Arrays.asList(new Lock("lock1", LockType.READ, "v1"),
+                                                                                    new Lock("lock1", LockType.READ),
+                                                                                    new Lock("lock1", LockType.READ, "v2")));
+    assertEquals(1, buildParams.size());
+    assertEquals("v1;v2", buildParams.get(TestUtils.generateLockAsBuildParam("lock1", LockType.READ)));
+  }
 }
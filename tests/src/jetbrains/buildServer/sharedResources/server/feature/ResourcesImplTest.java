@@ -1,7 +1,9 @@
 package jetbrains.buildServer.sharedResources.server.feature;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
@@ -12,10 +14,13 @@ import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeature;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatureImpl;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
+import org.jmock.Invocation;
 import org.jmock.Mockery;
+import org.jmock.lib.action.CustomAction;
 import org.jmock.lib.legacy.ClassImposteriser;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -43,6 +48,10 @@ public class ResourcesImplTest extends BaseTestCase {
 
   private final String myRootProjectId = "<ROOT>";
 
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private final AtomicLong myStamp = new AtomicLong();
+
   private ResourcesImpl resources;
 
   @BeforeMethod
@@ -56,7 +65,23 @@ public class ResourcesImplTest extends BaseTestCase {
     myProject = m.mock(SProject.class, "currentProject");
     myRootProject = m.mock(SProject.class, "rootProject");
     myResourceProjectFeatures = m.mock(ResourceProjectFeatures.class);
-    resources = new ResourcesImpl(myProjectManager, myResourceProjectFeatures);
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    m.checking(new Expectations() {{
+      allowing(myProject).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(myRootProject).getProjectId();
+      will(returnValue(myRootProjectId));
+
+      allowing(myResourceProjectFeatures).getModificationStamp();
+      will(new CustomAction("current modification stamp") {
+        @Override
+        public Object invoke(final Invocation invocation) {
+          return myStamp.get();
+        }
+      });
+    }});
+    resources = new ResourcesImpl(myDispatcher, myProjectManager, myResourceProjectFeatures);
   }
 
   @Override
@@ -132,6 +157,47 @@ public class ResourcesImplTest extends BaseTestCase {
   }
 
 
+  @Test
+  public void testGetResourcesMap_Indexed() {
+    final List<ResourceProjectFeature> rootFeatures = Collections.singletonList(
+      createFeature(ResourceFactory.newInfiniteResource("root1", myRootProjectId, "RESOURCE_1", true))
+    );
+
+    final List<ResourceProjectFeature> projectFeatures = Collections.singletonList(
+      createFeature(ResourceFactory.newInfiniteResource("project1", myProjectId, "RESOURCE_2", true))
+    );
+
+    m.checking(new Expectations() {{
+      exactly(3).of(myProjectManager).findProjectById(myProjectId);
+      will(returnValue(myProject));
+
+      exactly(3).of(myProject).getProjectPath();
+      will(returnValue(Arrays.asList(myRootProject, myProject)));
+
+      exactly(3).of(myResourceProjectFeatures).getOwnFeatures(myProject);
+      will(returnValue(projectFeatures));
+
+      exactly(3).of(myResourceProjectFeatures).getOwnFeatures(myRootProject);
+      will(returnValue(rootFeatures));
+    }});
+
+    final Map<String, Resource> result = resources.getResourcesMap(myProjectId);
+    assertEquals(2, result.size());
+    // no changes -> same resolved resources
+    assertSame(result, resources.getResourcesMap(myProjectId));
+    // changes in unrelated project
+    myDispatcher.getMulticaster().projectPersisted("unrelated");
+    assertSame(result, resources.getResourcesMap(myProjectId));
+    // changes in parent project
+    myDispatcher.getMulticaster().projectPersisted(myRootProjectId);
+    final Map<String, Resource> afterPersist = resources.getResourcesMap(myProjectId);
+    assertNotSame(result, afterPersist);
+    assertEquals(result, afterPersist);
+    // resources are modified
+    myStamp.incrementAndGet();
+    assertNotSame(afterPersist, resources.getResourcesMap(myProjectId));
+  }
+
   @Test
   public void testGetOwnResources_NoDuplicates() {
     final List<ResourceProjectFeature> projectFeatures = Arrays.asList(
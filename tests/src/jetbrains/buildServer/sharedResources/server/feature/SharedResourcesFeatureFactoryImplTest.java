@@ -3,13 +3,18 @@ package jetbrains.buildServer.sharedResources.server.feature;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
 import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
 import jetbrains.buildServer.util.TestFor;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created with IntelliJ IDEA.
@@ -34,17 +39,46 @@ public class SharedResourcesFeatureFactoryImplTest extends BaseTestCase {
     m = new Mockery();
     myLocks = m.mock(Locks.class);
     myBuildFeatureDescriptor = m.mock(SBuildFeatureDescriptor.class);
-    myFactory = new SharedResourcesFeatureFactoryImpl(myLocks);
+    myFactory = new SharedResourcesFeatureFactoryImpl(myLocks, new SharedResourcesMetrics());
   }
 
   @Test
   public void testCreateFeature() throws Exception {
     m.checking(new Expectations() {{
+      allowing(myBuildFeatureDescriptor).getParameters();
+      will(returnValue(Collections.singletonMap(FeatureParams.LOCKS_FEATURE_PARAM_KEY, "lock1 readLock")));
+
       oneOf(myLocks).fromFeatureParameters(myBuildFeatureDescriptor);
-      will(returnValue(new HashMap<String, Lock>()));
+      will(returnValue(new HashMap<String, Collection<Lock>>()));
     }});
 
     final SharedResourcesFeature feature = myFactory.createFeature(myBuildFeatureDescriptor);
     assertNotNull(feature);
   }
+
+  @Test
+  public void testCompiledLocksAreReused() throws Exception {
+    final SBuildFeatureDescriptor otherDescriptor = m.mock(SBuildFeatureDescriptor.class, "other-descriptor");
+    final Map<String, String> params = Collections.singletonMap(FeatureParams.LOCKS_FEATURE_PARAM_KEY, "lock1 readLock");
+    final Map<String, Collection<Lock>> locks = Collections.singletonMap("lock1", Collections.singletonList(new Lock("lock1", LockType.READ)));
+    m.checking(new Expectations() {{
+      allowing(myBuildFeatureDescriptor).getParameters();
+      will(returnValue(params));
+
+      allowing(otherDescriptor).getParameters();
+      will(returnValue(new HashMap<>(params)));
+
+      oneOf(myLocks).fromFeatureParameters(myBuildFeatureDescriptor);
+      will(returnValue(locks));
+    }});
+
+    final SharedResourcesFeature feature = myFactory.createFeature(myBuildFeatureDescriptor);
+    final SharedResourcesFeature otherFeature = myFactory.createFeature(otherDescriptor);
+    assertEquals(locks, feature.getLockedResources());
+    assertSame(feature.getLockedResources(), otherFeature.getLockedResources());
+    final SharedResourcesFeatureFactoryImpl factory = (SharedResourcesFeatureFactoryImpl)myFactory;
+    assertEquals(1, factory.getCompiledLocksStats().missCount());
+    assertEquals(1, factory.getCompiledLocksStats().hitCount());
+    m.assertIsSatisfied();
+  }
 }
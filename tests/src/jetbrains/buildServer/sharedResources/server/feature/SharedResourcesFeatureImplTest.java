@@ -1,7 +1,6 @@
 package jetbrains.buildServer.sharedResources.server.feature;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.BuildTypeTemplate;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
@@ -14,6 +13,8 @@ import org.jmock.Mockery;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import static jetbrains.buildServer.sharedResources.TestUtils.asLocksMap;
+
 /**
  * Created with IntelliJ IDEA.
  *
@@ -34,7 +35,7 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
 
   private Map<String, String> params;
 
-  private Map<String, Lock> myLockedResources;
+  private Map<String, Collection<Lock>> myLockedResources;
 
 
   @BeforeMethod
@@ -47,26 +48,19 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
     myBuildType = m.mock(SBuildType.class);
     myBuildTypeTemplate = m.mock(BuildTypeTemplate.class);
     params = new HashMap<>();
-    myLockedResources = new HashMap<String, Lock>() {{
-      put("lock1", new Lock("lock1", LockType.READ));
-      put("lock2", new Lock("lock2", LockType.WRITE));
-      put("lock_with_value1", new Lock("lock_with_value1", LockType.WRITE, "lock_value"));
-    }};
+    myLockedResources = asLocksMap(new Lock("lock1", LockType.READ),
+                                   new Lock("lock2", LockType.WRITE),
+                                   new Lock("lock_with_value1", LockType.WRITE, "lock_value"));
   }
 
   @Test
   public void testGetLockedResources() {
-    m.checking(new Expectations() {{
-      oneOf(myLocks).fromFeatureParameters(myBuildFeatureDescriptor);
-      will(returnValue(myLockedResources));
-    }});
-
-    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(myLocks, myBuildFeatureDescriptor);
-    Map<String, Lock> lockedResources = feature.getLockedResources();
+    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(myLocks, myBuildFeatureDescriptor, Collections.unmodifiableMap(myLockedResources));
+    Map<String, Collection<Lock>> lockedResources = feature.getLockedResources();
     assertNotNull(lockedResources);
     assertEquals(myLockedResources.size(), lockedResources.size());
-    for (Lock lock : myLockedResources.values()) {
-      assertEquals(lock, lockedResources.get(lock.getName()));
+    for (Map.Entry<String, Collection<Lock>> entry : myLockedResources.entrySet()) {
+      assertEquals(entry.getValue(), lockedResources.get(entry.getKey()));
     }
     m.assertIsSatisfied();
   }
@@ -80,10 +74,7 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
     params.put(FeatureParams.LOCKS_FEATURE_PARAM_KEY, newLocksAsString);
 
     m.checking(new Expectations() {{
-      oneOf(myLocks).fromFeatureParameters(myBuildFeatureDescriptor);
-      will(returnValue(myLockedResources));
-
-      oneOf(myLocks).asFeatureParameter(myLockedResources.values());
+      oneOf(myLocks).asFeatureParameter(with(any(Collection.class)));
       will(returnValue(newLocksAsString));
 
       oneOf(myBuildFeatureDescriptor).getId();
@@ -105,13 +96,13 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
       oneOf(myBuildType).updateBuildFeature("", "", params);
       will(returnValue(true));
     }});
-    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(myLocks, myBuildFeatureDescriptor);
+    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(myLocks, myBuildFeatureDescriptor, Collections.unmodifiableMap(myLockedResources));
     assertTrue("Resource was not updated from " + oldName + " to " + newName, feature.updateLock(myBuildType, oldName, newName));
-    final Map<String, Lock> locks = feature.getLockedResources();
-    Lock lock = locks.get(oldName);
-    assertNull(lock);
-    lock = locks.get(newName);
-    assertNotNull(lock);
+    final Map<String, Collection<Lock>> locks = feature.getLockedResources();
+    assertNull(locks.get(oldName));
+    assertNotNull(locks.get(newName));
+    // compiled locks may be shared and must not be modified
+    assertNotNull(myLockedResources.get(oldName));
   }
 
   @Test
@@ -122,14 +113,28 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
       oneOf(myBuildType).updateBuildFeature("", "", params);
       will(returnValue(true));
     }});
-    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(myLocks, myBuildFeatureDescriptor);
+    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(myLocks, myBuildFeatureDescriptor, Collections.unmodifiableMap(myLockedResources));
     assertTrue("Resource was not updated from lock_with_value1 to lock_with_value2", feature.updateLock(myBuildType, "lock_with_value1", "lock_with_value2"));
-    final Map<String, Lock> locks = feature.getLockedResources();
-    Lock lock = locks.get("lock_with_value1");
-    assertNull(lock);
-    lock = locks.get("lock_with_value2");
-    assertNotNull(lock);
-    assertEquals("lock_value", lock.getValue());
+    final Map<String, Collection<Lock>> locks = feature.getLockedResources();
+    assertNull(locks.get("lock_with_value1"));
+    final Collection<Lock> renamed = locks.get("lock_with_value2");
+    assertNotNull(renamed);
+    assertEquals("lock_value", renamed.iterator().next().getValue());
+  }
+
+  @Test
+  public void testUpdateLock_SeveralLocks() {
+    setupCommonExpectations();
+    m.checking(new Expectations() {{
+      oneOf(myBuildType).updateBuildFeature("", "", params);
+      will(returnValue(true));
+    }});
+    final Map<String, Collection<Lock>> lockedResources = asLocksMap(new Lock("lock1", LockType.READ, "v1"),
+                                                                     new Lock("lock1", LockType.READ, "v2", 2));
+    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(myLocks, myBuildFeatureDescriptor, Collections.unmodifiableMap(lockedResources));
+    assertTrue(feature.updateLock(myBuildType, "lock1", "lock3"));
+    assertEquals(Arrays.asList(new Lock("lock3", LockType.READ, "v1"), new Lock("lock3", LockType.READ, "v2", 2)),
+                 new ArrayList<>(feature.getLockedResources().get("lock3")));
   }
 
   @Test
@@ -152,13 +157,11 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
       will(returnValue(true));
 
     }});
-    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(myLocks, myBuildFeatureDescriptor);
+    final SharedResourcesFeature feature = new SharedResourcesFeatureImpl(myLocks, myBuildFeatureDescriptor, Collections.unmodifiableMap(myLockedResources));
     assertTrue("Resource was not updated from " + oldName + " to " + newName, feature.updateLock(myBuildType, oldName, newName));
-    final Map<String, Lock> locks = feature.getLockedResources();
-    Lock lock = locks.get(oldName);
-    assertNull(lock);
-    lock = locks.get(newName);
-    assertNotNull(lock);
+    final Map<String, Collection<Lock>> locks = feature.getLockedResources();
+    assertNull(locks.get(oldName));
+    assertNotNull(locks.get(newName));
   }
 }
 
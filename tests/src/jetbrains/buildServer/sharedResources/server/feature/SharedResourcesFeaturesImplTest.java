@@ -1,9 +1,12 @@
 package jetbrains.buildServer.sharedResources.server.feature;
 
 import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
 import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.sharedResources.server.SharedResourcesBuildFeature;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
@@ -12,6 +15,7 @@ import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -113,4 +117,85 @@ public class SharedResourcesFeaturesImplTest extends BaseTestCase {
     m.assertIsSatisfied();
   }
 
+  @Test
+  public void testSearchForFeatures_BuildTypeWithoutFeatures_Remembered() {
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final ProjectManager projectManager = m.mock(ProjectManager.class);
+    final SharedResourcesFeatures features = new SharedResourcesFeaturesImpl(mySharedResourcesFeatureFactory, dispatcher, projectManager);
+    final SBuildFeatureDescriptor descriptor = myValidDescriptors.get(0);
+    m.checking(new Expectations() {{
+      allowing(myBuildType).getInternalId();
+      will(returnValue("bt1"));
+
+      allowing(projectManager).findBuildTypeById("bt1");
+      will(returnValue(myBuildType));
+
+      oneOf(myBuildType).getBuildFeatures();
+      will(returnValue(Collections.emptyList()));
+
+      oneOf(myBuildType).getBuildFeatures();
+      will(returnValue(Collections.singletonList(descriptor)));
+
+      allowing(descriptor).getType();
+      will(returnValue(SharedResourcesBuildFeature.FEATURE_TYPE));
+
+      allowing(descriptor).getId();
+      will(returnValue("feature_1"));
+
+      allowing(myBuildType).isEnabled("feature_1");
+      will(returnValue(true));
+
+      oneOf(mySharedResourcesFeatureFactory).createFeature(descriptor);
+      will(returnValue(myFeature));
+    }});
+
+    assertEmpty(features.searchForFeatures(myBuildType));
+    // build type without features is not inspected again until its settings change
+    assertEmpty(features.searchForFeatures(myBuildType));
+    dispatcher.getMulticaster().buildTypePersisted(myBuildType);
+    assertEquals(1, features.searchForFeatures(myBuildType).size());
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testSearchForFeatures_SettingsOfBuildNotRemembered() {
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final ProjectManager projectManager = m.mock(ProjectManager.class);
+    final SharedResourcesFeatures features = new SharedResourcesFeaturesImpl(mySharedResourcesFeatureFactory, dispatcher, projectManager);
+    final SBuildType buildSettings = m.mock(SBuildType.class, "build-settings");
+    final SBuildFeatureDescriptor descriptor = myValidDescriptors.get(0);
+    m.checking(new Expectations() {{
+      allowing(myBuildType).getInternalId();
+      will(returnValue("bt1"));
+
+      allowing(buildSettings).getInternalId();
+      will(returnValue("bt1"));
+
+      allowing(projectManager).findBuildTypeById("bt1");
+      will(returnValue(myBuildType));
+
+      // settings, used by the build, do not have features
+      oneOf(buildSettings).getBuildFeatures();
+      will(returnValue(Collections.emptyList()));
+
+      oneOf(myBuildType).getBuildFeatures();
+      will(returnValue(Collections.singletonList(descriptor)));
+
+      allowing(descriptor).getType();
+      will(returnValue(SharedResourcesBuildFeature.FEATURE_TYPE));
+
+      allowing(descriptor).getId();
+      will(returnValue("feature_1"));
+
+      allowing(myBuildType).isEnabled("feature_1");
+      will(returnValue(true));
+
+      oneOf(mySharedResourcesFeatureFactory).createFeature(descriptor);
+      will(returnValue(myFeature));
+    }});
+
+    assertEmpty(features.searchForFeatures(buildSettings));
+    assertEquals(1, features.searchForFeatures(myBuildType).size());
+    m.assertIsSatisfied();
+  }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.metrics;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Arrays;
+import java.util.Collections;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = SharedResourcesMetrics.class)
+public class SharedResourcesMetricsTest extends BaseTestCase {
+
+  /**
+   * Class under test
+   */
+  private SharedResourcesMetrics myMetrics;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myMetrics = new SharedResourcesMetrics();
+  }
+
+  @Test
+  public void testRecordLatency() {
+    final long start = System.nanoTime();
+    myMetrics.record(SharedResourcesMetrics.Operation.FILTER_AGENTS, start);
+    myMetrics.record(SharedResourcesMetrics.Operation.FILTER_AGENTS, start);
+
+    final SharedResourcesMetrics.LatencyHistogram latency = myMetrics.getLatency(SharedResourcesMetrics.Operation.FILTER_AGENTS);
+    assertEquals(2, latency.getCount());
+    assertEquals(2, Arrays.stream(latency.getBucketCounts()).sum());
+    assertTrue(latency.getMaxNanos() >= latency.getMeanNanos());
+    assertEquals(0, myMetrics.getLatency(SharedResourcesMetrics.Operation.UPDATE_PARAMETERS).getCount());
+  }
+
+  @Test
+  public void testLatencyBuckets() {
+    // more than a second ago -> last, unbounded bucket
+    myMetrics.record(SharedResourcesMetrics.Operation.LOCKS_STORAGE_LOAD, System.nanoTime() - 2_000_000_000L);
+    final long[] counts = myMetrics.getLatency(SharedResourcesMetrics.Operation.LOCKS_STORAGE_LOAD).getBucketCounts();
+    assertEquals(1, counts[counts.length - 1]);
+  }
+
+  @Test
+  public void testBlockedBuilds() {
+    final Resource resource1 = ResourceFactory.newInfiniteResource("id1", "PROJECT", "resource1", true);
+    final Resource resource2 = ResourceFactory.newQuotedResource("id2", "PROJECT", "resource2", 1, true);
+    myMetrics.buildBlocked(Arrays.asList(resource1, resource2));
+    myMetrics.buildBlocked(Collections.singleton(resource2));
+
+    assertEquals(1L, (long)myMetrics.getBlockedBuilds().get("PROJECT/resource1"));
+    assertEquals(2L, (long)myMetrics.getBlockedBuilds().get("PROJECT/resource2"));
+  }
+
+  @Test
+  public void testCacheStats() {
+    final Cache<String, String> cache = CacheBuilder.newBuilder().recordStats().build();
+    myMetrics.registerCache("cache", cache::stats);
+    cache.put("key", "value");
+    cache.getIfPresent("key");
+    cache.getIfPresent("other");
+
+    assertEquals(0.5, myMetrics.getCacheStats().get("cache").hitRate(), 0.0001);
+    assertTrue(myMetrics.getReport().contains("cache requests=2 hitRate=0.5000"));
+  }
+
+  @Test
+  public void testLocksStorageLoads() {
+    final SharedResourcesMetrics.StorageLoads loads = myMetrics.getLocksStorageLoads();
+    loads.hit();
+    loads.loaded(System.nanoTime() - 2_000_000L);
+    loads.loadFailed(System.nanoTime());
+
+    assertEquals(1, loads.getHits());
+    assertEquals(2, loads.getMisses());
+    assertEquals(1, loads.getLoadFailures());
+    assertTrue(loads.getLoadNanos() >= 2_000_000L);
+    assertTrue(myMetrics.getReport().contains("hits=1 misses=2 loadFailures=1"));
+  }
+
+  @Test
+  public void testReport() {
+    myMetrics.record(SharedResourcesMetrics.Operation.UPDATE_PARAMETERS, System.nanoTime());
+    myMetrics.buildBlocked(Collections.singleton(ResourceFactory.newInfiniteResource("id1", "PROJECT", "resource1", true)));
+    final String report = myMetrics.getReport();
+    assertTrue(report.contains("updateParameters count=1"));
+    assertTrue(report.contains("PROJECT/resource1 1"));
+  }
+}
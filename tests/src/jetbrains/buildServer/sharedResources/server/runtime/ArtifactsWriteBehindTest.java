@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = ArtifactsWriteBehind.class)
+public class ArtifactsWriteBehindTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private ArtifactsWriteBehind myWriteBehind;
+
+  private List<String> myWritten;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myWriteBehind = new ArtifactsWriteBehind(myDispatcher);
+    myWritten = new CopyOnWriteArrayList<>();
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myDispatcher.getMulticaster().serverShutdown();
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testWritesOfSameKindAreCoalesced() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    myWriteBehind.submit(1L, "first", () -> {
+      started.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        fail(e.getMessage());
+      }
+      myWritten.add("first");
+    });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    myWriteBehind.submit(1L, "second", () -> myWritten.add("second_1"));
+    myWriteBehind.submit(1L, "second", () -> myWritten.add("second_2"));
+    release.countDown();
+    // flush waits for the write, that is in progress
+    myWriteBehind.flush(1L);
+    assertEquals(2, myWritten.size());
+    assertEquals("first", myWritten.get(0));
+    assertEquals("second_2", myWritten.get(1));
+  }
+
+  @Test
+  public void testFlushedOnBuildFinished() {
+    myWriteBehind.submit(1L, "kind", () -> myWritten.add("value"));
+    final SRunningBuild build = m.mock(SRunningBuild.class);
+    final BuildPromotion promotion = m.mock(BuildPromotion.class);
+    m.checking(new Expectations() {{
+      allowing(build).getBuildPromotion();
+      will(returnValue(promotion));
+
+      allowing(promotion).getId();
+      will(returnValue(1L));
+    }});
+    myDispatcher.getMulticaster().buildFinished(build);
+    assertEquals(1, myWritten.size());
+  }
+
+  @Test
+  public void testFlushedOnShutdown() {
+    for (long id = 0; id < 100; id++) {
+      final String value = String.valueOf(id);
+      myWriteBehind.submit(id, "kind", () -> myWritten.add(value));
+    }
+    myDispatcher.getMulticaster().serverShutdown();
+    assertEquals(100, myWritten.size());
+  }
+}
@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import jetbrains.buildServer.serverSide.*;
@@ -26,6 +27,7 @@ import jetbrains.buildServer.util.TestFor;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import static jetbrains.buildServer.sharedResources.TestUtils.singleLock;
 import static jetbrains.buildServer.sharedResources.tests.SharedResourcesIntegrationTestsSupport.*;
 
 /**
@@ -193,8 +195,8 @@ public class BaseIntegrationTest extends SharedResourcesIntegrationTest {
     assertNotNull(bt);
     if (bt.getExternalId().equals(btAny.getExternalId())) {
       // if we started ANY build, we should check what lock was taken
-      final Map<String, Lock> payload = storage.load(runningBuild.getBuildPromotion());
-      String value = payload.get(resourceTop.getName()).getValue();
+      final Map<String, Collection<Lock>> payload = storage.load(runningBuild.getBuildPromotion());
+      String value = singleLock(payload, resourceTop.getName()).getValue();
       // if it is the value that is requested by SPECIFIC one, -> wait for status in specific build, finish any build, start specific, check lock
       if (specificRequestedValue.equals(value)) {
         waitForReason(qbSpecific, "Build is waiting for the following resource to become available: resource_top (locked by top / child2 / btAny)");
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterContext;
+import jetbrains.buildServer.serverSide.buildDistribution.SimpleWaitReason;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import jetbrains.buildServer.sharedResources.model.DistributionData;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = CompositeChainLocks.class)
+public class CompositeChainLocksTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private DistributionDataAccessor myAccessor;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    final AgentsFilterContext context = m.mock(AgentsFilterContext.class);
+    final DistributionData data = new DistributionData();
+    m.checking(new Expectations() {{
+      allowing(context).getCustomData(DistributionDataAccessor.DISTRIBUTION_DATA_KEY);
+      will(returnValue(data));
+    }});
+    myAccessor = new DistributionDataAccessor(context);
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    m.assertIsSatisfied();
+    super.tearDown();
+  }
+
+  @Test
+  public void testChainResolvedOncePerCycle() {
+    final AtomicInteger resolved = new AtomicInteger();
+    final CompositeChainLocks first = myAccessor.getCompositeChainLocks(Arrays.asList(1L, 2L), () -> {
+      resolved.incrementAndGet();
+      return new CompositeChainLocks();
+    });
+    final CompositeChainLocks second = myAccessor.getCompositeChainLocks(Arrays.asList(1L, 2L), () -> {
+      resolved.incrementAndGet();
+      return new CompositeChainLocks();
+    });
+    assertSame(first, second);
+    assertEquals(1, resolved.get());
+
+    myAccessor.getCompositeChainLocks(Collections.singletonList(3L), CompositeChainLocks::new);
+    assertEquals(1, resolved.get());
+  }
+
+  @Test
+  public void testResourcesLoadedOncePerProject() {
+    final CompositeChainLocks chain = new CompositeChainLocks();
+    final AtomicInteger loaded = new AtomicInteger();
+    final Map<String, Resource> resources = new HashMap<>();
+    assertSame(resources, chain.getResources("PROJECT", id -> {
+      loaded.incrementAndGet();
+      return resources;
+    }));
+    assertSame(resources, chain.getResources("PROJECT", id -> {
+      loaded.incrementAndGet();
+      return new HashMap<>();
+    }));
+    assertEquals(1, loaded.get());
+  }
+
+  @Test
+  public void testVerdictInvalidatedByTakenLocksWriteRequestsAndAffinity() {
+    final CompositeChainLocks chain = new CompositeChainLocks();
+    assertFalse(hasVerdict(chain));
+
+    final WaitReason reason = new SimpleWaitReason("waiting");
+    chain.setVerdict(reason, myAccessor.getTakenLocksVersion(), myAccessor.getWaiterQueues().getVersion(),
+                     myAccessor.getResourceAffinity().getVersion());
+    assertTrue(hasVerdict(chain));
+    assertSame(reason, chain.getVerdict());
+
+    myAccessor.takenLocksUpdated();
+    assertFalse(hasVerdict(chain));
+
+    chain.setVerdict(null, myAccessor.getTakenLocksVersion(), myAccessor.getWaiterQueues().getVersion(),
+                     myAccessor.getResourceAffinity().getVersion());
+    assertTrue(hasVerdict(chain));
+    assertNull(chain.getVerdict());
+
+    final BuildPromotion promotion = m.mock(BuildPromotion.class);
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(1L));
+    }});
+    myAccessor.getWaiterQueues().addWriter(ResourceFactory.newInfiniteResource("resource_id", "PROJECT", "resource", true), promotion);
+    assertFalse(hasVerdict(chain));
+
+    chain.setVerdict(reason, myAccessor.getTakenLocksVersion(), myAccessor.getWaiterQueues().getVersion(),
+                     myAccessor.getResourceAffinity().getVersion());
+    assertTrue(hasVerdict(chain));
+
+    myAccessor.getResourceAffinity().store(promotion, Collections.emptyMap());
+    assertTrue(hasVerdict(chain));
+
+    myAccessor.getResourceAffinity().store(promotion, Collections.singletonMap("custom_resource_id", "value1"));
+    assertFalse(hasVerdict(chain));
+  }
+
+  private boolean hasVerdict(@NotNull final CompositeChainLocks chain) {
+    return chain.hasVerdict(myAccessor.getTakenLocksVersion(), myAccessor.getWaiterQueues().getVersion(),
+                            myAccessor.getResourceAffinity().getVersion());
+  }
+}
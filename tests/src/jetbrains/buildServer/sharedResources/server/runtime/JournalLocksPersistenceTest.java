@@ -0,0 +1,277 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongHashSet;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = JournalLocksPersistence.class)
+public class JournalLocksPersistenceTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private LocksPersistence myArtifacts;
+
+  private File myJournalFile;
+
+  private ArtifactsWriteBehind myWriteBehind;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myArtifacts = m.mock(LocksPersistence.class);
+    m.checking(new Expectations() {{
+      allowing(myArtifacts).write(with(any(BuildPromotion.class)), with(any(Map.class)));
+      will(returnValue(true));
+
+      allowing(myArtifacts).read(with(any(BuildPromotion.class)));
+      will(returnValue(null));
+    }});
+    myJournalFile = new File(createTempDir(), JournalLocksPersistence.JOURNAL_FILE_NAME);
+    myWriteBehind = new ArtifactsWriteBehind(EventDispatcher.create(BuildServerListener.class));
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testWriteRead() {
+    final JournalLocksPersistence journal = createJournal();
+    final BuildPromotion promotion = createPromotion(1L);
+    final Map<String, Collection<Lock>> locks = createLocks();
+    assertTrue(journal.write(promotion, locks));
+    assertEquals(locks, journal.read(promotion));
+    assertNull(journal.read(createPromotion(2L)));
+  }
+
+  @Test
+  public void testReplay() {
+    final BuildPromotion promotion1 = createPromotion(1L);
+    final BuildPromotion promotion2 = createPromotion(2L);
+    final Map<String, Collection<Lock>> locks = createLocks();
+    JournalLocksPersistence journal = createJournal();
+    journal.write(promotion1, locks);
+    journal.write(promotion2, locks);
+    journal.release(promotion1);
+    journal.close();
+
+    journal = createJournal();
+    assertNull(journal.read(promotion1));
+    assertEquals(locks, journal.read(promotion2));
+  }
+
+  @Test
+  public void testReplay_Weighted() {
+    final BuildPromotion promotion1 = createPromotion(1L);
+    final BuildPromotion promotion2 = createPromotion(2L);
+    final Map<String, Collection<Lock>> weighted = createLocks();
+    weighted.put("memory", Collections.singletonList(new Lock("memory", LockType.READ, "", 8)));
+    final Map<String, Collection<Lock>> locks = createLocks();
+    JournalLocksPersistence journal = createJournal();
+    journal.write(promotion1, weighted);
+    journal.write(promotion2, locks);
+    journal.close();
+
+    journal = createJournal();
+    assertEquals(weighted, journal.read(promotion1));
+    assertEquals(locks, journal.read(promotion2));
+  }
+
+  @Test
+  public void testReplay_SeveralLocksOnResource() {
+    final BuildPromotion promotion = createPromotion(1L);
+    final Map<String, Collection<Lock>> locks = createLocks();
+    locks.put("custom", Arrays.asList(new Lock("custom", LockType.READ, "value 1"), new Lock("custom", LockType.READ, "value 2", 2)));
+    JournalLocksPersistence journal = createJournal();
+    journal.write(promotion, locks);
+    journal.close();
+
+    journal = createJournal();
+    assertEquals(locks, journal.read(promotion));
+  }
+
+  @Test
+  public void testReplay_TornTail() throws Exception {
+    final BuildPromotion promotion = createPromotion(1L);
+    final Map<String, Collection<Lock>> locks = createLocks();
+    JournalLocksPersistence journal = createJournal();
+    journal.write(promotion, locks);
+    journal.close();
+    // incomplete record at the end of the journal
+    try (FileOutputStream out = new FileOutputStream(myJournalFile, true)) {
+      out.write(new byte[] {0, 0, 1, 0, 2, 0, 0});
+    }
+
+    journal = createJournal();
+    assertEquals(locks, journal.read(promotion));
+    // journal remains usable after truncation of the tail
+    final BuildPromotion promotion2 = createPromotion(2L);
+    journal.write(promotion2, locks);
+    journal.close();
+    journal = createJournal();
+    assertEquals(locks, journal.read(promotion));
+    assertEquals(locks, journal.read(promotion2));
+  }
+
+  @Test
+  public void testReplay_UnknownFormat() throws Exception {
+    try (FileOutputStream out = new FileOutputStream(myJournalFile)) {
+      out.write("lock1\treadLock\t \n".getBytes("UTF-8"));
+    }
+    final JournalLocksPersistence journal = createJournal();
+    final BuildPromotion promotion = createPromotion(1L);
+    assertNull(journal.read(promotion));
+    assertTrue(journal.write(promotion, createLocks()));
+  }
+
+  @Test
+  public void testCompactedOnStartup() {
+    final Map<String, Collection<Lock>> locks = createLocks();
+    JournalLocksPersistence journal = createJournal();
+    journal.write(createPromotion(1L), locks);
+    final long lengthWithSingleBuild = myJournalFile.length();
+    for (long id = 2; id < 100; id++) {
+      final BuildPromotion promotion = createPromotion(id);
+      journal.write(promotion, locks);
+      journal.release(promotion);
+    }
+    journal.close();
+    assertTrue(myJournalFile.length() > lengthWithSingleBuild);
+
+    journal = createJournal();
+    assertEquals(locks, journal.read(createPromotion(1L)));
+    assertEquals(lengthWithSingleBuild, myJournalFile.length());
+  }
+
+  @Test
+  public void testBuildFinishedWhileServerWasDown() {
+    final BuildPromotion running = createPromotion(1L);
+    final BuildPromotion finished = createPromotion(2L);
+    final Map<String, Collection<Lock>> locks = createLocks();
+    JournalLocksPersistence journal = createJournal();
+    journal.write(running, locks);
+    final long lengthWithSingleBuild = myJournalFile.length();
+    journal.write(finished, locks);
+    journal.close();
+
+    journal = createJournal();
+    final TLongHashSet runningIds = new TLongHashSet();
+    runningIds.add(running.getId());
+    journal.retainOnly(runningIds);
+    assertEquals(locks, journal.read(running));
+    assertNull(journal.read(finished));
+    assertEquals(lengthWithSingleBuild, myJournalFile.length());
+    journal.close();
+
+    journal = createJournal();
+    assertEquals(locks, journal.read(running));
+    assertNull(journal.read(finished));
+  }
+
+  @Test
+  public void testReplay_PreviousVersion() throws Exception {
+    final BuildPromotion promotion = createPromotion(1L);
+    final Map<String, Collection<Lock>> locks = createLocks();
+    JournalLocksPersistence journal = createJournal();
+    journal.write(promotion, locks);
+    journal.close();
+    // journal without weighted locks, written by the previous version
+    try (RandomAccessFile file = new RandomAccessFile(myJournalFile, "rw")) {
+      file.seek(4);
+      file.writeByte(1);
+    }
+
+    journal = createJournal();
+    assertEquals(locks, journal.read(promotion));
+  }
+
+  @Test
+  public void testFailedJournalReopenedAfterRetryInterval() throws Exception {
+    // journal directory can not be created
+    final File blocker = myJournalFile.getParentFile();
+    FileUtil.delete(blocker);
+    assertTrue(blocker.createNewFile());
+    final Map<String, Collection<Lock>> locks = createLocks();
+    final JournalLocksPersistence journal = createJournal();
+    final BuildPromotion promotion1 = createPromotion(1L);
+    assertTrue(journal.write(promotion1, locks));
+    assertNull(journal.read(promotion1));
+
+    // journal is not reopened until the retry interval passes
+    FileUtil.delete(blocker);
+    assertTrue(blocker.mkdirs());
+    final BuildPromotion promotion2 = createPromotion(2L);
+    assertTrue(journal.write(promotion2, locks));
+    assertFalse(myJournalFile.exists());
+
+    setInternalProperty(JournalLocksPersistence.RETRY_INTERVAL, "0");
+    final BuildPromotion promotion3 = createPromotion(3L);
+    assertTrue(journal.write(promotion3, locks));
+    assertTrue(myJournalFile.exists());
+    assertEquals(locks, journal.read(promotion3));
+  }
+
+  @NotNull
+  private JournalLocksPersistence createJournal() {
+    return new JournalLocksPersistence(myJournalFile, myArtifacts, myWriteBehind);
+  }
+
+  @NotNull
+  private BuildPromotion createPromotion(final long id) {
+    final BuildPromotion promotion = m.mock(BuildPromotion.class, "promotion-" + id + "-" + System.nanoTime());
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(id));
+    }});
+    return promotion;
+  }
+
+  @NotNull
+  private Map<String, Collection<Lock>> createLocks() {
+    final Map<String, Collection<Lock>> result = new HashMap<>();
+    result.put("lock1", Collections.singletonList(new Lock("lock1", LockType.READ)));
+    result.put("lock2", Collections.singletonList(new Lock("lock2", LockType.WRITE, "value 1")));
+    result.put("lock3", Collections.singletonList(new Lock("lock3", LockType.READ, "value 2")));
+    return result;
+  }
+}
@@ -16,15 +16,15 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
-import com.google.common.cache.Cache;
+import gnu.trove.TLongHashSet;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.serverSide.BuildServerListener;
-import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
@@ -36,18 +36,18 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
-import java.lang.reflect.Field;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static jetbrains.buildServer.sharedResources.TestUtils.singleLock;
 
 /**
  * Created with IntelliJ IDEA.
  *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
-@TestFor (testForClass = {LocksStorage.class, LocksStorageImpl.class})
+@TestFor (testForClass = {LocksStorage.class, LocksStorageImpl.class, ArtifactLocksPersistence.class})
 public class LocksStorageImplTest extends BaseTestCase {
 
   private static final String file_noValues = "lock1\treadLock\t \nlock2\twriteLock\t \nlock3\treadLock\t \nlock4\twriteLock\t \n";
@@ -72,7 +72,7 @@ public class LocksStorageImplTest extends BaseTestCase {
     m = new Mockery();
     myPromotion = m.mock(BuildPromotion.class);
     myDispatcher = EventDispatcher.create(BuildServerListener.class);
-    myLocksStorage = new LocksStorageImpl(myDispatcher);
+    myLocksStorage = new LocksStorageImpl(myDispatcher, new SharedResourcesMetrics());
   }
 
   @Override
@@ -86,7 +86,7 @@ public class LocksStorageImplTest extends BaseTestCase {
   public void testLoad_NoValues() throws Exception {
     final File artifactsDir = createTempFileWithContent(file_noValues);
     addSingleArtifactsAccessExpectations(artifactsDir);
-    final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+    final Map<String, Collection<Lock>> result = myLocksStorage.load(myPromotion);
 
     assertNotNull(result);
     assertEquals(4, result.size());
@@ -96,7 +96,7 @@ public class LocksStorageImplTest extends BaseTestCase {
   public void testLoad_Values() throws Exception {
     final File artifactsDir = createTempFileWithContent(file_Values);
     addSingleArtifactsAccessExpectations(artifactsDir);
-    final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+    final Map<String, Collection<Lock>> result = myLocksStorage.load(myPromotion);
     assertNotNull(result);
     assertEquals(2, result.size());
 
@@ -107,7 +107,7 @@ public class LocksStorageImplTest extends BaseTestCase {
     final File artifactsDir = createTempFileWithContent(file_Mixed);
     addSingleArtifactsAccessExpectations(artifactsDir);
 
-    final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+    final Map<String, Collection<Lock>> result = myLocksStorage.load(myPromotion);
     assertNotNull(result);
     assertEquals(3, result.size());
   }
@@ -117,7 +117,7 @@ public class LocksStorageImplTest extends BaseTestCase {
     final File artifactsDir = createTempFileWithContent(file_Incorrect);
     addSingleArtifactsAccessExpectations(artifactsDir);
 
-    final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+    final Map<String, Collection<Lock>> result = myLocksStorage.load(myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
   }
@@ -129,7 +129,7 @@ public class LocksStorageImplTest extends BaseTestCase {
 
     final Map<Lock, String> takenLocks = new HashMap<>();
     myLocksStorage.store(myPromotion, takenLocks);
-    final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+    final Map<String, Collection<Lock>> result = myLocksStorage.load(myPromotion);
     assertNotNull(result);
     assertEquals(0, result.size());
   }
@@ -151,13 +151,13 @@ public class LocksStorageImplTest extends BaseTestCase {
       oneOf(myPromotion).getId();
       will(returnValue(id));
     }});
-    final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+    final Map<String, Collection<Lock>> result = myLocksStorage.load(myPromotion);
     assertNotNull(result);
     assertEquals(2, result.size());
-    assertContains(result.values(), lock1);
-    assertContains(result.values(), lock2);
-    assertEquals("", result.get(lock1.getName()).getValue());
-    assertEquals("", result.get(lock2.getName()).getValue());
+    assertContains(result.get(lock1.getName()), lock1);
+    assertContains(result.get(lock2.getName()), lock2);
+    assertEquals("", singleLock(result, lock1.getName()).getValue());
+    assertEquals("", singleLock(result, lock2.getName()).getValue());
   }
 
   @Test
@@ -178,11 +178,11 @@ public class LocksStorageImplTest extends BaseTestCase {
       oneOf(myPromotion).getId();
       will(returnValue(id));
     }});
-    final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+    final Map<String, Collection<Lock>> result = myLocksStorage.load(myPromotion);
     assertNotNull(result);
     assertEquals(2, result.size());
-    assertEquals(value1, result.get(lock1.getName()).getValue());
-    assertEquals(value2, result.get(lock2.getName()).getValue());
+    assertEquals(value1, singleLock(result, lock1.getName()).getValue());
+    assertEquals(value2, singleLock(result, lock2.getName()).getValue());
   }
 
   @Test
@@ -206,12 +206,12 @@ public class LocksStorageImplTest extends BaseTestCase {
     takenLocks.put(lock11, value);
     takenLocks.put(lock2, "");
     myLocksStorage.store(myPromotion, takenLocks);
-    final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+    final Map<String, Collection<Lock>> result = myLocksStorage.load(myPromotion);
     assertNotNull(result);
     assertEquals(3, result.size());
-    assertEquals("", result.get(lock1.getName()).getValue());
-    assertEquals("", result.get(lock2.getName()).getValue());
-    assertEquals(value, result.get(lock11.getName()).getValue());
+    assertEquals("", singleLock(result, lock1.getName()).getValue());
+    assertEquals("", singleLock(result, lock2.getName()).getValue());
+    assertEquals(value, singleLock(result, lock11.getName()).getValue());
   }
 
   @Test
@@ -239,8 +239,7 @@ public class LocksStorageImplTest extends BaseTestCase {
 
   @Test
   @TestFor(issues = "TW-44474")
-  @SuppressWarnings("unchecked")
-  public void testReloadTakenLocks_EvictedCache() throws Exception {
+  public void testLoadTakenLocks_KeptUntilFinish() throws Exception {
     final File artifactsDir = createTempDir();
     // no locks
     m.checking(new Expectations() {{
@@ -250,36 +249,21 @@ public class LocksStorageImplTest extends BaseTestCase {
     assertFalse(myLocksStorage.locksStored(myPromotion));
     // store some
     storeSomeLocks(myPromotion, artifactsDir);
-    // check we have them in cache
-    m.checking(new Expectations() {{
-      oneOf(myPromotion).getId();
-      will(returnValue(id));
-    }});
-    assertTrue(myLocksStorage.locksStored(myPromotion));
-    // evict value cache, but not exists cache
-    Field cacheField = myLocksStorage.getClass().getDeclaredField("myLocksCache");
-    cacheField.setAccessible(true);
-    final Cache<SBuild,  Map<String, Lock>> cache = (Cache<SBuild,  Map<String, Lock>>)cacheField.get(myLocksStorage);
-    cache.invalidate(myPromotion);
     // call 'locksStored'. Should return true without accessing disk
     m.checking(new Expectations() {{
       oneOf(myPromotion).getId();
       will(returnValue(id));
     }});
-    // locksStored flag must remain
     assertTrue(myLocksStorage.locksStored(myPromotion));
-    // call load 2 times. Expect 1 disk access
+    // call load 2 times. Locks of running build are kept in memory. Expect no disk access
     m.checking(new Expectations() {{
       exactly(2).of(myPromotion).getId();
       will(returnValue(id));
-
-      oneOf(myPromotion).getArtifactsDirectory();
-      will(returnValue(artifactsDir));
     }});
-    final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+    final Map<String, Collection<Lock>> result = myLocksStorage.load(myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
-    myLocksStorage.load(myPromotion);
+    assertEquals(result, myLocksStorage.load(myPromotion));
   }
 
   @Test
@@ -305,6 +289,12 @@ public class LocksStorageImplTest extends BaseTestCase {
     m.checking(new Expectations() {{
       allowing(runningBuild).getBuildId();
       will(returnValue(id));
+
+      allowing(runningBuild).getBuildPromotion();
+      will(returnValue(myPromotion));
+
+      oneOf(myPromotion).getId();
+      will(returnValue(id));
     }});
     myDispatcher.getMulticaster().buildFinished(runningBuild);
     // check that locks are no longer stored
@@ -315,6 +305,25 @@ public class LocksStorageImplTest extends BaseTestCase {
     assertFalse(myLocksStorage.locksStored(myPromotion));
   }
 
+  @Test
+  public void testBuildFinished_EvictedByPromotionId() throws Exception {
+    storeSomeLocks(myPromotion);
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    m.checking(new Expectations() {{
+      allowing(runningBuild).getBuildId();
+      will(returnValue(100L));
+
+      allowing(runningBuild).getBuildPromotion();
+      will(returnValue(myPromotion));
+
+      allowing(myPromotion).getId();
+      will(returnValue(id));
+    }});
+    assertTrue(myLocksStorage.locksStored(myPromotion));
+    myDispatcher.getMulticaster().buildFinished(runningBuild);
+    assertFalse(myLocksStorage.locksStored(myPromotion));
+  }
+
   @Test
   @TestFor(issues = "TW-44474")
   public void testArtifactExists_No() {
@@ -325,6 +334,85 @@ public class LocksStorageImplTest extends BaseTestCase {
     assertFalse(myLocksStorage.locksStored(myPromotion));
   }
 
+  @Test
+  public void testRunningBuildsRecoveredOnStartup() throws Exception {
+    final File artifactsDir = createTempFileWithContent(file_Values);
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    final BuildPromotion otherPromotion = m.mock(BuildPromotion.class, "otherPromotion");
+    final SRunningBuild otherRunningBuild = m.mock(SRunningBuild.class, "otherRunningBuild");
+    final File emptyDir = createTempDir();
+    m.checking(new Expectations() {{
+      allowing(runningBuild).getBuildPromotion();
+      will(returnValue(myPromotion));
+
+      allowing(otherRunningBuild).getBuildPromotion();
+      will(returnValue(otherPromotion));
+
+      allowing(myPromotion).getId();
+      will(returnValue(id));
+
+      allowing(otherPromotion).getId();
+      will(returnValue(2L));
+
+      // artifacts are read once, during recovery
+      oneOf(myPromotion).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+
+      oneOf(otherPromotion).getArtifactsDirectory();
+      will(returnValue(emptyDir));
+    }});
+    final LocksStorage storage = new LocksStorageImpl(myDispatcher, new SharedResourcesMetrics(), new ArtifactLocksPersistence(),
+                                                      () -> Arrays.asList(runningBuild, otherRunningBuild));
+    myDispatcher.getMulticaster().serverStartup();
+
+    assertTrue(storage.locksStored(myPromotion));
+    assertFalse(storage.locksStored(otherPromotion));
+    final Map<String, Collection<Lock>> result = storage.load(myPromotion);
+    assertEquals(2, result.size());
+    assertEquals("My Value 1", singleLock(result, "lock1").getValue());
+  }
+
+  @Test
+  public void testRunningBuildsRecovered_FailedBuildSkipped() throws Exception {
+    final File artifactsDir = createTempFileWithContent(file_Values);
+    final SRunningBuild runningBuild = m.mock(SRunningBuild.class);
+    final BuildPromotion failingPromotion = m.mock(BuildPromotion.class, "failingPromotion");
+    final SRunningBuild failingRunningBuild = m.mock(SRunningBuild.class, "failingRunningBuild");
+    m.checking(new Expectations() {{
+      allowing(runningBuild).getBuildPromotion();
+      will(returnValue(myPromotion));
+
+      allowing(failingRunningBuild).getBuildPromotion();
+      will(returnValue(failingPromotion));
+
+      allowing(myPromotion).getId();
+      will(returnValue(id));
+
+      allowing(failingPromotion).getId();
+      will(returnValue(2L));
+
+      oneOf(myPromotion).getArtifactsDirectory();
+      will(returnValue(artifactsDir));
+
+      oneOf(failingPromotion).getArtifactsDirectory();
+      will(throwException(new RuntimeException("Artifacts are not available")));
+    }});
+    // invalid number of threads is not fatal
+    setInternalProperty(LocksStorageImpl.RECOVERY_THREADS, "0");
+    final SharedResourcesMetrics metrics = new SharedResourcesMetrics();
+    final LocksStorage storage = new LocksStorageImpl(myDispatcher, metrics, new ArtifactLocksPersistence(),
+                                                      () -> Arrays.asList(failingRunningBuild, runningBuild));
+    myDispatcher.getMulticaster().serverStartup();
+
+    assertTrue(storage.locksStored(myPromotion));
+    assertEquals(2, storage.load(myPromotion).size());
+
+    final SharedResourcesMetrics.StorageLoads loads = metrics.getLocksStorageLoads();
+    assertEquals(1, loads.getHits());
+    assertEquals(2, loads.getMisses());
+    assertEquals(1, loads.getLoadFailures());
+  }
+
   @Test
   @TestFor(issues = "TW-31068")
   public void testLoadStore_MultiThreaded() throws Exception {
@@ -358,12 +446,12 @@ public class LocksStorageImplTest extends BaseTestCase {
           fail(e.getMessage());
         }
       }
-      final Map<String, Lock> result = myLocksStorage.load(myPromotion);
+      final Map<String, Collection<Lock>> result = myLocksStorage.load(myPromotion);
       assertNotNull(result);
       assertEquals(3, result.size());
-      assertEquals("", result.get(lock1.getName()).getValue());
-      assertEquals("", result.get(lock2.getName()).getValue());
-      assertEquals(value, result.get(lock11.getName()).getValue());
+      assertEquals("", singleLock(result, lock1.getName()).getValue());
+      assertEquals("", singleLock(result, lock2.getName()).getValue());
+      assertEquals(value, singleLock(result, lock11.getName()).getValue());
       myLatch.countDown();
     };
     new Thread(runReader).start();
@@ -376,6 +464,111 @@ public class LocksStorageImplTest extends BaseTestCase {
     myLatch.await(10, TimeUnit.SECONDS);
   }
 
+  @Test
+  public void testConcurrentStartAndFinish_NoTornReads() throws Exception {
+    final LocksPersistence persistence = new InMemoryLocksPersistence();
+    final LocksStorage storage = new LocksStorageImpl(myDispatcher, new SharedResourcesMetrics(), persistence, Collections::emptyList);
+    final Map<Lock, String> takenLocks = new HashMap<>();
+    takenLocks.put(new Lock("lock1", LockType.READ), "value1");
+    takenLocks.put(new Lock("lock2", LockType.WRITE), "");
+    takenLocks.put(new Lock("lock3", LockType.READ), "value3");
+
+    final int buildsCount = 500;
+    final List<BuildPromotion> promotions = new ArrayList<>();
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    final List<Future<?>> futures = new ArrayList<>();
+    try {
+      for (int i = 0; i < buildsCount; i++) {
+        final BuildPromotion promotion = createPromotionStub(i);
+        final SRunningBuild build = createRunningBuildStub(promotion);
+        promotions.add(promotion);
+        futures.add(executor.submit(() -> {
+          storage.store(promotion, takenLocks);
+          myDispatcher.getMulticaster().buildFinished(build);
+        }));
+        for (int r = 0; r < 2; r++) {
+          futures.add(executor.submit(() -> {
+            for (int k = 0; k < 50; k++) {
+              storage.locksStored(promotion);
+              final Map<String, Collection<Lock>> locks = storage.load(promotion);
+              // either nothing or all the locks with their values
+              if (!locks.isEmpty()) {
+                assertEquals(3, locks.size());
+                assertEquals("value1", singleLock(locks, "lock1").getValue());
+                assertEquals("", singleLock(locks, "lock2").getValue());
+                assertEquals("value3", singleLock(locks, "lock3").getValue());
+              }
+            }
+          }));
+        }
+      }
+      for (Future<?> future: futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    // all builds are finished
+    for (BuildPromotion promotion: promotions) {
+      assertFalse(storage.locksStored(promotion));
+      assertTrue(storage.load(promotion).isEmpty());
+    }
+  }
+
+  @Test
+  public void testBuildFinishedWhileStoring_NotBlocked() throws Exception {
+    final InMemoryLocksPersistence inMemory = new InMemoryLocksPersistence();
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch written = new CountDownLatch(1);
+    final LocksPersistence persistence = new LocksPersistence() {
+      @Override
+      public boolean write(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Collection<Lock>> locks) {
+        writing.countDown();
+        try {
+          assertTrue(written.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return inMemory.write(buildPromotion, locks);
+      }
+
+      @Override
+      public Map<String, Collection<Lock>> read(@NotNull final BuildPromotion buildPromotion) {
+        return inMemory.read(buildPromotion);
+      }
+
+      @Override
+      public void release(@NotNull final BuildPromotion buildPromotion) {
+        inMemory.release(buildPromotion);
+      }
+
+      @Override
+      public void retainOnly(@NotNull final TLongHashSet runningPromotionIds) {
+        inMemory.retainOnly(runningPromotionIds);
+      }
+    };
+    final LocksStorage storage = new LocksStorageImpl(myDispatcher, new SharedResourcesMetrics(), persistence, Collections::emptyList);
+    final BuildPromotion promotion = createPromotionStub(1);
+    final SRunningBuild build = createRunningBuildStub(promotion);
+    final Map<Lock, String> takenLocks = Collections.singletonMap(new Lock("lock1", LockType.READ), "value1");
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<?> storing = executor.submit(() -> storage.store(promotion, takenLocks));
+      assertTrue(writing.await(10, TimeUnit.SECONDS));
+      // finishing build does not wait for the locks to be written
+      myDispatcher.getMulticaster().buildFinished(build);
+      assertFalse(storage.locksStored(promotion));
+      written.countDown();
+      storing.get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+    // locks are released by the storing thread once written
+    assertNull(inMemory.read(promotion));
+    assertTrue(storage.load(promotion).isEmpty());
+  }
+
   /**
    * Creates temp file with specified content.
    * @param content content to write
@@ -386,7 +579,7 @@ public class LocksStorageImplTest extends BaseTestCase {
     final File parentDir = new File(artifactsDir, SharedResourcesPluginConstants.BASE_ARTIFACT_PATH);
     FileUtil.createDir(parentDir);
     registerAsTempFile(parentDir);
-    final File artifactFile = new File(artifactsDir, LocksStorageImpl.FILE_PATH);
+    final File artifactFile = new File(artifactsDir, ArtifactLocksPersistence.FILE_PATH);
     FileUtil.createTempFile(parentDir, "taken_locks", "txt", true);
     registerAsTempFile(artifactFile);
     FileUtil.writeFile(artifactFile, content, "UTF-8");
@@ -427,4 +620,59 @@ public class LocksStorageImplTest extends BaseTestCase {
       will(returnValue(artifactsDir));
     }});
   }
+
+  @NotNull
+  private static BuildPromotion createPromotionStub(final long promotionId) {
+    // jmock mocks are not thread safe
+    return (BuildPromotion)Proxy.newProxyInstance(LocksStorageImplTest.class.getClassLoader(), new Class[]{BuildPromotion.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getId":
+          return promotionId;
+        case "hashCode":
+          return Long.hashCode(promotionId);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "promotion " + promotionId;
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  @NotNull
+  private static SRunningBuild createRunningBuildStub(@NotNull final BuildPromotion promotion) {
+    return (SRunningBuild)Proxy.newProxyInstance(LocksStorageImplTest.class.getClassLoader(), new Class[]{SRunningBuild.class}, (proxy, method, args) -> {
+      if ("getBuildPromotion".equals(method.getName())) {
+        return promotion;
+      }
+      throw new UnsupportedOperationException(method.getName());
+    });
+  }
+
+  private static final class InMemoryLocksPersistence implements LocksPersistence {
+
+    private final Map<Long, Map<String, Collection<Lock>>> myLocks = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean write(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Collection<Lock>> locks) {
+      myLocks.put(buildPromotion.getId(), locks);
+      return true;
+    }
+
+    @Override
+    public Map<String, Collection<Lock>> read(@NotNull final BuildPromotion buildPromotion) {
+      return myLocks.get(buildPromotion.getId());
+    }
+
+    @Override
+    public void release(@NotNull final BuildPromotion buildPromotion) {
+      myLocks.remove(buildPromotion.getId());
+    }
+
+    @Override
+    public void retainOnly(@NotNull final TLongHashSet runningPromotionIds) {
+      myLocks.keySet().removeIf(id -> !runningPromotionIds.contains(id));
+    }
+  }
 }
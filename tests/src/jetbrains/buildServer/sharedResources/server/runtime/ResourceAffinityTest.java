@@ -0,0 +1,117 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = ResourceAffinity.class)
+public class ResourceAffinityTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private CustomResource myResource;
+
+  private BuildPromotion myPromotion1;
+
+  private BuildPromotion myPromotion2;
+
+  private BuildPromotion myPromotion3;
+
+  /**
+   * Class under test
+   */
+  private ResourceAffinity myAffinity;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myResource = (CustomResource)ResourceFactory.newCustomResource("resource_id", "PROJECT_ID", "resource",
+                                                                   Arrays.asList("value1", "value2", "value1", "value3"), true);
+    myPromotion1 = createPromotion(1L);
+    myPromotion2 = createPromotion(2L);
+    myPromotion3 = createPromotion(3L);
+    myAffinity = new ResourceAffinity();
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testValueIndices() {
+    assertEquals(3, myResource.getIndexedValuesCount());
+    assertEquals(0, myResource.getValueIndex("value1"));
+    assertEquals(1, myResource.getValueIndex("value2"));
+    assertEquals(2, myResource.getValueIndex("value3"));
+    assertEquals(-1, myResource.getValueIndex("unknown"));
+    assertEquals("value3", myResource.getValueByIndex(2));
+  }
+
+  @Test
+  public void testNoAssignedValues() {
+    assertTrue(myAffinity.getOtherAssignedValueIndices(myResource, myPromotion1).isEmpty());
+    assertFalse(myAffinity.isAssignedToOther(myResource, myPromotion1, 0));
+  }
+
+  @Test
+  public void testOtherAssignedValues() {
+    myAffinity.store(myPromotion1, Collections.singletonMap(myResource.getId(), "value1"));
+    myAffinity.store(myPromotion2, Collections.singletonMap(myResource.getId(), "value3"));
+
+    final BitSet expected = new BitSet();
+    expected.set(2);
+    assertEquals(expected, myAffinity.getOtherAssignedValueIndices(myResource, myPromotion1));
+    assertTrue(myAffinity.isAssignedToOther(myResource, myPromotion1, 2));
+    assertFalse(myAffinity.isAssignedToOther(myResource, myPromotion1, 0));
+    assertTrue(myAffinity.isAssignedToOther(myResource, myPromotion3, 0));
+
+    // indices are recomputed after new value is stored
+    myAffinity.store(myPromotion3, Collections.singletonMap(myResource.getId(), "value1"));
+    assertTrue(myAffinity.isAssignedToOther(myResource, myPromotion1, 0));
+    assertEquals(myAffinity.getOtherAssignedValues(myResource, myPromotion2).size(),
+                 myAffinity.getOtherAssignedValueIndices(myResource, myPromotion2).cardinality());
+  }
+
+  private BuildPromotion createPromotion(final long id) {
+    final BuildPromotion result = m.mock(BuildPromotion.class, "promotion-" + id);
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(id));
+    }});
+    return result;
+  }
+}
@@ -1,6 +1,7 @@
 package jetbrains.buildServer.sharedResources.server.runtime;
 
 import com.intellij.openapi.util.Trinity;
+import gnu.trove.TLongHashSet;
 import java.util.*;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.*;
@@ -8,14 +9,18 @@ import jetbrains.buildServer.serverSide.buildDistribution.BuildDistributorInput;
 import jetbrains.buildServer.serverSide.buildDistribution.DefaultAgentsFilterContext;
 import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
 import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockHolders;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
@@ -24,6 +29,7 @@ import org.jmock.lib.legacy.ClassImposteriser;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import static jetbrains.buildServer.sharedResources.TestUtils.asLocksMap;
 import static jetbrains.buildServer.sharedResources.TestUtils.generateRandomName;
 
 /**
@@ -37,6 +43,8 @@ public class TakenLocksImplTest extends BaseTestCase {
 
   private Mockery m;
 
+  private long myNextPromotionId = 1;
+
   private Locks myLocks;
 
   private Resources myResources;
@@ -50,6 +58,8 @@ public class TakenLocksImplTest extends BaseTestCase {
 
   private SharedResourcesFeatures myFeatures;
 
+  private RunningBuildsManager myRunningBuildsManager;
+
   private BuildPromotion myPromotion;
 
   private DistributionDataAccessor myAccessor;
@@ -68,6 +78,10 @@ public class TakenLocksImplTest extends BaseTestCase {
     myLocksStorage = m.mock(LocksStorage.class);
     myFeatures = m.mock(SharedResourcesFeatures.class);
     myPromotion = m.mock(BuildPromotion.class);
+    m.checking(new Expectations() {{
+      allowing(myPromotion).getId();
+      will(returnValue(0L));
+    }});
 
     myAccessor = new DistributionDataAccessor(new DefaultAgentsFilterContext(new HashMap<>()) {
       @NotNull
@@ -99,15 +113,25 @@ public class TakenLocksImplTest extends BaseTestCase {
         return false;
       }
     });
-    myTakenLocks = new TakenLocksImpl(myLocks, myResources, myLocksStorage, myFeatures);
+    myRunningBuildsManager = m.mock(RunningBuildsManager.class);
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final TakenLocksLedger ledger = new TakenLocksLedger(dispatcher, myRunningBuildsManager, myLocksStorage, myFeatures, myLocks,
+                                                         new LockLeases(dispatcher, myResources, 0L, false));
+    myTakenLocks = new TakenLocksImpl(myLocks, myResources, myFeatures, ledger, new SharedResourcesMetrics());
   }
 
   @Test
-  public void testCollectTakenLocks_EmptyInput() {
-    final Map<Resource, TakenLock> result = myTakenLocks.collectTakenLocks(
-            Collections.emptyList(), Collections.emptyList());
+  public void testCollectRunningLocks_EmptyInput() {
+    m.checking(new Expectations() {{
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.emptyList()));
+    }});
+    final Map<Resource, TakenLock> result = myTakenLocks.collectRunningLocks();
     assertNotNull(result);
     assertEquals(0, result.size());
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    myTakenLocks.addDistributedLocks(takenLocks, Collections.emptyList());
+    assertEquals(0, takenLocks.size());
   }
 
   @Test
@@ -123,14 +147,14 @@ public class TakenLocksImplTest extends BaseTestCase {
       put(resource2.getName(), resource2);
     }};
 
-    final Map<String, Lock> takenLocks1 = new HashMap<String, Lock>() {{
-      put(resource1.getName(), new Lock(resource1.getName(), LockType.READ, ""));
-      put(resource2.getName(), new Lock(resource2.getName(), LockType.WRITE, ""));
+    final Map<String, Collection<Lock>> takenLocks1 = new HashMap<String, Collection<Lock>>() {{
+      put(resource1.getName(), Collections.singletonList(new Lock(resource1.getName(), LockType.READ, "")));
+      put(resource2.getName(), Collections.singletonList(new Lock(resource2.getName(), LockType.WRITE, "")));
 
     }};
 
-    final Map<String, Lock> takenLocks2 = new HashMap<String, Lock>() {{
-      put(resource1.getName(), new Lock(resource1.getName(), LockType.READ, ""));
+    final Map<String, Collection<Lock>> takenLocks2 = new HashMap<String, Collection<Lock>>() {{
+      put(resource1.getName(), Collections.singletonList(new Lock(resource1.getName(), LockType.READ, "")));
     }};
 
     final RunningBuildEx rb1 = m.mock(RunningBuildEx.class, "runningBuild_1");
@@ -139,8 +163,8 @@ public class TakenLocksImplTest extends BaseTestCase {
     final SBuildType rb1_bt = m.mock(SBuildType.class, "runningBuild_1-buildType");
     final SBuildType rb2_bt = m.mock(SBuildType.class, "runningBuild_2-buildType");
 
-    final BuildPromotionEx bp1 = m.mock(BuildPromotionEx.class, "buildPromotion_1");
-    final BuildPromotionEx bp2 = m.mock(BuildPromotionEx.class, "buildPromotion_2");
+    final BuildPromotionEx bp1 = mockPromotion("buildPromotion_1");
+    final BuildPromotionEx bp2 = mockPromotion("buildPromotion_2");
 
     final Collection<SRunningBuild> runningBuilds = new ArrayList<SRunningBuild>() {{
       add(rb1);
@@ -148,49 +172,60 @@ public class TakenLocksImplTest extends BaseTestCase {
     }};
 
     m.checking(new Expectations() {{
-      oneOf(rb1).getBuildType();
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(runningBuilds));
+
+      allowing(rb1).getBuildType();
       will(returnValue(rb1_bt));
 
       oneOf(myFeatures).searchForFeatures(rb1_bt);
       will(returnValue(features));
 
-      oneOf(rb1).getBuildPromotionInfo();
+      allowing(rb1).getBuildPromotion();
       will(returnValue(bp1));
 
+      allowing(rb1).isFinished();
+      will(returnValue(false));
+
       oneOf(myLocksStorage).locksStored(bp1);
       will(returnValue(true));
 
       oneOf(myLocksStorage).load(bp1);
       will(returnValue(takenLocks1));
 
-      oneOf(rb1_bt).getProjectId();
+      allowing(rb1_bt).getProjectId();
       will(returnValue(myProjectId));
 
-      oneOf(myResources).getResourcesMap(myProjectId);
+      allowing(myResources).getResourcesMap(myProjectId);
       will(returnValue(resources));
 
-      oneOf(rb2).getBuildType();
+      allowing(rb2).getBuildType();
       will(returnValue(rb2_bt));
 
       oneOf(myFeatures).searchForFeatures(rb2_bt);
       will(returnValue(features));
 
-      oneOf(rb2).getBuildPromotionInfo();
+      allowing(rb2).getBuildPromotion();
       will(returnValue(bp2));
 
+      allowing(rb2).isFinished();
+      will(returnValue(false));
+
       oneOf(myLocksStorage).locksStored(bp2);
       will(returnValue(true));
 
       oneOf(myLocksStorage).load(bp2);
       will(returnValue(takenLocks2));
 
-      oneOf(rb2_bt).getProjectId();
+      allowing(rb2_bt).getProjectId();
       will(returnValue(myProjectId));
 
+      // locks resolved from build features are replaced by the stored ones
+      allowing(myLocks).fromBuildFeaturesAsMap(features);
+      will(returnValue(takenLocks1));
     }});
 
-    final Map<Resource, TakenLock> result = myTakenLocks.collectTakenLocks(
-            runningBuilds, Collections.emptyList());
+    final Map<Resource, TakenLock> result = myTakenLocks.collectRunningLocks();
     assertNotNull(result);
     assertEquals(2, result.size());
     final TakenLock tl1 = result.get(resource1);
@@ -213,6 +248,9 @@ public class TakenLocksImplTest extends BaseTestCase {
     }};
 
     m.checking(new Expectations() {{
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(runningBuilds));
+
       oneOf(rb).getBuildType();
       will(returnValue(rb_bt));
 
@@ -221,8 +259,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     }});
 
-    final Map<Resource, TakenLock> result = myTakenLocks.collectTakenLocks(
-            runningBuilds, Collections.emptyList());
+    final Map<Resource, TakenLock> result = myTakenLocks.collectRunningLocks();
     assertNotNull(result);
     assertEquals(0, result.size());
   }
@@ -243,22 +280,22 @@ public class TakenLocksImplTest extends BaseTestCase {
       put(resource2.getName(), resource2);
     }};
 
-    final Map<String, Lock> takenLocks1 = new HashMap<String, Lock>() {{
-      put(resource1.getName() , new Lock(resource1.getName(), LockType.READ));
-      put(resource2.getName(), new Lock(resource2.getName(), LockType.WRITE));
+    final Map<String, Collection<Lock>> takenLocks1 = new HashMap<String, Collection<Lock>>() {{
+      put(resource1.getName() , Collections.singletonList(new Lock(resource1.getName(), LockType.READ)));
+      put(resource2.getName(), Collections.singletonList(new Lock(resource2.getName(), LockType.WRITE)));
     }};
 
-    final Map<String, Lock> takenLocks2 = new HashMap<String, Lock>() {{
-      put(resource1.getName(), new Lock(resource1.getName(), LockType.READ));
+    final Map<String, Collection<Lock>> takenLocks2 = new HashMap<String, Collection<Lock>>() {{
+      put(resource1.getName(), Collections.singletonList(new Lock(resource1.getName(), LockType.READ)));
     }};
 
     final RunningBuildEx rb1 = m.mock(RunningBuildEx.class, "rb-1");
     final BuildTypeEx rb1_bt = m.mock(BuildTypeEx.class, "rb1_bt");
-    final BuildPromotionEx bp1 = m.mock(BuildPromotionEx.class, "bp-1");
+    final BuildPromotionEx bp1 = mockPromotion("bp-1");
 
     final QueuedBuildInfo qb1 = m.mock(QueuedBuildInfo.class, "qb-1");
     final BuildTypeEx qb1_bt = m.mock(BuildTypeEx.class, "qb1_bt");
-    final BuildPromotionEx bp2 = m.mock(BuildPromotionEx.class, "bp-2");
+    final BuildPromotionEx bp2 = mockPromotion("bp-2");
     final Collection<SRunningBuild> runningBuilds = new ArrayList<SRunningBuild>() {{
       add(rb1);
     }};
@@ -268,13 +305,19 @@ public class TakenLocksImplTest extends BaseTestCase {
     }};
 
     m.checking(new Expectations() {{
-      oneOf(rb1).getBuildType();
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(runningBuilds));
+
+      allowing(rb1).getBuildType();
       will(returnValue(rb1_bt));
 
-      oneOf(rb1).getBuildPromotionInfo();
+      allowing(rb1).getBuildPromotion();
       will(returnValue(bp1));
 
-      oneOf(myLocksStorage).locksStored(bp1);
+      allowing(rb1).isFinished();
+      will(returnValue(false));
+
+      allowing(myLocksStorage).locksStored(bp1);
       will(returnValue(false));
 
       oneOf(myFeatures).searchForFeatures(rb1_bt);
@@ -283,10 +326,10 @@ public class TakenLocksImplTest extends BaseTestCase {
       oneOf(myLocks).fromBuildFeaturesAsMap(rFeatures);
       will(returnValue(takenLocks1));
 
-      oneOf(rb1_bt).getProjectId();
+      allowing(rb1_bt).getProjectId();
       will(returnValue(myProjectId));
 
-      oneOf(myResources).getResourcesMap(myProjectId);
+      allowing(myResources).getResourcesMap(myProjectId);
       will(returnValue(resources));
 
       oneOf(qb1).getBuildPromotionInfo();
@@ -306,8 +349,8 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     }});
 
-    final Map<Resource, TakenLock> result = myTakenLocks.collectTakenLocks(
-            runningBuilds, queuedBuilds);
+    final Map<Resource, TakenLock> result = myTakenLocks.collectRunningLocks();
+    myTakenLocks.addDistributedLocks(result, queuedBuilds);
     assertNotNull(result);
     assertEquals(2, result.size());
     final TakenLock tl1 = result.get(resource1);
@@ -332,7 +375,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class), new Lock("custom_resource1", LockType.READ));
+      tl1.addLock(mockPromotion(), new Lock("custom_resource1", LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -341,7 +384,7 @@ public class TakenLocksImplTest extends BaseTestCase {
       will(returnValue(resources));
     }});
 
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
   }
@@ -358,7 +401,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class), new Lock("custom_resource1", LockType.READ, "v1"));
+      tl1.addLock(mockPromotion(), new Lock("custom_resource1", LockType.READ, "v1"));
       put(tl1.getResource(), tl1);
     }};
 
@@ -367,7 +410,7 @@ public class TakenLocksImplTest extends BaseTestCase {
       will(returnValue(resources));
     }});
 
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
 
@@ -386,7 +429,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class), new Lock("custom_resource1", LockType.WRITE));
+      tl1.addLock(mockPromotion(), new Lock("custom_resource1", LockType.WRITE));
       put(tl1.getResource(), tl1);
     }};
 
@@ -397,7 +440,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     
 
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
   }
@@ -414,8 +457,8 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(myCustomResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock("custom_resource1", LockType.READ, "v1"));
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp2"), new Lock("custom_resource1", LockType.READ, "v2"));
+      tl1.addLock(mockPromotion("bp1"), new Lock("custom_resource1", LockType.READ, "v1"));
+      tl1.addLock(mockPromotion("bp2"), new Lock("custom_resource1", LockType.READ, "v2"));
       put(tl1.getResource(), tl1);
     }};
 
@@ -425,7 +468,7 @@ public class TakenLocksImplTest extends BaseTestCase {
     }});
 
     
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
   }
@@ -442,8 +485,8 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(quotedResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock("quoted_resource1", LockType.READ));
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp2"), new Lock("quoted_resource1", LockType.READ));
+      tl1.addLock(mockPromotion("bp1"), new Lock("quoted_resource1", LockType.READ));
+      tl1.addLock(mockPromotion("bp2"), new Lock("quoted_resource1", LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -453,7 +496,7 @@ public class TakenLocksImplTest extends BaseTestCase {
     }});
     
 
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
 
@@ -471,7 +514,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(quotedResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock("quoted_resource1", LockType.WRITE));
+      tl1.addLock(mockPromotion("bp1"), new Lock("quoted_resource1", LockType.WRITE));
       put(tl1.getResource(), tl1);
     }};
 
@@ -480,7 +523,7 @@ public class TakenLocksImplTest extends BaseTestCase {
       will(returnValue(resources));
     }});
 
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
   }
@@ -497,7 +540,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       TakenLock tl1 = new TakenLock(quotedResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock("quoted_resource1", LockType.READ));
+      tl1.addLock(mockPromotion("bp1"), new Lock("quoted_resource1", LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -508,7 +551,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     
 
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
   }
@@ -516,14 +559,14 @@ public class TakenLocksImplTest extends BaseTestCase {
   /**
    *
    * Test setup:
-   * - fairSet is empty
+   * - no writers are waiting
    * - 1 infinite resource
    * - 1 build holds read lock
    * - 1 build tries to pass through agents filter (with write lock request)
    *
    * Expected results:
    *  - wait reason is returned
-   *  - fairSet should contain write lock name requested
+   *  - build should wait for write access to the resource
    *
    */
   @Test
@@ -540,7 +583,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl1 = new TakenLock(infiniteResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock(infiniteResource.getName(), LockType.READ));
+      tl1.addLock(mockPromotion("bp1"), new Lock(infiniteResource.getName(), LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -549,19 +592,18 @@ public class TakenLocksImplTest extends BaseTestCase {
       will(returnValue(resources));
     }});
     
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
     assertEquals(infiniteResource.getName(), result.get(infiniteResource).getName());
 
-    assertNotEmpty(myAccessor.getFairSet());
-    assertEquals(1, myAccessor.getFairSet().size());
-    assertEquals(infiniteResource.getId(), myAccessor.getFairSet().iterator().next());
+    assertEquals(1, myAccessor.getWaiterQueues().getWaiters(infiniteResource).size());
+    assertEquals(myPromotion.getId(), myAccessor.getWaiterQueues().getWaiters(infiniteResource).get(0).getPromotionId());
   }
 
   /**
    * Test setup:
-   * - fairSet is empty
+   * - no writers are waiting
    * - 1 infinite resource
    * - 1 build holds read lock
    * - 1 build tries to pass through agents filter (with write lock request)
@@ -589,7 +631,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl1 = new TakenLock(infiniteResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock(infiniteResource.getName(), LockType.READ));
+      tl1.addLock(mockPromotion("bp1"), new Lock(infiniteResource.getName(), LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
@@ -602,28 +644,150 @@ public class TakenLocksImplTest extends BaseTestCase {
     
 
     { // 1) Check that read-read locks are working
-      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(readLockToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(readLockToTake), takenLocks, myProjectId, myAccessor, myPromotion);
       assertNotNull(result);
       assertEquals(0, result.size());
-      assertEmpty(myAccessor.getFairSet());
+      assertEquals(0, myAccessor.getWaiterQueues().getVersion());
     }
 
-    { // 2) Check that fair set influences read lock processing
-      Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(writeLockToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    { // 2) Check that waiting writer influences read lock processing
+      Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(writeLockToTake), takenLocks, myProjectId, myAccessor, myPromotion);
       assertNotNull(result);
       assertEquals(1, result.size());
       assertEquals(infiniteResource.getName(), result.get(infiniteResource).getName());
-      assertEquals(1, myAccessor.getFairSet().size());
-      assertEquals(infiniteResource.getId(), myAccessor.getFairSet().iterator().next());
+      assertEquals(1, myAccessor.getWaiterQueues().getWaiters(infiniteResource).size());
 
-      // now we have lock name in fair set. read lock must not be acquired
-      result = myTakenLocks.getUnavailableLocks(readLockToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+      // now we have waiting writer. read lock must not be acquired
+      result = myTakenLocks.getUnavailableLocks(asLocksMap(readLockToTake), takenLocks, myProjectId, myAccessor, myPromotion);
       assertNotNull(result);
       assertEquals(1, result.size());
       assertEquals(infiniteResource.getName(), result.get(infiniteResource).getName());
-      assertEquals(1, myAccessor.getFairSet().size());
-      assertEquals(infiniteResource.getId(), myAccessor.getFairSet().iterator().next());
+      assertEquals(1, myAccessor.getWaiterQueues().getWaiters(infiniteResource).size());
+    }
+  }
+
+  @Test
+  public void testGetUnavailableLocks_ReaderBeforeWaitingWriter() {
+    final Map<String, Resource> resources = new HashMap<>();
+    final Resource infiniteResource = ResourceFactory.newInfiniteResource("resource_id", myProjectId, "resource", true);
+    resources.put(infiniteResource.getName(), infiniteResource);
+
+    final Collection<Lock> writeLockToTake = Collections.singletonList(new Lock(infiniteResource.getName(), LockType.WRITE));
+    final Collection<Lock> readLockToTake = Collections.singletonList(new Lock(infiniteResource.getName(), LockType.READ));
+
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock takenLock = new TakenLock(infiniteResource);
+    takenLock.addLock(mockPromotion("running"), new Lock(infiniteResource.getName(), LockType.READ));
+    takenLocks.put(infiniteResource, takenLock);
+
+    final BuildPromotionEx earlyReader = mockPromotion("earlyReader");
+    final BuildPromotionEx writer = mockPromotion("writer");
+    final BuildPromotionEx lateReader = mockPromotion("lateReader");
+    final List<QueuedBuildInfo> queue = new ArrayList<>();
+    for (BuildPromotionEx promotion : Arrays.asList(earlyReader, writer, lateReader)) {
+      final QueuedBuildInfo queuedBuild = m.mock(QueuedBuildInfo.class, "queued-" + promotion.getId());
+      m.checking(new Expectations() {{
+        allowing(queuedBuild).getBuildPromotionInfo();
+        will(returnValue(promotion));
+      }});
+      queue.add(queuedBuild);
+    }
+    myAccessor.getWaiterQueues().setQueuedBuilds(() -> queue);
+
+    m.checking(new Expectations() {{
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+
+    // writer waits for the running reader
+    assertEquals(1, myTakenLocks.getUnavailableLocks(asLocksMap(writeLockToTake), takenLocks, myProjectId, myAccessor, writer).size());
+    // reader, that is before the writer in the queue, does not delay it
+    assertEmpty(myTakenLocks.getUnavailableLocks(asLocksMap(readLockToTake), takenLocks, myProjectId, myAccessor, earlyReader));
+    // reader after the writer does
+    assertEquals(1, myTakenLocks.getUnavailableLocks(asLocksMap(readLockToTake), takenLocks, myProjectId, myAccessor, lateReader).size());
+  }
+
+  @Test
+  public void testGetUnavailableLocks_WriterBlockedByOtherResource() {
+    final Map<String, Resource> resources = new HashMap<>();
+    final Resource infiniteResource = ResourceFactory.newInfiniteResource("resource_id", myProjectId, "resource", true);
+    final Resource quotedResource = ResourceFactory.newQuotedResource("quoted_id", myProjectId, "quoted", 1, true);
+    resources.put(infiniteResource.getName(), infiniteResource);
+    resources.put(quotedResource.getName(), quotedResource);
+
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock takenLock = new TakenLock(infiniteResource);
+    takenLock.addLock(mockPromotion("running"), new Lock(infiniteResource.getName(), LockType.READ));
+    takenLocks.put(infiniteResource, takenLock);
+    // quota of the other resource is exhausted
+    final TakenLock takenQuota = new TakenLock(quotedResource);
+    takenQuota.addLock(mockPromotion("runningQuota"), new Lock(quotedResource.getName(), LockType.READ));
+    takenLocks.put(quotedResource, takenQuota);
+
+    final BuildPromotionEx writer = mockPromotion("writer");
+    final BuildPromotionEx reader = mockPromotion("reader");
+    final List<QueuedBuildInfo> queue = new ArrayList<>();
+    for (BuildPromotionEx promotion : Arrays.asList(writer, reader)) {
+      final QueuedBuildInfo queuedBuild = m.mock(QueuedBuildInfo.class, "queued-" + promotion.getId());
+      m.checking(new Expectations() {{
+        allowing(queuedBuild).getBuildPromotionInfo();
+        will(returnValue(promotion));
+      }});
+      queue.add(queuedBuild);
     }
+    myAccessor.getWaiterQueues().setQueuedBuilds(() -> queue);
+
+    m.checking(new Expectations() {{
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+
+    final Lock readLock = new Lock(infiniteResource.getName(), LockType.READ);
+    // writer cannot take the other resource anyway, reader after it does not delay it
+    assertEquals(2, myTakenLocks.getUnavailableLocks(asLocksMap(new Lock(infiniteResource.getName(), LockType.WRITE),
+                                                                new Lock(quotedResource.getName(), LockType.READ)),
+                                                     takenLocks, myProjectId, myAccessor, writer).size());
+    assertEmpty(myTakenLocks.getUnavailableLocks(asLocksMap(readLock), takenLocks, myProjectId, myAccessor, reader));
+
+    // quota is released, writer waits only for the write access and blocks the reader
+    takenLocks.put(quotedResource, new TakenLock(quotedResource));
+    assertEquals(1, myTakenLocks.getUnavailableLocks(asLocksMap(new Lock(infiniteResource.getName(), LockType.WRITE),
+                                                                new Lock(quotedResource.getName(), LockType.READ)),
+                                                     takenLocks, myProjectId, myAccessor, writer).size());
+    assertEquals(1, myTakenLocks.getUnavailableLocks(asLocksMap(readLock), takenLocks, myProjectId, myAccessor, reader).size());
+  }
+
+  @Test
+  public void testGetUnavailableLocks_WeightedQuota() {
+    final Map<String, Resource> resources = new HashMap<>();
+    final Resource memory = ResourceFactory.newQuotedResource("memory_id", myProjectId, "memory", 16, true);
+    resources.put(memory.getName(), memory);
+
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock takenLock = new TakenLock(memory);
+    final BuildPromotionEx bp1 = mockPromotion("bp1");
+    takenLock.addLock(bp1, new Lock(memory.getName(), LockType.READ, "", 8));
+    takenLock.addLock(mockPromotion("bp2"), new Lock(memory.getName(), LockType.READ, "", 2));
+    takenLocks.put(memory, takenLock);
+    assertEquals(10, takenLock.getWeight());
+    assertEquals(2, takenLock.getLocksCount());
+
+    m.checking(new Expectations() {{
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+
+    // 6 units are left
+    assertEmpty(myTakenLocks.getUnavailableLocks(asLocksMap(new Lock(memory.getName(), LockType.READ, "", 6)), takenLocks, myProjectId, myAccessor, myPromotion));
+    assertEquals(1, myTakenLocks.getUnavailableLocks(asLocksMap(new Lock(memory.getName(), LockType.READ, "", 8)), takenLocks, myProjectId, myAccessor, myPromotion).size());
+
+    // locks of excluded promotions do not take units
+    final TLongHashSet excluded = new TLongHashSet();
+    excluded.add(bp1.getId());
+    assertEquals(8, takenLock.getReadWeight(bp1.getId()));
+    assertEquals(2, takenLock.getWeight(excluded));
+    assertEmpty(myTakenLocks.getUnavailableLocks(asLocksMap(new Lock(memory.getName(), LockType.READ, "", 14)),
+                                                 takenLocks, myAccessor, resources, Collections.singletonMap(memory, Collections.singletonMap(bp1, Collections.singletonList(new Lock(memory.getName(), LockType.READ, "", 8)))), myPromotion));
   }
 
   /**
@@ -647,13 +811,13 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocksAny = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl1 = new TakenLock(customResource);
-      tl1.addLock(m.mock(BuildPromotionEx.class, "bp1"), new Lock(customResource.getName(), LockType.READ));
+      tl1.addLock(mockPromotion("bp1"), new Lock(customResource.getName(), LockType.READ));
       put(tl1.getResource(), tl1);
     }};
 
     final Map<Resource, TakenLock> takenLocksSpecific = new HashMap<Resource, TakenLock>() {{
       final TakenLock tl = new TakenLock(customResource);
-      tl.addLock(m.mock(BuildPromotionEx.class, "bp2"), new Lock(customResource.getName(), LockType.READ, "val1"));
+      tl.addLock(mockPromotion("bp2"), new Lock(customResource.getName(), LockType.READ, "val1"));
       put(tl.getResource(), tl);
     }};
 
@@ -664,34 +828,32 @@ public class TakenLocksImplTest extends BaseTestCase {
 
 
     { // Check that any-any locks are working
-      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(anyLockToTake, takenLocksAny, myProjectId, myAccessor, myPromotion);
+      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(anyLockToTake), takenLocksAny, myProjectId, myAccessor, myPromotion);
       assertNotNull(result);
       assertEquals(0, result.size());
-      assertEmpty(myAccessor.getFairSet());
+      assertEquals(0, myAccessor.getWaiterQueues().getVersion());
     }
 
     { // Check that any-specific locks are working
-      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(anyLockToTake, takenLocksSpecific, myProjectId, myAccessor, myPromotion);
+      final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(anyLockToTake), takenLocksSpecific, myProjectId, myAccessor, myPromotion);
       assertNotNull(result);
       assertEquals(0, result.size());
-      assertEmpty(myAccessor.getFairSet());
+      assertEquals(0, myAccessor.getWaiterQueues().getVersion());
     }
 
-    { // Check that fair set influences read lock processing
-      Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(allLockToTake, takenLocksAny, myProjectId, myAccessor, myPromotion);
+    { // Check that waiting writer influences read lock processing
+      Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(allLockToTake), takenLocksAny, myProjectId, myAccessor, myPromotion);
       assertNotNull(result);
       assertEquals(1, result.size());
       assertEquals(customResource.getName(), result.get(customResource).getName());
-      assertEquals(1, myAccessor.getFairSet().size());
-      assertEquals(customResource.getName(), myAccessor.getFairSet().iterator().next());
+      assertEquals(1, myAccessor.getWaiterQueues().getWaiters(customResource).size());
 
-      // now we have lock name in fair set. any lock must not be acquired
-      result = myTakenLocks.getUnavailableLocks(anyLockToTake, takenLocksAny, myProjectId, myAccessor, myPromotion);
+      // now we have waiting writer. any lock must not be acquired
+      result = myTakenLocks.getUnavailableLocks(asLocksMap(anyLockToTake), takenLocksAny, myProjectId, myAccessor, myPromotion);
       assertNotNull(result);
       assertEquals(1, result.size());
       assertEquals(customResource.getName(), result.get(customResource).getName());
-      assertEquals(1, myAccessor.getFairSet().size());
-      assertEquals(customResource.getName(), myAccessor.getFairSet().iterator().next());
+      assertEquals(1, myAccessor.getWaiterQueues().getWaiters(customResource).size());
     }
   }
 
@@ -714,7 +876,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     
 
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, Collections.emptyMap(), myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), Collections.emptyMap(), myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertEquals(1, result.size());
     assertEquals(lockToTake, result.get(quotedResource));
@@ -738,7 +900,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
 
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertGreater(result.size(), 0);
     assertContains(result.values(), locksToTake.iterator().next());
@@ -763,7 +925,7 @@ public class TakenLocksImplTest extends BaseTestCase {
     
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
 
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertGreater(result.size(), 0);
     assertContains(result.values(), locksToTake.iterator().next());
@@ -797,7 +959,7 @@ public class TakenLocksImplTest extends BaseTestCase {
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
 
-    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myProjectId, myAccessor, myPromotion);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(locksToTake), takenLocks, myProjectId, myAccessor, myPromotion);
     assertNotNull(result);
     assertEquals(0, result.size());
   }
@@ -830,13 +992,13 @@ public class TakenLocksImplTest extends BaseTestCase {
     final SharedResourcesFeature featureWithDeletedResources = m.mock(SharedResourcesFeature.class, "feature-with-deleted-resources");
     final Collection<SharedResourcesFeature> featuresWithDeletedResources = Collections.singleton(featureWithDeletedResources);
 
-    final Map<String, Lock> allExistingLocks = new HashMap<String, Lock>() {{
-      put(existingResource.getName(), new Lock(existingResource.getName(), LockType.READ, ""));
+    final Map<String, Collection<Lock>> allExistingLocks = new HashMap<String, Collection<Lock>>() {{
+      put(existingResource.getName(), Collections.singletonList(new Lock(existingResource.getName(), LockType.READ, "")));
     }};
 
-    final Map<String, Lock> withDeletedLocks = new HashMap<String, Lock>() {{
-      put(existingResource.getName(), new Lock(existingResource.getName(), LockType.READ, ""));
-      put("deleted", new Lock("deleted", LockType.READ, ""));
+    final Map<String, Collection<Lock>> withDeletedLocks = new HashMap<String, Collection<Lock>>() {{
+      put(existingResource.getName(), Collections.singletonList(new Lock(existingResource.getName(), LockType.READ, "")));
+      put("deleted", Collections.singletonList(new Lock("deleted", LockType.READ, "")));
     }};
 
     final Trinity<RunningBuildEx, BuildTypeEx, BuildPromotionEx> rb1 = createMockRunningBuild(myProjectId);
@@ -874,6 +1036,13 @@ public class TakenLocksImplTest extends BaseTestCase {
       allowing(myResources).getResourcesMap(myProjectId);
       will(returnValue(resources));
 
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(runningBuilds));
+
+      // locks resolved from build features are replaced by the stored ones
+      allowing(myLocks).fromBuildFeaturesAsMap(features);
+      will(returnValue(allExistingLocks));
+
       allowing(myFeatures).searchForFeatures(qb1.getSecond());
       will(returnValue(featuresWithAllResources));
 
@@ -888,7 +1057,8 @@ public class TakenLocksImplTest extends BaseTestCase {
     }});
 
 
-    final Map<Resource, TakenLock> takenLocksMap = myTakenLocks.collectTakenLocks(runningBuilds, queuedBuilds);
+    final Map<Resource, TakenLock> takenLocksMap = myTakenLocks.collectRunningLocks();
+    myTakenLocks.addDistributedLocks(takenLocksMap, queuedBuilds);
     assertFalse(takenLocksMap.isEmpty());
     assertEquals(1, takenLocksMap.size());
     TakenLock takenLock = takenLocksMap.get(existingResource);
@@ -904,19 +1074,247 @@ public class TakenLocksImplTest extends BaseTestCase {
     assertContains(readLockPromotions, qb2.getThird());
   }
 
+  @Test
+  public void testGetUnavailableLocks_Chain_SkipsChainHolders() {
+    final Resource quotedResource = ResourceFactory.newQuotedResource("quoted_resource1_id", myProjectId, "quoted_resource1", 1, true);
+    final Map<String, Resource> resources = Collections.singletonMap(quotedResource.getName(), quotedResource);
+    final BuildPromotionEx composite = mockPromotion("composite");
+    final BuildPromotionEx other = mockPromotion("other");
+
+    final Map<String, Collection<Lock>> locksToTake = asLocksMap(new Lock(quotedResource.getName(), LockType.WRITE));
+    final Map<Resource, Map<BuildPromotionEx, Collection<Lock>>> chainLocks = new HashMap<>();
+    chainLocks.computeIfAbsent(quotedResource, k -> new HashMap<>()).put(composite, Collections.singletonList(new Lock(quotedResource.getName(), LockType.READ)));
+
+    final TakenLock takenLock = new TakenLock(quotedResource);
+    takenLock.addLock(composite, new Lock(quotedResource.getName(), LockType.READ));
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    takenLocks.put(quotedResource, takenLock);
+
+    // lock held by the chain itself does not block the node
+    assertTrue(myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myAccessor, resources, chainLocks, myPromotion).isEmpty());
+    assertEquals(0, myAccessor.getWaiterQueues().getVersion());
+
+    // lock held outside of the chain does
+    takenLock.addLock(other, new Lock(quotedResource.getName(), LockType.READ));
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, myAccessor, resources, chainLocks, myPromotion);
+    assertEquals(1, result.size());
+    assertTrue(result.containsKey(quotedResource));
+    // taken locks are not modified
+    assertEquals(2, takenLock.getLocksCount());
+  }
+
+  @Test
+  public void testTakenLock_PromotionViews() {
+    final Resource customResource = ResourceFactory.newCustomResource("custom_id", myProjectId, "custom", Arrays.asList("v1", "v2"), true);
+    final BuildPromotionEx bp1 = mockPromotion("bp1");
+    final BuildPromotionEx bp2 = mockPromotion("bp2");
+    final BuildPromotionEx bp3 = mockPromotion("bp3");
+    final TakenLock takenLock = new TakenLock(customResource);
+    takenLock.addLock(bp1, new Lock("custom", LockType.READ, "v2"));
+    takenLock.addLock(bp2, new Lock("custom", LockType.READ, "unknown"));
+    takenLock.addLock(bp3, new Lock("custom", LockType.WRITE));
+
+    assertEquals(2, takenLock.getReadLocksCount());
+    assertEquals(1, takenLock.getWriteLocksCount());
+    final Map<BuildPromotionEx, String> readLocks = takenLock.getReadLocks();
+    assertEquals("v2", readLocks.get(bp1));
+    assertEquals("unknown", readLocks.get(bp2));
+    assertFalse(readLocks.containsKey(bp3));
+    assertEquals(new HashSet<>(Arrays.asList(bp1, bp2)), readLocks.keySet());
+    assertEquals("", takenLock.getWriteLocks().get(bp3));
+    assertTrue(takenLock.getReadValueIndices((CustomResource)customResource).get(1));
+
+    final TLongHashSet excluded = new TLongHashSet();
+    excluded.add(bp1.getId());
+    excluded.add(bp3.getId());
+    assertEquals(1, takenLock.getLocksCount(excluded));
+    assertTrue(takenLock.hasReadLocks(excluded));
+    assertFalse(takenLock.hasWriteLocks(excluded));
+    assertTrue(takenLock.getTakenValueIndices((CustomResource)customResource, excluded).isEmpty());
+    assertTrue(takenLock.holdsValue("unknown", excluded));
+    assertFalse(takenLock.holdsValue("v2", excluded));
+    // locks of excluded promotions are skipped on access only
+    assertEquals(3, takenLock.getLocksCount());
+    assertTrue(takenLock.getTakenValueIndices((CustomResource)customResource).get(1));
+  }
+
+  @Test
+  public void testTakenLock_HoldersSnapshot() {
+    final Resource quotedResource = ResourceFactory.newQuotedResource("quoted_id", myProjectId, "quoted", 3, true);
+    final BuildPromotionEx bp1 = mockPromotion("bp1");
+    final BuildPromotionEx bp2 = mockPromotion("bp2");
+    final TakenLock takenLock = new TakenLock(quotedResource);
+    assertTrue(takenLock.getHolders().isEmpty());
+
+    takenLock.addLock(bp1, new Lock("quoted", LockType.READ));
+    final LockHolders holders = takenLock.getHolders();
+    assertSame(holders, takenLock.getHolders());
+    assertEquals(1, holders.getPromotionIds().length);
+
+    takenLock.addLock(bp2, new Lock("quoted", LockType.WRITE));
+    final LockHolders updated = takenLock.getHolders();
+    assertNotSame(holders, updated);
+    assertEquals(2, updated.getPromotionIds().length);
+    // earlier snapshot is not affected
+    assertEquals(1, holders.getPromotionIds().length);
+  }
+
+  @Test
+  public void testTakenLock_SeveralLocksOfPromotion() {
+    final Resource customResource = ResourceFactory.newCustomResource("custom_id", myProjectId, "custom", Arrays.asList("v1", "v2", "v3"), true);
+    final BuildPromotionEx bp1 = mockPromotion("bp1");
+    final BuildPromotionEx bp2 = mockPromotion("bp2");
+    final TakenLock takenLock = new TakenLock(customResource);
+    takenLock.addLocks(bp1, Arrays.asList(new Lock("custom", LockType.READ, "v1"), new Lock("custom", LockType.READ, "v3")));
+    takenLock.addLock(bp2, new Lock("custom", LockType.READ, "v2"));
+
+    assertEquals(3, takenLock.getLocksCount());
+    assertEquals(3, takenLock.getReadLocksCount());
+    // promotion views expose the first value of the promotion
+    assertEquals(2, takenLock.getReadLocks().size());
+    assertEquals("v1", takenLock.getReadLocks().get(bp1));
+    assertEquals(3, takenLock.getTakenValueIndices((CustomResource)customResource).cardinality());
+
+    final TLongHashSet excluded = new TLongHashSet();
+    excluded.add(bp1.getId());
+    assertEquals(1, takenLock.getLocksCount(excluded));
+    assertFalse(takenLock.holdsValue("v3", excluded));
+    assertTrue(takenLock.holdsValue("v3", new TLongHashSet()));
+    assertEquals(1, takenLock.getTakenValueIndices((CustomResource)customResource, excluded).cardinality());
+  }
+
+  @Test
+  public void testTakenLock_SeveralPlainReadLocksNotWeighted() {
+    final Resource quotedResource = ResourceFactory.newQuotedResource("quoted_id", myProjectId, "quoted", 3, true);
+    final BuildPromotionEx bp1 = mockPromotion("bp1");
+    final TakenLock takenLock = new TakenLock(quotedResource);
+    takenLock.addLocks(bp1, Arrays.asList(new Lock("quoted", LockType.READ), new Lock("quoted", LockType.READ)));
+    assertFalse(takenLock.isWeighted());
+    assertEquals(2, takenLock.getReadWeight(bp1.getId()));
+    assertEquals(2, takenLock.getWeight());
+
+    takenLock.addLocks(bp1, Arrays.asList(new Lock("quoted", LockType.READ), new Lock("quoted", LockType.READ, "", 3)));
+    assertTrue(takenLock.isWeighted());
+    assertEquals(4, takenLock.getReadWeight(bp1.getId()));
+    assertEquals(4, takenLock.getWeight());
+    assertEquals(4, takenLock.copy().getWeight());
+  }
+
+  @Test
+  public void testTakenLock_ReplacedReadLockValuesReleased() {
+    final Resource customResource = ResourceFactory.newCustomResource("custom_id", myProjectId, "custom", Arrays.asList("v1", "v2", "v3"), true);
+    final CustomResource custom = (CustomResource)customResource;
+    final BuildPromotionEx bp1 = mockPromotion("bp1");
+    final BuildPromotionEx bp2 = mockPromotion("bp2");
+    final TakenLock takenLock = new TakenLock(customResource);
+    takenLock.addLocks(bp1, Arrays.asList(new Lock("custom", LockType.READ, "v1"), new Lock("custom", LockType.READ, "v2")));
+    takenLock.addLock(bp2, new Lock("custom", LockType.READ, "v2"));
+    final TakenLock copy = takenLock.copy();
+
+    // v1 is no longer held, v2 is still held by another promotion
+    takenLock.addLock(bp1, new Lock("custom", LockType.READ, "v3"));
+    assertEquals(2, takenLock.getReadLocksCount());
+    assertFalse(takenLock.getReadValueIndices(custom).get(0));
+    assertTrue(takenLock.getReadValueIndices(custom).get(1));
+    assertTrue(takenLock.getReadValueIndices(custom).get(2));
+    assertEquals(2, takenLock.getTakenValueIndices(custom).cardinality());
+
+    // copy is not affected
+    assertEquals(3, copy.getReadLocksCount());
+    assertEquals(2, copy.getReadValueIndices(custom).cardinality());
+  }
+
+  @Test
+  public void testGetUnavailableLocks_Custom_SeveralSpecificValues() {
+    final Resource customResource = ResourceFactory.newCustomResource("custom_resource1_id", myProjectId, "custom_resource1", Arrays.asList("v1", "v2", "v3"), true);
+    final Map<String, Resource> resources = Collections.singletonMap(customResource.getName(), customResource);
+
+    final TakenLock takenLock = new TakenLock(customResource);
+    takenLock.addLock(mockPromotion("bp1"), new Lock("custom_resource1", LockType.READ, "v1"));
+    final Map<Resource, TakenLock> takenLocks = Collections.singletonMap(customResource, takenLock);
+
+    m.checking(new Expectations() {{
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+
+    assertEmpty(myTakenLocks.getUnavailableLocks(asLocksMap(new Lock("custom_resource1", LockType.READ, "v2"),
+                                                            new Lock("custom_resource1", LockType.READ, "v3")),
+                                                 takenLocks, myProjectId, myAccessor, myPromotion));
+
+    final Lock held = new Lock("custom_resource1", LockType.READ, "v1");
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(new Lock("custom_resource1", LockType.READ, "v2"), held),
+                                                                        takenLocks, myProjectId, myAccessor, myPromotion);
+    assertEquals(1, result.size());
+    assertEquals(held, result.get(customResource));
+  }
+
+  @Test
+  public void testGetUnavailableLocks_Custom_NotEnoughValues() {
+    final Resource customResource = ResourceFactory.newCustomResource("custom_resource1_id", myProjectId, "custom_resource1", Arrays.asList("v1", "v2", "v3"), true);
+    final Map<String, Resource> resources = Collections.singletonMap(customResource.getName(), customResource);
+
+    final TakenLock takenLock = new TakenLock(customResource);
+    takenLock.addLock(mockPromotion("bp1"), new Lock("custom_resource1", LockType.READ, "v1"));
+    final Map<Resource, TakenLock> takenLocks = Collections.singletonMap(customResource, takenLock);
+
+    m.checking(new Expectations() {{
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+
+    // specific value and any value need two free values
+    assertEmpty(myTakenLocks.getUnavailableLocks(asLocksMap(new Lock("custom_resource1", LockType.READ, "v2"),
+                                                            new Lock("custom_resource1", LockType.READ)),
+                                                 takenLocks, myProjectId, myAccessor, myPromotion));
+
+    takenLock.addLock(mockPromotion("bp2"), new Lock("custom_resource1", LockType.READ, "v3"));
+    final Lock any = new Lock("custom_resource1", LockType.READ);
+    final Map<Resource, Lock> result = myTakenLocks.getUnavailableLocks(asLocksMap(new Lock("custom_resource1", LockType.READ, "v2"), any),
+                                                                        takenLocks, myProjectId, myAccessor, myPromotion);
+    assertEquals(1, result.size());
+    assertEquals(any, result.get(customResource));
+  }
+
+  @Test
+  public void testGetUnavailableLocks_Quoted_SeveralLocks() {
+    final Resource quotedResource = ResourceFactory.newQuotedResource("quoted_resource1_id", myProjectId, "quoted_resource1", 5, true);
+    final Map<String, Resource> resources = Collections.singletonMap(quotedResource.getName(), quotedResource);
+
+    final TakenLock takenLock = new TakenLock(quotedResource);
+    takenLock.addLock(mockPromotion("bp1"), new Lock("quoted_resource1", LockType.READ, "", 2));
+    final Map<Resource, TakenLock> takenLocks = Collections.singletonMap(quotedResource, takenLock);
+
+    m.checking(new Expectations() {{
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+
+    // weights of all locks of the build are summed up
+    assertEmpty(myTakenLocks.getUnavailableLocks(asLocksMap(new Lock("quoted_resource1", LockType.READ, "", 2),
+                                                            new Lock("quoted_resource1", LockType.READ)),
+                                                 takenLocks, myProjectId, myAccessor, myPromotion));
+    assertEquals(1, myTakenLocks.getUnavailableLocks(asLocksMap(new Lock("quoted_resource1", LockType.READ, "", 2),
+                                                                new Lock("quoted_resource1", LockType.READ, "", 2)),
+                                                     takenLocks, myProjectId, myAccessor, myPromotion).size());
+  }
+
   @SuppressWarnings("SameParameterValue")
   private Trinity<RunningBuildEx, BuildTypeEx, BuildPromotionEx> createMockRunningBuild(@NotNull final String projectId) {
     final String name = generateRandomName();
     final RunningBuildEx build = m.mock(RunningBuildEx.class, "runningBuild_" + name);
     final BuildTypeEx buildType = m.mock(BuildTypeEx.class, "runningBuild_ " + name + "-buildType");
-    final BuildPromotionEx buildPromotion = m.mock(BuildPromotionEx.class, "runningBuild_" + name + "-buildPromotion");
+    final BuildPromotionEx buildPromotion = mockPromotion("runningBuild_" + name + "-buildPromotion");
     m.checking(new Expectations() {{
       allowing(build).getBuildType();
       will(returnValue(buildType));
 
-      allowing(build).getBuildPromotionInfo();
+      allowing(build).getBuildPromotion();
       will(returnValue(buildPromotion));
 
+      allowing(build).isFinished();
+      will(returnValue(false));
+
       allowing(buildType).getProjectId();
       will(returnValue(projectId));
     }});
@@ -928,7 +1326,7 @@ public class TakenLocksImplTest extends BaseTestCase {
     final String name = generateRandomName();
     final QueuedBuildInfo build = m.mock(QueuedBuildInfo.class, "queuedBuildInfo" + name);
     final BuildTypeEx buildType = m.mock(BuildTypeEx.class, "runningBuild_ " + name + "-buildType");
-    final BuildPromotionEx buildPromotion = m.mock(BuildPromotionEx.class, "runningBuild_" + name + "-buildPromotion");
+    final BuildPromotionEx buildPromotion = mockPromotion("runningBuild_" + name + "-buildPromotion");
     m.checking(new Expectations() {{
       allowing(build).getBuildPromotionInfo();
       will(returnValue(buildPromotion));
@@ -941,4 +1339,18 @@ public class TakenLocksImplTest extends BaseTestCase {
     }});
     return new Trinity<>(build, buildType, buildPromotion);
   }
+
+  private BuildPromotionEx mockPromotion() {
+    return mockPromotion("promotion-" + myNextPromotionId);
+  }
+
+  private BuildPromotionEx mockPromotion(@NotNull final String name) {
+    final BuildPromotionEx result = m.mock(BuildPromotionEx.class, name);
+    final long id = myNextPromotionId++;
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(id));
+    }});
+    return result;
+  }
 }
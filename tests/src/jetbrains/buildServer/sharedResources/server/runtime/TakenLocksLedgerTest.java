@@ -0,0 +1,311 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongHashSet;
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.BuildProblemData;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.sharedResources.server.feature.Locks;
+import jetbrains.buildServer.sharedResources.server.feature.Resources;
+import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
+import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static jetbrains.buildServer.sharedResources.TestUtils.asLocksMap;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = TakenLocksLedger.class)
+public class TakenLocksLedgerTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private RunningBuildsManager myRunningBuildsManager;
+
+  private LocksStorage myLocksStorage;
+
+  private SharedResourcesFeatures myFeatures;
+
+  private Locks myLocks;
+
+  /**
+   * Resources of the project. Name -> resource
+   */
+  private Map<String, Resource> myResources;
+
+  private LockLeases myLeases;
+
+  /**
+   * Class under test
+   */
+  private TakenLocksLedger myLedger;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myRunningBuildsManager = m.mock(RunningBuildsManager.class);
+    myLocksStorage = m.mock(LocksStorage.class);
+    myFeatures = m.mock(SharedResourcesFeatures.class);
+    myLocks = m.mock(Locks.class);
+    myResources = new HashMap<>();
+    final Resources resources = m.mock(Resources.class);
+    m.checking(new Expectations() {{
+      allowing(resources).getResourcesMap("PROJECT_ID");
+      will(returnValue(myResources));
+    }});
+    myLeases = new LockLeases(myDispatcher, resources, 0L, false);
+    myLedger = new TakenLocksLedger(myDispatcher, myRunningBuildsManager, myLocksStorage, myFeatures, myLocks, myLeases);
+  }
+
+  @Override
+  @AfterMethod
+  public void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testInitializedFromRunningBuilds() {
+    final Map<String, Collection<Lock>> locks = asLocksMap(new Lock("resource", LockType.READ));
+    final SRunningBuild build = createRunningBuild("build", 1L, locks);
+    final SRunningBuild noFeatures = m.mock(SRunningBuild.class, "noFeatures");
+    final SBuildType noFeaturesBuildType = m.mock(SBuildType.class, "noFeatures-buildType");
+    final BuildPromotion promotion = build.getBuildPromotion();
+    m.checking(new Expectations() {{
+      oneOf(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Arrays.asList(build, noFeatures)));
+
+      allowing(noFeatures).getBuildType();
+      will(returnValue(noFeaturesBuildType));
+
+      allowing(myFeatures).searchForFeatures(noFeaturesBuildType);
+      will(returnValue(Collections.emptyList()));
+
+      allowing(myLocksStorage).locksStored(promotion);
+      will(returnValue(false));
+    }});
+
+    final Collection<TakenLocksLedger.HeldLocks> heldLocks = myLedger.getHeldLocks();
+    assertEquals(1, heldLocks.size());
+    final TakenLocksLedger.HeldLocks held = heldLocks.iterator().next();
+    assertEquals("PROJECT_ID", held.getProjectId());
+    assertEquals(locks, held.getLocks());
+    // running builds are not walked again
+    assertEquals(1, myLedger.getHeldLocks().size());
+  }
+
+  @Test
+  public void testStartedAndFinished() {
+    m.checking(new Expectations() {{
+      allowing(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.emptyList()));
+    }});
+    assertEmpty(myLedger.getHeldLocks());
+
+    final SRunningBuild build = createRunningBuild("build", 1L, asLocksMap(new Lock("resource", LockType.WRITE)));
+    myDispatcher.getMulticaster().buildStarted(build);
+    assertEquals(1, myLedger.getHeldLocks().size());
+
+    myDispatcher.getMulticaster().buildFinished(build);
+    assertEmpty(myLedger.getHeldLocks());
+  }
+
+  @Test
+  public void testInterrupted() {
+    m.checking(new Expectations() {{
+      allowing(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.emptyList()));
+    }});
+    final SRunningBuild build = createRunningBuild("build", 1L, asLocksMap(new Lock("resource", LockType.WRITE)));
+    myDispatcher.getMulticaster().buildStarted(build);
+    assertEquals(1, myLedger.getHeldLocks().size());
+
+    myDispatcher.getMulticaster().buildInterrupted(build);
+    assertEmpty(myLedger.getHeldLocks());
+  }
+
+  @Test
+  public void testStoredLocksReplaceFeatureLocks() {
+    m.checking(new Expectations() {{
+      allowing(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.emptyList()));
+    }});
+    final SRunningBuild build = createRunningBuild("build", 1L, asLocksMap(new Lock("resource", LockType.READ)));
+    final Map<String, Collection<Lock>> stored = asLocksMap(new Lock("resource", LockType.READ, "value"));
+    final BuildPromotion promotion = build.getBuildPromotion();
+    m.checking(new Expectations() {{
+      oneOf(myLocksStorage).locksStored(promotion);
+      will(returnValue(true));
+
+      oneOf(myLocksStorage).load(promotion);
+      will(returnValue(stored));
+    }});
+    myDispatcher.getMulticaster().buildStarted(build);
+    final TakenLocksLedger.HeldLocks held = myLedger.getHeldLocks().iterator().next();
+    assertEquals(stored, held.getLocks());
+    // stored locks are not reloaded
+    assertEquals(stored, held.getLocks());
+  }
+
+  @Test
+  public void testHeldValuesIndex() {
+    m.checking(new Expectations() {{
+      allowing(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.emptyList()));
+    }});
+    final Lock lock = new Lock("resource", LockType.READ);
+    final Map<String, Collection<Lock>> locks = asLocksMap(lock);
+    final SRunningBuild build1 = createRunningBuild("build1", 1L, locks);
+    final SRunningBuild build2 = createRunningBuild("build2", 2L, locks);
+    final SRunningBuild build3 = createRunningBuild("build3", 3L, locks);
+    myLedger.locksStored(build1.getBuildPromotion(), Collections.singletonMap(lock, "value1"));
+    myLedger.locksStored(build2.getBuildPromotion(), Collections.singletonMap(lock, "value1"));
+    myLedger.locksStored(build3.getBuildPromotion(), Collections.singletonMap(lock, ""));
+    myDispatcher.getMulticaster().buildStarted(build1);
+    myDispatcher.getMulticaster().buildStarted(build2);
+    myDispatcher.getMulticaster().buildStarted(build3);
+
+    final List<String> names = Arrays.asList("resource", "other");
+    // same value held by two builds is returned twice, empty values are not returned
+    Map<String, List<String>> values = myLedger.getHeldValues(names, new TLongHashSet());
+    assertEquals(Arrays.asList("value1", "value1"), values.get("resource"));
+    assertEmpty(values.get("other"));
+
+    values = myLedger.getHeldValues(names, new TLongHashSet(new long[] {2L}));
+    assertEquals(Collections.singletonList("value1"), values.get("resource"));
+
+    myDispatcher.getMulticaster().buildFinished(build1);
+    myDispatcher.getMulticaster().buildInterrupted(build2);
+    assertEmpty(myLedger.getHeldValues(names, new TLongHashSet()).get("resource"));
+  }
+
+  @Test
+  public void testExpiredLeaseReleasesLocks() {
+    m.checking(new Expectations() {{
+      allowing(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.emptyList()));
+    }});
+    myResources.put("leased", ResourceFactory.newCustomResource("leased_id", "PROJECT_ID", "leased", Arrays.asList("value1", "value2"), true, 60));
+    myResources.put("other", ResourceFactory.newQuotedResource("other_id", "PROJECT_ID", "other", 1, true));
+    final Lock leased = new Lock("leased", LockType.READ);
+    final Lock other = new Lock("other", LockType.WRITE);
+    final SRunningBuild build = createRunningBuild("build", 1L, asLocksMap(leased, other));
+    final Map<Lock, String> stored = new HashMap<>();
+    stored.put(leased, "value1");
+    stored.put(other, "");
+    myLedger.locksStored(build.getBuildPromotion(), stored);
+    m.checking(new Expectations() {{
+      allowing(build).getStartDate();
+      will(returnValue(new Date(0L)));
+
+      allowing(build).getBuildId();
+      will(returnValue(1L));
+    }});
+    myDispatcher.getMulticaster().buildStarted(build);
+
+    final TakenLocksLedger.HeldLocks held = myLedger.getHeldLocks().iterator().next();
+    final List<String> names = Collections.singletonList("leased");
+    // lease has not expired yet
+    myLeases.expire(59_999L);
+    assertEquals(new HashSet<>(Arrays.asList("leased", "other")), held.getLocks().keySet());
+    assertEquals(Collections.singletonList("value1"), myLedger.getHeldValues(names, new TLongHashSet()).get("leased"));
+
+    m.checking(new Expectations() {{
+      oneOf(build).addBuildProblem(with(any(BuildProblemData.class)));
+    }});
+    myLeases.expire(60_000L);
+    assertEquals(Collections.singleton("other"), held.getLocks().keySet());
+    assertEmpty(myLedger.getHeldValues(names, new TLongHashSet()).get("leased"));
+    assertTrue(myLeases.isExpired(1L, "leased"));
+
+    myDispatcher.getMulticaster().buildFinished(build);
+    assertFalse(myLeases.isExpired(1L, "leased"));
+    assertEmpty(myLedger.getHeldLocks());
+  }
+
+  @Test
+  public void testLeaseCancelledOnFinish() {
+    m.checking(new Expectations() {{
+      allowing(myRunningBuildsManager).getRunningBuilds();
+      will(returnValue(Collections.emptyList()));
+    }});
+    myResources.put("leased", ResourceFactory.newQuotedResource("leased_id", "PROJECT_ID", "leased", 1, true, 60));
+    final SRunningBuild build = createRunningBuild("build", 1L, asLocksMap(new Lock("leased", LockType.WRITE)));
+    m.checking(new Expectations() {{
+      allowing(build).getStartDate();
+      will(returnValue(new Date(0L)));
+
+      never(build).addBuildProblem(with(any(BuildProblemData.class)));
+    }});
+    myDispatcher.getMulticaster().buildStarted(build);
+    myDispatcher.getMulticaster().buildFinished(build);
+    myLeases.expire(120_000L);
+    assertFalse(myLeases.isExpired(1L, "leased"));
+  }
+
+  private SRunningBuild createRunningBuild(final String name, final long promotionId, final Map<String, Collection<Lock>> locks) {
+    final SRunningBuild build = m.mock(SRunningBuild.class, name);
+    final SBuildType buildType = m.mock(SBuildType.class, name + "-buildType");
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class, name + "-promotion");
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class, name + "-feature");
+    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
+    m.checking(new Expectations() {{
+      allowing(build).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(build).getBuildPromotion();
+      will(returnValue(promotion));
+
+      allowing(build).isFinished();
+      will(returnValue(false));
+
+      allowing(promotion).getId();
+      will(returnValue(promotionId));
+
+      allowing(buildType).getProjectId();
+      will(returnValue("PROJECT_ID"));
+
+      allowing(myFeatures).searchForFeatures(buildType);
+      will(returnValue(features));
+
+      allowing(myLocks).fromBuildFeaturesAsMap(features);
+      will(returnValue(locks));
+    }});
+    return build;
+  }
+}
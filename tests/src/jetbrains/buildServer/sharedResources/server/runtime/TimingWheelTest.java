@@ -0,0 +1,125 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.TestFor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = TimingWheel.class)
+public class TimingWheelTest extends BaseTestCase {
+
+  private TimingWheel<String> myWheel;
+
+  private List<String> myExpired;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myWheel = new TimingWheel<>(100, 8, 0L);
+    myExpired = new ArrayList<>();
+  }
+
+  @Test
+  public void testExpiresAtDeadline() {
+    myWheel.schedule("first", 250);
+    myWheel.schedule("second", 300);
+    assertEquals(2, myWheel.size());
+
+    myWheel.advance(299, myExpired::add);
+    // deadlines are rounded up to the tick, entries never expire early
+    assertEmpty(myExpired);
+
+    myWheel.advance(300, myExpired::add);
+    assertEquals(Arrays.asList("first", "second"), sorted(myExpired));
+    assertEquals(0, myWheel.size());
+  }
+
+  @Test
+  public void testDeadlineBeyondRevolution() {
+    // wheel of 8 buckets, 100ms each: revolution is 800ms
+    myWheel.schedule("near", 200);
+    myWheel.schedule("far", 1000);
+
+    myWheel.advance(900, myExpired::add);
+    assertEquals(Collections.singletonList("near"), myExpired);
+    assertEquals(1, myWheel.size());
+
+    myWheel.advance(1000, myExpired::add);
+    assertEquals(Arrays.asList("near", "far"), myExpired);
+  }
+
+  @Test
+  public void testAdvanceOverSeveralRevolutions() {
+    myWheel.schedule("first", 500);
+    myWheel.schedule("second", 2500);
+    myWheel.schedule("third", 10000);
+
+    myWheel.advance(5000, myExpired::add);
+    assertEquals(Arrays.asList("first", "second"), sorted(myExpired));
+
+    myWheel.advance(9999, myExpired::add);
+    assertEquals(2, myExpired.size());
+
+    myWheel.advance(10000, myExpired::add);
+    assertEquals(Arrays.asList("first", "second", "third"), sorted(myExpired));
+  }
+
+  @Test
+  public void testCancel() {
+    final TimingWheel.Entry<String> first = myWheel.schedule("first", 200);
+    myWheel.schedule("second", 200);
+    myWheel.cancel(first);
+    assertFalse(first.isScheduled());
+    assertEquals(1, myWheel.size());
+    // repeated cancellation has no effect
+    myWheel.cancel(first);
+    assertEquals(1, myWheel.size());
+
+    myWheel.advance(1000, myExpired::add);
+    assertEquals(Collections.singletonList("second"), myExpired);
+  }
+
+  @Test
+  public void testDeadlineInThePast() {
+    myWheel.advance(1000, myExpired::add);
+    final TimingWheel.Entry<String> entry = myWheel.schedule("late", 100);
+    assertTrue(entry.isScheduled());
+
+    myWheel.advance(1050, myExpired::add);
+    assertEmpty(myExpired);
+
+    myWheel.advance(1100, myExpired::add);
+    assertEquals(Collections.singletonList("late"), myExpired);
+    assertFalse(entry.isScheduled());
+  }
+
+  private static List<String> sorted(final List<String> values) {
+    final List<String> result = new ArrayList<>(values);
+    Collections.sort(result);
+    return result;
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2000-2019 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * @author Oleg Rybak (oleg.rybak@jetbrains.com)
+ */
+@TestFor(testForClass = WaiterQueues.class)
+public class WaiterQueuesTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private WaiterQueues myQueues;
+
+  private List<QueuedBuildInfo> myQueue;
+
+  private long myNextPromotionId = 1;
+
+  private final Resource myResource = ResourceFactory.newQuotedResource("resource_id", "PROJECT", "resource", 2, true);
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myQueue = new ArrayList<>();
+    myQueues = new WaiterQueues();
+    myQueues.setQueuedBuilds(() -> myQueue);
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    m.assertIsSatisfied();
+    super.tearDown();
+  }
+
+  @Test
+  public void testReaderBlockedOnlyByEarlierWriters() {
+    final BuildPromotion first = queued();
+    final BuildPromotion second = queued();
+    final BuildPromotion third = queued();
+    assertFalse(myQueues.isReaderBlocked(myResource, first));
+
+    myQueues.addWriter(myResource, second);
+    assertFalse(myQueues.isReaderBlocked(myResource, first));
+    assertTrue(myQueues.isReaderBlocked(myResource, third));
+    // other resource with the same name is not affected
+    assertFalse(myQueues.isReaderBlocked(ResourceFactory.newQuotedResource("other_id", "OTHER", "resource", 2, true), third));
+  }
+
+  @Test
+  public void testWaitersOrderedByQueuePosition() {
+    final BuildPromotion first = queued();
+    final BuildPromotion second = queued();
+    final BuildPromotion third = queued();
+
+    myQueues.addWriter(myResource, third);
+    myQueues.addWriter(myResource, first);
+    myQueues.addWriter(myResource, second);
+    myQueues.addWriter(myResource, first);
+
+    final List<WaiterQueues.Waiter> waiters = myQueues.getWaiters(myResource);
+    assertEquals(3, waiters.size());
+    assertEquals(first.getId(), waiters.get(0).getPromotionId());
+    assertEquals(second.getId(), waiters.get(1).getPromotionId());
+    assertEquals(third.getId(), waiters.get(2).getPromotionId());
+    assertEquals(3, myQueues.getVersion());
+  }
+
+  @Test
+  public void testUnknownPositions() {
+    final BuildPromotion first = queued();
+    final BuildPromotion unknown = promotion();
+    // reader, that is not in the queue, is blocked by any writer
+    myQueues.addWriter(myResource, first);
+    assertTrue(myQueues.isReaderBlocked(myResource, unknown));
+
+    // writer, that is not in the queue, blocks any reader, even if it is marked as blocked
+    final Resource other = ResourceFactory.newInfiniteResource("other_id", "PROJECT", "other", true);
+    myQueues.addWriter(other, unknown);
+    myQueues.writerBlocked(unknown);
+    assertTrue(myQueues.isReaderBlocked(other, first));
+    assertTrue(myQueues.isReaderBlocked(other, unknown));
+  }
+
+  @Test
+  public void testBlockedWriterDoesNotBlockReaders() {
+    final BuildPromotion first = queued();
+    final BuildPromotion second = queued();
+    final BuildPromotion third = queued();
+    final BuildPromotion unknown = promotion();
+
+    myQueues.addWriter(myResource, first);
+    myQueues.writerBlocked(first);
+    assertTrue(myQueues.getWaiters(myResource).get(0).isBlocked());
+    assertFalse(myQueues.isReaderBlocked(myResource, third));
+    assertFalse(myQueues.isReaderBlocked(myResource, unknown));
+
+    // writer, that is not blocked, still stops readers after it
+    myQueues.addWriter(myResource, second);
+    assertTrue(myQueues.isReaderBlocked(myResource, third));
+
+    // writer is checked again and is waiting only for the write access now
+    myQueues.addWriter(myResource, first);
+    assertFalse(myQueues.getWaiters(myResource).get(0).isBlocked());
+    assertEquals(2, myQueues.getWaiters(myResource).size());
+    assertTrue(myQueues.isReaderBlocked(myResource, second));
+  }
+
+  @Test
+  public void testSnapshot() {
+    final BuildPromotion first = queued();
+    final BuildPromotion second = queued();
+    final WaiterQueues other = new WaiterQueues();
+    other.setQueuedBuilds(() -> myQueue);
+
+    myQueues.addWriter(myResource, first);
+    assertSame(myQueues.snapshot(), myQueues.snapshot());
+    assertFalse(other.contentEquals(myQueues.snapshot()));
+
+    other.addAll(myQueues.snapshot());
+    assertTrue(other.contentEquals(myQueues.snapshot()));
+
+    myQueues.addWriter(myResource, second);
+    assertFalse(other.contentEquals(myQueues.snapshot()));
+
+    other.addAll(myQueues.snapshot());
+    myQueues.writerBlocked(second);
+    assertFalse(other.contentEquals(myQueues.snapshot()));
+
+    other.addAll(myQueues.snapshot());
+    assertTrue(other.contentEquals(myQueues.snapshot()));
+  }
+
+  @NotNull
+  private BuildPromotion queued() {
+    final BuildPromotion promotion = promotion();
+    final QueuedBuildInfo queuedBuild = m.mock(QueuedBuildInfo.class, "queued-" + promotion.getId());
+    m.checking(new Expectations() {{
+      allowing(queuedBuild).getBuildPromotionInfo();
+      will(returnValue(promotion));
+    }});
+    myQueue.add(queuedBuild);
+    return promotion;
+  }
+
+  @NotNull
+  private BuildPromotion promotion() {
+    final long id = myNextPromotionId++;
+    final BuildPromotion result = m.mock(BuildPromotion.class, "promotion-" + id);
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(id));
+    }});
+    return result;
+  }
+}
@@ -36,6 +36,7 @@ import jetbrains.buildServer.sharedResources.pages.beans.BeansFactory;
 import jetbrains.buildServer.sharedResources.server.*;
 import jetbrains.buildServer.sharedResources.server.analysis.ResourceUsageAnalyzer;
 import jetbrains.buildServer.sharedResources.server.feature.*;
+import jetbrains.buildServer.sharedResources.server.metrics.SharedResourcesMetrics;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeaturesImpl;
 import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
@@ -59,25 +60,29 @@ public class SharedResourcesIntegrationTestsSupport {
   public static void apply(@NotNull final BuildServerCreator fixture) {
     final PluginDescriptor descriptor = new MockServerPluginDescriptior();
     final Locks locks = new LocksImpl();
-    final SharedResourcesFeatureFactory factory = new SharedResourcesFeatureFactoryImpl(locks);
+    final SharedResourcesMetrics metrics = new SharedResourcesMetrics();
+    final SharedResourcesFeatureFactory factory = new SharedResourcesFeatureFactoryImpl(locks, metrics);
     final SharedResourcesFeatures features = new SharedResourcesFeaturesImpl(factory);
-    final LocksStorage locksStorage = new LocksStorageImpl(fixture.getEventDispatcher());
+    final LocksStorage locksStorage = new LocksStorageImpl(fixture.getEventDispatcher(), metrics);
 
-    final BuildUsedResourcesReport buildUsedResourcesReport = new BuildUsedResourcesReport(new UsedResourcesSerializer());
+    final ArtifactsWriteBehind writeBehind = new ArtifactsWriteBehind(fixture.getEventDispatcher());
+    final BuildUsedResourcesReport buildUsedResourcesReport = new BuildUsedResourcesReport(new UsedResourcesSerializer(), writeBehind);
 
     final BuildFeatureParametersProvider provider = new BuildFeatureParametersProvider(features, locks, locksStorage);
 
     final ResourceProjectFeaturesImpl projectFeatures = new ResourceProjectFeaturesImpl();
-    final Resources resources = new ResourcesImpl(fixture.getProjectManager(), projectFeatures);
+    final Resources resources = new ResourcesImpl(fixture.getEventDispatcher(), fixture.getProjectManager(), projectFeatures);
 
-    final TakenLocks takenLocks = new TakenLocksImpl(locks, resources, locksStorage, features);
-    final ConfigurationInspector inspector = new ConfigurationInspector(features, resources);
+    final LockLeases leases = new LockLeases(fixture.getEventDispatcher(), resources);
+    final TakenLocksLedger ledger = new TakenLocksLedger(fixture.getEventDispatcher(), fixture.getSingletonService(RunningBuildsManager.class), locksStorage, features, locks, leases);
+    final TakenLocks takenLocks = new TakenLocksImpl(locks, resources, features, ledger, metrics);
+    final ConfigurationInspector inspector = new ConfigurationInspector(fixture.getEventDispatcher(), projectFeatures, features, resources, fixture.getProjectManager());
 
     final SharedResourcesAgentsFilter filter =
-      new SharedResourcesAgentsFilter(features, locks, takenLocks, fixture.getSingletonService(RunningBuildsManager.class), inspector, locksStorage, resources);
+      new SharedResourcesAgentsFilter(features, locks, takenLocks, inspector, locksStorage, resources, metrics);
 
     final SharedResourcesContextProcessor processor =
-      new SharedResourcesContextProcessor(features, locks, resources, locksStorage, fixture.getSingletonService(RunningBuildsManager.class), buildUsedResourcesReport);
+      new SharedResourcesContextProcessor(features, locks, resources, locksStorage, ledger, buildUsedResourcesReport, metrics);
 
     final ResourceUsageAnalyzer analyzer = new ResourceUsageAnalyzer(resources, features);
     final ResourceHelper resourceHelper = new ResourceHelper();
@@ -88,11 +93,15 @@ public class SharedResourcesIntegrationTestsSupport {
 
     fixture.addService(new ReservedValuesProvider(fixture.getServer()));
     fixture.getServer().registerExtension(BuildParametersProvider.class, "tests", provider);
+    fixture.addService(metrics);
     fixture.addService(locksStorage);
+    fixture.addService(leases);
+    fixture.addService(ledger);
     fixture.addService(messages);
     fixture.addService(resourceHelper);
     fixture.addService(features);
     fixture.addService(projectFeatures);
+    fixture.addService(writeBehind);
     fixture.addService(buildUsedResourcesReport);
     fixture.addService(filter);
     fixture.addService(processor);